@@ -0,0 +1,29 @@
+package de.a0h.minideeplearn.benchmark;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks with the GC profiler, so that the allocation rate is
+ * reported besides the throughput. Accepts the usual JMH command line options,
+ * e.g. a benchmark name filter or <code>-p shape=784-256-128-10</code>.
+ *
+ * <pre>
+ * mvn -P jmh package
+ * java -jar target/benchmarks.jar
+ * </pre>
+ */
+public class Benchmarks {
+
+	public static void main(String[] args) throws Exception {
+		Options options = new OptionsBuilder() //
+				.parent(new CommandLineOptions(args)) //
+				.addProfiler(GCProfiler.class) //
+				.build();
+
+		new Runner(options).run();
+	}
+}
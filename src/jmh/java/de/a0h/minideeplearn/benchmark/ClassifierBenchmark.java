@@ -0,0 +1,170 @@
+package de.a0h.minideeplearn.benchmark;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import de.a0h.minideeplearn.Stats;
+import de.a0h.minideeplearn.operation.Operation;
+import de.a0h.minideeplearn.operation.compiler.JavaToClassCompiler;
+import de.a0h.minideeplearn.operation.compiler.OperationToJavaCompiler;
+import de.a0h.minideeplearn.operation.gradient.Gradient;
+import de.a0h.minideeplearn.operation.optimizer.GradientDescentOptimizer;
+import de.a0h.minideeplearn.predefined.Classifier;
+import de.a0h.mininum.MnFuncs;
+
+/**
+ * Measures the throughput of the basic steps of a classifier, once for the
+ * interpreted {@link Classifier} and once for the class compiled from it by the
+ * {@link OperationToJavaCompiler}, with and without inlined vector operations
+ * and with batched code generation.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ClassifierBenchmark {
+
+	/**
+	 * Layer sizes of the classifier, separated by dashes.
+	 */
+	@Param({ "2-4-2-2", "42-64-48-32-24-16-7", "784-256-128-10" })
+	public String shape;
+
+	/**
+	 * interpreted: the Classifier itself<br>
+	 * compiled: compiled without inlining of vector operations<br>
+	 * compiledInlined: compiled with inlining of vector operations<br>
+	 * compiledBatched: compiled with inlining and batched code generation, see
+	 * {@link OperationToJavaCompiler#setBatchedCode(boolean)}
+	 */
+	@Param({ "interpreted", "compiled", "compiledInlined", "compiledBatched" })
+	public String implementation;
+
+	public static final int SAMPLE_COUNT = 256;
+
+	public static final int BATCH_SIZE = 32;
+
+	public static final float LEARNING_RATE = 0.01f;
+
+	protected Operation model;
+
+	protected Gradient grad;
+
+	protected float[][] inp;
+
+	protected float[][] target;
+
+	protected int sampleIdx;
+
+	protected GradientDescentOptimizer optimizer;
+
+	protected Random shufflingRnd;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		Classifier classifier = new Classifier(parseShape(shape));
+
+		if ("interpreted".equals(implementation)) {
+			model = classifier;
+		} else if ("compiled".equals(implementation)) {
+			model = compile(classifier, false, false);
+		} else if ("compiledInlined".equals(implementation)) {
+			model = compile(classifier, true, false);
+		} else if ("compiledBatched".equals(implementation)) {
+			model = compile(classifier, true, true);
+		} else {
+			throw new IllegalArgumentException("unknown implementation: " + implementation);
+		}
+
+		Random rnd = new Random(0);
+		model.initParams(rnd);
+
+		grad = model.createGradient();
+
+		inp = new float[SAMPLE_COUNT][model.getInputSize()];
+		target = new float[SAMPLE_COUNT][model.getOutputSize()];
+		MnFuncs.assignGaussian(inp, rnd);
+		for (int i = 0; i < SAMPLE_COUNT; i++) {
+			target[i][rnd.nextInt(target[i].length)] = 1.0f;
+		}
+
+		optimizer = new GradientDescentOptimizer();
+		shufflingRnd = new Random(0);
+
+		// fills the intermediate results which calcGradient and learn rely on
+		model.calcOutput(inp[0]);
+		model.calcLoss(inp[0], target[0]);
+		model.calcGradient(inp[0], target[0], grad);
+	}
+
+	@Benchmark
+	public float[] calcOutput() {
+		sampleIdx = (sampleIdx + 1) % SAMPLE_COUNT;
+
+		return model.calcOutput(inp[sampleIdx]);
+	}
+
+	@Benchmark
+	public Gradient calcGradient() {
+		sampleIdx = (sampleIdx + 1) % SAMPLE_COUNT;
+
+		model.calcOutput(inp[sampleIdx]);
+		model.calcGradient(inp[sampleIdx], target[sampleIdx], grad);
+
+		return grad;
+	}
+
+	@Benchmark
+	public Operation learn() {
+		// a tiny learning rate keeps the parameters from drifting away
+		model.learn(grad, -1e-12f);
+
+		return model;
+	}
+
+	/**
+	 * One epoch over all samples in mini-batches.
+	 */
+	@Benchmark
+	@OutputTimeUnit(TimeUnit.MILLISECONDS)
+	public Stats optimizerEpoch() {
+		return optimizer.run(model, inp, target, BATCH_SIZE, LEARNING_RATE, shufflingRnd);
+	}
+
+	protected static Operation compile(Operation src, boolean inlineVecOps, boolean batchedCode) {
+		OperationToJavaCompiler toJavaCompiler = new OperationToJavaCompiler();
+		toJavaCompiler.setBatchedCode(batchedCode);
+		JavaToClassCompiler toClassCompiler = new JavaToClassCompiler();
+
+		String source = toJavaCompiler.compile(src, inlineVecOps).toString();
+		Class<? extends Operation> clazz = toClassCompiler.compileOperation(source);
+
+		return toClassCompiler.newInstance(clazz);
+	}
+
+	protected static int[] parseShape(String shape) {
+		String[] parts = shape.split("-");
+
+		int[] result = new int[parts.length];
+		for (int i = 0; i < parts.length; i++) {
+			result[i] = Integer.parseInt(parts[i]);
+		}
+
+		return result;
+	}
+}
@@ -1,16 +1,43 @@
 package de.a0h.minideeplearn;
 
+import java.util.Arrays;
+
 import de.a0h.mininum.format.StringUtil;
 
+/**
+ * The loss, the confusion matrix and the loss distribution of a number of
+ * samples. Every sample is aggregated in O(1), and the stats of disjoint sample
+ * sets can be merged, see {@link #merge(Stats)}. A Stats object isn't thread
+ * safe, use a {@link StatsAccumulator} to aggregate from several threads.
+ */
 public class Stats {
 
-	enum ResultType {
+	public enum ResultType {
 		TRUE_POSITIVE, //
 		TRUE_NEGATIVE, //
 		FALSE_POSITIVE, //
 		FALSE_NEGATIVE, //
 	}
 
+	/**
+	 * The loss histogram has 2^LOSS_SUB_BUCKET_BITS buckets per power of 2, i.e.
+	 * the quantiles have a relative error of at most 1/2^(LOSS_SUB_BUCKET_BITS+1).
+	 */
+	protected static final int LOSS_SUB_BUCKET_BITS = 4;
+
+	/**
+	 * Losses below 2^LOSS_MIN_EXPONENT, about 1e-6, are counted as 0.
+	 */
+	protected static final int LOSS_MIN_EXPONENT = -20;
+
+	/**
+	 * Losses from 2^(LOSS_MAX_EXPONENT+1) on, and NaN, are counted as infinite.
+	 */
+	protected static final int LOSS_MAX_EXPONENT = 15;
+
+	protected static final int LOSS_BUCKET_COUNT = 2 + //
+			((LOSS_MAX_EXPONENT - LOSS_MIN_EXPONENT + 1) << LOSS_SUB_BUCKET_BITS);
+
 	/**
 	 * This is the sum of the losses. Usually, you are interested in the average
 	 * loss of the batch. To get this, use getLoss().
@@ -19,12 +46,37 @@ public class Stats {
 
 	public int batchSize;
 
-	public int[][] predictionResultCounts;
+	/**
+	 * The number of samples per real category (1st index) and predicted category
+	 * (2nd index).
+	 */
+	public int[][] confusionCounts;
+
+	/**
+	 * The number of samples per loss bucket, see {@link #getLossQuantile(float)}.
+	 */
+	protected int[] lossHistogram = new int[LOSS_BUCKET_COUNT];
 
 	public Stats(int categoryCount) {
-		int resultTypeCount = ResultType.values().length;
+		confusionCounts = new int[categoryCount][categoryCount];
+	}
+
+	public int getCategoryCount() {
+		return confusionCounts.length;
+	}
+
+	/**
+	 * Resets all counts and the loss sum, so that this object can be reused.
+	 */
+	public void clear() {
+		lossSum = 0.0f;
+		batchSize = 0;
+
+		for (int[] counts : confusionCounts) {
+			Arrays.fill(counts, 0);
+		}
 
-		predictionResultCounts = new int[categoryCount][resultTypeCount];
+		Arrays.fill(lossHistogram, 0);
 	}
 
 	public float getLoss() {
@@ -50,54 +102,158 @@ public class Stats {
 
 		lossSum += sampleLoss;
 
-		boolean correct = (predictedCategory == realCategory);
-
-		// prediction is correct
-		// cat y ŷ [ TP TN FP FN ]
-		// . 0 . . [ .. 1. .. .. ]
-		// . 1 . . [ .. 1. .. .. ]
-		// . 2 . . [ .. 1. .. .. ]
-		// . 3 1 1 [ 1. .. .. .. ]
-		// . 4 . . [ .. 1. .. .. ]
-		// . 5 . . [ .. 1. .. .. ]
-
-		// prediction is incorrect
-		// cat y ŷ [ TP TN FP FN ]
-		// . 0 . . [ .. 1. .. .. ]
-		// . 1 . . [ .. 1. .. .. ]
-		// . 2 1 . [ .. .. .. 1. ]
-		// . 3 . . [ .. 1. .. .. ]
-		// . 4 . . [ .. 1. .. .. ]
-		// . 5 . 1 [ .. .. 1. .. ]
-
-		for (int i = 0; i < predictionResultCounts.length; i++) {
-			ResultType resultType;
-
-			if (correct) {
-				if (i == predictedCategory) {
-					resultType = ResultType.TRUE_POSITIVE;
-				} else {
-					resultType = ResultType.TRUE_NEGATIVE;
-				}
-			} else {
-				if (i == predictedCategory) {
-					resultType = ResultType.FALSE_POSITIVE;
-				} else if (i == realCategory) {
-					resultType = ResultType.FALSE_NEGATIVE;
-				} else {
-					resultType = ResultType.TRUE_NEGATIVE;
-				}
+		confusionCounts[realCategory][predictedCategory]++;
+
+		lossHistogram[getLossBucket(sampleLoss)]++;
+	}
+
+	/**
+	 * Adds the counts of the other stats, which must have the same number of
+	 * categories, to the counts of this one.
+	 */
+	public void merge(Stats other) {
+		if (other.getCategoryCount() != getCategoryCount()) {
+			throw new IllegalArgumentException("" + //
+					"the stats must have the same number of categories, but they have " + //
+					getCategoryCount() + " and " + other.getCategoryCount());
+		}
+
+		batchSize += other.batchSize;
+
+		lossSum += other.lossSum;
+
+		for (int i = 0; i < confusionCounts.length; i++) {
+			int[] counts = confusionCounts[i];
+			int[] otherCounts = other.confusionCounts[i];
+
+			for (int j = 0; j < counts.length; j++) {
+				counts[j] += otherCounts[j];
 			}
+		}
 
-			predictionResultCounts[i][resultType.ordinal()]++;
+		for (int i = 0; i < lossHistogram.length; i++) {
+			lossHistogram[i] += other.lossHistogram[i];
 		}
 	}
 
+	protected static int getLossBucket(float loss) {
+		if (Float.isNaN(loss)) {
+			return LOSS_BUCKET_COUNT - 1;
+		}
+
+		if (!(loss > 0.0f)) {
+			return 0;
+		}
+
+		int exponent = Math.getExponent(loss);
+		if (exponent < LOSS_MIN_EXPONENT) {
+			return 0;
+		}
+		if (exponent > LOSS_MAX_EXPONENT) {
+			return LOSS_BUCKET_COUNT - 1;
+		}
+
+		// the highest bits of the mantissa select the sub bucket
+		int subBucketMask = (1 << LOSS_SUB_BUCKET_BITS) - 1;
+		int subBucket = (Float.floatToRawIntBits(loss) >>> (23 - LOSS_SUB_BUCKET_BITS)) & subBucketMask;
+
+		return 1 + ((exponent - LOSS_MIN_EXPONENT) << LOSS_SUB_BUCKET_BITS) + subBucket;
+	}
+
+	/**
+	 * Returns the center of the bucket.
+	 */
+	protected static float getLossBucketValue(int bucket) {
+		if (bucket == 0) {
+			return 0.0f;
+		}
+
+		if (bucket == LOSS_BUCKET_COUNT - 1) {
+			return Float.POSITIVE_INFINITY;
+		}
+
+		int exponent = LOSS_MIN_EXPONENT + ((bucket - 1) >> LOSS_SUB_BUCKET_BITS);
+		int subBucket = (bucket - 1) & ((1 << LOSS_SUB_BUCKET_BITS) - 1);
+
+		return Math.scalb(1.0f + (subBucket + 0.5f) / (1 << LOSS_SUB_BUCKET_BITS), exponent);
+	}
+
+	/**
+	 * Returns the q-quantile of the sample losses, e.g. the median for q = 0.5,
+	 * with a relative error of at most 1/32, or NaN if no sample has been
+	 * aggregated. The quantiles are estimated from a fixed-size histogram, so they
+	 * are available while streaming and they can be merged.
+	 */
+	public float getLossQuantile(float q) {
+		if (q < 0.0f || q > 1.0f) {
+			throw new IllegalArgumentException("q must be in [0, 1], but it is " + q);
+		}
+
+		if (batchSize == 0) {
+			return Float.NaN;
+		}
+
+		long rank = Math.max(1, (long) Math.ceil(q * (double) batchSize));
+
+		long count = 0;
+		for (int i = 0; i < lossHistogram.length; i++) {
+			count += lossHistogram[i];
+
+			if (count >= rank) {
+				return getLossBucketValue(i);
+			}
+		}
+
+		return Float.POSITIVE_INFINITY;
+	}
+
+	/**
+	 * Returns the number of samples which have the result type with respect to
+	 * the category, e.g. the number of false positives of category 3. The counts
+	 * are derived from the confusion matrix.
+	 */
+	public int getResultCount(int category, ResultType resultType) {
+		int truePos = confusionCounts[category][category];
+
+		switch (resultType) {
+		case TRUE_POSITIVE:
+			return truePos;
+		case FALSE_NEGATIVE:
+			return getRealCount(category) - truePos;
+		case FALSE_POSITIVE:
+			return getPredictedCount(category) - truePos;
+		case TRUE_NEGATIVE:
+			return batchSize - getRealCount(category) - getPredictedCount(category) + truePos;
+		default:
+			throw new IllegalArgumentException("unknown result type: " + resultType);
+		}
+	}
+
+	protected int getRealCount(int category) {
+		int result = 0;
+
+		for (int count : confusionCounts[category]) {
+			result += count;
+		}
+
+		return result;
+	}
+
+	protected int getPredictedCount(int category) {
+		int result = 0;
+
+		for (int[] counts : confusionCounts) {
+			result += counts[category];
+		}
+
+		return result;
+	}
+
 	public float getAccuracy() {
 		int correctResultCount = 0;
 
-		for (int i = 0; i < predictionResultCounts.length; i++) {
-			correctResultCount += predictionResultCounts[i][ResultType.TRUE_POSITIVE.ordinal()];
+		for (int i = 0; i < confusionCounts.length; i++) {
+			correctResultCount += confusionCounts[i][i];
 		}
 
 		return ((float) correctResultCount) / batchSize;
@@ -109,6 +265,9 @@ public class Stats {
 		buf.append("batchSize: ").append(batchSize).append("\n");
 		buf.append("loss.....: ").append(getLoss()).append("\n");
 		buf.append("accuracy.: ").append(getAccuracy()).append("\n");
+		buf.append("loss p50.: ").append(getLossQuantile(0.5f)).append("\n");
+		buf.append("loss p90.: ").append(getLossQuantile(0.9f)).append("\n");
+		buf.append("loss p99.: ").append(getLossQuantile(0.99f)).append("\n");
 
 		String s;
 		String[] header = { //
@@ -135,13 +294,11 @@ public class Stats {
 		}
 		buf.append("\n");
 
-		for (int i = 0; i < predictionResultCounts.length; i++) {
-			int[] currCategoryCounts = predictionResultCounts[i];
-
-			int truePos = currCategoryCounts[ResultType.TRUE_POSITIVE.ordinal()];
-			int falsePos = currCategoryCounts[ResultType.FALSE_POSITIVE.ordinal()];
-			int trueNeg = currCategoryCounts[ResultType.TRUE_NEGATIVE.ordinal()];
-			int falseNeg = currCategoryCounts[ResultType.FALSE_NEGATIVE.ordinal()];
+		for (int i = 0; i < confusionCounts.length; i++) {
+			int truePos = getResultCount(i, ResultType.TRUE_POSITIVE);
+			int falsePos = getResultCount(i, ResultType.FALSE_POSITIVE);
+			int trueNeg = getResultCount(i, ResultType.TRUE_NEGATIVE);
+			int falseNeg = getResultCount(i, ResultType.FALSE_NEGATIVE);
 			int realPos = truePos + falseNeg;
 			int realNeg = falsePos + trueNeg;
 			int detectedPos = truePos + falsePos;
@@ -154,8 +311,8 @@ public class Stats {
 			append(buf, detectedPos, colWidth);
 			append(buf, detectedNeg, colWidth);
 
-			for (int j = 0; j < ResultType.values().length; j++) {
-				append(buf, currCategoryCounts[j], colWidth);
+			for (ResultType resultType : ResultType.values()) {
+				append(buf, getResultCount(i, resultType), colWidth);
 			}
 
 			append(buf, ((float) truePos) / realPos, colWidth);
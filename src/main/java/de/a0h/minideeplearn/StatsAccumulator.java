@@ -0,0 +1,94 @@
+package de.a0h.minideeplearn;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Aggregates {@link Stats} from several threads without locking, e.g.
+ *
+ * <pre>
+ * StatsAccumulator acc = new StatsAccumulator(categoryCount);
+ * // on any number of threads
+ * acc.aggregate(realCategory, predictedCategory, sampleLoss);
+ * // after these threads are done with the epoch
+ * Stats stats = acc.getMerged();
+ * </pre>
+ *
+ * Every thread aggregates into a cell of its own, which is a plain Stats
+ * object, so aggregating costs the same as with a single Stats object and the
+ * threads never contend. The cells are merged on demand.
+ *
+ * <p>
+ * {@link #getMerged()} and {@link #clear()} must only be called when the
+ * aggregating threads are done, i.e. when their updates happen-before the
+ * call, e.g. after joining them or after getting their futures. Otherwise,
+ * concurrent updates may be missed.
+ * </p>
+ */
+public class StatsAccumulator {
+
+	protected final int categoryCount;
+
+	protected final Queue<Stats> cells = new ConcurrentLinkedQueue<Stats>();
+
+	protected final ThreadLocal<Stats> threadCell = new ThreadLocal<Stats>() {
+
+		@Override
+		protected Stats initialValue() {
+			Stats cell = new Stats(categoryCount);
+			cells.add(cell);
+
+			return cell;
+		}
+	};
+
+	public StatsAccumulator(int categoryCount) {
+		this.categoryCount = categoryCount;
+	}
+
+	public int getCategoryCount() {
+		return categoryCount;
+	}
+
+	public void aggregate(int realCategory, int predictedCategory, float sampleLoss) {
+		threadCell.get().aggregate(realCategory, predictedCategory, sampleLoss);
+	}
+
+	/**
+	 * Returns the cell of the calling thread, which only this thread may
+	 * aggregate into. In a loop, fetching the cell once saves the thread local
+	 * lookup per sample.
+	 */
+	public Stats getCell() {
+		return threadCell.get();
+	}
+
+	/**
+	 * Returns the number of threads which have aggregated so far.
+	 */
+	public int getCellCount() {
+		return cells.size();
+	}
+
+	/**
+	 * Returns new stats with the counts of all cells.
+	 */
+	public Stats getMerged() {
+		Stats result = new Stats(categoryCount);
+
+		for (Stats cell : cells) {
+			result.merge(cell);
+		}
+
+		return result;
+	}
+
+	/**
+	 * Resets all cells. The cells are kept, so that the threads can reuse them.
+	 */
+	public void clear() {
+		for (Stats cell : cells) {
+			cell.clear();
+		}
+	}
+}
@@ -0,0 +1,339 @@
+package de.a0h.minideeplearn.checkpoint;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+
+import de.a0h.minideeplearn.operation.Operation;
+
+/**
+ * Writes checkpoints of a model periodically, every N epochs and/or every N
+ * milliseconds, without stalling the training loop, e.g.
+ *
+ * <pre>
+ * try (AsyncCheckpointer checkpointer = new AsyncCheckpointer(dir, "model", 3, 10, 60000)) {
+ * 	for (int epoch = 1; epoch &lt;= epochCount; epoch++) {
+ * 		trainer.run(model, inp, target, batchSize, learningRate, rnd);
+ * 		checkpointer.onEpochEnd(model, epoch);
+ * 	}
+ * }
+ * </pre>
+ *
+ * The training thread only copies the parameters into one of two snapshot
+ * buffers, the checkpoint is written by a background thread in the
+ * {@link ModelCheckpoint} format. If a snapshot is taken while the previous one
+ * is still being written, it goes into the other buffer. If that buffer holds a
+ * snapshot which hasn't been started yet, that snapshot is replaced, i.e. the
+ * training thread never waits.
+ *
+ * <p>
+ * Every checkpoint is written to a temporary file first, which is then renamed
+ * atomically to &lt;prefix&gt;-&lt;epoch&gt;.mdlc, so that a crash never
+ * leaves an incomplete checkpoint behind. Only the last keepCount checkpoints
+ * are kept.
+ * </p>
+ */
+public class AsyncCheckpointer implements Closeable {
+
+	public static final String FILE_EXTENSION = ".mdlc";
+
+	protected final File dir;
+
+	protected final String prefix;
+
+	protected final int keepCount;
+
+	protected final int epochInterval;
+
+	protected final long millisInterval;
+
+	protected final Thread writer;
+
+	// the layout is determined once per model, not per snapshot
+	protected Operation layoutModel;
+	protected String layout;
+
+	protected final float[][] buffers = new float[2][0];
+
+	/**
+	 * Index of the buffer which is being written, or -1.
+	 */
+	protected int writingIdx = -1;
+
+	/**
+	 * Index of the buffer which waits for being written, or -1.
+	 */
+	protected int pendingIdx = -1;
+
+	protected final String[] bufferLayouts = new String[2];
+	protected final long[] bufferEpochs = new long[2];
+	protected final int[] bufferParamCounts = new int[2];
+
+	protected long lastSnapshotEpoch;
+	protected long lastSnapshotTime;
+
+	protected boolean closed;
+
+	protected long writtenCount;
+	protected long replacedCount;
+	protected IOException lastError;
+
+	/**
+	 * @param dir            directory of the checkpoints, created if necessary
+	 * @param prefix         prefix of the file names
+	 * @param keepCount      number of checkpoints to keep
+	 * @param epochInterval  number of epochs between checkpoints, or 0 for no
+	 *                       epoch based checkpoints
+	 * @param millisInterval number of milliseconds between checkpoints, or 0 for
+	 *                       no time based checkpoints
+	 */
+	public AsyncCheckpointer(File dir, String prefix, int keepCount, int epochInterval, long millisInterval) {
+		if (keepCount < 1) {
+			throw new IllegalArgumentException("keepCount must be positive, but it is " + keepCount);
+		}
+		if (epochInterval < 0 || millisInterval < 0) {
+			throw new IllegalArgumentException("" + //
+					"the intervals must not be negative, but they are " + //
+					"epochInterval = " + epochInterval + " and " + //
+					"millisInterval = " + millisInterval);
+		}
+
+		this.dir = dir;
+		this.prefix = prefix;
+		this.keepCount = keepCount;
+		this.epochInterval = epochInterval;
+		this.millisInterval = millisInterval;
+
+		lastSnapshotTime = System.currentTimeMillis();
+
+		writer = new Thread("checkpoint-writer") {
+
+			@Override
+			public void run() {
+				writeLoop();
+			}
+		};
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	/**
+	 * Takes a snapshot if a checkpoint is due after the specified epoch. Returns
+	 * true if a snapshot has been taken.
+	 */
+	public boolean onEpochEnd(Operation model, long epoch) {
+		boolean due = false;
+
+		if (epochInterval > 0 && epoch - lastSnapshotEpoch >= epochInterval) {
+			due = true;
+		}
+		if (millisInterval > 0 && System.currentTimeMillis() - lastSnapshotTime >= millisInterval) {
+			due = true;
+		}
+
+		if (due) {
+			snapshot(model, epoch);
+		}
+
+		return due;
+	}
+
+	/**
+	 * Copies the parameters of the model and returns immediately. The checkpoint
+	 * is written in the background.
+	 */
+	public void snapshot(Operation model, long epoch) {
+		if (layoutModel != model) {
+			layout = ModelCheckpoint.getLayout(model);
+			layoutModel = model;
+		}
+
+		int paramCount = model.getParamCount();
+
+		synchronized (this) {
+			if (closed) {
+				throw new IllegalStateException("the checkpointer has been closed");
+			}
+
+			int idx;
+			if (pendingIdx != -1) {
+				idx = pendingIdx;
+				replacedCount++;
+			} else {
+				idx = (writingIdx == 0) ? 1 : 0;
+			}
+
+			if (buffers[idx].length < paramCount) {
+				buffers[idx] = new float[paramCount];
+			}
+
+			System.arraycopy(model.getParams(), model.getParamsOffset(), buffers[idx], 0, paramCount);
+			bufferLayouts[idx] = layout;
+			bufferEpochs[idx] = epoch;
+			bufferParamCounts[idx] = paramCount;
+
+			pendingIdx = idx;
+			notifyAll();
+		}
+
+		lastSnapshotEpoch = epoch;
+		lastSnapshotTime = System.currentTimeMillis();
+	}
+
+	protected void writeLoop() {
+		while (true) {
+			int idx;
+
+			synchronized (this) {
+				while (pendingIdx == -1 && !closed) {
+					try {
+						wait();
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+
+				if (pendingIdx == -1) {
+					return;
+				}
+
+				idx = pendingIdx;
+				pendingIdx = -1;
+				writingIdx = idx;
+			}
+
+			IOException error = null;
+			try {
+				write(idx);
+			} catch (IOException e) {
+				error = e;
+			}
+
+			synchronized (this) {
+				writingIdx = -1;
+
+				if (error == null) {
+					writtenCount++;
+				} else {
+					lastError = error;
+				}
+
+				notifyAll();
+			}
+		}
+	}
+
+	protected void write(int idx) throws IOException {
+		Files.createDirectories(dir.toPath());
+
+		File file = getFile(bufferEpochs[idx]);
+		File tmpFile = new File(dir, file.getName() + ".tmp");
+
+		ModelCheckpoint.write(bufferLayouts[idx], buffers[idx], 0, bufferParamCounts[idx], tmpFile);
+
+		try {
+			Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+		} catch (AtomicMoveNotSupportedException e) {
+			Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+
+		deleteOldCheckpoints();
+	}
+
+	protected void deleteOldCheckpoints() throws IOException {
+		File[] checkpoints = listCheckpoints();
+
+		for (int i = 0; i < checkpoints.length - keepCount; i++) {
+			Files.deleteIfExists(checkpoints[i].toPath());
+		}
+	}
+
+	/**
+	 * Returns the file of the checkpoint of the specified epoch.
+	 */
+	public File getFile(long epoch) {
+		return new File(dir, String.format("%s-%012d%s", prefix, epoch, FILE_EXTENSION));
+	}
+
+	/**
+	 * Returns all checkpoints in the directory, oldest first.
+	 */
+	public File[] listCheckpoints() {
+		File[] result = dir.listFiles(new FilenameFilter() {
+
+			@Override
+			public boolean accept(File dir, String name) {
+				return name.startsWith(prefix + "-") && name.endsWith(FILE_EXTENSION);
+			}
+		});
+
+		if (result == null) {
+			return new File[0];
+		}
+
+		// the zero padded epochs sort lexicographically
+		Arrays.sort(result);
+
+		return result;
+	}
+
+	/**
+	 * Returns the newest checkpoint, e.g. for resuming after a crash, or null if
+	 * there is none.
+	 */
+	public File getLatestCheckpoint() {
+		File[] checkpoints = listCheckpoints();
+
+		return (checkpoints.length == 0) ? null : checkpoints[checkpoints.length - 1];
+	}
+
+	/**
+	 * Waits until all snapshots taken so far have been written.
+	 */
+	public synchronized void flush() throws InterruptedException {
+		while (pendingIdx != -1 || writingIdx != -1) {
+			wait();
+		}
+	}
+
+	public synchronized long getWrittenCount() {
+		return writtenCount;
+	}
+
+	/**
+	 * Returns the number of snapshots which have been replaced by a newer one
+	 * before they could be written.
+	 */
+	public synchronized long getReplacedCount() {
+		return replacedCount;
+	}
+
+	/**
+	 * Returns the error of the last failed write, or null.
+	 */
+	public synchronized IOException getLastError() {
+		return lastError;
+	}
+
+	/**
+	 * Writes the pending snapshot, if any, and stops the background thread.
+	 */
+	@Override
+	public void close() {
+		synchronized (this) {
+			closed = true;
+			notifyAll();
+		}
+
+		try {
+			writer.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
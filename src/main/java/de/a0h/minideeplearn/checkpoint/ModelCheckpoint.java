@@ -0,0 +1,210 @@
+package de.a0h.minideeplearn.checkpoint;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+import de.a0h.minideeplearn.operation.Operation;
+import de.a0h.minideeplearn.operation.composite.Chain;
+
+/**
+ * Binary checkpoints of the parameters of a model, for interpreted models as
+ * well as for the classes compiled by the OperationToJavaCompiler or the
+ * OperationToBytecodeCompiler, e.g.
+ *
+ * <pre>
+ * ModelCheckpoint.write(model, file);
+ * ...
+ * Classifier restored = new Classifier(2, 4, 1);
+ * ModelCheckpoint.load(file, restored);
+ * </pre>
+ *
+ * A checkpoint can be loaded into every model of the same layout, e.g. a
+ * checkpoint of an interpreted chain into the compiled version of the chain.
+ * Loading memory-maps the file and copies the parameters straight into the
+ * parameter array of the model. All values are little-endian.
+ *
+ * <pre>
+ * int    magic number MAGIC ("MDLC")
+ * int    format version VERSION
+ * int    layout length in bytes
+ * byte[] layout, UTF-8, see {@link #getLayout(Operation)}, padded with zeros to a multiple of 4
+ * int    parameter count
+ * int    CRC32 of the parameter block
+ * float[parameter count] parameters
+ * </pre>
+ *
+ * The parameters of a model form one contiguous vector, i.e. the parameter
+ * block is the concatenation of the weights and the biases of the dense
+ * layers, in the order of the layout.
+ */
+public class ModelCheckpoint {
+
+	public static final int MAGIC = 0x434c444d;
+
+	public static final int VERSION = 1;
+
+	public static final ByteOrder BYTE_ORDER = ByteOrder.LITTLE_ENDIAN;
+
+	protected static final String COMPILED_PREFIX = "compiled:";
+
+	/**
+	 * Writes the parameters of the model to the file, replacing its content.
+	 */
+	public static void write(Operation model, File file) throws IOException {
+		write(getLayout(model), model.getParams(), model.getParamsOffset(), model.getParamCount(), file);
+	}
+
+	/**
+	 * Writes a checkpoint of the specified layout and parameters, e.g. of a
+	 * snapshot of the parameters of a model, see {@link #getLayout(Operation)}.
+	 */
+	public static void write(String layoutStr, float[] params, int paramsOffset, int paramCount, File file)
+			throws IOException {
+		byte[] layout = layoutStr.getBytes(StandardCharsets.UTF_8);
+		int paddedLayoutLength = (layout.length + 3) & ~3;
+
+		ByteBuffer header = ByteBuffer.allocate(12 + paddedLayoutLength + 8);
+		header.order(BYTE_ORDER);
+		header.putInt(MAGIC);
+		header.putInt(VERSION);
+		header.putInt(layout.length);
+		header.put(layout);
+		((Buffer) header).position(12 + paddedLayoutLength);
+		header.putInt(paramCount);
+
+		ByteBuffer paramBlock = ByteBuffer.allocate(paramCount * 4);
+		paramBlock.order(BYTE_ORDER);
+		paramBlock.asFloatBuffer().put(params, paramsOffset, paramCount);
+
+		CRC32 crc = new CRC32();
+		crc.update(paramBlock.array());
+		header.putInt((int) crc.getValue());
+
+		((Buffer) header).flip();
+
+		try (FileChannel channel = FileChannel.open(file.toPath(), //
+				StandardOpenOption.CREATE, //
+				StandardOpenOption.TRUNCATE_EXISTING, //
+				StandardOpenOption.WRITE)) {
+			while (header.hasRemaining()) {
+				channel.write(header);
+			}
+			while (paramBlock.hasRemaining()) {
+				channel.write(paramBlock);
+			}
+		}
+	}
+
+	/**
+	 * Loads the parameters from the file into the model, which must have the same
+	 * layout as the model the checkpoint was written from.
+	 */
+	public static void load(File file, Operation model) throws IOException {
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			MappedByteBuffer mapped = channel.map(MapMode.READ_ONLY, 0, channel.size());
+			mapped.order(BYTE_ORDER);
+
+			String layout = readLayout(mapped, file);
+
+			String expectedLayout = getLayout(model);
+			if (!layout.equals(expectedLayout)) {
+				throw new IllegalArgumentException("" + //
+						"the checkpoint doesn't fit the model, because its layout is " + layout + ", " + //
+						"but the layout of the model is " + expectedLayout);
+			}
+
+			int paramCount = mapped.getInt();
+			int expectedCrc = mapped.getInt();
+
+			if (paramCount != model.getParamCount() || mapped.remaining() != paramCount * 4) {
+				throw new IOException("" + //
+						"corrupt checkpoint " + file + ": " + //
+						"it has " + mapped.remaining() + " bytes for " + paramCount + " parameters, " + //
+						"but the model has " + model.getParamCount() + " parameters");
+			}
+
+			CRC32 crc = new CRC32();
+			crc.update(mapped.duplicate());
+			if ((int) crc.getValue() != expectedCrc) {
+				throw new IOException("corrupt checkpoint " + file + ": the checksum of the parameters doesn't match");
+			}
+
+			FloatBuffer paramBlock = mapped.asFloatBuffer();
+			paramBlock.get(model.getParams(), model.getParamsOffset(), paramCount);
+		}
+	}
+
+	/**
+	 * Returns the layout of the model the checkpoint was written from.
+	 */
+	public static String readLayout(File file) throws IOException {
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			MappedByteBuffer mapped = channel.map(MapMode.READ_ONLY, 0, channel.size());
+			mapped.order(BYTE_ORDER);
+
+			return readLayout(mapped, file);
+		}
+	}
+
+	/**
+	 * Reads the header up to and including the layout, leaving the position of buf
+	 * at the parameter count.
+	 */
+	protected static String readLayout(ByteBuffer buf, File file) throws IOException {
+		if (buf.remaining() < 12) {
+			throw new IOException("not a checkpoint, the file is too short: " + file);
+		}
+
+		int magic = buf.getInt();
+		if (magic != MAGIC) {
+			throw new IOException("not a checkpoint, the magic number is " + Integer.toHexString(magic) + ": " + file);
+		}
+
+		int version = buf.getInt();
+		if (version != VERSION) {
+			throw new IOException("unsupported checkpoint version " + version + ", expected " + VERSION + ": " + file);
+		}
+
+		int layoutLength = buf.getInt();
+		int paddedLayoutLength = (layoutLength + 3) & ~3;
+		if (layoutLength < 0 || buf.remaining() < paddedLayoutLength + 8) {
+			throw new IOException("corrupt checkpoint, the layout length is " + layoutLength + ": " + file);
+		}
+
+		byte[] layout = new byte[layoutLength];
+		buf.get(layout);
+		((Buffer) buf).position(buf.position() + paddedLayoutLength - layoutLength);
+
+		return new String(layout, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Returns the layout of the flattened model, e.g.
+	 * "chain(dense[4x2]*[2]+[4]->[4], tanh[4], ...)". It's the same for an
+	 * interpreted model and its compiled version.
+	 */
+	public static String getLayout(Operation model) {
+		String layout = model.toStringWithLayout();
+
+		if (layout.startsWith(COMPILED_PREFIX)) {
+			return layout.substring(COMPILED_PREFIX.length());
+		}
+
+		if (model instanceof Chain) {
+			return ((Chain) model).flattened().toStringWithLayout();
+		}
+
+		// like a chain of this single operation, without rebinding its parameters
+		return "chain(" + layout + ")";
+	}
+}
@@ -0,0 +1,84 @@
+package de.a0h.minideeplearn.dataset;
+
+import java.util.Random;
+
+import de.a0h.minideeplearn.operation.OperationUtil;
+import de.a0h.mininum.MnArrays;
+
+/**
+ * Provides the samples of in-memory arrays, in order or shuffled. Can be
+ * rewound with {@link #reset()}, e.g. for the next epoch.
+ */
+public class ArraySampleSource implements SampleSource {
+
+	protected final float[][] inp;
+
+	protected final float[][] target;
+
+	protected final Random shufflingRnd;
+
+	protected int[] shuffledIndices;
+
+	protected int nextIdx;
+
+	public ArraySampleSource(float[][] inp, float[][] target) {
+		this(inp, target, null);
+	}
+
+	/**
+	 * The order of the samples is shuffled anew on every {@link #reset()}. If
+	 * shufflingRnd is null, the samples are provided in order.
+	 */
+	public ArraySampleSource(float[][] inp, float[][] target, Random shufflingRnd) {
+		if (inp.length != target.length) {
+			throw new IllegalArgumentException("" + //
+					"inp and target must be of equal length, but they are " + //
+					"inp.length = " + inp.length + " and " + //
+					"target.length = " + target.length);
+		}
+		if (inp.length == 0) {
+			throw new IllegalArgumentException("there must be at least one sample");
+		}
+
+		this.inp = inp;
+		this.target = target;
+		this.shufflingRnd = shufflingRnd;
+
+		if (shufflingRnd != null) {
+			shuffledIndices = MnArrays.generateShuffle(inp.length, shufflingRnd);
+		}
+	}
+
+	@Override
+	public int getInputSize() {
+		return inp[0].length;
+	}
+
+	@Override
+	public int getTargetSize() {
+		return target[0].length;
+	}
+
+	@Override
+	public boolean next(float[] inp, float[] target) {
+		if (nextIdx == this.inp.length) {
+			return false;
+		}
+
+		int idx = (shuffledIndices == null) ? nextIdx : shuffledIndices[nextIdx];
+
+		System.arraycopy(this.inp[idx], 0, inp, 0, inp.length);
+		System.arraycopy(this.target[idx], 0, target, 0, target.length);
+		nextIdx++;
+
+		return true;
+	}
+
+	public void reset() {
+		nextIdx = 0;
+
+		if (shufflingRnd != null) {
+			OperationUtil.shuffle(shuffledIndices, shuffledIndices.length, shufflingRnd);
+		}
+	}
+}
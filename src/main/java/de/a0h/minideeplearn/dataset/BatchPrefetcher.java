@@ -0,0 +1,257 @@
+package de.a0h.minideeplearn.dataset;
+
+import java.io.Closeable;
+
+/**
+ * Assembles the batches of a {@link SampleSource} in a background thread, while
+ * the current batch is being trained, so that reading from disk or generating
+ * samples doesn't stall the training thread, e.g.
+ *
+ * <pre>
+ * try (BatchPrefetcher prefetcher = new BatchPrefetcher(source, 32, 4)) {
+ * 	trainer.run(model, prefetcher, learningRate);
+ * }
+ * </pre>
+ *
+ * The batches are kept in a ring buffer of queueDepth slots, which are
+ * allocated once and reused. Each slot holds a batch in rows of its own, i.e.
+ * the samples of a batch are assembled into buffers which don't change during
+ * training. The prefetcher makes one pass over the source, there's one producer
+ * thread and there must only be one consumer thread.
+ */
+public class BatchPrefetcher implements Closeable {
+
+	/**
+	 * A batch of samples. Only the first <code>rows</code> rows are valid.
+	 */
+	public static class Batch {
+
+		public final float[][] inp;
+
+		public final float[][] target;
+
+		public int rows;
+
+		public Batch(int batchSize, int inputSize, int targetSize) {
+			inp = new float[batchSize][inputSize];
+			target = new float[batchSize][targetSize];
+		}
+	}
+
+	protected final SampleSource source;
+
+	protected final int batchSize;
+
+	protected final Batch[] slots;
+
+	protected final Thread producer;
+
+	// all sequence numbers grow monotonically, the slot index is seq % slots.length
+	protected long writeSeq;
+	protected long readSeq;
+	protected long releasedSeq;
+
+	protected boolean finished;
+
+	protected boolean closed;
+
+	protected Throwable producerError;
+
+	// metrics
+	protected long takeCount;
+	protected long occupancySum;
+	protected long consumerStallCount;
+	protected long consumerStallNanos;
+	protected long producerStallCount;
+
+	public BatchPrefetcher(SampleSource source, int batchSize, int queueDepth) {
+		if (batchSize < 1) {
+			throw new IllegalArgumentException("batchSize must be positive, but it is " + batchSize);
+		}
+		if (queueDepth < 1) {
+			throw new IllegalArgumentException("queueDepth must be positive, but it is " + queueDepth);
+		}
+
+		this.source = source;
+		this.batchSize = batchSize;
+
+		// one more slot than the queue depth for the batch which is being trained
+		slots = new Batch[queueDepth + 1];
+		for (int i = 0; i < slots.length; i++) {
+			slots[i] = new Batch(batchSize, source.getInputSize(), source.getTargetSize());
+		}
+
+		producer = new Thread("batch-prefetcher") {
+
+			@Override
+			public void run() {
+				produce();
+			}
+		};
+		producer.setDaemon(true);
+		producer.start();
+	}
+
+	protected void produce() {
+		try {
+			while (true) {
+				Batch batch;
+
+				synchronized (this) {
+					if (writeSeq - releasedSeq == slots.length) {
+						producerStallCount++;
+
+						while (writeSeq - releasedSeq == slots.length && !closed) {
+							wait();
+						}
+					}
+
+					if (closed) {
+						finished = true;
+						notifyAll();
+						return;
+					}
+
+					batch = slots[(int) (writeSeq % slots.length)];
+				}
+
+				int rows = 0;
+				while (rows < batchSize && source.next(batch.inp[rows], batch.target[rows])) {
+					rows++;
+				}
+				batch.rows = rows;
+
+				synchronized (this) {
+					if (rows > 0) {
+						writeSeq++;
+					}
+					if (rows < batchSize || closed) {
+						finished = true;
+					}
+
+					notifyAll();
+
+					if (finished) {
+						return;
+					}
+				}
+			}
+		} catch (Throwable e) {
+			synchronized (this) {
+				producerError = e;
+				finished = true;
+				notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Returns the next batch, waiting for it if necessary, or null if all batches
+	 * have been taken or if no batch is ready after {@link #close()}. The
+	 * previously taken batch is released, i.e. it may be overwritten by the
+	 * producer from now on.
+	 */
+	public synchronized Batch take() throws InterruptedException {
+		if (readSeq > releasedSeq) {
+			releasedSeq = readSeq;
+			notifyAll();
+		}
+
+		if (readSeq == writeSeq && !finished && !closed) {
+			consumerStallCount++;
+			long startTime = System.nanoTime();
+
+			while (readSeq == writeSeq && !finished && !closed) {
+				wait();
+			}
+
+			consumerStallNanos += System.nanoTime() - startTime;
+		}
+
+		if (readSeq == writeSeq) {
+			if (producerError != null) {
+				throw new RuntimeException("the producer of the batches failed", producerError);
+			}
+
+			return null;
+		}
+
+		takeCount++;
+		occupancySum += writeSeq - readSeq;
+
+		return slots[(int) (readSeq++ % slots.length)];
+	}
+
+	/**
+	 * Stops the producer. A consumer which is waiting in {@link #take()} gets
+	 * null.
+	 */
+	@Override
+	public void close() {
+		synchronized (this) {
+			closed = true;
+			notifyAll();
+		}
+
+		try {
+			producer.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	public int getBatchSize() {
+		return batchSize;
+	}
+
+	public int getQueueDepth() {
+		return slots.length - 1;
+	}
+
+	/**
+	 * Returns the number of batches which are ready to be taken.
+	 */
+	public synchronized int getOccupancy() {
+		return (int) (writeSeq - readSeq);
+	}
+
+	/**
+	 * Returns the average number of ready batches at the times of
+	 * {@link #take()}, including the taken one. Values close to the queue depth
+	 * mean that the producer keeps up with the training, values close to 1 or
+	 * below mean that the training waits for the producer.
+	 */
+	public synchronized float getAvgOccupancy() {
+		return (takeCount == 0) ? 0.0f : (float) occupancySum / takeCount;
+	}
+
+	/**
+	 * Returns how often {@link #take()} had to wait for a batch.
+	 */
+	public synchronized long getConsumerStallCount() {
+		return consumerStallCount;
+	}
+
+	/**
+	 * Returns the total time {@link #take()} waited for batches, in nanoseconds.
+	 */
+	public synchronized long getConsumerStallNanos() {
+		return consumerStallNanos;
+	}
+
+	/**
+	 * Returns how often the producer had to wait for a free slot.
+	 */
+	public synchronized long getProducerStallCount() {
+		return producerStallCount;
+	}
+
+	public synchronized String getMetricsString() {
+		return "" + //
+				"batches: " + takeCount + //
+				", avg occupancy: " + getAvgOccupancy() + " / " + getQueueDepth() + //
+				", consumer stalls: " + consumerStallCount + //
+				" (" + (consumerStallNanos / 1000000) + " ms)" + //
+				", producer stalls: " + producerStallCount;
+	}
+}
@@ -0,0 +1,110 @@
+package de.a0h.minideeplearn.dataset;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * The binary data set file format, which is written by
+ * {@link BinaryDataSetWriter} and memory-mapped by {@link MappedDataSet}. All
+ * values are little-endian.
+ *
+ * <pre>
+ * header, HEADER_SIZE bytes:
+ *   int   magic number MAGIC ("MDLD")
+ *   int   format version VERSION
+ *   long  sample count
+ *   int   input size
+ *   int   output size
+ * samples, contiguous, one row per sample:
+ *   float[input size]  input vector
+ *   float[output size] target vector
+ * </pre>
+ */
+public class BinaryDataSetFormat {
+
+	public static final int MAGIC = 0x444c444d;
+
+	public static final int VERSION = 1;
+
+	public static final int HEADER_SIZE = 24;
+
+	public static final int SAMPLE_COUNT_POSITION = 8;
+
+	public static final int FLOAT_SIZE = 4;
+
+	public static final ByteOrder BYTE_ORDER = ByteOrder.LITTLE_ENDIAN;
+
+	public long sampleCount;
+
+	public int inputSize;
+
+	public int outputSize;
+
+	public BinaryDataSetFormat(long sampleCount, int inputSize, int outputSize) {
+		if (sampleCount < 0 || inputSize < 1 || outputSize < 1) {
+			throw new IllegalArgumentException("" + //
+					"invalid data set dimensions: " + //
+					"sampleCount = " + sampleCount + ", " + //
+					"inputSize = " + inputSize + ", " + //
+					"outputSize = " + outputSize);
+		}
+
+		this.sampleCount = sampleCount;
+		this.inputSize = inputSize;
+		this.outputSize = outputSize;
+	}
+
+	/**
+	 * Returns the number of bytes of one sample.
+	 */
+	public int getRowSize() {
+		return (inputSize + outputSize) * FLOAT_SIZE;
+	}
+
+	/**
+	 * Returns the expected file size.
+	 */
+	public long getFileSize() {
+		return HEADER_SIZE + sampleCount * getRowSize();
+	}
+
+	/**
+	 * Writes the header to buf, starting at its position.
+	 */
+	public void writeHeader(ByteBuffer buf) {
+		buf.order(BYTE_ORDER);
+		buf.putInt(MAGIC);
+		buf.putInt(VERSION);
+		buf.putLong(sampleCount);
+		buf.putInt(inputSize);
+		buf.putInt(outputSize);
+	}
+
+	/**
+	 * Reads the header from buf, starting at its position.
+	 */
+	public static BinaryDataSetFormat readHeader(ByteBuffer buf) throws IOException {
+		buf.order(BYTE_ORDER);
+
+		int magic = buf.getInt();
+		if (magic != MAGIC) {
+			throw new IOException("not a data set file, the magic number is " + Integer.toHexString(magic));
+		}
+
+		int version = buf.getInt();
+		if (version != VERSION) {
+			throw new IOException("unsupported data set file version " + version + ", expected " + VERSION);
+		}
+
+		long sampleCount = buf.getLong();
+		int inputSize = buf.getInt();
+		int outputSize = buf.getInt();
+
+		try {
+			return new BinaryDataSetFormat(sampleCount, inputSize, outputSize);
+		} catch (IllegalArgumentException e) {
+			throw new IOException("corrupt data set file header", e);
+		}
+	}
+}
@@ -0,0 +1,116 @@
+package de.a0h.minideeplearn.dataset;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Writes a data set file in the {@link BinaryDataSetFormat}, sample by sample,
+ * so that data sets of any size can be written without holding them in memory,
+ * e.g.
+ *
+ * <pre>
+ * try (BinaryDataSetWriter writer = new BinaryDataSetWriter(file, 2, 1)) {
+ * 	writer.writeAll(generator.createSampleSource(2, 1, 100_000_000L, rnd));
+ * }
+ * </pre>
+ *
+ * The sample count in the header is written on {@link #close()}, so an
+ * unclosed file is recognizable by a sample count of 0.
+ */
+public class BinaryDataSetWriter implements Closeable {
+
+	protected static final int BUFFER_SIZE = 1 << 16;
+
+	protected final FileChannel channel;
+
+	protected final BinaryDataSetFormat format;
+
+	protected final ByteBuffer buf;
+
+	public BinaryDataSetWriter(File file, int inputSize, int outputSize) throws IOException {
+		format = new BinaryDataSetFormat(0, inputSize, outputSize);
+
+		buf = ByteBuffer.allocateDirect(Math.max(BUFFER_SIZE, format.getRowSize()));
+		buf.order(BinaryDataSetFormat.BYTE_ORDER);
+
+		channel = FileChannel.open(file.toPath(), //
+				StandardOpenOption.CREATE, //
+				StandardOpenOption.TRUNCATE_EXISTING, //
+				StandardOpenOption.WRITE);
+
+		format.writeHeader(buf);
+	}
+
+	public void write(float[] inp, float[] target) throws IOException {
+		if (inp.length != format.inputSize || target.length != format.outputSize) {
+			throw new IllegalArgumentException("" + //
+					"expected a sample of size " + format.inputSize + " -> " + format.outputSize + ", " + //
+					"but it is " + inp.length + " -> " + target.length);
+		}
+
+		if (buf.remaining() < format.getRowSize()) {
+			flush();
+		}
+
+		for (int i = 0; i < inp.length; i++) {
+			buf.putFloat(inp[i]);
+		}
+		for (int i = 0; i < target.length; i++) {
+			buf.putFloat(target[i]);
+		}
+
+		format.sampleCount++;
+	}
+
+	/**
+	 * Writes all samples which are left in the source.
+	 */
+	public void writeAll(SampleSource source) throws IOException {
+		float[] inp = new float[format.inputSize];
+		float[] target = new float[format.outputSize];
+
+		while (source.next(inp, target)) {
+			write(inp, target);
+		}
+	}
+
+	public long getSampleCount() {
+		return format.sampleCount;
+	}
+
+	protected void flush() throws IOException {
+		((Buffer) buf).flip();
+		while (buf.hasRemaining()) {
+			channel.write(buf);
+		}
+		((Buffer) buf).clear();
+	}
+
+	/**
+	 * Writes the remaining samples and the final sample count.
+	 */
+	@Override
+	public void close() throws IOException {
+		if (!channel.isOpen()) {
+			return;
+		}
+
+		try {
+			flush();
+
+			buf.putLong(format.sampleCount);
+			((Buffer) buf).flip();
+			channel.write(buf, BinaryDataSetFormat.SAMPLE_COUNT_POSITION);
+			((Buffer) buf).clear();
+
+			channel.force(false);
+		} finally {
+			channel.close();
+		}
+	}
+}
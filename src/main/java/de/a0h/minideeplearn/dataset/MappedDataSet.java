@@ -0,0 +1,235 @@
+package de.a0h.minideeplearn.dataset;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+
+import de.a0h.minideeplearn.operation.OperationUtil;
+import de.a0h.mininum.MnArrays;
+
+/**
+ * A data set file in the {@link BinaryDataSetFormat}, memory-mapped via
+ * {@link FileChannel#map(MapMode, long, long)}. Opening takes constant time, no
+ * matter how big the file is, and the samples don't occupy heap memory, because
+ * they are copied directly from the page cache into the batch rows of the
+ * trainer, e.g.
+ *
+ * <pre>
+ * try (MappedDataSet dataSet = new MappedDataSet(file)) {
+ * 	MappedDataSet.MappedSampleSource source = dataSet.createSampleSource(rnd);
+ * 	for (int epoch = 0; epoch &lt; epochCount; epoch++) {
+ * 		source.reset();
+ * 		trainer.run(model, source, batchSize, learningRate);
+ * 	}
+ * }
+ * </pre>
+ *
+ * Files bigger than 2 GB are mapped in several chunks. The mappings stay valid
+ * after {@link #close()} until they are garbage collected.
+ */
+public class MappedDataSet implements Closeable {
+
+	/**
+	 * Max size of one mapped chunk. Chunks always contain whole samples.
+	 */
+	protected static final int MAX_CHUNK_SIZE = 1 << 30;
+
+	protected final FileChannel channel;
+
+	protected final BinaryDataSetFormat format;
+
+	protected final int floatsPerRow;
+
+	protected final int rowsPerChunk;
+
+	/**
+	 * The mapped chunks, viewed as floats. Readers must work on duplicates,
+	 * because the positions of the buffers aren't thread-safe.
+	 */
+	protected final FloatBuffer[] chunks;
+
+	protected final FloatBuffer[] ownChunks;
+
+	public MappedDataSet(File file) throws IOException {
+		channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+
+		try {
+			ByteBuffer header = ByteBuffer.allocate(BinaryDataSetFormat.HEADER_SIZE);
+			while (header.hasRemaining()) {
+				if (channel.read(header) < 0) {
+					throw new IOException("data set file is too short for the header: " + file);
+				}
+			}
+			((Buffer) header).flip();
+			format = BinaryDataSetFormat.readHeader(header);
+
+			if (channel.size() < format.getFileSize()) {
+				throw new IOException("" + //
+						"data set file is truncated: " + file + " has " + channel.size() + " bytes, " + //
+						"but " + format.getFileSize() + " bytes are needed for " + format.sampleCount + " samples");
+			}
+
+			int rowSize = format.getRowSize();
+			floatsPerRow = format.inputSize + format.outputSize;
+			rowsPerChunk = Math.max(1, MAX_CHUNK_SIZE / rowSize);
+
+			int chunkCount = (int) ((format.sampleCount + rowsPerChunk - 1) / rowsPerChunk);
+			chunks = new FloatBuffer[chunkCount];
+
+			for (int c = 0; c < chunkCount; c++) {
+				long firstRow = (long) c * rowsPerChunk;
+				long rowCount = Math.min(rowsPerChunk, format.sampleCount - firstRow);
+
+				ByteBuffer mapped = channel.map(MapMode.READ_ONLY, //
+						BinaryDataSetFormat.HEADER_SIZE + firstRow * rowSize, //
+						rowCount * rowSize);
+				mapped.order(BinaryDataSetFormat.BYTE_ORDER);
+
+				chunks[c] = mapped.asFloatBuffer();
+			}
+
+			ownChunks = duplicateChunks();
+		} catch (IOException | RuntimeException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	public long getSampleCount() {
+		return format.sampleCount;
+	}
+
+	public int getInputSize() {
+		return format.inputSize;
+	}
+
+	public int getOutputSize() {
+		return format.outputSize;
+	}
+
+	/**
+	 * Copies the sample with the specified index into inp and target. Not
+	 * thread-safe, use a sample source per thread instead.
+	 */
+	public void read(long sampleIdx, float[] inp, float[] target) {
+		read(ownChunks, sampleIdx, inp, target);
+	}
+
+	protected void read(FloatBuffer[] chunks, long sampleIdx, float[] inp, float[] target) {
+		if (sampleIdx < 0 || sampleIdx >= format.sampleCount) {
+			throw new IndexOutOfBoundsException("" + //
+					"sampleIdx must be in [0, " + format.sampleCount + "), but it is " + sampleIdx);
+		}
+
+		FloatBuffer chunk = chunks[(int) (sampleIdx / rowsPerChunk)];
+		((Buffer) chunk).position((int) (sampleIdx % rowsPerChunk) * floatsPerRow);
+		chunk.get(inp, 0, format.inputSize);
+		chunk.get(target, 0, format.outputSize);
+	}
+
+	protected FloatBuffer[] duplicateChunks() {
+		FloatBuffer[] result = new FloatBuffer[chunks.length];
+
+		for (int c = 0; c < chunks.length; c++) {
+			result[c] = chunks[c].duplicate();
+		}
+
+		return result;
+	}
+
+	/**
+	 * Returns a source of all samples, in the order of the file.
+	 */
+	public MappedSampleSource createSampleSource() {
+		return new MappedSampleSource(null);
+	}
+
+	/**
+	 * Returns a source of all samples, in an order which is shuffled anew on every
+	 * {@link MappedSampleSource#reset()}. If shufflingRnd is null, the order of
+	 * the file is used. Shuffling keeps one int per sample in memory, so it's
+	 * limited to data sets with less than 2^31 samples.
+	 */
+	public MappedSampleSource createSampleSource(Random shufflingRnd) {
+		return new MappedSampleSource(shufflingRnd);
+	}
+
+	/**
+	 * Closes the file. The mappings stay valid until they are garbage collected.
+	 */
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+
+	/**
+	 * A sample source which reads from the mapped file. Every source has its own
+	 * position, so several threads can read concurrently with a source each.
+	 */
+	public class MappedSampleSource implements SampleSource {
+
+		protected final FloatBuffer[] views = duplicateChunks();
+
+		protected final Random shufflingRnd;
+
+		protected int[] shuffledIndices;
+
+		protected long nextIdx;
+
+		protected MappedSampleSource(Random shufflingRnd) {
+			this.shufflingRnd = shufflingRnd;
+
+			if (shufflingRnd != null) {
+				if (format.sampleCount > Integer.MAX_VALUE) {
+					throw new UnsupportedOperationException("" + //
+							"shuffling is limited to " + Integer.MAX_VALUE + " samples, " + //
+							"but there are " + format.sampleCount);
+				}
+
+				shuffledIndices = MnArrays.generateShuffle((int) format.sampleCount, shufflingRnd);
+			}
+		}
+
+		@Override
+		public int getInputSize() {
+			return format.inputSize;
+		}
+
+		@Override
+		public int getTargetSize() {
+			return format.outputSize;
+		}
+
+		@Override
+		public boolean next(float[] inp, float[] target) {
+			if (nextIdx == format.sampleCount) {
+				return false;
+			}
+
+			long sampleIdx = (shuffledIndices == null) ? nextIdx : shuffledIndices[(int) nextIdx];
+			read(views, sampleIdx, inp, target);
+			nextIdx++;
+
+			return true;
+		}
+
+		/**
+		 * Rewinds to the first sample, e.g. for the next epoch, reshuffling if a
+		 * shuffling random generator has been provided.
+		 */
+		public void reset() {
+			nextIdx = 0;
+
+			if (shufflingRnd != null) {
+				OperationUtil.shuffle(shuffledIndices, shuffledIndices.length, shufflingRnd);
+			}
+		}
+	}
+}
@@ -0,0 +1,21 @@
+package de.a0h.minideeplearn.dataset;
+
+/**
+ * A pull-based source of samples, i.e. pairs of input and target vectors, e.g.
+ * for training on data sets which don't fit into memory. The samples are
+ * copied into arrays provided by the caller, so that the caller can reuse them
+ * and memory stays bounded, no matter how many samples there are.
+ */
+public interface SampleSource {
+
+	public int getInputSize();
+
+	public int getTargetSize();
+
+	/**
+	 * Copies the next sample into inp and target, which must have the input size
+	 * and the target size, respectively. Returns false, leaving inp and target
+	 * unchanged, if there are no samples left.
+	 */
+	public boolean next(float[] inp, float[] target);
+}
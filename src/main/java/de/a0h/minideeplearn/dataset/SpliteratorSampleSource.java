@@ -0,0 +1,66 @@
+package de.a0h.minideeplearn.dataset;
+
+import java.util.Spliterator;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+/**
+ * Adapts a {@link Spliterator} of samples, e.g. the one of a {@link Stream}
+ * which reads them lazily from a file. Every element is a two-element array,
+ * with element[0] being the input vector and element[1] being the target
+ * vector. The elements are copied, so the spliterator may reuse them.
+ */
+public class SpliteratorSampleSource implements SampleSource {
+
+	protected final Spliterator<float[][]> spliterator;
+
+	protected final int inputSize;
+
+	protected final int targetSize;
+
+	// the destination of the current call of next()
+	protected float[] nextInp;
+	protected float[] nextTarget;
+
+	protected final Consumer<float[][]> copier = new Consumer<float[][]>() {
+
+		@Override
+		public void accept(float[][] sample) {
+			System.arraycopy(sample[0], 0, nextInp, 0, inputSize);
+			System.arraycopy(sample[1], 0, nextTarget, 0, targetSize);
+		}
+	};
+
+	public SpliteratorSampleSource(Spliterator<float[][]> spliterator, int inputSize, int targetSize) {
+		this.spliterator = spliterator;
+		this.inputSize = inputSize;
+		this.targetSize = targetSize;
+	}
+
+	public SpliteratorSampleSource(Stream<float[][]> stream, int inputSize, int targetSize) {
+		this(stream.spliterator(), inputSize, targetSize);
+	}
+
+	@Override
+	public int getInputSize() {
+		return inputSize;
+	}
+
+	@Override
+	public int getTargetSize() {
+		return targetSize;
+	}
+
+	@Override
+	public boolean next(float[] inp, float[] target) {
+		nextInp = inp;
+		nextTarget = target;
+
+		try {
+			return spliterator.tryAdvance(copier);
+		} finally {
+			nextInp = null;
+			nextTarget = null;
+		}
+	}
+}
@@ -1,7 +1,12 @@
 package de.a0h.minideeplearn.datasetgenerator;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.Random;
 
+import de.a0h.minideeplearn.dataset.BinaryDataSetWriter;
+import de.a0h.minideeplearn.dataset.MappedDataSet;
+import de.a0h.minideeplearn.dataset.SampleSource;
 import de.a0h.minideeplearn.datasetgenerator.vectordistribution.UniformVectorDistribution;
 import de.a0h.minideeplearn.datasetgenerator.vectordistribution.VectorDistribution;
 import de.a0h.minideeplearn.datasetgenerator.vectortransform.InsideCenteredSphere;
@@ -78,4 +83,50 @@ public class DataSetGenerator {
 
 		return new float[][][] { xAr, yAr };
 	}
+
+	/**
+	 * Same as {@link #generate(int, int, int, Random)}, but the samples are
+	 * generated on the fly, when they are pulled from the returned source. This
+	 * way, memory usage doesn't depend on the sample count.
+	 */
+	public SampleSource createSampleSource(final int inputSize, final int outputSize, final long sampleCount,
+			final Random rnd) {
+		return new SampleSource() {
+
+			long generatedCount;
+
+			@Override
+			public int getInputSize() {
+				return inputSize;
+			}
+
+			@Override
+			public int getTargetSize() {
+				return outputSize;
+			}
+
+			@Override
+			public boolean next(float[] inp, float[] target) {
+				if (generatedCount == sampleCount) {
+					return false;
+				}
+
+				mInputDistribution.drawSample(inp, rnd);
+				mTransformation.transform(inp, target, rnd);
+				generatedCount++;
+
+				return true;
+			}
+		};
+	}
+
+	/**
+	 * Same as {@link #generate(int, int, int, Random)}, but the samples are
+	 * streamed into a data set file, which can be used with {@link MappedDataSet}.
+	 */
+	public void generate(int inputSize, int outputSize, long sampleCount, Random rnd, File file) throws IOException {
+		try (BinaryDataSetWriter writer = new BinaryDataSetWriter(file, inputSize, outputSize)) {
+			writer.writeAll(createSampleSource(inputSize, outputSize, sampleCount, rnd));
+		}
+	}
 }
@@ -0,0 +1,270 @@
+package de.a0h.minideeplearn.gui.desktop;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import de.a0h.minideeplearn.operation.Operation;
+import de.a0h.minideeplearn.operation.OperationPool;
+import de.a0h.minideeplearn.operation.composite.Chain;
+import de.a0h.minideeplearn.predefined.Classifier;
+
+/**
+ * Calculates the activations of all neurons of a classifier with a 2D input on
+ * a square pixel grid, e.g. for drawing the decision surface, e.g.
+ *
+ * <pre>
+ * ActivationGridRenderer renderer = new ActivationGridRenderer(net, -6, 6);
+ * ...
+ * renderer.render(256);
+ * float[] grid = renderer.getGrid(layerIdx, neuronIdx);
+ * </pre>
+ *
+ * The pixel grid is evaluated by batched forward passes, one per tile of
+ * TILE_ROWS pixel rows. The tiles are distributed over a fork-join pool, every
+ * worker uses a param sharing copy of the net from an {@link OperationPool}.
+ * The inputs and the activation grids are allocated once per size, the
+ * activation grids of all layers are kept until the next {@link #render(int)}
+ * of the same size.
+ *
+ * <p>
+ * The grids are indexed by y * size + x, with y pointing downwards, like the
+ * pixels of an image. The activity of the input layer is the input, scaled from
+ * the interval to [-1, 1].
+ * </p>
+ */
+public class ActivationGridRenderer {
+
+	public static final int TILE_ROWS = 8;
+
+	protected final Classifier net;
+
+	protected final float intervalStart;
+
+	protected final float intervalEnd;
+
+	protected final ForkJoinPool forkJoinPool;
+
+	protected OperationPool opPool;
+
+	// the operations and params of the net the pool was created for
+	protected Operation[] pooledOps;
+	protected float[] pooledParams;
+
+	/**
+	 * The inputs and activations of one grid size.
+	 */
+	protected static class Grids {
+
+		public final int size;
+
+		/**
+		 * tileInps[tileIdx][row][inputIdx], row = y * size + x relative to the tile.
+		 */
+		public final float[][][] tileInps;
+
+		/**
+		 * grids[layerIdx][neuronIdx][y * size + x]
+		 */
+		public final float[][][] grids;
+
+		public Grids(int size, float[][][] tileInps, float[][][] grids) {
+			this.size = size;
+			this.tileInps = tileInps;
+			this.grids = grids;
+		}
+	}
+
+	// every size is allocated once, e.g. for rendering coarse previews
+	protected final Map<Integer, Grids> gridsBySize = new HashMap<Integer, Grids>();
+
+	// the grids of the last rendering
+	protected int size;
+	protected float[][][] tileInps;
+	protected float[][][] grids;
+
+	public ActivationGridRenderer(Classifier net, float intervalStart, float intervalEnd) {
+		this(net, intervalStart, intervalEnd, ForkJoinPool.commonPool());
+	}
+
+	public ActivationGridRenderer(Classifier net, float intervalStart, float intervalEnd, ForkJoinPool forkJoinPool) {
+		if (net.getInputSize() < 2) {
+			throw new IllegalArgumentException("the net needs at least 2 inputs, but it has " + net.getInputSize());
+		}
+		if (intervalEnd <= intervalStart) {
+			throw new IllegalArgumentException("" + //
+					"the interval must not be empty, but it is " + //
+					"[" + intervalStart + ", " + intervalEnd + "]");
+		}
+
+		this.net = net;
+		this.intervalStart = intervalStart;
+		this.intervalEnd = intervalEnd;
+		this.forkJoinPool = forkJoinPool;
+	}
+
+	/**
+	 * Calculates the activation grids of all layers for the current parameters of
+	 * the net and returns them, see {@link #getGrid(int, int)}.
+	 */
+	public float[][][] render(int size) {
+		if (size < 2) {
+			throw new IllegalArgumentException("size must be at least 2, but it is " + size);
+		}
+
+		if (size != this.size) {
+			Grids cached = gridsBySize.get(size);
+			if (cached == null) {
+				cached = allocGrids(size);
+				gridsBySize.put(size, cached);
+			}
+
+			this.size = cached.size;
+			tileInps = cached.tileInps;
+			grids = cached.grids;
+		}
+		ensurePool();
+
+		forkJoinPool.invoke(new TileTask(0, tileInps.length));
+
+		return grids;
+	}
+
+	protected Grids allocGrids(int size) {
+		int inputSize = net.getInputSize();
+		int tileCount = (size + TILE_ROWS - 1) / TILE_ROWS;
+
+		float[][][] tileInps = new float[tileCount][][];
+		for (int tileIdx = 0; tileIdx < tileCount; tileIdx++) {
+			int yStart = tileIdx * TILE_ROWS;
+			int yEnd = Math.min(size, yStart + TILE_ROWS);
+
+			float[][] inp = new float[(yEnd - yStart) * size][inputSize];
+			for (int y = yStart; y < yEnd; y++) {
+				for (int x = 0; x < size; x++) {
+					float[] row = inp[(y - yStart) * size + x];
+					row[0] = getInputValue(x, size);
+					row[1] = getInputValue(size - 1 - y, size);
+				}
+			}
+
+			tileInps[tileIdx] = inp;
+		}
+
+		int layerCount = net.getLayerCount();
+		float[][][] grids = new float[layerCount][][];
+		for (int i = 0; i < layerCount; i++) {
+			grids[i] = new float[net.getLayerSize(i)][size * size];
+		}
+
+		return new Grids(size, tileInps, grids);
+	}
+
+	/**
+	 * Returns the input value of the specified pixel coordinate, y pointing
+	 * upwards.
+	 */
+	public float getInputValue(int coord, int size) {
+		return intervalStart + coord * (intervalEnd - intervalStart) / (size - 1);
+	}
+
+	/**
+	 * (Re-)creates the pool if the operations of the net have been replaced, e.g.
+	 * by {@link Classifier#setHiddenActivationFunction}, because the param sharing
+	 * copies still have the old ones.
+	 */
+	protected void ensurePool() {
+		boolean upToDate = opPool != null && pooledOps.length == net.size() && pooledParams == net.getParams();
+
+		for (int i = 0; upToDate && i < pooledOps.length; i++) {
+			upToDate = pooledOps[i] == net.get(i);
+		}
+
+		if (!upToDate) {
+			pooledOps = new Operation[net.size()];
+			for (int i = 0; i < pooledOps.length; i++) {
+				pooledOps[i] = net.get(i);
+			}
+			pooledParams = net.getParams();
+
+			opPool = new OperationPool(net, forkJoinPool.getParallelism());
+		}
+	}
+
+	@SuppressWarnings("serial")
+	protected class TileTask extends RecursiveAction {
+
+		protected final int tileStart;
+
+		protected final int tileEnd;
+
+		public TileTask(int tileStart, int tileEnd) {
+			this.tileStart = tileStart;
+			this.tileEnd = tileEnd;
+		}
+
+		@Override
+		protected void compute() {
+			if (tileEnd - tileStart > 1) {
+				int tileMid = (tileStart + tileEnd) >>> 1;
+				invokeAll(new TileTask(tileStart, tileMid), new TileTask(tileMid, tileEnd));
+				return;
+			}
+
+			Operation op = opPool.borrow();
+			try {
+				renderTile((Chain) op, tileStart);
+			} finally {
+				opPool.giveBack(op);
+			}
+		}
+	}
+
+	protected void renderTile(Chain copy, int tileIdx) {
+		float[][] inp = tileInps[tileIdx];
+		int rows = inp.length;
+		int pixelOffset = tileIdx * TILE_ROWS * size;
+
+		copy.calcOutputBatch(inp, rows);
+
+		float inpScale = 2 / (intervalEnd - intervalStart);
+		float inpCenter = (intervalStart + intervalEnd) / 2;
+
+		float[][] inpGrid = grids[0];
+		for (int j = 0; j < inpGrid.length; j++) {
+			float[] grid = inpGrid[j];
+			for (int r = 0; r < rows; r++) {
+				grid[pixelOffset + r] = (inp[r][j] - inpCenter) * inpScale;
+			}
+		}
+
+		for (int i = 1; i < grids.length; i++) {
+			// the outputs of the activation functions, see Classifier.getActivity()
+			float[][] out = copy.get(i * 2 - 1).getOutputBatch();
+
+			float[][] layerGrids = grids[i];
+			for (int j = 0; j < layerGrids.length; j++) {
+				float[] grid = layerGrids[j];
+				for (int r = 0; r < rows; r++) {
+					grid[pixelOffset + r] = out[r][j];
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns the activation grid of the specified neuron, as calculated by the
+	 * last {@link #render(int)}.
+	 */
+	public float[] getGrid(int layerIdx, int neuronIdx) {
+		return grids[layerIdx][neuronIdx];
+	}
+
+	/**
+	 * Returns the size of the grids of the last {@link #render(int)}.
+	 */
+	public int getSize() {
+		return size;
+	}
+}
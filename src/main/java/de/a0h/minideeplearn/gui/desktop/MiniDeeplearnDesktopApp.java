@@ -6,6 +6,7 @@ import java.awt.Choice;
 import java.awt.Color;
 import java.awt.Component;
 import java.awt.Container;
+import java.awt.EventQueue;
 import java.awt.FlowLayout;
 import java.awt.Font;
 import java.awt.Frame;
@@ -27,19 +28,17 @@ import java.awt.event.WindowListener;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Random;
-import java.util.concurrent.locks.Condition;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import de.a0h.minideeplearn.datasetgenerator.DataSetGenerator;
 import de.a0h.minideeplearn.datasetgenerator.vectordistribution.UniformVectorDistribution;
 import de.a0h.minideeplearn.datasetgenerator.vectortransform.InsideCenteredSphere;
-import de.a0h.minideeplearn.operation.optimizer.GradientDescentOptimizer;
-import de.a0h.minideeplearn.operation.optimizer.Optimizer;
 import de.a0h.minideeplearn.predefined.ActivationFunctionType;
 import de.a0h.minideeplearn.predefined.Classifier;
 
 @SuppressWarnings("serial")
-public class MiniDeeplearnDesktopApp extends Frame implements WindowListener, ActionListener, ItemListener {
+public class MiniDeeplearnDesktopApp extends Frame
+		implements WindowListener, ActionListener, ItemListener, TrainingEngine.Listener {
 
 	private static final String TITLE = "Mini-Deeplearn";
 
@@ -47,6 +46,11 @@ public class MiniDeeplearnDesktopApp extends Frame implements WindowListener, Ac
 
 	private static final String SIGN_STOP = "▮▮";
 
+	/**
+	 * Frame rate cap of the neuron images, independent of the training speed.
+	 */
+	private static final int MAX_FRAMES_PER_SECOND = 20;
+
 	private static final String[] LEARNING_RATES = { //
 			"0.00001", //
 			"0.0001", //
@@ -74,13 +78,6 @@ public class MiniDeeplearnDesktopApp extends Frame implements WindowListener, Ac
 			ActivationFunctionType.SIGMOID.nameLowercase, //
 	};
 
-	/**
-	 * Lock for synchronizing gui and background activities.
-	 */
-	private final ReentrantLock guiLock = new ReentrantLock(true);
-
-	private final Condition waitForRunnerExit = guiLock.newCondition();
-
 	Button resetBtn = new Button(" ⚂ ");
 	Button playStopBtn = new Button(SIGN_PLAY);
 	Button stepBtn = new Button("▶︎▮");
@@ -94,18 +91,23 @@ public class MiniDeeplearnDesktopApp extends Frame implements WindowListener, Ac
 	NetCanvas netCv;
 
 	Random rnd = new Random(0);
-	Classifier net;
+
+	/**
+	 * Trains its own classifier, the canvas renders the published snapshots.
+	 */
+	TrainingEngine engine;
+
+	// only accessed by the AWT event thread
+	boolean running = false;
+
+	// coalesces the epoch updates of the text field
+	final AtomicBoolean epochUpdatePending = new AtomicBoolean();
 
 	float[][] trainInp;
 	float[][] trainTarget;
 	float[][] testInp;
 	float[][] testTarget;
 
-	long epoch = 0;
-
-	Thread runner;
-	boolean shallRun = false;
-
 	public MiniDeeplearnDesktopApp() {
 		super(TITLE);
 
@@ -180,17 +182,23 @@ public class MiniDeeplearnDesktopApp extends Frame implements WindowListener, Ac
 		ActivationFunctionType outputLayerActFunc = ActivationFunctionType
 				.valueOfLowercase(outputActCh.getSelectedItem());
 
-		net = new Classifier(shape);
-		net.setHiddenActivationFunction(hiddenLayerActFunc);
-		net.setOutputActivationFunction(outputLayerActFunc);
+		initDataSets(shape[0], shape[shape.length - 1]);
 
-		netCv = new NetCanvas(net);
+		// the canvas renders a classifier of its own, see NetSnapshot
+		netCv = new NetCanvas(new Classifier(shape));
+		netCv.setProgressiveRendering(true, MAX_FRAMES_PER_SECOND);
+		netCv.trainInp = trainInp;
+		netCv.trainTarget = trainTarget;
+		netCv.testInp = testInp;
+		netCv.testTarget = testTarget;
 
 		netCv.setFont(getScaledFont(1.2f, Font.PLAIN));
 		add(netCv, this, gbc, 1, 1, 1, 1, 100, 100, GridBagConstraints.BOTH);
 
-		initDataSets();
-		netCv.netUpdated();
+		engine = new TrainingEngine(new Classifier(shape), trainInp, trainTarget, //
+				hiddenLayerActFunc, outputLayerActFunc, rnd, this);
+		engine.setLearningRate(Float.parseFloat(learnRateCh.getSelectedItem()));
+		netCv.snapshotPublished(engine.getLatestSnapshot());
 
 		pack();
 
@@ -198,13 +206,14 @@ public class MiniDeeplearnDesktopApp extends Frame implements WindowListener, Ac
 		resetBtn.addActionListener(this);
 		playStopBtn.addActionListener(this);
 		stepBtn.addActionListener(this);
+		learnRateCh.addItemListener(this);
 		hiddenActCh.addItemListener(this);
 		outputActCh.addItemListener(this);
 
-		trainEpoch();
+		engine.step();
 	}
 
-	protected void initDataSets() {
+	protected void initDataSets(int inputSize, int outputSize) {
 		int combinedSampleCount = 600;
 		int trainSize = combinedSampleCount * 2 / 3;
 		int testSize = combinedSampleCount - trainSize;
@@ -216,20 +225,13 @@ public class MiniDeeplearnDesktopApp extends Frame implements WindowListener, Ac
 				new InsideCenteredSphere(sphereDiam) //
 		);
 
-		float[][][] trainSet = generator.generate(net.getInputSize(), net.getOutputSize(), trainSize, rnd);
-		float[][][] testSet = generator.generate(net.getInputSize(), net.getOutputSize(), testSize, rnd);
+		float[][][] trainSet = generator.generate(inputSize, outputSize, trainSize, rnd);
+		float[][][] testSet = generator.generate(inputSize, outputSize, testSize, rnd);
 
 		trainInp = trainSet[0];
 		trainTarget = trainSet[1];
 		testInp = testSet[0];
 		testTarget = testSet[1];
-
-		epoch = 0;
-
-		netCv.trainInp = trainInp;
-		netCv.trainTarget = trainTarget;
-		netCv.testInp = testInp;
-		netCv.testTarget = testTarget;
 	}
 
 	public static void main(String[] args) {
@@ -290,24 +292,19 @@ public class MiniDeeplearnDesktopApp extends Frame implements WindowListener, Ac
 	public void itemStateChanged(ItemEvent e) {
 		Object src = e.getSource();
 
-		guiLock.lock();
+		if (src == learnRateCh) {
+			engine.setLearningRate(Float.parseFloat(learnRateCh.getSelectedItem()));
 
-		try {
-			if (src == hiddenActCh) {
-				ActivationFunctionType actFuncType = ActivationFunctionType
-						.valueOfLowercase(hiddenActCh.getSelectedItem());
-				net.setHiddenActivationFunction(actFuncType);
-				netCv.netUpdated();
+		} else if (src == hiddenActCh) {
+			ActivationFunctionType actFuncType = ActivationFunctionType
+					.valueOfLowercase(hiddenActCh.getSelectedItem());
+			engine.setHiddenActivationFunction(actFuncType);
 
-			} else if (src == outputActCh) {
-				ActivationFunctionType actFuncType = ActivationFunctionType
-						.valueOfLowercase(outputActCh.getSelectedItem());
-				net.setOutputActivationFunction(actFuncType);
-				netCv.netUpdated();
+		} else if (src == outputActCh) {
+			ActivationFunctionType actFuncType = ActivationFunctionType
+					.valueOfLowercase(outputActCh.getSelectedItem());
+			engine.setOutputActivationFunction(actFuncType);
 
-			}
-		} finally {
-			guiLock.unlock();
 		}
 	}
 
@@ -325,128 +322,58 @@ public class MiniDeeplearnDesktopApp extends Frame implements WindowListener, Ac
 	}
 
 	protected void stepBtnClicked() {
-		guiLock.lock();
-
-		try {
-			trainEpochAndUpdateUi();
-		} finally {
-			guiLock.unlock();
-		}
-	}
-
-	protected void trainEpochAndUpdateUi() {
-		trainEpoch();
-		uiUpdatesAfterTraining();
+		engine.step();
 	}
 
 	protected void playStopBtnClicked() {
-		guiLock.lock();
-
-		try {
-			if (runner == null) {
-				startBackgroundTraining();
-			} else {
-				stopBackgroundTraining();
-			}
-		} finally {
-			guiLock.unlock();
-		}
+		setRunning(!running);
 	}
 
-	protected void startBackgroundTraining() {
-		shallRun = true;
-		runner = new Thread(new Runnable() {
-
-			@Override
-			public void run() {
-				while (true) {
-					guiLock.lock();
-					try {
-
-						if (!shallRun) {
-							runner = null;
-							waitForRunnerExit.signalAll();
-							return;
-						}
-
-					} finally {
-						guiLock.unlock();
-					}
-
-					try {
-						trainEpochAndUpdateUi();
-					} catch (Throwable t) {
-						guiLock.lock();
-						try {
-							shallRun = false;
-							runner = null;
-							playStopBtn.setLabel(SIGN_PLAY);
-							stepBtn.setEnabled(true);
-							waitForRunnerExit.signalAll();
-							throw t;
-						} finally {
-							guiLock.unlock();
-						}
-					}
-				}
-			}
-
-		});
+	protected void setRunning(boolean running) {
+		this.running = running;
+		engine.setRunning(running);
 
-		playStopBtn.setLabel(SIGN_STOP);
-		stepBtn.setEnabled(false);
+		playStopBtn.setLabel(running ? SIGN_STOP : SIGN_PLAY);
+		stepBtn.setEnabled(!running);
+	}
 
-		runner.start();
+	protected void resetButtonClicked() {
+		engine.reset();
 	}
 
-	protected void stopBackgroundTraining() {
-		shallRun = false;
-		waitForRunnerExit.awaitUninterruptibly();
+	@Override
+	public void snapshotPublished(NetSnapshot snapshot) {
+		netCv.snapshotPublished(snapshot);
 
-		playStopBtn.setLabel(SIGN_PLAY);
-		stepBtn.setEnabled(true);
-	}
+		// at most one pending update of the text field, however fast the epochs are
+		if (epochUpdatePending.compareAndSet(false, true)) {
+			EventQueue.invokeLater(new Runnable() {
 
-	protected void resetButtonClicked() {
-		guiLock.lock();
-		try {
-			// net.initWeightsAndClearBiases(rnd);
-			net.initParams(rnd);
-			netCv.netUpdated();
-			epoch = 0;
-			epochTf.setText("0");
-
-		} finally {
-			guiLock.unlock();
+				@Override
+				public void run() {
+					epochUpdatePending.set(false);
+					epochTf.setText(Long.toString(engine.getLatestSnapshot().epoch));
+				}
+			});
 		}
 	}
 
-	private void uiUpdatesAfterTraining() {
-		epochTf.setText(Long.toString(epoch));
-		netCv.netUpdated();
-	}
-
-	private void trainEpoch() {
-		String learningRateStr = learnRateCh.getSelectedItem();
-		float learningRate = Float.parseFloat(learningRateStr);
-		int batchSize = 20;
-
-		Optimizer optimizer = new GradientDescentOptimizer();
+	@Override
+	public void trainingFailed(final RuntimeException e) {
+		e.printStackTrace();
 
-		optimizer.run( //
-				net, //
-				trainInp, //
-				trainTarget, //
-				batchSize, //
-				learningRate, //
-				null //
-		);
+		EventQueue.invokeLater(new Runnable() {
 
-		epoch++;
+			@Override
+			public void run() {
+				setRunning(false);
+			}
+		});
 	}
 
 	@Override
 	public void windowClosing(WindowEvent e) {
+		engine.close();
 		System.exit(0);
 	}
 
@@ -7,6 +7,7 @@ import java.awt.Graphics;
 import java.awt.Graphics2D;
 import java.awt.RenderingHints;
 import java.awt.image.BufferedImage;
+import java.util.concurrent.atomic.AtomicReference;
 
 import de.a0h.minideeplearn.predefined.Classifier;
 
@@ -21,13 +22,29 @@ public class NetCanvas extends Canvas {
 	private static final int NEURON_ICON_SIZE = 32;
 	private static final int NEURON_FULL_SIZE = 256;
 
+	private static final float INTERVAL_START = -6;
+	private static final float INTERVAL_END = 6;
+
+	/**
+	 * Grid sizes of the refinement steps of progressive rendering.
+	 */
+	private static final int[] PROGRESSIVE_GRID_SIZES = new int[] { 32, 64, 128, NEURON_FULL_SIZE };
+
 	private final static int[] COLOR_SCHEME = new int[511];
 
 	Color COLOR_BACKGROUND = new Color(205, 205, 205);
 	Color COLOR_FOREGROUND = Color.BLACK;
 
+	/**
+	 * The rendered net. When snapshots are published, see
+	 * {@link #snapshotPublished(NetSnapshot)}, it's only used by the canvas.
+	 */
 	Classifier net;
 
+	// the latest published snapshot and the one which has been applied to the net
+	final AtomicReference<NetSnapshot> latestSnapshot = new AtomicReference<NetSnapshot>();
+	NetSnapshot appliedSnapshot;
+
 	float[][] trainInp;
 	float[][] trainTarget;
 	float[][] testInp;
@@ -40,6 +57,15 @@ public class NetCanvas extends Canvas {
 
 	boolean discreteOutput = false;
 
+	ActivationGridRenderer renderer;
+
+	// progressive rendering, see setProgressiveRendering()
+	final ProgressiveRenderScheduler renderScheduler;
+
+	// pixel buffers, reused for every image
+	int[] iconRgb = new int[NEURON_ICON_SIZE * NEURON_ICON_SIZE];
+	int[] fullRgb = new int[NEURON_FULL_SIZE * NEURON_FULL_SIZE];
+
 	static {
 		initColorScheme();
 	}
@@ -47,8 +73,19 @@ public class NetCanvas extends Canvas {
 	public NetCanvas(Classifier net) {
 		this.net = net;
 
+		renderer = new ActivationGridRenderer(net, INTERVAL_START, INTERVAL_END);
 		allocNeuronImgs();
 
+		renderScheduler = new ProgressiveRenderScheduler(PROGRESSIVE_GRID_SIZES.length,
+				new ProgressiveRenderScheduler.Renderer() {
+
+					@Override
+					public void renderLevel(int level) {
+						updateNeuronImgs(PROGRESSIVE_GRID_SIZES[level]);
+						paintNeuronImgs();
+					}
+				});
+
 		setBackground(COLOR_BACKGROUND);
 		setForeground(COLOR_FOREGROUND);
 	}
@@ -192,9 +229,46 @@ public class NetCanvas extends Canvas {
 		g.drawImage(neuronImgs[layerIdx][neuronIdx], x, y, null);
 	}
 
+	/**
+	 * Updates the neuron images after the parameters or the operations of the net
+	 * have changed. With progressive rendering, this only schedules a frame of the
+	 * render thread and returns immediately.
+	 */
 	public void netUpdated() {
-		updateNeuronImgs();
-		paintNeuronImgs();
+		if (renderScheduler.requestFrame()) {
+			return;
+		}
+
+		synchronized (renderer) {
+			updateNeuronImgs();
+			paintNeuronImgs();
+		}
+	}
+
+	/**
+	 * Renders the specified snapshot, or a newer one, instead of the current state
+	 * of the net. Is called by the thread which publishes the snapshots.
+	 */
+	public void snapshotPublished(NetSnapshot snapshot) {
+		latestSnapshot.set(snapshot);
+		netUpdated();
+	}
+
+	/**
+	 * Enables or disables progressive rendering. When enabled, the neuron images
+	 * are rendered by a background thread, at most maxFramesPerSecond times per
+	 * second: first from a coarse grid, which is then refined step by step, as
+	 * long as the net isn't updated again. Thereby, a training loop which calls
+	 * {@link #netUpdated()} after every epoch isn't slowed down by rendering at
+	 * full resolution. The frames are scheduled by a
+	 * {@link ProgressiveRenderScheduler}.
+	 */
+	public void setProgressiveRendering(boolean enabled, int maxFramesPerSecond) {
+		renderScheduler.setEnabled(enabled, maxFramesPerSecond);
+	}
+
+	public boolean isProgressiveRendering() {
+		return renderScheduler.isEnabled();
 	}
 
 	private void paintNeuronImgs() {
@@ -208,55 +282,46 @@ public class NetCanvas extends Canvas {
 	}
 
 	protected void updateNeuronImgs() {
-		float intervalStart = -6;
-		float intervalEnd = 6;
+		updateNeuronImgs(NEURON_FULL_SIZE);
+	}
+
+	/**
+	 * Renders the activations on a grid of the specified size, i.e. with one
+	 * batched evaluation. The images are sampled from the grid, so that a smaller
+	 * grid gives a coarser image.
+	 */
+	protected void updateNeuronImgs(int gridSize) {
+		float intervalStart = INTERVAL_START;
+		float intervalEnd = INTERVAL_END;
 		float intervalDiam = intervalEnd - intervalStart;
 
-		float[] input = new float[net.getLayerSize(0)];
+		float[] input;
 
 		int lastLayerIdx = net.getLayerCount() - 1;
 
-		for (int x = 0; x < NEURON_ICON_SIZE; x++) {
-			for (int y = 0; y < NEURON_ICON_SIZE; y++) {
-				int ɣ = NEURON_ICON_SIZE - 1 - y;
-				input[0] = intervalStart + x * intervalDiam / (NEURON_ICON_SIZE - 1);
-				input[1] = intervalStart + ɣ * intervalDiam / (NEURON_ICON_SIZE - 1);
-
-				net.calcOutput(input);
-
-				for (int i = 0; i < lastLayerIdx; i++) {
-					float[] act = net.getActivity(i);
-					for (int j = 0; j < net.getLayerSize(i); j++) {
-						int rgb = getColor(act[j]);
-						neuronImgs[i][j].setRGB(x, y, rgb);
-					}
-				}
-			}
+		NetSnapshot snapshot = latestSnapshot.get();
+		if (snapshot != null && snapshot != appliedSnapshot) {
+			snapshot.applyTo(net, appliedSnapshot);
+			appliedSnapshot = snapshot;
 		}
 
-		for (int x = 0; x < NEURON_FULL_SIZE; x++) {
-			for (int y = 0; y < NEURON_FULL_SIZE; y++) {
-				int ɣ = NEURON_FULL_SIZE - 1 - y;
-				input[0] = intervalStart + x * intervalDiam / (NEURON_FULL_SIZE - 1);
-				input[1] = intervalStart + ɣ * intervalDiam / (NEURON_FULL_SIZE - 1);
+		renderer.render(gridSize);
 
-				net.calcOutput(input);
-
-				int i = lastLayerIdx;
-				float[] act = net.getActivity(i);
+		for (int i = 0; i < lastLayerIdx; i++) {
+			for (int j = 0; j < net.getLayerSize(i); j++) {
+				sampleGrid(renderer.getGrid(i, j), gridSize, iconRgb, NEURON_ICON_SIZE, false);
 
-				for (int j = 0; j < net.getLayerSize(i); j++) {
-					float v = act[j];
+				neuronImgs[i][j].setRGB(0, 0, NEURON_ICON_SIZE, NEURON_ICON_SIZE, iconRgb, 0, NEURON_ICON_SIZE);
+			}
+		}
 
-					v -= 0.5f; // because it's sigmoid
+		{
+			int i = lastLayerIdx;
 
-					if (discreteOutput) {
-						v = v < 0 ? -1 : 1;
-					}
+			for (int j = 0; j < net.getLayerSize(i); j++) {
+				sampleGrid(renderer.getGrid(i, j), gridSize, fullRgb, NEURON_FULL_SIZE, true);
 
-					int rgb = getColor(v);
-					neuronImgs[i][j].setRGB(x, y, rgb);
-				}
+				neuronImgs[i][j].setRGB(0, 0, NEURON_FULL_SIZE, NEURON_FULL_SIZE, fullRgb, 0, NEURON_FULL_SIZE);
 			}
 		}
 
@@ -292,6 +357,32 @@ public class NetCanvas extends Canvas {
 		}
 	}
 
+	/**
+	 * Fills the pixels of an image of size imgSize with the colors of the nearest
+	 * grid points.
+	 */
+	protected void sampleGrid(float[] grid, int gridSize, int[] rgb, int imgSize, boolean isOutput) {
+		for (int y = 0; y < imgSize; y++) {
+			int gridY = Math.round(y * (gridSize - 1) / (float) (imgSize - 1));
+
+			for (int x = 0; x < imgSize; x++) {
+				int gridX = Math.round(x * (gridSize - 1) / (float) (imgSize - 1));
+
+				float v = grid[gridY * gridSize + gridX];
+
+				if (isOutput) {
+					v -= 0.5f; // because it's sigmoid
+
+					if (discreteOutput) {
+						v = v < 0 ? -1 : 1;
+					}
+				}
+
+				rgb[y * imgSize + x] = getColor(v);
+			}
+		}
+	}
+
 //	private void paintColorScheme(Graphics g) {
 //		for (int i = 0; i < COLOR_SCHEME.length; i++) {
 //			int rgb = COLOR_SCHEME[i];
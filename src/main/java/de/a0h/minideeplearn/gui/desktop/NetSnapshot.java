@@ -0,0 +1,66 @@
+package de.a0h.minideeplearn.gui.desktop;
+
+import de.a0h.minideeplearn.predefined.ActivationFunctionType;
+import de.a0h.minideeplearn.predefined.Classifier;
+
+/**
+ * An immutable snapshot of a classifier, which is published by the
+ * {@link TrainingEngine} and rendered by the {@link NetCanvas}. Rendering from
+ * a snapshot never observes half-updated parameters, and it never blocks the
+ * training.
+ */
+public class NetSnapshot {
+
+	/**
+	 * Increases with every snapshot of an engine, also when the epoch is reset.
+	 */
+	public final long seq;
+
+	public final long epoch;
+
+	public final ActivationFunctionType hiddenActFunc;
+
+	public final ActivationFunctionType outputActFunc;
+
+	// never changed after the construction
+	protected final float[] params;
+
+	public NetSnapshot(long seq, long epoch, Classifier net, ActivationFunctionType hiddenActFunc,
+			ActivationFunctionType outputActFunc) {
+		this.seq = seq;
+		this.epoch = epoch;
+		this.hiddenActFunc = hiddenActFunc;
+		this.outputActFunc = outputActFunc;
+
+		params = new float[net.getParamCount()];
+		System.arraycopy(net.getParams(), net.getParamsOffset(), params, 0, params.length);
+	}
+
+	public int getParamCount() {
+		return params.length;
+	}
+
+	/**
+	 * Makes the specified classifier, which must have the same shape as the one
+	 * the snapshot was taken from, equal to the snapshot. lastApplied is the
+	 * snapshot which has been applied to the classifier before, or null. The
+	 * activation functions are only replaced if they differ from it, because
+	 * replacing them invalidates the param sharing copies of the classifier.
+	 */
+	public void applyTo(Classifier net, NetSnapshot lastApplied) {
+		if (net.getParamCount() != params.length) {
+			throw new IllegalArgumentException("" + //
+					"the snapshot has " + params.length + " parameters, " + //
+					"but the net has " + net.getParamCount());
+		}
+
+		if (lastApplied == null || lastApplied.hiddenActFunc != hiddenActFunc) {
+			net.setHiddenActivationFunction(hiddenActFunc);
+		}
+		if (lastApplied == null || lastApplied.outputActFunc != outputActFunc) {
+			net.setOutputActivationFunction(outputActFunc);
+		}
+
+		System.arraycopy(params, 0, net.getParams(), net.getParamsOffset(), params.length);
+	}
+}
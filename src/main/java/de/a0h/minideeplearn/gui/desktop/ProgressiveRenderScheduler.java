@@ -0,0 +1,159 @@
+package de.a0h.minideeplearn.gui.desktop;
+
+/**
+ * Schedules the frames of progressive rendering on a background thread, e.g.
+ * for the {@link NetCanvas}. A frame is rendered in levels, from a coarse one
+ * to the finest one:
+ * <ul>
+ * <li>Frames are requested by {@link #requestFrame()}. All requests until the
+ * next frame starts are coalesced into this frame.</li>
+ * <li>Frames start at most maxFramesPerSecond times per second.</li>
+ * <li>The refinement of a frame stops as soon as a new frame is requested, so
+ * the new frame starts over with the coarsest level.</li>
+ * </ul>
+ * The scheduling doesn't depend on AWT, the rendering itself is done by the
+ * {@link Renderer}.
+ */
+public class ProgressiveRenderScheduler {
+
+	/**
+	 * Is called by the render thread.
+	 */
+	public interface Renderer {
+
+		/**
+		 * Renders the specified level of a frame, 0 being the coarsest one.
+		 */
+		public void renderLevel(int level);
+	}
+
+	protected final int levelCount;
+
+	protected final Renderer renderer;
+
+	protected final Object monitor = new Object();
+
+	// guarded by monitor
+	protected Thread thread;
+	protected boolean dirty;
+
+	protected volatile long minFrameNanos;
+
+	public ProgressiveRenderScheduler(int levelCount, Renderer renderer) {
+		if (levelCount < 1) {
+			throw new IllegalArgumentException("levelCount must be positive, but it is " + levelCount);
+		}
+
+		this.levelCount = levelCount;
+		this.renderer = renderer;
+	}
+
+	/**
+	 * Starts or stops the render thread. Stopping waits until the current level
+	 * has been rendered.
+	 */
+	public void setEnabled(boolean enabled, int maxFramesPerSecond) {
+		if (maxFramesPerSecond < 1) {
+			throw new IllegalArgumentException("maxFramesPerSecond must be positive, but it is " + maxFramesPerSecond);
+		}
+
+		Thread oldThread;
+		synchronized (monitor) {
+			minFrameNanos = 1000000000L / maxFramesPerSecond;
+
+			if (enabled == (thread != null)) {
+				return;
+			}
+
+			oldThread = thread;
+			thread = null;
+
+			if (enabled) {
+				thread = new Thread("progressive-renderer") {
+
+					@Override
+					public void run() {
+						renderLoop(this);
+					}
+				};
+				thread.setDaemon(true);
+				thread.start();
+			} else {
+				monitor.notifyAll();
+			}
+		}
+
+		if (oldThread != null) {
+			try {
+				oldThread.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	public boolean isEnabled() {
+		synchronized (monitor) {
+			return thread != null;
+		}
+	}
+
+	/**
+	 * Schedules a frame and returns immediately. Returns false if the render
+	 * thread isn't running, i.e. the caller has to render by itself.
+	 */
+	public boolean requestFrame() {
+		synchronized (monitor) {
+			if (thread == null) {
+				return false;
+			}
+
+			dirty = true;
+			monitor.notifyAll();
+
+			return true;
+		}
+	}
+
+	protected void renderLoop(Thread self) {
+		long lastFrameTime = System.nanoTime() - minFrameNanos;
+
+		try {
+			while (true) {
+				synchronized (monitor) {
+					while (!dirty && thread == self) {
+						monitor.wait();
+					}
+
+					if (thread != self) {
+						return;
+					}
+				}
+
+				// frame rate cap, requests in the meantime are coalesced into this frame
+				long waitNanos = lastFrameTime + minFrameNanos - System.nanoTime();
+				if (waitNanos > 0) {
+					Thread.sleep(waitNanos / 1000000, (int) (waitNanos % 1000000));
+				}
+
+				synchronized (monitor) {
+					dirty = false;
+				}
+				lastFrameTime = System.nanoTime();
+
+				for (int level = 0; level < levelCount; level++) {
+					synchronized (monitor) {
+						// a newer frame is waiting, it starts over with the coarsest level
+						if (level > 0 && (dirty || thread != self)) {
+							break;
+						}
+					}
+
+					renderer.renderLevel(level);
+				}
+			}
+		} catch (InterruptedException e) {
+			// stopped
+		}
+	}
+}
@@ -0,0 +1,245 @@
+package de.a0h.minideeplearn.gui.desktop;
+
+import java.io.Closeable;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicReference;
+
+import de.a0h.minideeplearn.operation.optimizer.GradientDescentTrainer;
+import de.a0h.minideeplearn.predefined.ActivationFunctionType;
+import de.a0h.minideeplearn.predefined.Classifier;
+
+/**
+ * Trains a classifier on its own thread and publishes a {@link NetSnapshot}
+ * after every change, e.g.
+ *
+ * <pre>
+ * TrainingEngine engine = new TrainingEngine(net, trainInp, trainTarget, TANH, SIGMOID, rnd, listener);
+ * engine.setLearningRate(0.03f);
+ * engine.setRunning(true);
+ * ...
+ * engine.close();
+ * </pre>
+ *
+ * The engine thread is the only one which touches the classifier, all changes
+ * by other threads are sent to it as commands, which are executed between two
+ * epochs. The snapshots are published through an atomic reference, see
+ * {@link #getLatestSnapshot()}, so the training never waits for a reader and a
+ * reader never observes half-updated parameters.
+ */
+public class TrainingEngine implements Closeable {
+
+	public static final int BATCH_SIZE = 20;
+
+	/**
+	 * Is called by the engine thread.
+	 */
+	public interface Listener {
+
+		public void snapshotPublished(NetSnapshot snapshot);
+
+		/**
+		 * The engine stopped running, because an epoch or a command failed.
+		 */
+		public void trainingFailed(RuntimeException e);
+	}
+
+	protected final Classifier net;
+
+	protected final float[][] trainInp;
+
+	protected final float[][] trainTarget;
+
+	protected final Random rnd;
+
+	protected final Listener listener;
+
+	protected final GradientDescentTrainer trainer = new GradientDescentTrainer();
+
+	protected final AtomicReference<NetSnapshot> latestSnapshot = new AtomicReference<NetSnapshot>();
+
+	protected final BlockingQueue<Runnable> commands = new LinkedBlockingQueue<Runnable>();
+
+	protected final Thread thread;
+
+	protected volatile float learningRate = 0.03f;
+
+	// confined to the engine thread
+	protected ActivationFunctionType hiddenActFunc;
+	protected ActivationFunctionType outputActFunc;
+	protected long epoch;
+	protected long seq;
+	protected boolean running;
+	protected boolean closed;
+
+	/**
+	 * The classifier must not be used by any other thread after this.
+	 */
+	public TrainingEngine(Classifier net, float[][] trainInp, float[][] trainTarget,
+			ActivationFunctionType hiddenActFunc, ActivationFunctionType outputActFunc, Random rnd,
+			Listener listener) {
+		this.net = net;
+		this.trainInp = trainInp;
+		this.trainTarget = trainTarget;
+		this.hiddenActFunc = hiddenActFunc;
+		this.outputActFunc = outputActFunc;
+		this.rnd = rnd;
+		this.listener = listener;
+
+		net.setHiddenActivationFunction(hiddenActFunc);
+		net.setOutputActivationFunction(outputActFunc);
+		latestSnapshot.set(createSnapshot());
+
+		thread = new Thread("training-engine") {
+
+			@Override
+			public void run() {
+				runLoop();
+			}
+		};
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	protected void runLoop() {
+		while (!closed) {
+			try {
+				Runnable command = running ? commands.poll() : commands.take();
+
+				if (command != null) {
+					command.run();
+				} else {
+					trainEpoch();
+				}
+
+			} catch (InterruptedException e) {
+				return;
+
+			} catch (RuntimeException e) {
+				running = false;
+				listener.trainingFailed(e);
+			}
+		}
+	}
+
+	protected void trainEpoch() {
+		trainer.run(net, trainInp, trainTarget, BATCH_SIZE, learningRate, null);
+		epoch++;
+
+		publish();
+	}
+
+	protected void publish() {
+		NetSnapshot snapshot = createSnapshot();
+		latestSnapshot.set(snapshot);
+
+		listener.snapshotPublished(snapshot);
+	}
+
+	protected NetSnapshot createSnapshot() {
+		return new NetSnapshot(seq++, epoch, net, hiddenActFunc, outputActFunc);
+	}
+
+	/**
+	 * Returns the snapshot of the last change, which is never null.
+	 */
+	public NetSnapshot getLatestSnapshot() {
+		return latestSnapshot.get();
+	}
+
+	/**
+	 * Starts or stops training one epoch after the other.
+	 */
+	public void setRunning(final boolean running) {
+		commands.add(new Runnable() {
+
+			@Override
+			public void run() {
+				TrainingEngine.this.running = running;
+			}
+		});
+	}
+
+	/**
+	 * Trains one epoch.
+	 */
+	public void step() {
+		commands.add(new Runnable() {
+
+			@Override
+			public void run() {
+				trainEpoch();
+			}
+		});
+	}
+
+	/**
+	 * Re-initializes the parameters and resets the epoch to 0.
+	 */
+	public void reset() {
+		commands.add(new Runnable() {
+
+			@Override
+			public void run() {
+				net.initParams(rnd);
+				epoch = 0;
+
+				publish();
+			}
+		});
+	}
+
+	/**
+	 * Is used from the next epoch on.
+	 */
+	public void setLearningRate(float learningRate) {
+		this.learningRate = learningRate;
+	}
+
+	public void setHiddenActivationFunction(final ActivationFunctionType actFuncType) {
+		commands.add(new Runnable() {
+
+			@Override
+			public void run() {
+				net.setHiddenActivationFunction(actFuncType);
+				hiddenActFunc = actFuncType;
+
+				publish();
+			}
+		});
+	}
+
+	public void setOutputActivationFunction(final ActivationFunctionType actFuncType) {
+		commands.add(new Runnable() {
+
+			@Override
+			public void run() {
+				net.setOutputActivationFunction(actFuncType);
+				outputActFunc = actFuncType;
+
+				publish();
+			}
+		});
+	}
+
+	/**
+	 * Stops the engine thread after the current epoch or command.
+	 */
+	@Override
+	public void close() {
+		commands.add(new Runnable() {
+
+			@Override
+			public void run() {
+				closed = true;
+			}
+		});
+
+		try {
+			thread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
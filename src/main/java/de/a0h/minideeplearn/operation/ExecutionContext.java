@@ -0,0 +1,57 @@
+package de.a0h.minideeplearn.operation;
+
+/**
+ * Holds all the intermediate results of evaluating an operation, separately
+ * from its learnable parameters. Several threads can evaluate the same
+ * operation concurrently, if every thread uses its own execution context, e.g.
+ * 
+ * <pre>
+ * ExecutionContext ctx = model.createContext();
+ * float[] out = model.calcOutput(ctx, x);
+ * </pre>
+ * 
+ * An execution context must not be used by several threads at once. It holds a
+ * param sharing copy of the operation, see
+ * {@link Operation#createParamSharingCopy()}, so its memory footprint is just
+ * the one of the intermediate results.
+ */
+public class ExecutionContext {
+
+	protected final Operation owner;
+
+	protected final Operation storage;
+
+	public ExecutionContext(Operation owner) {
+		this.owner = owner;
+		this.storage = owner.createParamSharingCopy();
+	}
+
+	/**
+	 * Returns the operation which created this context.
+	 */
+	public Operation getOwner() {
+		return owner;
+	}
+
+	/**
+	 * Returns the param sharing copy of the owner, which holds the intermediate
+	 * results of this context.
+	 */
+	public Operation getStorage() {
+		return storage;
+	}
+
+	/**
+	 * Returns the storage of this context after making sure that this context
+	 * belongs to the specified operation.
+	 */
+	public Operation getStorage(Operation owner) {
+		if (owner != this.owner) {
+			throw new IllegalArgumentException("" + //
+					"execution context belongs to another operation: " + //
+					this.owner.toStringWithLayout() + " (" + this.owner.getClass().getName() + ")");
+		}
+
+		return storage;
+	}
+}
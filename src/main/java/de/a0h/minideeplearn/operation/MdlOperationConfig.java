@@ -9,4 +9,51 @@ public class MdlOperationConfig {
 	public static StringConversionPrecision //
 	stringConversionPrecision = StringConversionPrecision.PRETTY;
 
+	/**
+	 * Implementation variants of the matrix-vector products of dense layers.
+	 * <ul>
+	 * <li>SCALAR: straightforward loops, summing up in index order</li>
+	 * <li>UNROLLED: dot products with several independent accumulators, so that
+	 * consecutive multiply-adds don't wait for each other. Summing up in a
+	 * different order leads to slightly different rounding than SCALAR.</li>
+	 * </ul>
+	 */
+	public static enum KernelBackend {
+		SCALAR, UNROLLED;
+	};
+
+	/**
+	 * The kernel backend used by dense layers and by the code generated by the
+	 * operation compiler from then on. Can be preset via the system property
+	 * <code>minideeplearn.kernelBackend</code>, see
+	 * {@link #parseKernelBackend(String)}.
+	 */
+	public static KernelBackend //
+	kernelBackend = parseKernelBackend(System.getProperty("minideeplearn.kernelBackend"));
+
+	/**
+	 * Returns the kernel backend of the specified name, ignoring case and
+	 * surrounding whitespace. Falls back to SCALAR if the name is null or no valid
+	 * backend, so that a typo in the system property doesn't prevent this class
+	 * from being initialized.
+	 */
+	public static KernelBackend parseKernelBackend(String name) {
+		if (name != null) {
+			for (KernelBackend backend : KernelBackend.values()) {
+				if (backend.name().equalsIgnoreCase(name.trim())) {
+					return backend;
+				}
+			}
+		}
+
+		return KernelBackend.SCALAR;
+	}
+
+	/**
+	 * Enables the recording of profiles by the ProfilingOperation wrappers and by
+	 * the profiling counters of compiled classes. It's final, so that the JIT
+	 * compiler removes the profiling code entirely if it's disabled. Hence, it can
+	 * only be enabled via the system property <code>minideeplearn.profiling</code>.
+	 */
+	public static final boolean PROFILING = Boolean.getBoolean("minideeplearn.profiling");
 }
@@ -3,6 +3,7 @@ package de.a0h.minideeplearn.operation;
 import java.util.Random;
 
 import de.a0h.minideeplearn.operation.gradient.Gradient;
+import de.a0h.minideeplearn.operation.optimizer.UpdateRule;
 
 public interface Operation {
 
@@ -33,14 +34,82 @@ public interface Operation {
 	 */
 	public float[] getOutput();
 
+	/**
+	 * Thread-safe version of {@link #calcOutput(float[])}, which keeps all
+	 * intermediate results in the specified context instead of this instance.
+	 * Returns the array of the context which holds the output.
+	 */
+	public float[] calcOutput(ExecutionContext ctx, float[] inp);
+
 	public boolean hasLoss();
 
 	public float calcLoss(float[] inp, float[] target);
 
 	public float getLoss();
 
+	/**
+	 * Batched version of {@link #calcOutput(float[])}. Calculates the outputs for
+	 * the first <code>rows</code> input vectors of inp and returns the internal
+	 * matrix which holds them, one output vector per row. The returned matrix may
+	 * have more than <code>rows</code> rows, the surplus rows are meaningless.
+	 */
+	public float[][] calcOutputBatch(float[][] inp, int rows);
+
+	/**
+	 * Returns the internal matrix which holds the batch output. You should call
+	 * {@link #calcOutputBatch(float[][], int)} in order to populate this matrix
+	 * with meaningful data.
+	 */
+	public float[][] getOutputBatch();
+
+	/**
+	 * Batched version of {@link #calcLoss(float[], float[])}. Calculates the losses
+	 * for the first <code>rows</code> samples and returns the internal array which
+	 * holds them, one loss per sample.
+	 */
+	public float[] calcLossBatch(float[][] inp, float[][] target, int rows);
+
+	/**
+	 * Returns the internal array which holds the losses previously calculated in
+	 * {@link #calcLossBatch(float[][], float[][], int)}.
+	 */
+	public float[] getLossBatch();
+
 	public void learn(Gradient grad, float negLearningRate);
 
+	/**
+	 * Updates the parameters from the gradient, which is multiplied by gradScale
+	 * first, using the specified rule, e.g. momentum or Adam. All parameters are
+	 * passed to the rule at once, if possible.
+	 */
+	public void learn(Gradient grad, float gradScale, UpdateRule rule);
+
+	/**
+	 * Returns the number of learnable parameters of this element.
+	 */
+	public int getParamCount();
+
+	/**
+	 * Returns the array which holds the learnable parameters of this element,
+	 * starting at {@link #getParamsOffset()}. Several elements can share one array,
+	 * e.g. all elements of a chain, so that their parameters form one contiguous
+	 * vector which can be updated in a single loop.
+	 */
+	public float[] getParams();
+
+	/**
+	 * Returns the offset of the first learnable parameter of this element in
+	 * {@link #getParams()}.
+	 */
+	public int getParamsOffset();
+
+	/**
+	 * Copies the learnable parameters of this element into the specified array,
+	 * starting at the specified offset, and uses this storage from then on. Param
+	 * sharing copies created before aren't affected.
+	 */
+	public void bindParams(float[] params, int offset);
+
 	/**
 	 * Dual-contract method for calculating the gradients down to the gradient in
 	 * respect to the input to this element.
@@ -57,6 +126,28 @@ public interface Operation {
 	 */
 	public void calcGradient(float[] inp, float[] target_or_upstream_grad_of_out, Gradient grad_to_be_calculated);
 
+	/**
+	 * Same as {@link #calcGradient(float[], float[], Gradient)} if accumulate is
+	 * false. If accumulate is true, the parameter gradients of this sample are
+	 * added to the ones already in grad_to_be_calculated instead of overwriting
+	 * them. This way, the gradient of a batch can be built up sample by sample in
+	 * place, without a separate sample gradient. The gradients in respect to the
+	 * inputs and intermediate results are overwritten in both modes.
+	 */
+	public void calcGradient(float[] inp, float[] target_or_upstream_grad_of_out, Gradient grad_to_be_calculated,
+			boolean accumulate);
+
+	/**
+	 * Batched version of {@link #calcGradient(float[], float[], Gradient)} for the
+	 * first <code>rows</code> samples. Requires a preceding call of
+	 * {@link #calcOutputBatch(float[][], int)} with the same input. The parameter
+	 * gradients are overwritten with the sum of the gradients of all samples of the
+	 * batch, while the gradients in respect to the inputs are kept separately for
+	 * every sample, see {@link Gradient#getInputGradBatch()}.
+	 */
+	public void calcGradientBatch(float[][] inp, float[][] target_or_upstream_grad_of_out, int rows,
+			Gradient grad_to_be_calculated);
+
 	public void initParams(Random rnd);
 
 	/**
@@ -65,6 +156,21 @@ public interface Operation {
 	 */
 	public Gradient createGradient();
 
+	/**
+	 * Creates and returns a new instance of this element which shares the
+	 * learnable parameters with this instance, but has its own storage for all
+	 * intermediate results. Thereby, both instances can be evaluated concurrently
+	 * by different threads. Learning via one instance changes the parameters of
+	 * both.
+	 */
+	public Operation createParamSharingCopy();
+
+	/**
+	 * Creates and returns a new context for thread-safe evaluation of this
+	 * element, see {@link ExecutionContext}.
+	 */
+	public ExecutionContext createContext();
+
 	/**
 	 * Returns the short name of the type of this element, e.g. "ce" for
 	 * cross-entropy, "dense" for a dense layer, or "softm-ce" for a combination of
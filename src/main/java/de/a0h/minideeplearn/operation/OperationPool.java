@@ -0,0 +1,131 @@
+package de.a0h.minideeplearn.operation;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A pool of instances of an operation, which all share the parameters of the
+ * prototype, see {@link Operation#createParamSharingCopy()}, but have their own
+ * storage for intermediate results. Thereby, every thread which has borrowed an
+ * instance can use all its methods, including the batched ones, e.g.
+ *
+ * <pre>
+ * OperationPool pool = new OperationPool(compiled);
+ * ...
+ * Operation op = pool.borrow();
+ * try {
+ * 	float[][] out = op.calcOutputBatch(inp, rows);
+ * 	...
+ * } finally {
+ * 	pool.giveBack(op);
+ * }
+ * </pre>
+ *
+ * Borrowing and giving back are lock-free and never block: if all instances are
+ * borrowed, an additional instance is created, which is dropped when it's given
+ * back to a full pool. The parameters are shared, so they must not be changed
+ * while instances are in use, e.g. by training the prototype.
+ */
+public class OperationPool {
+
+	protected final Operation prototype;
+
+	protected final AtomicReferenceArray<Operation> slots;
+
+	protected final AtomicLong overflowCount = new AtomicLong();
+
+	/**
+	 * Creates a pool with one instance per available processor.
+	 */
+	public OperationPool(Operation prototype) {
+		this(prototype, Runtime.getRuntime().availableProcessors());
+	}
+
+	public OperationPool(Operation prototype, int size) {
+		if (size < 1) {
+			throw new IllegalArgumentException("size must be positive, but it is " + size);
+		}
+
+		this.prototype = prototype;
+
+		slots = new AtomicReferenceArray<Operation>(size);
+		for (int i = 0; i < size; i++) {
+			slots.set(i, prototype.createParamSharingCopy());
+		}
+	}
+
+	/**
+	 * Returns an instance for the exclusive use by the calling thread, until it's
+	 * given back via {@link #giveBack(Operation)}.
+	 */
+	public Operation borrow() {
+		int size = slots.length();
+
+		// start at a thread specific slot, so that threads rarely compete for one
+		int start = (int) (Thread.currentThread().getId() % size);
+
+		for (int i = 0; i < size; i++) {
+			int idx = (start + i) % size;
+
+			Operation op = slots.get(idx);
+			if (op != null && slots.compareAndSet(idx, op, null)) {
+				return op;
+			}
+		}
+
+		overflowCount.incrementAndGet();
+
+		return prototype.createParamSharingCopy();
+	}
+
+	/**
+	 * Gives an instance back, which has been returned by {@link #borrow()}.
+	 */
+	public void giveBack(Operation op) {
+		int size = slots.length();
+		int start = (int) (Thread.currentThread().getId() % size);
+
+		for (int i = 0; i < size; i++) {
+			int idx = (start + i) % size;
+
+			if (slots.get(idx) == null && slots.compareAndSet(idx, null, op)) {
+				return;
+			}
+		}
+
+		// an additional instance, the pool is full
+	}
+
+	/**
+	 * Thread-safe calculation of the output, which is copied into out.
+	 */
+	public void calcOutput(float[] inp, float[] out) {
+		Operation op = borrow();
+		try {
+			float[] opOut = op.calcOutput(inp);
+			System.arraycopy(opOut, 0, out, 0, opOut.length);
+		} finally {
+			giveBack(op);
+		}
+	}
+
+	public Operation getPrototype() {
+		return prototype;
+	}
+
+	/**
+	 * Returns the number of pooled instances.
+	 */
+	public int size() {
+		return slots.length();
+	}
+
+	/**
+	 * Returns how often an additional instance had to be created, because all
+	 * pooled instances were borrowed. If this is frequently the case, the pool
+	 * should be bigger.
+	 */
+	public long getOverflowCount() {
+		return overflowCount.get();
+	}
+}
@@ -1,8 +1,14 @@
 package de.a0h.minideeplearn.operation;
 
+import java.util.Arrays;
+import java.util.Random;
+
 import de.a0h.minideeplearn.operation.MdlOperationConfig.StringConversionPrecision;
+import de.a0h.minideeplearn.operation.gradient.Gradient;
 import de.a0h.mininum.format.DecimalFormatWithPadding;
+import de.a0h.mininum.format.MnFormat;
 import de.a0h.mininum.format.NumberStats;
+import de.a0h.mininum.format.StringUtil;
 
 public class OperationUtil {
 
@@ -28,6 +34,176 @@ public class OperationUtil {
 				"because they don't provide an output");
 	}
 
+	/**
+	 * Empty parameter array for elements without learnable parameters.
+	 */
+	public static final float[] NO_PARAMS = new float[0];
+
+	/**
+	 * Calculates dst[dstOffset + i] += sca * src[srcOffset + i] for all i from 0 to
+	 * length - 1.
+	 */
+	public static void mulAdd(float[] src, int srcOffset, float sca, float[] dst, int dstOffset, int length) {
+		for (int i = 0; i < length; i++) {
+			dst[dstOffset + i] += sca * src[srcOffset + i];
+		}
+	}
+
+	/**
+	 * Calculates dst[dstOffset + i] += src[srcOffset + i] for all i from 0 to
+	 * length - 1.
+	 */
+	public static void add(float[] src, int srcOffset, float[] dst, int dstOffset, int length) {
+		for (int i = 0; i < length; i++) {
+			dst[dstOffset + i] += src[srcOffset + i];
+		}
+	}
+
+	/**
+	 * Multiplies vec[offset] to vec[offset + length - 1] by sca.
+	 */
+	public static void mul(float[] vec, int offset, int length, float sca) {
+		for (int i = offset; i < offset + length; i++) {
+			vec[i] *= sca;
+		}
+	}
+
+	/**
+	 * Assigns value to vec[offset] to vec[offset + length - 1].
+	 */
+	public static void assign(float[] vec, int offset, int length, float value) {
+		for (int i = offset; i < offset + length; i++) {
+			vec[i] = value;
+		}
+	}
+
+	/**
+	 * Fisher-Yates shuffle of the first length elements of the array, in place.
+	 */
+	public static void shuffle(int[] arr, int length, Random rnd) {
+		for (int i = length - 1; i > 0; i--) {
+			int j = rnd.nextInt(i + 1);
+
+			int tmp = arr[i];
+			arr[i] = arr[j];
+			arr[j] = tmp;
+		}
+	}
+
+	/**
+	 * Returns the dot product of a[aOffset] to a[aOffset + length - 1] and b[0] to
+	 * b[length - 1]. Sums up into four independent accumulators, see
+	 * {@link MdlOperationConfig.KernelBackend#UNROLLED}.
+	 */
+	public static float dotUnrolled(float[] a, int aOffset, float[] b, int length) {
+		float acc0 = 0.0f;
+		float acc1 = 0.0f;
+		float acc2 = 0.0f;
+		float acc3 = 0.0f;
+
+		int j = 0;
+		for (; j <= length - 4; j += 4) {
+			acc0 += a[aOffset + j] * b[j];
+			acc1 += a[aOffset + j + 1] * b[j + 1];
+			acc2 += a[aOffset + j + 2] * b[j + 2];
+			acc3 += a[aOffset + j + 3] * b[j + 3];
+		}
+
+		for (; j < length; j++) {
+			acc0 += a[aOffset + j] * b[j];
+		}
+
+		return (acc0 + acc1) + (acc2 + acc3);
+	}
+
+	/**
+	 * Returns the sum of the squares of vec[offset] to vec[offset + length - 1].
+	 */
+	public static float norm2Squared(float[] vec, int offset, int length) {
+		float result = 0.0f;
+
+		for (int i = offset; i < offset + length; i++) {
+			result += vec[i] * vec[i];
+		}
+
+		return result;
+	}
+
+	/**
+	 * Returns the euclidean norm of all the parameter gradients of grad.
+	 */
+	public static float paramNorm(Gradient grad) {
+		return (float) Math.sqrt(norm2Squared(grad.getParams(), grad.getParamsOffset(), grad.getParamCount()));
+	}
+
+	/**
+	 * Scales down the parameter gradients of grad if their euclidean norm is
+	 * greater than maxNorm, so that it's maxNorm afterwards. Returns the norm
+	 * before clipping.
+	 */
+	public static float clipParamNorm(Gradient grad, float maxNorm) {
+		float norm = paramNorm(grad);
+
+		if (norm > maxNorm) {
+			mul(grad.getParams(), grad.getParamsOffset(), grad.getParamCount(), maxNorm / norm);
+		}
+
+		return norm;
+	}
+
+	/**
+	 * Returns the specified batch matrix if it has at least the specified number of
+	 * rows, or else a new matrix with the specified number of rows and columns.
+	 */
+	public static float[][] ensureBatchCapacity(float[][] batch, int rows, int cols) {
+		if (batch != null && batch.length >= rows) {
+			return batch;
+		}
+
+		return new float[rows][cols];
+	}
+
+	/**
+	 * Returns the specified array if it has at least the specified length, or else
+	 * a new array of the specified length.
+	 */
+	public static float[] ensureBatchCapacity(float[] batch, int rows) {
+		if (batch != null && batch.length >= rows) {
+			return batch;
+		}
+
+		return new float[rows];
+	}
+
+	/**
+	 * Appends the row-major matrix mat with the specified number of rows and
+	 * columns to buf, one matrix row per line. All lines but the first one are
+	 * indented by the specified number of spaces.
+	 */
+	public static StringBuilder toStringBuilderMat(float[] mat, int rowCount, int colCount, StringBuilder buf,
+			int indent, DecimalFormatWithPadding format) {
+		String indentSpaces = StringUtil.getSpaces(indent + 1);
+
+		buf.append("[");
+
+		for (int i = 0; i < rowCount; i++) {
+			if (i > 0) {
+				buf.append(indentSpaces);
+			}
+
+			float[] row = Arrays.copyOfRange(mat, i * colCount, (i + 1) * colCount);
+			MnFormat.toStringBuilder(row, buf, format);
+
+			if (i < rowCount - 1) {
+				buf.append("\n");
+			}
+		}
+
+		buf.append("]");
+
+		return buf;
+	}
+
 	public static DecimalFormatWithPadding getFormat(NumberStats numberStats) {
 		DecimalFormatWithPadding format;
 
@@ -2,10 +2,12 @@ package de.a0h.minideeplearn.operation.activation;
 
 import java.util.Random;
 
+import de.a0h.minideeplearn.operation.ExecutionContext;
 import de.a0h.minideeplearn.operation.Operation;
 import de.a0h.minideeplearn.operation.OperationUtil;
 import de.a0h.minideeplearn.operation.gradient.Gradient;
 import de.a0h.minideeplearn.operation.gradient.VectorGradient;
+import de.a0h.minideeplearn.operation.optimizer.UpdateRule;
 import de.a0h.mininum.format.DecimalFormatWithPadding;
 import de.a0h.mininum.format.MnFormat;
 import de.a0h.mininum.format.NumberStats;
@@ -18,6 +20,8 @@ public abstract class ActivationFunction implements Operation {
 
 	public float[] out;
 
+	public float[][] outBatch;
+
 	public ActivationFunction(int inpOutSize) {
 		out = new float[inpOutSize];
 	}
@@ -37,11 +41,40 @@ public abstract class ActivationFunction implements Operation {
 		return getInputSize();
 	}
 
+	@Override
+	public float[] calcOutput(ExecutionContext ctx, float[] inp) {
+		return ctx.getStorage(this).calcOutput(inp);
+	}
+
 	@Override
 	public float[] getOutput() {
 		return out;
 	}
 
+	@Override
+	public float[][] getOutputBatch() {
+		return outBatch;
+	}
+
+	/**
+	 * Makes sure that the batch storage of this activation function has at least
+	 * the specified number of rows.
+	 */
+	protected void ensureBatchCapacity(int rows) {
+		outBatch = OperationUtil.ensureBatchCapacity(outBatch, rows, out.length);
+	}
+
+	@Override
+	public ExecutionContext createContext() {
+		return new ExecutionContext(this);
+	}
+
+	@Override
+	public void calcGradient(float[] inp, float[] grad_out, Gradient grad, boolean accumulate) {
+		// no parameters, so there's nothing to accumulate
+		calcGradient(inp, grad_out, grad);
+	}
+
 	@Override
 	public VectorGradient createGradient() {
 		return new VectorGradient(getInputSize());
@@ -64,6 +97,18 @@ public abstract class ActivationFunction implements Operation {
 		return -1.0f;
 	}
 
+	@Override
+	public float[] calcLossBatch(float[][] inp, float[][] target, int rows) {
+		OperationUtil.throwLossNotProvidedException(getClass());
+		return null;
+	}
+
+	@Override
+	public float[] getLossBatch() {
+		OperationUtil.throwLossNotProvidedException(getClass());
+		return null;
+	}
+
 	/**
 	 * Returns immediately.
 	 */
@@ -78,6 +123,33 @@ public abstract class ActivationFunction implements Operation {
 	public void learn(Gradient grad, float learningRate) {
 	}
 
+	/**
+	 * Returns immediately.
+	 */
+	@Override
+	public void learn(Gradient grad, float gradScale, UpdateRule rule) {
+	}
+
+	@Override
+	public int getParamCount() {
+		return 0;
+	}
+
+	@Override
+	public float[] getParams() {
+		return OperationUtil.NO_PARAMS;
+	}
+
+	@Override
+	public int getParamsOffset() {
+		return 0;
+	}
+
+	@Override
+	public void bindParams(float[] params, int offset) {
+		// no learnable parameters
+	}
+
 	@Override
 	public String toString() {
 		return toStringWithLayout();
@@ -10,6 +10,11 @@ public class Identity extends ActivationFunction {
 		super(inpOutSize);
 	}
 
+	@Override
+	public Identity createParamSharingCopy() {
+		return new Identity(getInputSize());
+	}
+
 	@Override
 	public float[] calcOutput(float[] inp) {
 		calc(inp, out);
@@ -26,6 +31,27 @@ public class Identity extends ActivationFunction {
 		MnLinalg.assign(grad_out, grad_inp);
 	}
 
+	@Override
+	public float[][] calcOutputBatch(float[][] inp, int rows) {
+		ensureBatchCapacity(rows);
+
+		for (int r = 0; r < rows; r++) {
+			calc(inp[r], outBatch[r]);
+		}
+
+		return outBatch;
+	}
+
+	@Override
+	public void calcGradientBatch(float[][] inp, float[][] grad_out, int rows, Gradient grad) {
+		VectorGradient grad_ = (VectorGradient) grad;
+		grad_.ensureBatchCapacity(rows);
+
+		for (int r = 0; r < rows; r++) {
+			MnLinalg.assign(grad_out[r], grad_.inpBatch[r]);
+		}
+	}
+
 	public static float calc(float x) {
 		return x;
 	}
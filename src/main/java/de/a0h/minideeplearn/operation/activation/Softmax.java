@@ -10,6 +10,11 @@ public class Softmax extends ActivationFunction {
 		super(inpOutSize);
 	}
 
+	@Override
+	public Softmax createParamSharingCopy() {
+		return new Softmax(getInputSize());
+	}
+
 	@Override
 	public float[] calcOutput(float[] inp) {
 		calc(inp, out);
@@ -25,6 +30,22 @@ public class Softmax extends ActivationFunction {
 		}
 	}
 
+	@Override
+	public float[][] calcOutputBatch(float[][] inp, int rows) {
+		ensureBatchCapacity(rows);
+
+		for (int r = 0; r < rows; r++) {
+			calc(inp[r], outBatch[r]);
+		}
+
+		return outBatch;
+	}
+
+	@Override
+	public void calcGradientBatch(float[][] inp, float[][] grad_out, int rows, Gradient grad) {
+		calcGradient(null, null, grad);
+	}
+
 	public static float calc(float x) {
 		throw new UnsupportedOperationException("not applicable for 1 element");
 	}
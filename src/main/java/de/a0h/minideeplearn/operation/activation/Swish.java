@@ -1,5 +1,6 @@
 package de.a0h.minideeplearn.operation.activation;
 
+import de.a0h.minideeplearn.operation.OperationUtil;
 import de.a0h.minideeplearn.operation.gradient.Gradient;
 import de.a0h.minideeplearn.operation.gradient.VectorGradient;
 
@@ -11,11 +12,18 @@ public class Swish extends ActivationFunction {
 
 	protected float[] sig;
 
+	protected float[][] sigBatch;
+
 	public Swish(int inpOutSize) {
 		super(inpOutSize);
 		sig = new float[inpOutSize];
 	}
 
+	@Override
+	public Swish createParamSharingCopy() {
+		return new Swish(getInputSize());
+	}
+
 	@Override
 	public float[] calcOutput(float[] inp) {
 		calc(inp, sig, out);
@@ -27,10 +35,34 @@ public class Swish extends ActivationFunction {
 	public void calcGradient(float[] inp, float[] grad_out, Gradient grad) {
 		VectorGradient grad_ = (VectorGradient) grad;
 
-		float[] grad_inp = grad_.inp;
+		calcInputGradient(out, sig, grad_out, grad_.inp);
+	}
 
-		for (int i = 0; i < out.length; i++) {
-			grad_inp[i] = (out[i] + sig[i] * (1.0f - out[i])) * grad_out[i];
+	@Override
+	protected void ensureBatchCapacity(int rows) {
+		super.ensureBatchCapacity(rows);
+
+		sigBatch = OperationUtil.ensureBatchCapacity(sigBatch, rows, sig.length);
+	}
+
+	@Override
+	public float[][] calcOutputBatch(float[][] inp, int rows) {
+		ensureBatchCapacity(rows);
+
+		for (int r = 0; r < rows; r++) {
+			calc(inp[r], sigBatch[r], outBatch[r]);
+		}
+
+		return outBatch;
+	}
+
+	@Override
+	public void calcGradientBatch(float[][] inp, float[][] grad_out, int rows, Gradient grad) {
+		VectorGradient grad_ = (VectorGradient) grad;
+		grad_.ensureBatchCapacity(rows);
+
+		for (int r = 0; r < rows; r++) {
+			calcInputGradient(outBatch[r], sigBatch[r], grad_out[r], grad_.inpBatch[r]);
 		}
 	}
 
@@ -41,6 +73,12 @@ public class Swish extends ActivationFunction {
 		}
 	}
 
+	public static void calcInputGradient(float[] out, float[] sig, float[] grad_out, float[] grad_inp) {
+		for (int i = 0; i < out.length; i++) {
+			grad_inp[i] = (out[i] + sig[i] * (1.0f - out[i])) * grad_out[i];
+		}
+	}
+
 	@Override
 	public String getTypeShortname() {
 		return "swish";
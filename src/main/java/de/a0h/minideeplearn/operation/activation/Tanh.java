@@ -9,6 +9,11 @@ public class Tanh extends ActivationFunction {
 		super(inpOutSize);
 	}
 
+	@Override
+	public Tanh createParamSharingCopy() {
+		return new Tanh(getInputSize());
+	}
+
 	@Override
 	public float[] calcOutput(float[] inp) {
 		calc(inp, out);
@@ -20,10 +25,27 @@ public class Tanh extends ActivationFunction {
 	public void calcGradient(float[] inp, float[] grad_out, Gradient grad) {
 		VectorGradient grad_ = (VectorGradient) grad;
 
-		float[] grad_inp = grad_.inp;
+		calcInputGradient(out, grad_out, grad_.inp);
+	}
 
-		for (int i = 0; i < out.length; i++) {
-			grad_inp[i] = (1.0f - out[i] * out[i]) * grad_out[i];
+	@Override
+	public float[][] calcOutputBatch(float[][] inp, int rows) {
+		ensureBatchCapacity(rows);
+
+		for (int r = 0; r < rows; r++) {
+			calc(inp[r], outBatch[r]);
+		}
+
+		return outBatch;
+	}
+
+	@Override
+	public void calcGradientBatch(float[][] inp, float[][] grad_out, int rows, Gradient grad) {
+		VectorGradient grad_ = (VectorGradient) grad;
+		grad_.ensureBatchCapacity(rows);
+
+		for (int r = 0; r < rows; r++) {
+			calcInputGradient(outBatch[r], grad_out[r], grad_.inpBatch[r]);
 		}
 	}
 
@@ -37,6 +59,12 @@ public class Tanh extends ActivationFunction {
 		}
 	}
 
+	public static void calcInputGradient(float[] out, float[] grad_out, float[] grad_inp) {
+		for (int i = 0; i < out.length; i++) {
+			grad_inp[i] = (1.0f - out[i] * out[i]) * grad_out[i];
+		}
+	}
+
 	@Override
 	public String getTypeShortname() {
 		return "tanh";
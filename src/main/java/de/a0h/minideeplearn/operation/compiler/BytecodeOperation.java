@@ -0,0 +1,640 @@
+package de.a0h.minideeplearn.operation.compiler;
+
+import java.text.DecimalFormat;
+import java.text.DecimalFormatSymbols;
+import java.util.ArrayList;
+import java.util.Locale;
+import java.util.Random;
+
+import de.a0h.minideeplearn.operation.ExecutionContext;
+import de.a0h.minideeplearn.operation.Operation;
+import de.a0h.minideeplearn.operation.OperationUtil;
+import de.a0h.minideeplearn.operation.activation.ActivationFunction;
+import de.a0h.minideeplearn.operation.activation.Swish;
+import de.a0h.minideeplearn.operation.composite.Chain;
+import de.a0h.minideeplearn.operation.gradient.Gradient;
+import de.a0h.minideeplearn.operation.layer.Dense;
+import de.a0h.minideeplearn.operation.loss.CombinedLossFunction;
+import de.a0h.minideeplearn.operation.loss.LossFunction;
+import de.a0h.minideeplearn.operation.optimizer.UpdateRule;
+
+/**
+ * An operation compiled by the {@link OperationToBytecodeCompiler}. The forward
+ * and the backward pass are delegated to the emitted {@link CompiledKernels},
+ * everything else is the same for all compiled operations and therefore
+ * implemented here once. The storage vectors and the parameter layout are the
+ * same as the ones of the java source generated by the
+ * {@link OperationToJavaCompiler}.
+ */
+public class BytecodeOperation implements Operation {
+
+	protected final Operation src;
+	protected final Chain flattenedSrc;
+
+	protected final CompiledKernels kernels;
+
+	protected final int[] storageVecSizes;
+
+	public final int paramCount;
+
+	// all learnable parameters in one vector starting at paramsOffset, same
+	// layout as in the interpreted operation
+	public float[] params;
+	public int paramsOffset;
+
+	// storage[0] references the current input
+	public final float[][] storage;
+
+	public float loss;
+
+	// batch storage
+	public float[][] outBatch = new float[0][];
+	public float[] lossBatch = new float[0];
+
+	public BytecodeOperation(Operation src, Chain flattenedSrc, CompiledKernels kernels) {
+		this.src = src;
+		this.flattenedSrc = flattenedSrc;
+		this.kernels = kernels;
+
+		storageVecSizes = calcStorageVecSizes(src, flattenedSrc);
+		paramCount = flattenedSrc.getParamCount();
+		params = new float[paramCount];
+		storage = createStorage(storageVecSizes);
+	}
+
+	// shares the learnable parameters with paramSrc, but has its own storage
+	protected BytecodeOperation(BytecodeOperation paramSrc) {
+		src = paramSrc.src;
+		flattenedSrc = paramSrc.flattenedSrc;
+		kernels = paramSrc.kernels;
+
+		storageVecSizes = paramSrc.storageVecSizes;
+		paramCount = paramSrc.paramCount;
+		params = paramSrc.params;
+		paramsOffset = paramSrc.paramsOffset;
+		storage = createStorage(storageVecSizes);
+	}
+
+	protected static int[] calcStorageVecSizes(Operation src, Chain flattenedSrc) {
+		ArrayList<Integer> sizes = new ArrayList<>();
+		sizes.add(src.getInputSize());
+
+		for (Operation op : flattenedSrc) {
+			if (op instanceof Dense) {
+				sizes.add(op.getOutputSize());
+
+			} else if (op instanceof Swish) {
+				sizes.add(op.getInputSize());
+				sizes.add(op.getInputSize());
+
+			} else if (op instanceof CombinedLossFunction || op instanceof ActivationFunction) {
+				sizes.add(op.getInputSize());
+
+			} else if (op instanceof LossFunction) {
+				// no additional variables needed
+
+			} else {
+				throw new UnsupportedOperationException("" + //
+						"unknown operation type: " + op.getTypeShortname() + //
+						" (" + op.getClass().getName() + ")");
+			}
+		}
+
+		int[] result = new int[sizes.size()];
+		for (int i = 0; i < result.length; i++) {
+			result[i] = sizes.get(i);
+		}
+
+		return result;
+	}
+
+	protected static float[][] createStorage(int[] storageVecSizes) {
+		float[][] result = new float[storageVecSizes.length][];
+
+		for (int i = 1; i < result.length; i++) {
+			result[i] = new float[storageVecSizes[i]];
+		}
+
+		return result;
+	}
+
+	public CompiledKernels getKernels() {
+		return kernels;
+	}
+
+	@Override
+	public BytecodeOperation createParamSharingCopy() {
+		return new BytecodeOperation(this);
+	}
+
+	@Override
+	public ExecutionContext createContext() {
+		return new ExecutionContext(this);
+	}
+
+	@Override
+	public int getParamCount() {
+		return paramCount;
+	}
+
+	@Override
+	public float[] getParams() {
+		return params;
+	}
+
+	@Override
+	public int getParamsOffset() {
+		return paramsOffset;
+	}
+
+	@Override
+	public void bindParams(float[] params, int offset) {
+		System.arraycopy(this.params, paramsOffset, params, offset, paramCount);
+
+		this.params = params;
+		paramsOffset = offset;
+	}
+
+	@Override
+	public void initParams(Random rnd) {
+		int offset = paramsOffset;
+
+		for (Operation op : flattenedSrc) {
+			if (op instanceof Dense) {
+				int inpSize = op.getInputSize();
+				int outSize = op.getOutputSize();
+
+				float xavierFactor = 2.0f / (inpSize + outSize);
+				MethodTemplates.assignGaussianMat(params, offset, xavierFactor, rnd, outSize, inpSize);
+				offset += outSize * inpSize;
+				MethodTemplates.assignVecScaAt(params, offset, 0.0f, outSize);
+				offset += outSize;
+			}
+		}
+	}
+
+	@Override
+	public int getInputSize() {
+		return src.getInputSize();
+	}
+
+	@Override
+	public boolean hasOutput() {
+		return src.hasOutput();
+	}
+
+	@Override
+	public int getOutputSize() {
+		return src.getOutputSize();
+	}
+
+	@Override
+	public float[] calcOutput(float[] inp) {
+		storage[0] = inp;
+		kernels.calcOutput(params, paramsOffset, storage);
+
+		return getOutput();
+	}
+
+	@Override
+	public float[] calcOutput(ExecutionContext ctx, float[] inp) {
+		return ctx.getStorage(this).calcOutput(inp);
+	}
+
+	@Override
+	public float[] getOutput() {
+		if (!hasOutput()) {
+			MethodTemplates.throwOutputNotProvidedException(src.getClass().getName());
+		}
+
+		return storage[storage.length - 1];
+	}
+
+	@Override
+	public float[][] calcOutputBatch(float[][] inp, int rows) {
+		int outSize = getOutputSize();
+
+		if (outBatch.length < rows) {
+			outBatch = new float[rows][outSize];
+		}
+
+		for (int r = 0; r < rows; r++) {
+			System.arraycopy(calcOutput(inp[r]), 0, outBatch[r], 0, outSize);
+		}
+
+		return outBatch;
+	}
+
+	@Override
+	public float[][] getOutputBatch() {
+		return outBatch;
+	}
+
+	@Override
+	public boolean hasLoss() {
+		return src.hasLoss();
+	}
+
+	@Override
+	public float calcLoss(float[] inp, float[] target) {
+		loss = calcCrossEntropyLoss(storage[storage.length - 1], target);
+
+		return loss;
+	}
+
+	/**
+	 * Same calculation as the crossEntropyLoss_*_mustInline templates, which are
+	 * used by the generated java source.
+	 */
+	protected float calcCrossEntropyLoss(float[] predicted, float[] target) {
+		if (!hasLoss()) {
+			MethodTemplates.throwLossNotProvidedException(src.getClass().getName());
+		}
+
+		float result;
+		int length = predicted.length;
+
+		if (length == 1) {
+			// cross entropy loss for twofold classification (aka binary classification)
+			if (target[0] == 1.0f) {
+				result = -(float) Math.log(predicted[0] + Float.MIN_NORMAL);
+			} else if (target[0] == 0.0f) {
+				result = -(float) Math.log(1.0f - predicted[0] + Float.MIN_NORMAL);
+			} else {
+				result = -target[0] * (float) Math.log(predicted[0] + Float.MIN_NORMAL) //
+						- (1.0f - target[0]) * (float) Math.log(1.0f - predicted[0] + Float.MIN_NORMAL);
+			}
+		} else {
+			// cross entropy loss for manifold classification (aka multinomial
+			// classification)
+			result = 0.0f;
+
+			for (int i = 0; i < length; i++) {
+				if (target[i] == 0.0f) {
+					continue;
+				}
+
+				result -= target[i] * (float) Math.log(predicted[i] + Float.MIN_NORMAL);
+			}
+
+			result /= length;
+		}
+
+		return result;
+	}
+
+	@Override
+	public float getLoss() {
+		return loss;
+	}
+
+	@Override
+	public float[] calcLossBatch(float[][] inp, float[][] target, int rows) {
+		if (lossBatch.length < rows) {
+			lossBatch = new float[rows];
+		}
+
+		for (int r = 0; r < rows; r++) {
+			loss = calcCrossEntropyLoss(outBatch[r], target[r]);
+			lossBatch[r] = loss;
+		}
+
+		return lossBatch;
+	}
+
+	@Override
+	public float[] getLossBatch() {
+		return lossBatch;
+	}
+
+	@Override
+	public BytecodeGradient createGradient() {
+		return new BytecodeGradient(this);
+	}
+
+	protected BytecodeGradient castGradient(Gradient grad_) {
+		BytecodeGradient grad;
+		try {
+			grad = (BytecodeGradient) grad_;
+		} catch (ClassCastException e) {
+			throw new IllegalArgumentException("" + //
+					"grad_ must be of type " + //
+					BytecodeGradient.class.getName() + ", " + //
+					"but it is a " + //
+					grad_.getClass().getName(), e);
+		}
+
+		if (grad.owner.kernels != kernels) {
+			throw new IllegalArgumentException("" + //
+					"grad_ belongs to another compiled operation: " + //
+					grad.owner.toStringWithLayout());
+		}
+
+		return grad;
+	}
+
+	@Override
+	public void calcGradient( //
+			float[] inp, //
+			float[] target_or_upstream_grad_of_out, //
+			Gradient grad_ //
+	) {
+		calcGradient(inp, target_or_upstream_grad_of_out, grad_, false);
+	}
+
+	@Override
+	public void calcGradient( //
+			float[] inp, //
+			float[] target_or_upstream_grad_of_out, //
+			Gradient grad_, //
+			boolean accumulate //
+	) {
+		BytecodeGradient grad = castGradient(grad_);
+
+		storage[0] = inp;
+		if (accumulate) {
+			kernels.accumulateGradient(params, paramsOffset, storage, target_or_upstream_grad_of_out, //
+					grad.params, grad.paramsOffset, grad.storage);
+		} else {
+			kernels.calcGradient(params, paramsOffset, storage, target_or_upstream_grad_of_out, //
+					grad.params, grad.paramsOffset, grad.storage);
+		}
+	}
+
+	@Override
+	public void calcGradientBatch( //
+			float[][] inp, //
+			float[][] target_or_upstream_grad_of_out, //
+			int rows, //
+			Gradient grad_ //
+	) {
+		BytecodeGradient grad = castGradient(grad_);
+
+		if (grad.inpBatch.length < rows) {
+			grad.inpBatch = new float[rows][getInputSize()];
+		}
+
+		grad.clear();
+
+		for (int r = 0; r < rows; r++) {
+			calcOutput(inp[r]);
+			calcGradient(inp[r], target_or_upstream_grad_of_out[r], grad, true);
+			System.arraycopy(grad.storage[0], 0, grad.inpBatch[r], 0, getInputSize());
+		}
+	}
+
+	@Override
+	public void learn(Gradient grad_, float negLearningRate) {
+		BytecodeGradient grad = castGradient(grad_);
+
+		// all parameters at once
+		OperationUtil.mulAdd(grad.params, grad.paramsOffset, negLearningRate, params, paramsOffset, paramCount);
+	}
+
+	@Override
+	public void learn(Gradient grad_, float gradScale, UpdateRule rule) {
+		BytecodeGradient grad = castGradient(grad_);
+
+		// all parameters at once
+		rule.update(grad.params, grad.paramsOffset, gradScale, params, paramsOffset, paramCount);
+	}
+
+	@Override
+	public String getTypeShortname() {
+		return "compiled:" + src.getTypeShortname();
+	}
+
+	@Override
+	public String toString() {
+		return toStringWithLayoutAndValues();
+	}
+
+	@Override
+	public String toStringWithLayout() {
+		return "compiled:" + flattenedSrc.toStringWithLayout();
+	}
+
+	@Override
+	public String toStringWithLayoutAndValues() {
+		return toStringBuilderWithLayoutAndValues(new StringBuilder(), 0).toString();
+	}
+
+	@Override
+	public StringBuilder toStringBuilderWithLayout(StringBuilder buf) {
+		return buf.append(toStringWithLayout());
+	}
+
+	protected static DecimalFormat createDecimalFormat() {
+		DecimalFormatSymbols formatSymbols = DecimalFormatSymbols.getInstance(Locale.US);
+		formatSymbols.setNaN("nan");
+		formatSymbols.setInfinity("inf");
+
+		DecimalFormat result = new DecimalFormat("0.########################");
+		result.setDecimalFormatSymbols(formatSymbols);
+		result.setDecimalSeparatorAlwaysShown(true);
+		result.setGroupingUsed(false);
+
+		return result;
+	}
+
+	@Override
+	public StringBuilder toStringBuilderWithLayoutAndValues(StringBuilder buf, int indent) {
+		DecimalFormat format = createDecimalFormat();
+
+		String indentSpaces = MethodTemplates.SPACES.substring(0, indent);
+		buf.append(indentSpaces);
+		toStringBuilderWithLayout(buf).append("\n");
+
+		indent += 4;
+		indentSpaces = MethodTemplates.SPACES.substring(0, indent);
+
+		int storageIdx = 0;
+		int offset = paramsOffset;
+
+		for (Operation op : flattenedSrc) {
+			buf.append(indentSpaces).append(op.toStringWithLayout());
+
+			if (op instanceof Dense) {
+				int inpSize = op.getInputSize();
+				int outSize = op.getOutputSize();
+
+				buf.append("\n");
+				buf.append(indentSpaces).append("    weights: ");
+				MethodTemplates.toStringBuilderMat(params, offset, outSize, inpSize, buf, indent + 13, format)
+						.append("\n");
+				offset += outSize * inpSize;
+				buf.append(indentSpaces).append("    bias   : ");
+				MethodTemplates.toStringBuilderVecAt(params, offset, outSize, buf, format).append("\n");
+				offset += outSize;
+				buf.append(indentSpaces).append("    out    : ");
+				MethodTemplates.toStringBuilderVec(storage[++storageIdx], buf, format).append("\n");
+
+			} else if (op instanceof Swish) {
+				storageIdx += 2;
+				buf.append(": out: ");
+				MethodTemplates.toStringBuilderVec(storage[storageIdx], buf, format).append("\n");
+
+			} else if (op instanceof CombinedLossFunction || op instanceof ActivationFunction) {
+				buf.append(": out: ");
+				MethodTemplates.toStringBuilderVec(storage[++storageIdx], buf, format).append("\n");
+
+			} else {
+				buf.append("\n");
+			}
+		}
+
+		if (hasLoss()) {
+			buf.append(indentSpaces);
+			buf.append("    loss: ");
+			MethodTemplates.toStringBuilderSca(loss, buf, format);
+		}
+
+		return buf;
+	}
+
+	public static class BytecodeGradient implements Gradient {
+
+		protected final BytecodeOperation owner;
+
+		// gradient of all learnable parameters in one vector starting at
+		// paramsOffset
+		public float[] params;
+		public int paramsOffset;
+
+		// storage[0] is the gradient of the input
+		public final float[][] storage;
+
+		public float[][] inpBatch = new float[0][];
+
+		public BytecodeGradient(BytecodeOperation owner) {
+			this.owner = owner;
+
+			params = new float[owner.paramCount];
+			storage = new float[owner.storageVecSizes.length][];
+			for (int i = 0; i < storage.length; i++) {
+				storage[i] = new float[owner.storageVecSizes[i]];
+			}
+		}
+
+		@Override
+		public float[] getInputGrad() {
+			return storage[0];
+		}
+
+		@Override
+		public float[][] getInputGradBatch() {
+			return inpBatch;
+		}
+
+		@Override
+		public int getParamCount() {
+			return owner.paramCount;
+		}
+
+		@Override
+		public float[] getParams() {
+			return params;
+		}
+
+		@Override
+		public int getParamsOffset() {
+			return paramsOffset;
+		}
+
+		@Override
+		public void bindParams(float[] params, int offset) {
+			System.arraycopy(this.params, paramsOffset, params, offset, owner.paramCount);
+
+			this.params = params;
+			paramsOffset = offset;
+		}
+
+		@Override
+		public void clear() {
+			// all parameters at once
+			OperationUtil.assign(params, paramsOffset, owner.paramCount, 0.0f);
+
+			for (float[] vec : storage) {
+				MethodTemplates.assignVecSca(vec, 0.0f, vec.length);
+			}
+		}
+
+		@Override
+		public void add(Gradient other) {
+			BytecodeGradient og;
+			try {
+				og = (BytecodeGradient) other;
+			} catch (ClassCastException e) {
+				throw new IllegalArgumentException("" + //
+						"other must be of type " + //
+						BytecodeGradient.class.getName() + ", " + //
+						"but it is a " + //
+						other.getClass().getName(), e);
+			}
+
+			// all parameters at once
+			OperationUtil.add(og.params, og.paramsOffset, params, paramsOffset, owner.paramCount);
+
+			for (int i = 0; i < storage.length; i++) {
+				MethodTemplates.addVec(storage[i], og.storage[i], storage[i].length);
+			}
+		}
+
+		@Override
+		public void mul(float factor) {
+			// all parameters at once
+			OperationUtil.mul(params, paramsOffset, owner.paramCount, factor);
+
+			for (float[] vec : storage) {
+				MethodTemplates.mulVecSca(vec, factor, vec.length);
+			}
+		}
+
+		@Override
+		public String getTypeShortname() {
+			return "compiled_grad:" + owner.src.getTypeShortname();
+		}
+
+		@Override
+		public String toString() {
+			return toStringWithLayoutAndValues();
+		}
+
+		@Override
+		public String toStringWithLayout() {
+			return "compiled:" + owner.src.createGradient().toStringWithLayout();
+		}
+
+		@Override
+		public String toStringWithLayoutAndValues() {
+			return toStringBuilderWithLayoutAndValues(new StringBuilder(), 0).toString();
+		}
+
+		@Override
+		public StringBuilder toStringBuilderWithLayout(StringBuilder buf) {
+			return buf.append(toStringWithLayout());
+		}
+
+		@Override
+		public StringBuilder toStringBuilderWithLayoutAndValues(StringBuilder buf, int indent) {
+			DecimalFormat format = createDecimalFormat();
+
+			String indentSpaces = MethodTemplates.SPACES.substring(0, indent);
+			buf.append(indentSpaces);
+			toStringBuilderWithLayout(buf).append("\n");
+
+			indent += 4;
+			indentSpaces = MethodTemplates.SPACES.substring(0, indent);
+
+			buf.append(indentSpaces).append("params : ");
+			MethodTemplates.toStringBuilderVecAt(params, paramsOffset, owner.paramCount, buf, format).append("\n");
+
+			for (int i = 0; i < storage.length; i++) {
+				buf.append(indentSpaces).append(String.format("a%-6d: ", i));
+				MethodTemplates.toStringBuilderVec(storage[i], buf, format).append("\n");
+			}
+
+			return buf;
+		}
+	}
+}
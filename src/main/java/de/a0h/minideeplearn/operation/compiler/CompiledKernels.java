@@ -0,0 +1,49 @@
+package de.a0h.minideeplearn.operation.compiler;
+
+/**
+ * The kernel calls of the forward and the backward pass of an operation, as
+ * emitted by the {@link OperationToBytecodeCompiler}. Implementations are
+ * stateless; all parameters and intermediate results are passed in, see
+ * {@link BytecodeOperation}.
+ */
+public interface CompiledKernels {
+
+	/**
+	 * Calculates the output of the operation. The storage vectors are the same as
+	 * the ones of the java source generated by the {@link OperationToJavaCompiler},
+	 * i.e. storage[0] is the input and storage[i] is the field a&lt;i&gt;. The
+	 * parameters of the operation start at paramsOffset in params.
+	 */
+	public void calcOutput(float[] params, int paramsOffset, float[][] storage);
+
+	/**
+	 * Calculates the gradient of the operation, after
+	 * {@link #calcOutput(float[], int, float[][])} has been called with the same
+	 * storage. The gradient storage vectors are the ones of the generated gradient
+	 * class.
+	 */
+	public void calcGradient( //
+			float[] params, //
+			int paramsOffset, //
+			float[][] storage, //
+			float[] target_or_upstream_grad_of_out, //
+			float[] gradParams, //
+			int gradParamsOffset, //
+			float[][] gradStorage //
+	);
+
+	/**
+	 * Same as
+	 * {@link #calcGradient(float[], int, float[][], float[], float[], int, float[][])},
+	 * but adds the parameter gradients to gradParams instead of overwriting them.
+	 */
+	public void accumulateGradient( //
+			float[] params, //
+			int paramsOffset, //
+			float[][] storage, //
+			float[] target_or_upstream_grad_of_out, //
+			float[] gradParams, //
+			int gradParamsOffset, //
+			float[][] gradStorage //
+	);
+}
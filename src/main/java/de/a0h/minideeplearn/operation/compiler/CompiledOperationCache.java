@@ -0,0 +1,280 @@
+package de.a0h.minideeplearn.operation.compiler;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import de.a0h.minideeplearn.operation.MdlOperationConfig;
+import de.a0h.minideeplearn.operation.Operation;
+import de.a0h.minideeplearn.operation.composite.Chain;
+
+/**
+ * Caches the classes compiled by the {@link OperationToJavaCompiler} and the
+ * {@link JavaToClassCompiler}, so that operations of the same layout are
+ * compiled only once, e.g.
+ *
+ * <pre>
+ * CompiledOperationCache cache = new CompiledOperationCache(16, new File("compiled"));
+ * Operation compiled = cache.compile(model, false);
+ * </pre>
+ *
+ * The key is a fingerprint of the layout of the flattened operation and the
+ * compile options, see
+ * {@link #getFingerprint(Operation, boolean, boolean, MdlOperationConfig.KernelBackend)}.
+ * The cache has two tiers:
+ * <ul>
+ * <li>memory: the most recently used classes. Evicted classes are unloaded by
+ * the garbage collector as soon as no instance of them is left, because every
+ * class has a class loader of its own.</li>
+ * <li>disk (optional): the class files of all classes compiled so far, in a
+ * subdirectory per fingerprint. They survive restarts of the JVM and can be
+ * shared by several processes.</li>
+ * </ul>
+ */
+public class CompiledOperationCache {
+
+	public static final int DEFAULT_CAPACITY = 64;
+
+	protected static final String FINGERPRINT_FILE_NAME = "fingerprint.txt";
+
+	protected final OperationToJavaCompiler toJavaCompiler = new OperationToJavaCompiler();
+	protected final JavaToClassCompiler toClassCompiler = new JavaToClassCompiler();
+
+	protected final LinkedHashMap<String, Class<? extends Operation>> memoryCache;
+
+	protected final File diskCacheDir;
+
+	protected long memoryHitCount;
+	protected long diskHitCount;
+	protected long compileCount;
+
+	public CompiledOperationCache() {
+		this(DEFAULT_CAPACITY, null);
+	}
+
+	/**
+	 * @param capacity     max number of classes in the memory tier
+	 * @param diskCacheDir directory of the disk tier, or null for memory only
+	 */
+	public CompiledOperationCache(final int capacity, File diskCacheDir) {
+		if (capacity < 1) {
+			throw new IllegalArgumentException("capacity must be positive, but it is " + capacity);
+		}
+
+		this.diskCacheDir = diskCacheDir;
+
+		memoryCache = new LinkedHashMap<String, Class<? extends Operation>>(16, 0.75f, true) {
+
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Class<? extends Operation>> eldest) {
+				return size() > capacity;
+			}
+		};
+	}
+
+	/**
+	 * See {@link OperationToJavaCompiler#setBatchedCode(boolean)}.
+	 */
+	public synchronized void setBatchedCode(boolean batchedCode) {
+		toJavaCompiler.setBatchedCode(batchedCode);
+	}
+
+	public synchronized boolean isBatchedCode() {
+		return toJavaCompiler.isBatchedCode();
+	}
+
+	/**
+	 * Returns a new instance of the compiled class for src. Its parameters are
+	 * initialized like the ones of a newly compiled class.
+	 */
+	public Operation compile(Operation src, boolean inlineVecOps) {
+		return toClassCompiler.newInstance(getCompiledClass(src, inlineVecOps));
+	}
+
+	/**
+	 * Returns the compiled class for src, taking it from the cache if possible.
+	 */
+	public synchronized Class<? extends Operation> getCompiledClass(Operation src, boolean inlineVecOps) {
+		String fingerprint = getFingerprint( //
+				src, inlineVecOps, toJavaCompiler.isBatchedCode(), MdlOperationConfig.kernelBackend);
+
+		Class<? extends Operation> result = memoryCache.get(fingerprint);
+
+		if (result != null) {
+			memoryHitCount++;
+			return result;
+		}
+
+		String className = getClassName(src, fingerprint);
+
+		if (diskCacheDir == null) {
+			String source = toJavaCompiler.compile(src, className, inlineVecOps).toString();
+			result = toClassCompiler.compileOperation(className, source);
+			compileCount++;
+
+		} else {
+			File entryDir = new File(diskCacheDir, className.substring(className.lastIndexOf('.') + 1));
+
+			if (isValidDiskEntry(entryDir, fingerprint)) {
+				result = toClassCompiler.loadOperation(className, entryDir);
+				diskHitCount++;
+			} else {
+				result = compileToDisk(src, inlineVecOps, fingerprint, className, entryDir);
+				compileCount++;
+			}
+		}
+
+		memoryCache.put(fingerprint, result);
+
+		return result;
+	}
+
+	protected boolean isValidDiskEntry(File entryDir, String fingerprint) {
+		File fingerprintFile = new File(entryDir, FINGERPRINT_FILE_NAME);
+
+		if (!fingerprintFile.isFile()) {
+			return false;
+		}
+
+		try {
+			String storedFingerprint = new String(Files.readAllBytes(fingerprintFile.toPath()), StandardCharsets.UTF_8);
+
+			return storedFingerprint.equals(fingerprint);
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Compiles to a temporary directory first, which is then renamed to the entry
+	 * directory. This way, other processes never see incomplete entries. The
+	 * class is loaded from the entry directory only, so there is exactly one class
+	 * loader per entry.
+	 */
+	protected Class<? extends Operation> compileToDisk(Operation src, boolean inlineVecOps, String fingerprint,
+			String className, File entryDir) {
+		String source = toJavaCompiler.compile(src, className, inlineVecOps).toString();
+
+		try {
+			Files.createDirectories(diskCacheDir.toPath());
+			File tmpDir = Files.createTempDirectory(diskCacheDir.toPath(), entryDir.getName() + ".tmp").toFile();
+
+			toClassCompiler.compileOperationToDirectory(className, source, tmpDir);
+			Files.write(new File(tmpDir, FINGERPRINT_FILE_NAME).toPath(), fingerprint.getBytes(StandardCharsets.UTF_8));
+
+			if (isValidDiskEntry(entryDir, fingerprint)) {
+				// another process has been faster
+				deleteRecursively(tmpDir);
+			} else {
+				if (entryDir.exists()) {
+					// stale entry, e.g. a hash collision
+					deleteRecursively(entryDir);
+				}
+
+				try {
+					Files.move(tmpDir.toPath(), entryDir.toPath(), StandardCopyOption.ATOMIC_MOVE);
+				} catch (AtomicMoveNotSupportedException e) {
+					Files.move(tmpDir.toPath(), entryDir.toPath());
+				} catch (FileAlreadyExistsException e) {
+					// another process has been faster
+					deleteRecursively(tmpDir);
+				}
+			}
+		} catch (IOException e) {
+			throw new RuntimeException("couldn't write compiled class to " + entryDir, e);
+		}
+
+		return toClassCompiler.loadOperation(className, entryDir);
+	}
+
+	protected static void deleteRecursively(File file) throws IOException {
+		File[] children = file.listFiles();
+
+		if (children != null) {
+			for (File child : children) {
+				deleteRecursively(child);
+			}
+		}
+
+		Files.deleteIfExists(file.toPath());
+	}
+
+	/**
+	 * Returns the canonical description of everything which influences the
+	 * generated code: the layout of the flattened operation, e.g.
+	 * "chain(dense[4x2]*[2]+[4]->[4], tanh[4], ...)", and the compile options.
+	 */
+	public static String getFingerprint(Operation src, boolean inlineVecOps, boolean batchedCode,
+			MdlOperationConfig.KernelBackend kernelBackend) {
+		Chain flattenedSrc;
+		if (src instanceof Chain) {
+			flattenedSrc = ((Chain) src).flattened();
+		} else {
+			flattenedSrc = new Chain();
+			flattenedSrc.add(src);
+		}
+
+		return "" + //
+				flattenedSrc.toStringWithLayout() + //
+				" inlineVecOps=" + inlineVecOps + //
+				" batchedCode=" + batchedCode + //
+				" kernelBackend=" + kernelBackend;
+	}
+
+	/**
+	 * Returns a class name which is derived from the fingerprint, so that it is
+	 * the same in every JVM.
+	 */
+	protected static String getClassName(Operation src, String fingerprint) {
+		byte[] hash;
+		try {
+			hash = MessageDigest.getInstance("SHA-256").digest(fingerprint.getBytes(StandardCharsets.UTF_8));
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+
+		StringBuilder result = new StringBuilder();
+		result.append(CompiledOperationCache.class.getPackage().getName()).append(".output.");
+		result.append("CompiledOperation");
+		result.append(OperationToJavaCompiler.upChar(src.getTypeShortname().replaceAll("[^A-Za-z0-9]", ""), 0));
+
+		for (int i = 0; i < 8; i++) {
+			result.append(String.format("%02x", hash[i] & 0xff));
+		}
+
+		return result.toString();
+	}
+
+	public synchronized int size() {
+		return memoryCache.size();
+	}
+
+	/**
+	 * Removes all classes from the memory tier. The disk tier is kept.
+	 */
+	public synchronized void clear() {
+		memoryCache.clear();
+	}
+
+	public synchronized long getMemoryHitCount() {
+		return memoryHitCount;
+	}
+
+	public synchronized long getDiskHitCount() {
+		return diskHitCount;
+	}
+
+	public synchronized long getCompileCount() {
+		return compileCount;
+	}
+}
@@ -1,5 +1,23 @@
 package de.a0h.minideeplearn.operation.compiler;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.net.MalformedURLException;
+import java.net.URI;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.StandardLocation;
+import javax.tools.ToolProvider;
+
 import de.a0h.minideeplearn.operation.Operation;
 import de.a0h.ontheflyjavacompiler.OnTheFlyJavaCompiler;
 
@@ -34,4 +52,71 @@ public class JavaToClassCompiler extends OnTheFlyJavaCompiler {
 
 		return opClazz;
 	}
+
+	/**
+	 * Compiles the source to class files in the specified directory, instead of
+	 * keeping them in memory only. The class isn't loaded, so the directory can
+	 * still be moved afterwards. Use {@link #loadOperation(String, File)} to load
+	 * it from its final location.
+	 */
+	public void compileOperationToDirectory(String className, final String source, File dir) {
+		JavaCompiler javac = ToolProvider.getSystemJavaCompiler();
+		if (javac == null) {
+			throw new IllegalStateException("no java compiler available, this needs a JDK instead of a JRE");
+		}
+
+		JavaFileObject sourceFile = new SimpleJavaFileObject( //
+				URI.create("string:///" + className.replace('.', '/') + ".java"), JavaFileObject.Kind.SOURCE) {
+
+			@Override
+			public CharSequence getCharContent(boolean ignoreEncodingErrors) {
+				return source;
+			}
+		};
+
+		StringWriter err = new StringWriter();
+		List<String> options = Arrays.asList("-classpath", System.getProperty("java.class.path"));
+
+		try (StandardJavaFileManager fileManager = javac.getStandardFileManager(null, null, null)) {
+			fileManager.setLocation(StandardLocation.CLASS_OUTPUT, Collections.singletonList(dir));
+
+			boolean success = javac.getTask( //
+					err, fileManager, null, options, null, Collections.singletonList(sourceFile)).call();
+
+			if (!success) {
+				throw new RuntimeException("compilation of " + className + " failed:\n" + err);
+			}
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Loads a class which has been compiled to the specified directory before.
+	 * Every call uses a class loader of its own, so the class can be unloaded as
+	 * soon as it isn't referenced anymore.
+	 */
+	public Class<? extends Operation> loadOperation(String className, File dir) {
+		URL dirUrl;
+		try {
+			dirUrl = dir.toURI().toURL();
+		} catch (MalformedURLException e) {
+			throw new IllegalArgumentException("invalid directory: " + dir, e);
+		}
+
+		@SuppressWarnings("resource")
+		URLClassLoader classLoader = new URLClassLoader(new URL[] { dirUrl }, getClass().getClassLoader());
+
+		Class<?> clazz;
+		try {
+			clazz = classLoader.loadClass(className);
+		} catch (ClassNotFoundException e) {
+			throw new IllegalArgumentException("class " + className + " not found in " + dir, e);
+		}
+
+		@SuppressWarnings("unchecked")
+		Class<? extends Operation> opClazz = (Class<? extends Operation>) clazz;
+
+		return opClazz;
+	}
 }
@@ -0,0 +1,458 @@
+package de.a0h.minideeplearn.operation.compiler;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Writes the class file of a {@link CompiledKernels} implementation. The kernel
+ * methods consist of nothing but calls of the public static templates in
+ * {@link MethodTemplates}, so the bytecode is straight-line code without any
+ * branches and needs neither a stack map nor a general purpose assembler.
+ *
+ * <p>
+ * The parameter expressions of a template call are the ones which the
+ * {@link OperationToJavaCompiler} generates for the java source, e.g. "params",
+ * "paramsOffset + W0", "a01", "grad.a01" or "64". They are translated to the
+ * corresponding local variables, array elements and constants of the kernel
+ * methods.
+ * </p>
+ */
+class KernelClassWriter {
+
+	public static final String CALC_OUTPUT_DESCRIPTOR = "([FI[[F)V";
+
+	public static final String CALC_GRADIENT_DESCRIPTOR = "([FI[[F[F[FI[[F)V";
+
+	// local variable slots of the parameters of the kernel methods
+	protected static final int LOCAL_PARAMS = 1;
+	protected static final int LOCAL_PARAMS_OFFSET = 2;
+	protected static final int LOCAL_STORAGE = 3;
+	protected static final int LOCAL_TARGET = 4;
+	protected static final int LOCAL_GRAD_PARAMS = 5;
+	protected static final int LOCAL_GRAD_PARAMS_OFFSET = 6;
+	protected static final int LOCAL_GRAD_STORAGE = 7;
+
+	protected static final Pattern STORAGE_EXPRESSION = Pattern.compile("(grad\\.)?a(\\d+)");
+
+	protected static final Pattern INT_EXPRESSION = Pattern.compile("-?\\d+");
+
+	protected static HashMap<String, Method> templateMethods;
+
+	protected final String internalClassName;
+
+	protected final HashMap<String, Integer> constants = new HashMap<>();
+
+	protected final ByteArrayOutputStream constantPoolBuf = new ByteArrayOutputStream();
+	protected final DataOutputStream constantPool = new DataOutputStream(constantPoolBuf);
+	protected final HashMap<String, Integer> constantPoolIndices = new HashMap<>();
+	protected int constantPoolCount = 1;
+
+	protected final ArrayList<byte[]> methods = new ArrayList<>();
+
+	protected ByteArrayOutputStream codeBuf;
+	protected DataOutputStream code;
+	protected String methodName;
+	protected String methodDescriptor;
+	protected int maxLocals;
+	protected int stackSize;
+	protected int maxStackSize;
+
+	public KernelClassWriter(String className) {
+		internalClassName = className.replace('.', '/');
+	}
+
+	/**
+	 * Defines the value of a named int constant, e.g. the offset "W0" of a weights
+	 * matrix in the parameter vector.
+	 */
+	public void putConstant(String name, int value) {
+		constants.put(name, value);
+	}
+
+	public void beginMethod(String name, String descriptor) {
+		if (code != null) {
+			throw new IllegalStateException("method " + methodName + " has not been ended");
+		}
+
+		methodName = name;
+		methodDescriptor = descriptor;
+		maxLocals = CALC_GRADIENT_DESCRIPTOR.equals(descriptor) ? LOCAL_GRAD_STORAGE + 1 : LOCAL_STORAGE + 1;
+		codeBuf = new ByteArrayOutputStream();
+		code = new DataOutputStream(codeBuf);
+		stackSize = 0;
+		maxStackSize = 0;
+	}
+
+	public void endMethod() {
+		try {
+			code.writeByte(0xb1); // return
+
+			methods.add(createMethodInfo(0x0001, methodName, methodDescriptor, maxStackSize, maxLocals,
+					codeBuf.toByteArray()));
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+
+		code = null;
+	}
+
+	/**
+	 * Appends a call of the specified template to the current method.
+	 */
+	public void invokeTemplate(String templateName, String... paramExpressionList) {
+		Method method = getTemplateMethods().get(templateName);
+
+		if (method == null) {
+			throw new IllegalArgumentException("" + //
+					"template " + templateName + " can't be called as a kernel, " + //
+					"because it isn't a public static method of " + MethodTemplates.class.getName());
+		}
+
+		Class<?>[] paramTypes = method.getParameterTypes();
+		if (paramTypes.length != paramExpressionList.length) {
+			throw new IllegalArgumentException(String.format( //
+					"template \"%s\" requires %d parameters, but specified expression list has %d", //
+					templateName, paramTypes.length, paramExpressionList.length));
+		}
+
+		try {
+			for (int i = 0; i < paramExpressionList.length; i++) {
+				pushExpression(paramExpressionList[i], paramTypes[i]);
+			}
+
+			int methodRef = methodRef( //
+					MethodTemplates.class.getName().replace('.', '/'), //
+					method.getName(), //
+					getDescriptor(method));
+			code.writeByte(0xb8); // invokestatic
+			code.writeShort(methodRef);
+			stackSize -= paramTypes.length;
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	protected void pushExpression(String expression, Class<?> type) throws IOException {
+		if (type == int.class) {
+			String[] terms = expression.split(" \\+ ");
+
+			for (int i = 0; i < terms.length; i++) {
+				pushIntTerm(terms[i]);
+
+				if (i > 0) {
+					code.writeByte(0x60); // iadd
+					stackSize--;
+				}
+			}
+			return;
+		}
+
+		if (type != float[].class) {
+			throwIllegalArgumentExceptionUnsupportedExpression(expression, type);
+		}
+
+		Matcher storageMatcher = STORAGE_EXPRESSION.matcher(expression);
+
+		if (expression.equals("params")) {
+			pushLocal(LOCAL_PARAMS);
+
+		} else if (expression.equals("grad.params")) {
+			pushLocal(LOCAL_GRAD_PARAMS);
+
+		} else if (expression.equals("inp")) {
+			pushLocal(LOCAL_STORAGE);
+			pushInt(0);
+			arrayLoad();
+
+		} else if (expression.equals("target") || expression.equals("grad_backprop")) {
+			pushLocal(LOCAL_TARGET);
+
+		} else if (storageMatcher.matches()) {
+			boolean isGrad = storageMatcher.group(1) != null;
+			pushLocal(isGrad ? LOCAL_GRAD_STORAGE : LOCAL_STORAGE);
+			pushInt(Integer.parseInt(storageMatcher.group(2)));
+			arrayLoad();
+
+		} else {
+			throwIllegalArgumentExceptionUnsupportedExpression(expression, type);
+		}
+	}
+
+	protected void pushIntTerm(String term) throws IOException {
+		if (term.equals("paramsOffset")) {
+			pushIntLocal(LOCAL_PARAMS_OFFSET);
+			return;
+		}
+
+		if (term.equals("grad.paramsOffset")) {
+			pushIntLocal(LOCAL_GRAD_PARAMS_OFFSET);
+			return;
+		}
+
+		Integer value = constants.get(term);
+
+		if (value == null && INT_EXPRESSION.matcher(term).matches()) {
+			value = Integer.valueOf(term);
+		}
+
+		if (value == null) {
+			throwIllegalArgumentExceptionUnsupportedExpression(term, int.class);
+		}
+
+		pushInt(value);
+	}
+
+	protected void pushIntLocal(int slot) throws IOException {
+		if (slot <= 3) {
+			code.writeByte(0x1a + slot); // iload_<n>
+		} else {
+			code.writeByte(0x15); // iload
+			code.writeByte(slot);
+		}
+
+		incStackSize();
+	}
+
+	protected void pushLocal(int slot) throws IOException {
+		if (slot <= 3) {
+			code.writeByte(0x2a + slot); // aload_<n>
+		} else {
+			code.writeByte(0x19); // aload
+			code.writeByte(slot);
+		}
+
+		incStackSize();
+	}
+
+	protected void pushInt(int value) throws IOException {
+		if (-1 <= value && value <= 5) {
+			code.writeByte(0x03 + value); // iconst_<i>
+		} else if (Byte.MIN_VALUE <= value && value <= Byte.MAX_VALUE) {
+			code.writeByte(0x10); // bipush
+			code.writeByte(value);
+		} else if (Short.MIN_VALUE <= value && value <= Short.MAX_VALUE) {
+			code.writeByte(0x11); // sipush
+			code.writeShort(value);
+		} else {
+			code.writeByte(0x13); // ldc_w
+			code.writeShort(integerConstant(value));
+		}
+
+		incStackSize();
+	}
+
+	protected void arrayLoad() throws IOException {
+		code.writeByte(0x32); // aaload
+		stackSize--;
+	}
+
+	protected void incStackSize() {
+		stackSize++;
+		maxStackSize = Math.max(maxStackSize, stackSize);
+	}
+
+	/**
+	 * Returns the complete class file, which contains a public constructor and
+	 * all methods written so far.
+	 */
+	public byte[] toByteArray() {
+		try {
+			int thisClass = classRef(internalClassName);
+			int superClass = classRef("java/lang/Object");
+			int kernelsInterface = classRef(CompiledKernels.class.getName().replace('.', '/'));
+
+			ByteArrayOutputStream constructorCode = new ByteArrayOutputStream();
+			constructorCode.write(0x2a); // aload_0
+			constructorCode.write(0xb7); // invokespecial
+			int superConstructor = methodRef("java/lang/Object", "<init>", "()V");
+			constructorCode.write(superConstructor >> 8);
+			constructorCode.write(superConstructor);
+			constructorCode.write(0xb1); // return
+			byte[] constructor = createMethodInfo(0x0001, "<init>", "()V", 1, 1, constructorCode.toByteArray());
+
+			ByteArrayOutputStream resultBuf = new ByteArrayOutputStream();
+			DataOutputStream result = new DataOutputStream(resultBuf);
+
+			result.writeInt(0xcafebabe);
+			result.writeShort(0); // minor version
+			result.writeShort(52); // major version, java 8
+
+			constantPool.flush();
+			result.writeShort(constantPoolCount);
+			constantPoolBuf.writeTo(result);
+
+			result.writeShort(0x0001 | 0x0010 | 0x0020); // public final super
+			result.writeShort(thisClass);
+			result.writeShort(superClass);
+			result.writeShort(1);
+			result.writeShort(kernelsInterface);
+
+			result.writeShort(0); // fields
+
+			result.writeShort(methods.size() + 1);
+			result.write(constructor);
+			for (byte[] method : methods) {
+				result.write(method);
+			}
+
+			result.writeShort(0); // attributes
+
+			result.flush();
+			return resultBuf.toByteArray();
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	protected byte[] createMethodInfo(int access, String name, String descriptor, int maxStack, int maxLocals,
+			byte[] code) throws IOException {
+		ByteArrayOutputStream resultBuf = new ByteArrayOutputStream();
+		DataOutputStream result = new DataOutputStream(resultBuf);
+
+		result.writeShort(access);
+		result.writeShort(utf8(name));
+		result.writeShort(utf8(descriptor));
+		result.writeShort(1); // attributes
+
+		result.writeShort(utf8("Code"));
+		result.writeInt(2 + 2 + 4 + code.length + 2 + 2);
+		result.writeShort(maxStack);
+		result.writeShort(maxLocals);
+		result.writeInt(code.length);
+		result.write(code);
+		result.writeShort(0); // exception table
+		result.writeShort(0); // attributes
+
+		result.flush();
+		return resultBuf.toByteArray();
+	}
+
+	protected int utf8(String value) throws IOException {
+		String key = "utf8:" + value;
+		Integer result = constantPoolIndices.get(key);
+
+		if (result == null) {
+			constantPool.writeByte(1);
+			constantPool.writeUTF(value);
+			result = addConstantPoolEntry(key);
+		}
+
+		return result;
+	}
+
+	protected int integerConstant(int value) throws IOException {
+		String key = "int:" + value;
+		Integer result = constantPoolIndices.get(key);
+
+		if (result == null) {
+			constantPool.writeByte(3);
+			constantPool.writeInt(value);
+			result = addConstantPoolEntry(key);
+		}
+
+		return result;
+	}
+
+	protected int classRef(String internalName) throws IOException {
+		String key = "class:" + internalName;
+		Integer result = constantPoolIndices.get(key);
+
+		if (result == null) {
+			int nameIdx = utf8(internalName);
+			constantPool.writeByte(7);
+			constantPool.writeShort(nameIdx);
+			result = addConstantPoolEntry(key);
+		}
+
+		return result;
+	}
+
+	protected int methodRef(String owner, String name, String descriptor) throws IOException {
+		String key = "method:" + owner + "." + name + descriptor;
+		Integer result = constantPoolIndices.get(key);
+
+		if (result == null) {
+			int classIdx = classRef(owner);
+			int nameIdx = utf8(name);
+			int descriptorIdx = utf8(descriptor);
+
+			constantPool.writeByte(12);
+			constantPool.writeShort(nameIdx);
+			constantPool.writeShort(descriptorIdx);
+			int nameAndTypeIdx = addConstantPoolEntry("nameAndType:" + name + descriptor);
+
+			constantPool.writeByte(10);
+			constantPool.writeShort(classIdx);
+			constantPool.writeShort(nameAndTypeIdx);
+			result = addConstantPoolEntry(key);
+		}
+
+		return result;
+	}
+
+	protected int addConstantPoolEntry(String key) {
+		int result = constantPoolCount++;
+		constantPoolIndices.put(key, result);
+
+		return result;
+	}
+
+	protected static synchronized HashMap<String, Method> getTemplateMethods() {
+		if (templateMethods == null) {
+			templateMethods = new HashMap<>();
+
+			for (Method method : MethodTemplates.class.getDeclaredMethods()) {
+				int modifiers = method.getModifiers();
+
+				if (Modifier.isPublic(modifiers) && Modifier.isStatic(modifiers) && method.getReturnType() == void.class) {
+					templateMethods.put(method.getName(), method);
+				}
+			}
+		}
+
+		return templateMethods;
+	}
+
+	protected static String getDescriptor(Method method) {
+		StringBuilder result = new StringBuilder();
+
+		result.append("(");
+		for (Class<?> paramType : method.getParameterTypes()) {
+			appendDescriptor(result, paramType);
+		}
+		result.append(")");
+		appendDescriptor(result, method.getReturnType());
+
+		return result.toString();
+	}
+
+	protected static void appendDescriptor(StringBuilder buf, Class<?> type) {
+		if (type.isArray()) {
+			buf.append("[");
+			appendDescriptor(buf, type.getComponentType());
+		} else if (type == void.class) {
+			buf.append("V");
+		} else if (type == int.class) {
+			buf.append("I");
+		} else if (type == float.class) {
+			buf.append("F");
+		} else if (type.isPrimitive()) {
+			throw new IllegalArgumentException("unsupported primitive type: " + type);
+		} else {
+			buf.append("L").append(type.getName().replace('.', '/')).append(";");
+		}
+	}
+
+	protected static void throwIllegalArgumentExceptionUnsupportedExpression(String expression, Class<?> type) {
+		throw new IllegalArgumentException("" + //
+				"expression \"" + expression + "\" of type " + type.getSimpleName() + " " + //
+				"can't be translated to bytecode");
+	}
+}
@@ -8,8 +8,13 @@ import de.a0h.javatemplater.TemplateMethod;
 
 /**
  * Method templates which can be incorporated into generated source code.
+ * Matrices are stored row-major in a single array, starting at some offset,
+ * i.e. mat[i][j] is stored in mat[offsetMat + i * colCount + j]. This way, all
+ * learnable parameters can share one array. The templates which don't need to be
+ * inlined are public static, so that they can also be called directly, e.g. by
+ * the kernels emitted by {@link OperationToBytecodeCompiler}.
  */
-class MethodTemplates {
+public class MethodTemplates {
 
 	/**
 	 * Multiplies vector vecA with scalar sca and then adds it to vector vecB,
@@ -29,14 +34,9 @@ class MethodTemplates {
 	 * += sca * matA[i][j].
 	 */
 	@TemplateMethod
-	public static void mulAddMatSca(float[][] matA, float sca, float[][] matB, int rowCount, int colCount) {
-		for (int i = 0; i < rowCount; i++) {
-			float[] rowA = matA[i];
-			float[] rowB = matB[i];
-
-			for (int j = 0; j < colCount; j++) {
-				rowB[j] += sca * rowA[j];
-			}
+	public static void mulAddMatSca(float[] matA, float sca, float[] matB, int rowCount, int colCount) {
+		for (int k = 0; k < rowCount * colCount; k++) {
+			matB[k] += sca * matA[k];
 		}
 	}
 
@@ -44,7 +44,7 @@ class MethodTemplates {
 	 * Multiplies a vector with a scalar and overwrites the vector with the results.
 	 */
 	@TemplateMethod
-	private static void mulVecSca(float[] vec, float sca, int length) {
+	public static void mulVecSca(float[] vec, float sca, int length) {
 		for (int i = 0; i < length; i++) {
 			vec[i] *= sca;
 		}
@@ -54,13 +54,9 @@ class MethodTemplates {
 	 * Multiply matrix a with scalar s, overwrite a with the results.
 	 */
 	@TemplateMethod
-	private static void mulMatSca(float[][] mat, float sca, int rowCount, int colCount) {
-		for (int i = 0; i < rowCount; i++) {
-			float[] row = mat[i];
-
-			for (int j = 0; j < colCount; j++) {
-				row[j] *= sca;
-			}
+	public static void mulMatSca(float[] mat, float sca, int rowCount, int colCount) {
+		for (int k = 0; k < rowCount * colCount; k++) {
+			mat[k] *= sca;
 		}
 	}
 
@@ -68,22 +64,30 @@ class MethodTemplates {
 	 * Assign the specified value to every element of vector vec.
 	 */
 	@TemplateMethod
-	private static void assignVecSca(float[] vec, float value, int length) {
+	public static void assignVecSca(float[] vec, float value, int length) {
 		for (int i = 0; i < length; i++) {
 			vec[i] = value;
 		}
 	}
 
+	/**
+	 * Assign the specified value to the elements vec[offset] to vec[offset + length
+	 * - 1].
+	 */
+	@TemplateMethod
+	public static void assignVecScaAt(float[] vec, int offset, float value, int length) {
+		for (int i = 0; i < length; i++) {
+			vec[offset + i] = value;
+		}
+	}
+
 	/**
 	 * Assign the specified value to every element of matrix mat.
 	 */
 	@TemplateMethod
-	private static void assignMatSca(float[][] mat, float value, int rowCount, int colCount) {
-		for (int i = 0; i < rowCount; i++) {
-			float[] row = mat[i];
-			for (int j = 0; j < colCount; j++) {
-				row[j] = value;
-			}
+	public static void assignMatSca(float[] mat, float value, int rowCount, int colCount) {
+		for (int k = 0; k < rowCount * colCount; k++) {
+			mat[k] = value;
 		}
 	}
 
@@ -92,7 +96,7 @@ class MethodTemplates {
 	 * generate a gaussian distribution.
 	 */
 	@TemplateMethod
-	private static void assignGaussianVec(float[] vec, float stddev, Random rnd, int length) {
+	public static void assignGaussianVec(float[] vec, float stddev, Random rnd, int length) {
 		for (int i = 0; i < length; i++) {
 			vec[i] = stddev * (float) rnd.nextGaussian();
 		}
@@ -102,14 +106,9 @@ class MethodTemplates {
 	 * matA[i][j] += matB[i][j]
 	 */
 	@TemplateMethod
-	private static void addMat(float[][] matA, float[][] matB, int rowCount, int colCount) {
-		for (int i = 0; i < rowCount; i++) {
-			float[] rowA = matA[i];
-			float[] rowB = matB[i];
-
-			for (int j = 0; j < colCount; j++) {
-				rowA[j] += rowB[j];
-			}
+	public static void addMat(float[] matA, float[] matB, int rowCount, int colCount) {
+		for (int k = 0; k < rowCount * colCount; k++) {
+			matA[k] += matB[k];
 		}
 	}
 
@@ -117,7 +116,7 @@ class MethodTemplates {
 	 * vecA[i] += vecB[i]
 	 */
 	@TemplateMethod
-	private static void addVec(float[] vecA, float[] vecB, int length) {
+	public static void addVec(float[] vecA, float[] vecB, int length) {
 		for (int i = 0; i < length; i++) {
 			vecA[i] += vecB[i];
 		}
@@ -127,29 +126,52 @@ class MethodTemplates {
 	 * Assigns values of vecA to vecB, i.e. vecB[i] = vecA[i].
 	 */
 	@TemplateMethod
-	private static void assignVecVec(float[] vecA, float[] vecB, int length) {
+	public static void assignVecVec(float[] vecA, float[] vecB, int length) {
 		for (int i = 0; i < length; i++) {
 			vecB[i] = vecA[i];
 		}
 	}
 
+	/**
+	 * Assigns values of vecA to vecB, starting at offsetB in vecB, i.e.
+	 * vecB[offsetB + i] = vecA[i].
+	 */
+	@TemplateMethod
+	public static void assignVecVecAt(float[] vecA, float[] vecB, int offsetB, int length) {
+		for (int i = 0; i < length; i++) {
+			vecB[offsetB + i] = vecA[i];
+		}
+	}
+
+	/**
+	 * Adds values of vecA to vecB, starting at offsetB in vecB, i.e.
+	 * vecB[offsetB + i] += vecA[i].
+	 */
+	@TemplateMethod
+	public static void addVecVecAt(float[] vecA, float[] vecB, int offsetB, int length) {
+		for (int i = 0; i < length; i++) {
+			vecB[offsetB + i] += vecA[i];
+		}
+	}
+
 	/**
 	 * Multiplies a row vector by a matrix and stores the result in an output
 	 * vector, i.e. out = inp * mat.
 	 */
 	@TemplateMethod
-	private static void mulVecMat(float[] inp, float[][] mat, float[] out, int rowCount, int colCount) {
+	public static void mulVecMat(float[] inp, float[] mat, int offsetMat, float[] out, int rowCount,
+			int colCount) {
 		{
 			for (int j = 0; j < colCount; j++) {
 				out[j] = 0.0f;
 			}
 
 			for (int i = 0; i < rowCount; i++) {
-				float[] row = mat[i];
+				int rowOffset = offsetMat + i * colCount;
 				float sca = inp[i];
 
 				for (int j = 0; j < colCount; j++) {
-					out[j] += sca * row[j];
+					out[j] += sca * mat[rowOffset + j];
 				}
 			}
 		}
@@ -160,13 +182,31 @@ class MethodTemplates {
 	 * = vec_u ⊗ vec_v, mat[i][j] = vec_u[i] * vec_v[j].
 	 */
 	@TemplateMethod
-	private static void outerProduct(float[] vec_u, float[] vec_v, float[][] mat, int uLength, int vLength) {
+	public static void outerProduct(float[] vec_u, float[] vec_v, float[] mat, int offsetMat, int uLength,
+			int vLength) {
+		for (int i = 0; i < uLength; i++) {
+			int rowOffset = offsetMat + i * vLength;
+			float sca = vec_u[i];
+
+			for (int j = 0; j < vLength; j++) {
+				mat[rowOffset + j] = sca * vec_v[j];
+			}
+		}
+	}
+
+	/**
+	 * Adds the outer product of two vectors vec_u and vec_v to a matrix mat, i.e.
+	 * mat += vec_u ⊗ vec_v, mat[i][j] += vec_u[i] * vec_v[j].
+	 */
+	@TemplateMethod
+	public static void outerProductAdd(float[] vec_u, float[] vec_v, float[] mat, int offsetMat, int uLength,
+			int vLength) {
 		for (int i = 0; i < uLength; i++) {
+			int rowOffset = offsetMat + i * vLength;
 			float sca = vec_u[i];
-			float[] row = mat[i];
 
 			for (int j = 0; j < vLength; j++) {
-				row[j] = sca * vec_v[j];
+				mat[rowOffset + j] += sca * vec_v[j];
 			}
 		}
 	}
@@ -178,13 +218,10 @@ class MethodTemplates {
 	 * @param stddev standard deviation of the distribution to use
 	 */
 	@TemplateMethod
-	private static void assignGaussianMat(float[][] mat, float stddev, Random rnd, int rowCount, int colCount) {
-		for (int i = 0; i < rowCount; i++) {
-			float[] row = mat[i];
-
-			for (int j = 0; j < colCount; j++) {
-				row[j] = stddev * (float) rnd.nextGaussian();
-			}
+	public static void assignGaussianMat(float[] mat, int offsetMat, float stddev, Random rnd, int rowCount,
+			int colCount) {
+		for (int k = 0; k < rowCount * colCount; k++) {
+			mat[offsetMat + k] = stddev * (float) rnd.nextGaussian();
 		}
 	}
 
@@ -230,7 +267,7 @@ class MethodTemplates {
 	 *                 respect to the predicted probability of category 0
 	 */
 	@TemplateMethod
-	private void crossEntropyLossGradient_twofoldClassification(float[] out, float[] target, float[] grad_out) {
+	public static void crossEntropyLossGradient_twofoldClassification(float[] out, float[] target, float[] grad_out) {
 		// gradient for cross entropy loss for twofold classification (aka binary
 		// classification)
 		grad_out[0] = (1.0f - target[0]) / (1.0f - out[0]) - target[0] / out[0];
@@ -249,7 +286,7 @@ class MethodTemplates {
 	 *                 respect to the predicted probabilities
 	 */
 	@TemplateMethod
-	private void crossEntropyLossGradient_manifoldClassification(float[] out, float[] target, int length,
+	public static void crossEntropyLossGradient_manifoldClassification(float[] out, float[] target, int length,
 			float[] grad_out) {
 		// gradient for cross entropy loss for manifold classification (aka multinomial
 		// classification)
@@ -273,7 +310,7 @@ class MethodTemplates {
 	 *                 of category 0
 	 */
 	@TemplateMethod
-	private void sigmoidWithCrossEntropyLossGradient_twofoldClassification(float[] out, float[] target,
+	public static void sigmoidWithCrossEntropyLossGradient_twofoldClassification(float[] out, float[] target,
 			float[] grad_inp) {
 		// grad_out is skipped; grad_inp is calculated directly:
 		// gradient for sigmoid with cross entropy loss for twofold classification (aka
@@ -301,7 +338,7 @@ class MethodTemplates {
 	 *                 respect to the values before the application of the sigmoid
 	 */
 	@TemplateMethod
-	private void sigmoidWithCrossEntropyLossGradient_manifoldClassification(float[] out, float[] target, int length,
+	public static void sigmoidWithCrossEntropyLossGradient_manifoldClassification(float[] out, float[] target, int length,
 			float[] grad_inp) {
 		// grad_out is skipped; grad_inp is calculated directly:
 		// gradient for sigmoid with cross entropy loss for manifold classification (aka
@@ -334,7 +371,7 @@ class MethodTemplates {
 	 *                 respect to the values before the application of softmax
 	 */
 	@TemplateMethod
-	private void softmaxWithCrossEntropyLossGradient_manifoldClassification(float[] out, float[] target, int length,
+	public static void softmaxWithCrossEntropyLossGradient_manifoldClassification(float[] out, float[] target, int length,
 			float[] grad_inp) {
 		// grad_out is skipped; grad_inp is calculated directly:
 		// gradient for softmax with cross entropy loss for manifold classification (aka
@@ -351,51 +388,287 @@ class MethodTemplates {
 	 * result in out, i.e. calculates out = mat * inp + bias.
 	 */
 	@TemplateMethod
-	private static void mulMatVecPlusBias(float[][] mat, float[] inp, float[] bias, float[] out, int lengthOut,
-			int lengthInp) {
+	public static void mulMatVecPlusBias(float[] mat, int offsetMat, float[] inp, float[] bias, int offsetBias,
+			float[] out, int lengthOut, int lengthInp) {
 		for (int i = 0; i < lengthOut; i++) {
-			float[] row = mat[i];
+			int rowOffset = offsetMat + i * lengthInp;
 
 			float tmp = 0.0f;
 
 			for (int j = 0; j < lengthInp; j++) {
-				tmp += row[j] * inp[j];
+				tmp += mat[rowOffset + j] * inp[j];
+			}
+
+			out[i] = tmp + bias[offsetBias + i];
+		}
+	}
+
+	/**
+	 * Same as mulMatVecPlusBias, but sums up into four independent accumulators,
+	 * see {@link de.a0h.minideeplearn.operation.MdlOperationConfig.KernelBackend}.
+	 */
+	@TemplateMethod
+	public static void mulMatVecPlusBiasUnrolled(float[] mat, int offsetMat, float[] inp, float[] bias,
+			int offsetBias, float[] out, int lengthOut, int lengthInp) {
+		for (int i = 0; i < lengthOut; i++) {
+			int rowOffset = offsetMat + i * lengthInp;
+
+			float acc0 = 0.0f;
+			float acc1 = 0.0f;
+			float acc2 = 0.0f;
+			float acc3 = 0.0f;
+
+			int j = 0;
+			for (; j <= lengthInp - 4; j += 4) {
+				acc0 += mat[rowOffset + j] * inp[j];
+				acc1 += mat[rowOffset + j + 1] * inp[j + 1];
+				acc2 += mat[rowOffset + j + 2] * inp[j + 2];
+				acc3 += mat[rowOffset + j + 3] * inp[j + 3];
+			}
+
+			for (; j < lengthInp; j++) {
+				acc0 += mat[rowOffset + j] * inp[j];
+			}
+
+			out[i] = ((acc0 + acc1) + (acc2 + acc3)) + bias[offsetBias + i];
+		}
+	}
+
+	/**
+	 * Batched version of mulMatVecPlusBias for the first rows of inpBatch, i.e.
+	 * outBatch[r] = mat * inpBatch[r] + bias. The rows are processed in tiles of
+	 * 16, so that every row of mat is used for a whole tile before it's evicted
+	 * from the cache.
+	 */
+	@TemplateMethod
+	public static void mulMatMatTransposedPlusBias(float[] mat, int offsetMat, float[][] inpBatch, float[] bias,
+			int offsetBias, float[][] outBatch, int rows, int lengthOut, int lengthInp) {
+		for (int r0 = 0; r0 < rows; r0 += 16) {
+			int r1 = Math.min(r0 + 16, rows);
+
+			for (int i = 0; i < lengthOut; i++) {
+				int rowOffset = offsetMat + i * lengthInp;
+				float b = bias[offsetBias + i];
+
+				for (int r = r0; r < r1; r++) {
+					float[] x = inpBatch[r];
+
+					float tmp = 0.0f;
+					for (int j = 0; j < lengthInp; j++) {
+						tmp += mat[rowOffset + j] * x[j];
+					}
+
+					outBatch[r][i] = tmp + b;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Same as mulMatMatTransposedPlusBias, fused with a following tanh
+	 * activation. Stores the values before the activation in preBatch and the
+	 * activated values in actBatch.
+	 */
+	@TemplateMethod
+	public static void mulMatMatTransposedPlusBiasTanh(float[] mat, int offsetMat, float[][] inpBatch,
+			float[] bias, int offsetBias, float[][] preBatch, float[][] actBatch, int rows, int lengthOut,
+			int lengthInp) {
+		for (int r0 = 0; r0 < rows; r0 += 16) {
+			int r1 = Math.min(r0 + 16, rows);
+
+			for (int i = 0; i < lengthOut; i++) {
+				int rowOffset = offsetMat + i * lengthInp;
+				float b = bias[offsetBias + i];
+
+				for (int r = r0; r < r1; r++) {
+					float[] x = inpBatch[r];
+
+					float tmp = 0.0f;
+					for (int j = 0; j < lengthInp; j++) {
+						tmp += mat[rowOffset + j] * x[j];
+					}
+					tmp += b;
+
+					preBatch[r][i] = tmp;
+					actBatch[r][i] = (float) Math.tanh(tmp);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Same as mulMatMatTransposedPlusBias, fused with a following sigmoid
+	 * activation. Stores the values before the activation in preBatch and the
+	 * activated values in actBatch.
+	 */
+	@TemplateMethod
+	public static void mulMatMatTransposedPlusBiasSigmoid(float[] mat, int offsetMat, float[][] inpBatch,
+			float[] bias, int offsetBias, float[][] preBatch, float[][] actBatch, int rows, int lengthOut,
+			int lengthInp) {
+		for (int r0 = 0; r0 < rows; r0 += 16) {
+			int r1 = Math.min(r0 + 16, rows);
+
+			for (int i = 0; i < lengthOut; i++) {
+				int rowOffset = offsetMat + i * lengthInp;
+				float b = bias[offsetBias + i];
+
+				for (int r = r0; r < r1; r++) {
+					float[] x = inpBatch[r];
+
+					float tmp = 0.0f;
+					for (int j = 0; j < lengthInp; j++) {
+						tmp += mat[rowOffset + j] * x[j];
+					}
+					tmp += b;
+
+					preBatch[r][i] = tmp;
+					actBatch[r][i] = 1.0f / (1.0f + (float) Math.exp(-tmp));
+				}
+			}
+		}
+	}
+
+	/**
+	 * Same as mulMatMatTransposedPlusBias, fused with a following relu
+	 * activation. Stores the values before the activation in preBatch and the
+	 * activated values in actBatch.
+	 */
+	@TemplateMethod
+	public static void mulMatMatTransposedPlusBiasRelu(float[] mat, int offsetMat, float[][] inpBatch,
+			float[] bias, int offsetBias, float[][] preBatch, float[][] actBatch, int rows, int lengthOut,
+			int lengthInp) {
+		for (int r0 = 0; r0 < rows; r0 += 16) {
+			int r1 = Math.min(r0 + 16, rows);
+
+			for (int i = 0; i < lengthOut; i++) {
+				int rowOffset = offsetMat + i * lengthInp;
+				float b = bias[offsetBias + i];
+
+				for (int r = r0; r < r1; r++) {
+					float[] x = inpBatch[r];
+
+					float tmp = 0.0f;
+					for (int j = 0; j < lengthInp; j++) {
+						tmp += mat[rowOffset + j] * x[j];
+					}
+					tmp += b;
+
+					preBatch[r][i] = tmp;
+					actBatch[r][i] = Math.max(0, tmp);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Sums up the outer products of the first rows of aBatch and bBatch into the
+	 * matrix mat, i.e. mat[i][j] = sum_r(aBatch[r][i] * bBatch[r][j]). This is the
+	 * weights gradient of a dense layer for a whole batch. The rows are processed
+	 * in tiles of 16.
+	 */
+	@TemplateMethod
+	public static void mulMatTransposedMat(float[][] aBatch, float[][] bBatch, float[] mat, int offsetMat, int rows,
+			int lengthOut, int lengthInp) {
+		for (int k = 0; k < lengthOut * lengthInp; k++) {
+			mat[offsetMat + k] = 0.0f;
+		}
+
+		for (int r0 = 0; r0 < rows; r0 += 16) {
+			int r1 = Math.min(r0 + 16, rows);
+
+			for (int i = 0; i < lengthOut; i++) {
+				int rowOffset = offsetMat + i * lengthInp;
+
+				for (int r = r0; r < r1; r++) {
+					float sca = aBatch[r][i];
+					float[] y = bBatch[r];
+
+					for (int j = 0; j < lengthInp; j++) {
+						mat[rowOffset + j] += sca * y[j];
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Batched version of mulVecMat for the first rows of aBatch, i.e. outBatch[r] =
+	 * aBatch[r] * mat. The rows are processed in tiles of 16.
+	 */
+	@TemplateMethod
+	public static void mulMatMat(float[][] aBatch, float[] mat, int offsetMat, float[][] outBatch, int rows,
+			int lengthOut, int lengthInp) {
+		for (int r0 = 0; r0 < rows; r0 += 16) {
+			int r1 = Math.min(r0 + 16, rows);
+
+			for (int r = r0; r < r1; r++) {
+				for (int j = 0; j < lengthInp; j++) {
+					outBatch[r][j] = 0.0f;
+				}
 			}
 
-			out[i] = tmp + bias[i];
+			for (int i = 0; i < lengthOut; i++) {
+				int rowOffset = offsetMat + i * lengthInp;
+
+				for (int r = r0; r < r1; r++) {
+					float sca = aBatch[r][i];
+					float[] y = outBatch[r];
+
+					for (int j = 0; j < lengthInp; j++) {
+						y[j] += sca * mat[rowOffset + j];
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Sums up the first rows of vecBatch into sum, starting at offsetSum, i.e.
+	 * sum[j] = sum_r(vecBatch[r][j]).
+	 */
+	@TemplateMethod
+	public static void sumRows(float[][] vecBatch, float[] sum, int offsetSum, int rows, int length) {
+		for (int j = 0; j < length; j++) {
+			sum[offsetSum + j] = 0.0f;
+		}
+
+		for (int r = 0; r < rows; r++) {
+			for (int j = 0; j < length; j++) {
+				sum[offsetSum + j] += vecBatch[r][j];
+			}
 		}
 	}
 
 	@TemplateMethod
-	private static void tanhVec(float[] inp, float[] out, int length) {
+	public static void tanhVec(float[] inp, float[] out, int length) {
 		for (int i = 0; i < length; i++) {
 			out[i] = (float) Math.tanh(inp[i]);
 		}
 	}
 
 	@TemplateMethod
-	private static void tanhDerivativeVec(float[] grad_inp, float[] out, float[] grad_out, int length) {
+	public static void tanhDerivativeVec(float[] grad_inp, float[] out, float[] grad_out, int length) {
 		for (int i = 0; i < length; i++) {
 			grad_inp[i] = (1.0f - out[i] * out[i]) * grad_out[i];
 		}
 	}
 
 	@TemplateMethod
-	private static void sigmoidVec(float[] inp, float[] out, int length) {
+	public static void sigmoidVec(float[] inp, float[] out, int length) {
 		for (int i = 0; i < length; i++) {
 			out[i] = 1.0f / (1.0f + (float) Math.exp(-inp[i]));
 		}
 	}
 
 	@TemplateMethod
-	private static void sigmoidDerivativeVec(float[] grad_inp, float[] out, float[] grad_out, int length) {
+	public static void sigmoidDerivativeVec(float[] grad_inp, float[] out, float[] grad_out, int length) {
 		for (int i = 0; i < length; i++) {
 			grad_inp[i] = (out[i] * (1.0f - out[i])) * grad_out[i];
 		}
 	}
 
 	@TemplateMethod
-	private static void softmaxVec(float[] inp, float[] out, int length) {
+	public static void softmaxVec(float[] inp, float[] out, int length) {
 		{
 			float max = Float.NEGATIVE_INFINITY;
 			for (int i = 0; i < length; i++) {
@@ -415,7 +688,7 @@ class MethodTemplates {
 	}
 
 	@TemplateMethod
-	private static void softmaxDerivativeVec(float[] grad_inp, float[] inp, float[] grad_out, int length) {
+	public static void softmaxDerivativeVec(float[] grad_inp, float[] inp, float[] grad_out, int length) {
 		if (Math.random() <= 1.0f) {
 			throw new UnsupportedOperationException(
 					"sole softmax derivative is not supported. Use a combined softmax instead, e.g. SoftmaxWithCrossEntropyLoss.");
@@ -423,35 +696,35 @@ class MethodTemplates {
 	}
 
 	@TemplateMethod
-	private static void softplusVec(float[] inp, float[] out, int length) {
+	public static void softplusVec(float[] inp, float[] out, int length) {
 		for (int i = 0; i < length; i++) {
 			out[i] = (float) Math.log1p(Math.exp(inp[i]));
 		}
 	}
 
 	@TemplateMethod
-	private static void softplusDerivativeVec(float[] grad_inp, float[] inp, float[] grad_out, int length) {
+	public static void softplusDerivativeVec(float[] grad_inp, float[] inp, float[] grad_out, int length) {
 		for (int i = 0; i < length; i++) {
 			grad_inp[i] = grad_out[i] / (1.0f + (float) Math.exp(-inp[i]));
 		}
 	}
 
 	@TemplateMethod
-	private static void reluVec(float[] inp, float[] out, int length) {
+	public static void reluVec(float[] inp, float[] out, int length) {
 		for (int i = 0; i < length; i++) {
 			out[i] = Math.max(0, inp[i]);
 		}
 	}
 
 	@TemplateMethod
-	private static void reluDerivativeVec(float[] grad_inp, float[] inp, float[] grad_out, int length) {
+	public static void reluDerivativeVec(float[] grad_inp, float[] inp, float[] grad_out, int length) {
 		for (int i = 0; i < length; i++) {
 			grad_inp[i] = (inp[i] >= 0) ? grad_out[i] : 0.0f;
 		}
 	}
 
 	@TemplateMethod
-	private static void swishVec(float[] inp, float[] sig, float[] out, int length) {
+	public static void swishVec(float[] inp, float[] sig, float[] out, int length) {
 		for (int i = 0; i < length; i++) {
 			sig[i] = 1.0f / (1.0f + (float) Math.exp(-inp[i]));
 			out[i] = sig[i] * inp[i];
@@ -459,7 +732,7 @@ class MethodTemplates {
 	}
 
 	@TemplateMethod
-	private static void swishDerivativeVec(float[] grad_inp, float[] out, float[] sig, float[] grad_out, int length) {
+	public static void swishDerivativeVec(float[] grad_inp, float[] out, float[] sig, float[] grad_out, int length) {
 		for (int i = 0; i < length; i++) {
 			grad_inp[i] = (out[i] + sig[i] * (1.0f - out[i])) * grad_out[i];
 		}
@@ -468,20 +741,20 @@ class MethodTemplates {
 	protected static final String SPACES = "                                ";
 
 	@TemplateMethod
-	protected static StringBuilder toStringBuilderMat(float[][] mat, StringBuilder buf, int indentSpaces,
-			DecimalFormat format) {
+	protected static StringBuilder toStringBuilderMat(float[] mat, int offsetMat, int rowCount, int colCount,
+			StringBuilder buf, int indentSpaces, DecimalFormat format) {
 		buf.append("[");
 
 		String indent = SPACES.substring(0, indentSpaces + 1);
 
-		for (int i = 0; i < mat.length; i++) {
+		for (int i = 0; i < rowCount; i++) {
 			if (i > 0) {
 				buf.append(indent);
 			}
 
-			toStringBuilderVec(mat[i], buf, format);
+			toStringBuilderVecAt(mat, offsetMat + i * colCount, colCount, buf, format);
 
-			if (i < mat.length - 1) {
+			if (i < rowCount - 1) {
 				buf.append("\n");
 			}
 		}
@@ -508,6 +781,24 @@ class MethodTemplates {
 		return buf;
 	}
 
+	@TemplateMethod
+	protected static StringBuilder toStringBuilderVecAt(float[] vec, int offset, int length, StringBuilder buf,
+			DecimalFormat format) {
+		buf.append("[");
+
+		for (int i = 0; i < length; i++) {
+			toStringBuilderSca(vec[offset + i], buf, format);
+
+			if (i < length - 1) {
+				buf.append(" ");
+			}
+		}
+
+		buf.append("]");
+
+		return buf;
+	}
+
 	@TemplateMethod
 	protected static StringBuilder toStringBuilderSca(float sca, StringBuilder buf, DecimalFormat decimalFormat) {
 		buf.append(decimalFormat.format(sca));
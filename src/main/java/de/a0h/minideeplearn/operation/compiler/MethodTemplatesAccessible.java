@@ -8,6 +8,11 @@ import de.a0h.javatemplater.MethodSourceTemplate.Param;
 
 /**
  * Method templates which can be incorporated into generated source code.
+ * Matrices are stored row-major in a single array, starting at some offset,
+ * i.e. mat[i][j] is stored in mat[offsetMat + i * colCount + j]. This way, all
+ * learnable parameters can share one array. The templates which don't need to be
+ * inlined are public static, so that they can also be called directly, e.g. by
+ * the kernels emitted by {@link OperationToBytecodeCompiler}.
  */
 class MethodTemplatesAccessible {
 
@@ -51,20 +56,15 @@ class MethodTemplatesAccessible {
 						"	 * storing the result in matB. The matrix matA is not modified. I.e. matB[i][j]\n" + //
 						"	 * += sca * matA[i][j].\n" + //
 						"	 */\n", //
-						"	public static void mulAddMatSca(float[][] matA, float sca, float[][] matB, int rowCount, int colCount) {\n", //
-						"		for (int i = 0; i < rowCount; i++) {\n" + //
-						"			float[] rowA = matA[i];\n" + //
-						"			float[] rowB = matB[i];\n" + //
-						"\n" + //
-						"			for (int j = 0; j < colCount; j++) {\n" + //
-						"				rowB[j] += sca * rowA[j];\n" + //
-						"			}\n" + //
+						"	public static void mulAddMatSca(float[] matA, float sca, float[] matB, int rowCount, int colCount) {\n", //
+						"		for (int k = 0; k < rowCount * colCount; k++) {\n" + //
+						"			matB[k] += sca * matA[k];\n" + //
 						"		}\n", //
 						false, //
 						Arrays.<Param>asList( //
-								new Param("matA", "float[][]"), //
+								new Param("matA", "float[]"), //
 								new Param("sca", "float"), //
-								new Param("matB", "float[][]"), //
+								new Param("matB", "float[]"), //
 								new Param("rowCount", "int"), //
 								new Param("colCount", "int") //
 						) //
@@ -78,7 +78,7 @@ class MethodTemplatesAccessible {
 						"	/**\n" + //
 						"	 * Multiplies a vector with a scalar and overwrites the vector with the results.\n" + //
 						"	 */\n", //
-						"	private static void mulVecSca(float[] vec, float sca, int length) {\n", //
+						"	public static void mulVecSca(float[] vec, float sca, int length) {\n", //
 						"		for (int i = 0; i < length; i++) {\n" + //
 						"			vec[i] *= sca;\n" + //
 						"		}\n", //
@@ -98,17 +98,13 @@ class MethodTemplatesAccessible {
 						"	/**\n" + //
 						"	 * Multiply matrix a with scalar s, overwrite a with the results.\n" + //
 						"	 */\n", //
-						"	private static void mulMatSca(float[][] mat, float sca, int rowCount, int colCount) {\n", //
-						"		for (int i = 0; i < rowCount; i++) {\n" + //
-						"			float[] row = mat[i];\n" + //
-						"\n" + //
-						"			for (int j = 0; j < colCount; j++) {\n" + //
-						"				row[j] *= sca;\n" + //
-						"			}\n" + //
+						"	public static void mulMatSca(float[] mat, float sca, int rowCount, int colCount) {\n", //
+						"		for (int k = 0; k < rowCount * colCount; k++) {\n" + //
+						"			mat[k] *= sca;\n" + //
 						"		}\n", //
 						false, //
 						Arrays.<Param>asList( //
-								new Param("mat", "float[][]"), //
+								new Param("mat", "float[]"), //
 								new Param("sca", "float"), //
 								new Param("rowCount", "int"), //
 								new Param("colCount", "int") //
@@ -123,7 +119,7 @@ class MethodTemplatesAccessible {
 						"	/**\n" + //
 						"	 * Assign the specified value to every element of vector vec.\n" + //
 						"	 */\n", //
-						"	private static void assignVecSca(float[] vec, float value, int length) {\n", //
+						"	public static void assignVecSca(float[] vec, float value, int length) {\n", //
 						"		for (int i = 0; i < length; i++) {\n" + //
 						"			vec[i] = value;\n" + //
 						"		}\n", //
@@ -135,6 +131,28 @@ class MethodTemplatesAccessible {
 						) //
 				) //
 		);
+		result.put( //
+				"assignVecScaAt", //
+				new MethodSourceTemplate( //
+						"assignVecScaAt", //
+						"\n" + //
+						"	/**\n" + //
+						"	 * Assign the specified value to the elements vec[offset] to vec[offset + length\n" + //
+						"	 * - 1].\n" + //
+						"	 */\n", //
+						"	public static void assignVecScaAt(float[] vec, int offset, float value, int length) {\n", //
+						"		for (int i = 0; i < length; i++) {\n" + //
+						"			vec[offset + i] = value;\n" + //
+						"		}\n", //
+						false, //
+						Arrays.<Param>asList( //
+								new Param("vec", "float[]"), //
+								new Param("offset", "int"), //
+								new Param("value", "float"), //
+								new Param("length", "int") //
+						) //
+				) //
+		);
 		result.put( //
 				"assignMatSca", //
 				new MethodSourceTemplate( //
@@ -143,16 +161,13 @@ class MethodTemplatesAccessible {
 						"	/**\n" + //
 						"	 * Assign the specified value to every element of matrix mat.\n" + //
 						"	 */\n", //
-						"	private static void assignMatSca(float[][] mat, float value, int rowCount, int colCount) {\n", //
-						"		for (int i = 0; i < rowCount; i++) {\n" + //
-						"			float[] row = mat[i];\n" + //
-						"			for (int j = 0; j < colCount; j++) {\n" + //
-						"				row[j] = value;\n" + //
-						"			}\n" + //
+						"	public static void assignMatSca(float[] mat, float value, int rowCount, int colCount) {\n", //
+						"		for (int k = 0; k < rowCount * colCount; k++) {\n" + //
+						"			mat[k] = value;\n" + //
 						"		}\n", //
 						false, //
 						Arrays.<Param>asList( //
-								new Param("mat", "float[][]"), //
+								new Param("mat", "float[]"), //
 								new Param("value", "float"), //
 								new Param("rowCount", "int"), //
 								new Param("colCount", "int") //
@@ -168,7 +183,7 @@ class MethodTemplatesAccessible {
 						"	 * Initializes the given vector using the specified random number generator to\n" + //
 						"	 * generate a gaussian distribution.\n" + //
 						"	 */\n", //
-						"	private static void assignGaussianVec(float[] vec, float stddev, Random rnd, int length) {\n", //
+						"	public static void assignGaussianVec(float[] vec, float stddev, Random rnd, int length) {\n", //
 						"		for (int i = 0; i < length; i++) {\n" + //
 						"			vec[i] = stddev * (float) rnd.nextGaussian();\n" + //
 						"		}\n", //
@@ -189,19 +204,14 @@ class MethodTemplatesAccessible {
 						"	/**\n" + //
 						"	 * matA[i][j] += matB[i][j]\n" + //
 						"	 */\n", //
-						"	private static void addMat(float[][] matA, float[][] matB, int rowCount, int colCount) {\n", //
-						"		for (int i = 0; i < rowCount; i++) {\n" + //
-						"			float[] rowA = matA[i];\n" + //
-						"			float[] rowB = matB[i];\n" + //
-						"\n" + //
-						"			for (int j = 0; j < colCount; j++) {\n" + //
-						"				rowA[j] += rowB[j];\n" + //
-						"			}\n" + //
+						"	public static void addMat(float[] matA, float[] matB, int rowCount, int colCount) {\n", //
+						"		for (int k = 0; k < rowCount * colCount; k++) {\n" + //
+						"			matA[k] += matB[k];\n" + //
 						"		}\n", //
 						false, //
 						Arrays.<Param>asList( //
-								new Param("matA", "float[][]"), //
-								new Param("matB", "float[][]"), //
+								new Param("matA", "float[]"), //
+								new Param("matB", "float[]"), //
 								new Param("rowCount", "int"), //
 								new Param("colCount", "int") //
 						) //
@@ -215,7 +225,7 @@ class MethodTemplatesAccessible {
 						"	/**\n" + //
 						"	 * vecA[i] += vecB[i]\n" + //
 						"	 */\n", //
-						"	private static void addVec(float[] vecA, float[] vecB, int length) {\n", //
+						"	public static void addVec(float[] vecA, float[] vecB, int length) {\n", //
 						"		for (int i = 0; i < length; i++) {\n" + //
 						"			vecA[i] += vecB[i];\n" + //
 						"		}\n", //
@@ -235,7 +245,7 @@ class MethodTemplatesAccessible {
 						"	/**\n" + //
 						"	 * Assigns values of vecA to vecB, i.e. vecB[i] = vecA[i].\n" + //
 						"	 */\n", //
-						"	private static void assignVecVec(float[] vecA, float[] vecB, int length) {\n", //
+						"	public static void assignVecVec(float[] vecA, float[] vecB, int length) {\n", //
 						"		for (int i = 0; i < length; i++) {\n" + //
 						"			vecB[i] = vecA[i];\n" + //
 						"		}\n", //
@@ -247,6 +257,50 @@ class MethodTemplatesAccessible {
 						) //
 				) //
 		);
+		result.put( //
+				"assignVecVecAt", //
+				new MethodSourceTemplate( //
+						"assignVecVecAt", //
+						"\n" + //
+						"	/**\n" + //
+						"	 * Assigns values of vecA to vecB, starting at offsetB in vecB, i.e.\n" + //
+						"	 * vecB[offsetB + i] = vecA[i].\n" + //
+						"	 */\n", //
+						"	public static void assignVecVecAt(float[] vecA, float[] vecB, int offsetB, int length) {\n", //
+						"		for (int i = 0; i < length; i++) {\n" + //
+						"			vecB[offsetB + i] = vecA[i];\n" + //
+						"		}\n", //
+						false, //
+						Arrays.<Param>asList( //
+								new Param("vecA", "float[]"), //
+								new Param("vecB", "float[]"), //
+								new Param("offsetB", "int"), //
+								new Param("length", "int") //
+						) //
+				) //
+		);
+		result.put( //
+				"addVecVecAt", //
+				new MethodSourceTemplate( //
+						"addVecVecAt", //
+						"\n" + //
+						"	/**\n" + //
+						"	 * Adds values of vecA to vecB, starting at offsetB in vecB, i.e.\n" + //
+						"	 * vecB[offsetB + i] += vecA[i].\n" + //
+						"	 */\n", //
+						"	public static void addVecVecAt(float[] vecA, float[] vecB, int offsetB, int length) {\n", //
+						"		for (int i = 0; i < length; i++) {\n" + //
+						"			vecB[offsetB + i] += vecA[i];\n" + //
+						"		}\n", //
+						false, //
+						Arrays.<Param>asList( //
+								new Param("vecA", "float[]"), //
+								new Param("vecB", "float[]"), //
+								new Param("offsetB", "int"), //
+								new Param("length", "int") //
+						) //
+				) //
+		);
 		result.put( //
 				"mulVecMat", //
 				new MethodSourceTemplate( //
@@ -256,25 +310,27 @@ class MethodTemplatesAccessible {
 						"	 * Multiplies a row vector by a matrix and stores the result in an output\n" + //
 						"	 * vector, i.e. out = inp * mat.\n" + //
 						"	 */\n", //
-						"	private static void mulVecMat(float[] inp, float[][] mat, float[] out, int rowCount, int colCount) {\n", //
+						"	public static void mulVecMat(float[] inp, float[] mat, int offsetMat, float[] out, int rowCount,\n" + //
+						"			int colCount) {\n", //
 						"		{\n" + //
 						"			for (int j = 0; j < colCount; j++) {\n" + //
 						"				out[j] = 0.0f;\n" + //
 						"			}\n" + //
 						"\n" + //
 						"			for (int i = 0; i < rowCount; i++) {\n" + //
-						"				float[] row = mat[i];\n" + //
+						"				int rowOffset = offsetMat + i * colCount;\n" + //
 						"				float sca = inp[i];\n" + //
 						"\n" + //
 						"				for (int j = 0; j < colCount; j++) {\n" + //
-						"					out[j] += sca * row[j];\n" + //
+						"					out[j] += sca * mat[rowOffset + j];\n" + //
 						"				}\n" + //
 						"			}\n" + //
 						"		}\n", //
 						false, //
 						Arrays.<Param>asList( //
 								new Param("inp", "float[]"), //
-								new Param("mat", "float[][]"), //
+								new Param("mat", "float[]"), //
+								new Param("offsetMat", "int"), //
 								new Param("out", "float[]"), //
 								new Param("rowCount", "int"), //
 								new Param("colCount", "int") //
@@ -290,20 +346,52 @@ class MethodTemplatesAccessible {
 						"	 * Outer product of two vectors vec_u and vec_v, creating a matrix mat, i.e. mat\n" + //
 						"	 * = vec_u ⊗ vec_v, mat[i][j] = vec_u[i] * vec_v[j].\n" + //
 						"	 */\n", //
-						"	private static void outerProduct(float[] vec_u, float[] vec_v, float[][] mat, int uLength, int vLength) {\n", //
+						"	public static void outerProduct(float[] vec_u, float[] vec_v, float[] mat, int offsetMat, int uLength,\n" + //
+						"			int vLength) {\n", //
+						"		for (int i = 0; i < uLength; i++) {\n" + //
+						"			int rowOffset = offsetMat + i * vLength;\n" + //
+						"			float sca = vec_u[i];\n" + //
+						"\n" + //
+						"			for (int j = 0; j < vLength; j++) {\n" + //
+						"				mat[rowOffset + j] = sca * vec_v[j];\n" + //
+						"			}\n" + //
+						"		}\n", //
+						false, //
+						Arrays.<Param>asList( //
+								new Param("vec_u", "float[]"), //
+								new Param("vec_v", "float[]"), //
+								new Param("mat", "float[]"), //
+								new Param("offsetMat", "int"), //
+								new Param("uLength", "int"), //
+								new Param("vLength", "int") //
+						) //
+				) //
+		);
+		result.put( //
+				"outerProductAdd", //
+				new MethodSourceTemplate( //
+						"outerProductAdd", //
+						"\n" + //
+						"	/**\n" + //
+						"	 * Adds the outer product of two vectors vec_u and vec_v to a matrix mat, i.e.\n" + //
+						"	 * mat += vec_u ⊗ vec_v, mat[i][j] += vec_u[i] * vec_v[j].\n" + //
+						"	 */\n", //
+						"	public static void outerProductAdd(float[] vec_u, float[] vec_v, float[] mat, int offsetMat, int uLength,\n" + //
+						"			int vLength) {\n", //
 						"		for (int i = 0; i < uLength; i++) {\n" + //
+						"			int rowOffset = offsetMat + i * vLength;\n" + //
 						"			float sca = vec_u[i];\n" + //
-						"			float[] row = mat[i];\n" + //
 						"\n" + //
 						"			for (int j = 0; j < vLength; j++) {\n" + //
-						"				row[j] = sca * vec_v[j];\n" + //
+						"				mat[rowOffset + j] += sca * vec_v[j];\n" + //
 						"			}\n" + //
 						"		}\n", //
 						false, //
 						Arrays.<Param>asList( //
 								new Param("vec_u", "float[]"), //
 								new Param("vec_v", "float[]"), //
-								new Param("mat", "float[][]"), //
+								new Param("mat", "float[]"), //
+								new Param("offsetMat", "int"), //
 								new Param("uLength", "int"), //
 								new Param("vLength", "int") //
 						) //
@@ -320,17 +408,15 @@ class MethodTemplatesAccessible {
 						"	 * \n" + //
 						"	 * @param stddev standard deviation of the distribution to use\n" + //
 						"	 */\n", //
-						"	private static void assignGaussianMat(float[][] mat, float stddev, Random rnd, int rowCount, int colCount) {\n", //
-						"		for (int i = 0; i < rowCount; i++) {\n" + //
-						"			float[] row = mat[i];\n" + //
-						"\n" + //
-						"			for (int j = 0; j < colCount; j++) {\n" + //
-						"				row[j] = stddev * (float) rnd.nextGaussian();\n" + //
-						"			}\n" + //
+						"	public static void assignGaussianMat(float[] mat, int offsetMat, float stddev, Random rnd, int rowCount,\n" + //
+						"			int colCount) {\n", //
+						"		for (int k = 0; k < rowCount * colCount; k++) {\n" + //
+						"			mat[offsetMat + k] = stddev * (float) rnd.nextGaussian();\n" + //
 						"		}\n", //
 						false, //
 						Arrays.<Param>asList( //
-								new Param("mat", "float[][]"), //
+								new Param("mat", "float[]"), //
+								new Param("offsetMat", "int"), //
 								new Param("stddev", "float"), //
 								new Param("rnd", "Random"), //
 								new Param("rowCount", "int"), //
@@ -405,7 +491,7 @@ class MethodTemplatesAccessible {
 						"	 * @param grad_out result which is calculated: the gradient of the loss in\n" + //
 						"	 *                 respect to the predicted probability of category 0\n" + //
 						"	 */\n", //
-						"	private void crossEntropyLossGradient_twofoldClassification(float[] out, float[] target, float[] grad_out) {\n", //
+						"	public static void crossEntropyLossGradient_twofoldClassification(float[] out, float[] target, float[] grad_out) {\n", //
 						"		// gradient for cross entropy loss for twofold classification (aka binary\n" + //
 						"		// classification)\n" + //
 						"		grad_out[0] = (1.0f - target[0]) / (1.0f - out[0]) - target[0] / out[0];\n", //
@@ -434,7 +520,7 @@ class MethodTemplatesAccessible {
 						"	 * @param grad_out result which is calculated: the gradient of the loss in\n" + //
 						"	 *                 respect to the predicted probabilities\n" + //
 						"	 */\n", //
-						"	private void crossEntropyLossGradient_manifoldClassification(float[] out, float[] target, int length,\n" + //
+						"	public static void crossEntropyLossGradient_manifoldClassification(float[] out, float[] target, int length,\n" + //
 						"			float[] grad_out) {\n", //
 						"		// gradient for cross entropy loss for manifold classification (aka multinomial\n" + //
 						"		// classification)\n" + //
@@ -469,7 +555,7 @@ class MethodTemplatesAccessible {
 						"	 *                 respect to the values before the application of the sigmoid\n" + //
 						"	 *                 of category 0\n" + //
 						"	 */\n", //
-						"	private void sigmoidWithCrossEntropyLossGradient_twofoldClassification(float[] out, float[] target,\n" + //
+						"	public static void sigmoidWithCrossEntropyLossGradient_twofoldClassification(float[] out, float[] target,\n" + //
 						"			float[] grad_inp) {\n", //
 						"		// grad_out is skipped; grad_inp is calculated directly:\n" + //
 						"		// gradient for sigmoid with cross entropy loss for twofold classification (aka\n" + //
@@ -507,7 +593,7 @@ class MethodTemplatesAccessible {
 						"	 * @param grad_inp result which is calculated: the gradient of the loss in\n" + //
 						"	 *                 respect to the values before the application of the sigmoid\n" + //
 						"	 */\n", //
-						"	private void sigmoidWithCrossEntropyLossGradient_manifoldClassification(float[] out, float[] target, int length,\n" + //
+						"	public static void sigmoidWithCrossEntropyLossGradient_manifoldClassification(float[] out, float[] target, int length,\n" + //
 						"			float[] grad_inp) {\n", //
 						"		// grad_out is skipped; grad_inp is calculated directly:\n" + //
 						"		// gradient for sigmoid with cross entropy loss for manifold classification (aka\n" + //
@@ -551,7 +637,7 @@ class MethodTemplatesAccessible {
 						"	 * @param grad_inp result which is calculated: the gradient of the loss in\n" + //
 						"	 *                 respect to the values before the application of softmax\n" + //
 						"	 */\n", //
-						"	private void softmaxWithCrossEntropyLossGradient_manifoldClassification(float[] out, float[] target, int length,\n" + //
+						"	public static void softmaxWithCrossEntropyLossGradient_manifoldClassification(float[] out, float[] target, int length,\n" + //
 						"			float[] grad_inp) {\n", //
 						"		// grad_out is skipped; grad_inp is calculated directly:\n" + //
 						"		// gradient for softmax with cross entropy loss for manifold classification (aka\n" + //
@@ -579,36 +665,396 @@ class MethodTemplatesAccessible {
 						"	 * Multiplies matrix mat with vector inp, adds the bias vector and stores the\n" + //
 						"	 * result in out, i.e. calculates out = mat * inp + bias.\n" + //
 						"	 */\n", //
-						"	private static void mulMatVecPlusBias(float[][] mat, float[] inp, float[] bias, float[] out, int lengthOut,\n" + //
-						"			int lengthInp) {\n", //
+						"	public static void mulMatVecPlusBias(float[] mat, int offsetMat, float[] inp, float[] bias, int offsetBias,\n" + //
+						"			float[] out, int lengthOut, int lengthInp) {\n", //
 						"		for (int i = 0; i < lengthOut; i++) {\n" + //
-						"			float[] row = mat[i];\n" + //
+						"			int rowOffset = offsetMat + i * lengthInp;\n" + //
 						"\n" + //
 						"			float tmp = 0.0f;\n" + //
 						"\n" + //
 						"			for (int j = 0; j < lengthInp; j++) {\n" + //
-						"				tmp += row[j] * inp[j];\n" + //
+						"				tmp += mat[rowOffset + j] * inp[j];\n" + //
 						"			}\n" + //
 						"\n" + //
-						"			out[i] = tmp + bias[i];\n" + //
+						"			out[i] = tmp + bias[offsetBias + i];\n" + //
 						"		}\n", //
 						false, //
 						Arrays.<Param>asList( //
-								new Param("mat", "float[][]"), //
+								new Param("mat", "float[]"), //
+								new Param("offsetMat", "int"), //
 								new Param("inp", "float[]"), //
 								new Param("bias", "float[]"), //
+								new Param("offsetBias", "int"), //
 								new Param("out", "float[]"), //
 								new Param("lengthOut", "int"), //
 								new Param("lengthInp", "int") //
 						) //
 				) //
 		);
+		result.put( //
+				"mulMatVecPlusBiasUnrolled", //
+				new MethodSourceTemplate( //
+						"mulMatVecPlusBiasUnrolled", //
+						"\n" + //
+						"	/**\n" + //
+						"	 * Same as mulMatVecPlusBias, but sums up into four independent accumulators,\n" + //
+						"	 * see {@link de.a0h.minideeplearn.operation.MdlOperationConfig.KernelBackend}.\n" + //
+						"	 */\n", //
+						"	public static void mulMatVecPlusBiasUnrolled(float[] mat, int offsetMat, float[] inp, float[] bias,\n" + //
+						"			int offsetBias, float[] out, int lengthOut, int lengthInp) {\n", //
+						"		for (int i = 0; i < lengthOut; i++) {\n" + //
+						"			int rowOffset = offsetMat + i * lengthInp;\n" + //
+						"\n" + //
+						"			float acc0 = 0.0f;\n" + //
+						"			float acc1 = 0.0f;\n" + //
+						"			float acc2 = 0.0f;\n" + //
+						"			float acc3 = 0.0f;\n" + //
+						"\n" + //
+						"			int j = 0;\n" + //
+						"			for (; j <= lengthInp - 4; j += 4) {\n" + //
+						"				acc0 += mat[rowOffset + j] * inp[j];\n" + //
+						"				acc1 += mat[rowOffset + j + 1] * inp[j + 1];\n" + //
+						"				acc2 += mat[rowOffset + j + 2] * inp[j + 2];\n" + //
+						"				acc3 += mat[rowOffset + j + 3] * inp[j + 3];\n" + //
+						"			}\n" + //
+						"\n" + //
+						"			for (; j < lengthInp; j++) {\n" + //
+						"				acc0 += mat[rowOffset + j] * inp[j];\n" + //
+						"			}\n" + //
+						"\n" + //
+						"			out[i] = ((acc0 + acc1) + (acc2 + acc3)) + bias[offsetBias + i];\n" + //
+						"		}\n", //
+						false, //
+						Arrays.<Param>asList( //
+								new Param("mat", "float[]"), //
+								new Param("offsetMat", "int"), //
+								new Param("inp", "float[]"), //
+								new Param("bias", "float[]"), //
+								new Param("offsetBias", "int"), //
+								new Param("out", "float[]"), //
+								new Param("lengthOut", "int"), //
+								new Param("lengthInp", "int") //
+						) //
+				) //
+		);
+		result.put( //
+				"mulMatMatTransposedPlusBias", //
+				new MethodSourceTemplate( //
+						"mulMatMatTransposedPlusBias", //
+						"\n" + //
+						"	/**\n" + //
+						"	 * Batched version of mulMatVecPlusBias for the first rows of inpBatch, i.e.\n" + //
+						"	 * outBatch[r] = mat * inpBatch[r] + bias. The rows are processed in tiles of\n" + //
+						"	 * 16, so that every row of mat is used for a whole tile before it's evicted\n" + //
+						"	 * from the cache.\n" + //
+						"	 */\n", //
+						"	public static void mulMatMatTransposedPlusBias(float[] mat, int offsetMat, float[][] inpBatch, float[] bias,\n" + //
+						"			int offsetBias, float[][] outBatch, int rows, int lengthOut, int lengthInp) {\n", //
+						"		for (int r0 = 0; r0 < rows; r0 += 16) {\n" + //
+						"			int r1 = Math.min(r0 + 16, rows);\n" + //
+						"\n" + //
+						"			for (int i = 0; i < lengthOut; i++) {\n" + //
+						"				int rowOffset = offsetMat + i * lengthInp;\n" + //
+						"				float b = bias[offsetBias + i];\n" + //
+						"\n" + //
+						"				for (int r = r0; r < r1; r++) {\n" + //
+						"					float[] x = inpBatch[r];\n" + //
+						"\n" + //
+						"					float tmp = 0.0f;\n" + //
+						"					for (int j = 0; j < lengthInp; j++) {\n" + //
+						"						tmp += mat[rowOffset + j] * x[j];\n" + //
+						"					}\n" + //
+						"\n" + //
+						"					outBatch[r][i] = tmp + b;\n" + //
+						"				}\n" + //
+						"			}\n" + //
+						"		}\n", //
+						false, //
+						Arrays.<Param>asList( //
+								new Param("mat", "float[]"), //
+								new Param("offsetMat", "int"), //
+								new Param("inpBatch", "float[][]"), //
+								new Param("bias", "float[]"), //
+								new Param("offsetBias", "int"), //
+								new Param("outBatch", "float[][]"), //
+								new Param("rows", "int"), //
+								new Param("lengthOut", "int"), //
+								new Param("lengthInp", "int") //
+						) //
+				) //
+		);
+		result.put( //
+				"mulMatMatTransposedPlusBiasTanh", //
+				new MethodSourceTemplate( //
+						"mulMatMatTransposedPlusBiasTanh", //
+						"\n" + //
+						"	/**\n" + //
+						"	 * Same as mulMatMatTransposedPlusBias, fused with a following tanh\n" + //
+						"	 * activation. Stores the values before the activation in preBatch and the\n" + //
+						"	 * activated values in actBatch.\n" + //
+						"	 */\n", //
+						"	public static void mulMatMatTransposedPlusBiasTanh(float[] mat, int offsetMat, float[][] inpBatch,\n" + //
+						"			float[] bias, int offsetBias, float[][] preBatch, float[][] actBatch, int rows, int lengthOut,\n" + //
+						"			int lengthInp) {\n", //
+						"		for (int r0 = 0; r0 < rows; r0 += 16) {\n" + //
+						"			int r1 = Math.min(r0 + 16, rows);\n" + //
+						"\n" + //
+						"			for (int i = 0; i < lengthOut; i++) {\n" + //
+						"				int rowOffset = offsetMat + i * lengthInp;\n" + //
+						"				float b = bias[offsetBias + i];\n" + //
+						"\n" + //
+						"				for (int r = r0; r < r1; r++) {\n" + //
+						"					float[] x = inpBatch[r];\n" + //
+						"\n" + //
+						"					float tmp = 0.0f;\n" + //
+						"					for (int j = 0; j < lengthInp; j++) {\n" + //
+						"						tmp += mat[rowOffset + j] * x[j];\n" + //
+						"					}\n" + //
+						"					tmp += b;\n" + //
+						"\n" + //
+						"					preBatch[r][i] = tmp;\n" + //
+						"					actBatch[r][i] = (float) Math.tanh(tmp);\n" + //
+						"				}\n" + //
+						"			}\n" + //
+						"		}\n", //
+						false, //
+						Arrays.<Param>asList( //
+								new Param("mat", "float[]"), //
+								new Param("offsetMat", "int"), //
+								new Param("inpBatch", "float[][]"), //
+								new Param("bias", "float[]"), //
+								new Param("offsetBias", "int"), //
+								new Param("preBatch", "float[][]"), //
+								new Param("actBatch", "float[][]"), //
+								new Param("rows", "int"), //
+								new Param("lengthOut", "int"), //
+								new Param("lengthInp", "int") //
+						) //
+				) //
+		);
+		result.put( //
+				"mulMatMatTransposedPlusBiasSigmoid", //
+				new MethodSourceTemplate( //
+						"mulMatMatTransposedPlusBiasSigmoid", //
+						"\n" + //
+						"	/**\n" + //
+						"	 * Same as mulMatMatTransposedPlusBias, fused with a following sigmoid\n" + //
+						"	 * activation. Stores the values before the activation in preBatch and the\n" + //
+						"	 * activated values in actBatch.\n" + //
+						"	 */\n", //
+						"	public static void mulMatMatTransposedPlusBiasSigmoid(float[] mat, int offsetMat, float[][] inpBatch,\n" + //
+						"			float[] bias, int offsetBias, float[][] preBatch, float[][] actBatch, int rows, int lengthOut,\n" + //
+						"			int lengthInp) {\n", //
+						"		for (int r0 = 0; r0 < rows; r0 += 16) {\n" + //
+						"			int r1 = Math.min(r0 + 16, rows);\n" + //
+						"\n" + //
+						"			for (int i = 0; i < lengthOut; i++) {\n" + //
+						"				int rowOffset = offsetMat + i * lengthInp;\n" + //
+						"				float b = bias[offsetBias + i];\n" + //
+						"\n" + //
+						"				for (int r = r0; r < r1; r++) {\n" + //
+						"					float[] x = inpBatch[r];\n" + //
+						"\n" + //
+						"					float tmp = 0.0f;\n" + //
+						"					for (int j = 0; j < lengthInp; j++) {\n" + //
+						"						tmp += mat[rowOffset + j] * x[j];\n" + //
+						"					}\n" + //
+						"					tmp += b;\n" + //
+						"\n" + //
+						"					preBatch[r][i] = tmp;\n" + //
+						"					actBatch[r][i] = 1.0f / (1.0f + (float) Math.exp(-tmp));\n" + //
+						"				}\n" + //
+						"			}\n" + //
+						"		}\n", //
+						false, //
+						Arrays.<Param>asList( //
+								new Param("mat", "float[]"), //
+								new Param("offsetMat", "int"), //
+								new Param("inpBatch", "float[][]"), //
+								new Param("bias", "float[]"), //
+								new Param("offsetBias", "int"), //
+								new Param("preBatch", "float[][]"), //
+								new Param("actBatch", "float[][]"), //
+								new Param("rows", "int"), //
+								new Param("lengthOut", "int"), //
+								new Param("lengthInp", "int") //
+						) //
+				) //
+		);
+		result.put( //
+				"mulMatMatTransposedPlusBiasRelu", //
+				new MethodSourceTemplate( //
+						"mulMatMatTransposedPlusBiasRelu", //
+						"\n" + //
+						"	/**\n" + //
+						"	 * Same as mulMatMatTransposedPlusBias, fused with a following relu\n" + //
+						"	 * activation. Stores the values before the activation in preBatch and the\n" + //
+						"	 * activated values in actBatch.\n" + //
+						"	 */\n", //
+						"	public static void mulMatMatTransposedPlusBiasRelu(float[] mat, int offsetMat, float[][] inpBatch,\n" + //
+						"			float[] bias, int offsetBias, float[][] preBatch, float[][] actBatch, int rows, int lengthOut,\n" + //
+						"			int lengthInp) {\n", //
+						"		for (int r0 = 0; r0 < rows; r0 += 16) {\n" + //
+						"			int r1 = Math.min(r0 + 16, rows);\n" + //
+						"\n" + //
+						"			for (int i = 0; i < lengthOut; i++) {\n" + //
+						"				int rowOffset = offsetMat + i * lengthInp;\n" + //
+						"				float b = bias[offsetBias + i];\n" + //
+						"\n" + //
+						"				for (int r = r0; r < r1; r++) {\n" + //
+						"					float[] x = inpBatch[r];\n" + //
+						"\n" + //
+						"					float tmp = 0.0f;\n" + //
+						"					for (int j = 0; j < lengthInp; j++) {\n" + //
+						"						tmp += mat[rowOffset + j] * x[j];\n" + //
+						"					}\n" + //
+						"					tmp += b;\n" + //
+						"\n" + //
+						"					preBatch[r][i] = tmp;\n" + //
+						"					actBatch[r][i] = Math.max(0, tmp);\n" + //
+						"				}\n" + //
+						"			}\n" + //
+						"		}\n", //
+						false, //
+						Arrays.<Param>asList( //
+								new Param("mat", "float[]"), //
+								new Param("offsetMat", "int"), //
+								new Param("inpBatch", "float[][]"), //
+								new Param("bias", "float[]"), //
+								new Param("offsetBias", "int"), //
+								new Param("preBatch", "float[][]"), //
+								new Param("actBatch", "float[][]"), //
+								new Param("rows", "int"), //
+								new Param("lengthOut", "int"), //
+								new Param("lengthInp", "int") //
+						) //
+				) //
+		);
+		result.put( //
+				"mulMatTransposedMat", //
+				new MethodSourceTemplate( //
+						"mulMatTransposedMat", //
+						"\n" + //
+						"	/**\n" + //
+						"	 * Sums up the outer products of the first rows of aBatch and bBatch into the\n" + //
+						"	 * matrix mat, i.e. mat[i][j] = sum_r(aBatch[r][i] * bBatch[r][j]). This is the\n" + //
+						"	 * weights gradient of a dense layer for a whole batch. The rows are processed\n" + //
+						"	 * in tiles of 16.\n" + //
+						"	 */\n", //
+						"	public static void mulMatTransposedMat(float[][] aBatch, float[][] bBatch, float[] mat, int offsetMat, int rows,\n" + //
+						"			int lengthOut, int lengthInp) {\n", //
+						"		for (int k = 0; k < lengthOut * lengthInp; k++) {\n" + //
+						"			mat[offsetMat + k] = 0.0f;\n" + //
+						"		}\n" + //
+						"\n" + //
+						"		for (int r0 = 0; r0 < rows; r0 += 16) {\n" + //
+						"			int r1 = Math.min(r0 + 16, rows);\n" + //
+						"\n" + //
+						"			for (int i = 0; i < lengthOut; i++) {\n" + //
+						"				int rowOffset = offsetMat + i * lengthInp;\n" + //
+						"\n" + //
+						"				for (int r = r0; r < r1; r++) {\n" + //
+						"					float sca = aBatch[r][i];\n" + //
+						"					float[] y = bBatch[r];\n" + //
+						"\n" + //
+						"					for (int j = 0; j < lengthInp; j++) {\n" + //
+						"						mat[rowOffset + j] += sca * y[j];\n" + //
+						"					}\n" + //
+						"				}\n" + //
+						"			}\n" + //
+						"		}\n", //
+						false, //
+						Arrays.<Param>asList( //
+								new Param("aBatch", "float[][]"), //
+								new Param("bBatch", "float[][]"), //
+								new Param("mat", "float[]"), //
+								new Param("offsetMat", "int"), //
+								new Param("rows", "int"), //
+								new Param("lengthOut", "int"), //
+								new Param("lengthInp", "int") //
+						) //
+				) //
+		);
+		result.put( //
+				"mulMatMat", //
+				new MethodSourceTemplate( //
+						"mulMatMat", //
+						"\n" + //
+						"	/**\n" + //
+						"	 * Batched version of mulVecMat for the first rows of aBatch, i.e. outBatch[r] =\n" + //
+						"	 * aBatch[r] * mat. The rows are processed in tiles of 16.\n" + //
+						"	 */\n", //
+						"	public static void mulMatMat(float[][] aBatch, float[] mat, int offsetMat, float[][] outBatch, int rows,\n" + //
+						"			int lengthOut, int lengthInp) {\n", //
+						"		for (int r0 = 0; r0 < rows; r0 += 16) {\n" + //
+						"			int r1 = Math.min(r0 + 16, rows);\n" + //
+						"\n" + //
+						"			for (int r = r0; r < r1; r++) {\n" + //
+						"				for (int j = 0; j < lengthInp; j++) {\n" + //
+						"					outBatch[r][j] = 0.0f;\n" + //
+						"				}\n" + //
+						"			}\n" + //
+						"\n" + //
+						"			for (int i = 0; i < lengthOut; i++) {\n" + //
+						"				int rowOffset = offsetMat + i * lengthInp;\n" + //
+						"\n" + //
+						"				for (int r = r0; r < r1; r++) {\n" + //
+						"					float sca = aBatch[r][i];\n" + //
+						"					float[] y = outBatch[r];\n" + //
+						"\n" + //
+						"					for (int j = 0; j < lengthInp; j++) {\n" + //
+						"						y[j] += sca * mat[rowOffset + j];\n" + //
+						"					}\n" + //
+						"				}\n" + //
+						"			}\n" + //
+						"		}\n", //
+						false, //
+						Arrays.<Param>asList( //
+								new Param("aBatch", "float[][]"), //
+								new Param("mat", "float[]"), //
+								new Param("offsetMat", "int"), //
+								new Param("outBatch", "float[][]"), //
+								new Param("rows", "int"), //
+								new Param("lengthOut", "int"), //
+								new Param("lengthInp", "int") //
+						) //
+				) //
+		);
+		result.put( //
+				"sumRows", //
+				new MethodSourceTemplate( //
+						"sumRows", //
+						"\n" + //
+						"	/**\n" + //
+						"	 * Sums up the first rows of vecBatch into sum, starting at offsetSum, i.e.\n" + //
+						"	 * sum[j] = sum_r(vecBatch[r][j]).\n" + //
+						"	 */\n", //
+						"	public static void sumRows(float[][] vecBatch, float[] sum, int offsetSum, int rows, int length) {\n", //
+						"		for (int j = 0; j < length; j++) {\n" + //
+						"			sum[offsetSum + j] = 0.0f;\n" + //
+						"		}\n" + //
+						"\n" + //
+						"		for (int r = 0; r < rows; r++) {\n" + //
+						"			for (int j = 0; j < length; j++) {\n" + //
+						"				sum[offsetSum + j] += vecBatch[r][j];\n" + //
+						"			}\n" + //
+						"		}\n", //
+						false, //
+						Arrays.<Param>asList( //
+								new Param("vecBatch", "float[][]"), //
+								new Param("sum", "float[]"), //
+								new Param("offsetSum", "int"), //
+								new Param("rows", "int"), //
+								new Param("length", "int") //
+						) //
+				) //
+		);
 		result.put( //
 				"tanhVec", //
 				new MethodSourceTemplate( //
 						"tanhVec", //
 						"\n", //
-						"	private static void tanhVec(float[] inp, float[] out, int length) {\n", //
+						"	public static void tanhVec(float[] inp, float[] out, int length) {\n", //
 						"		for (int i = 0; i < length; i++) {\n" + //
 						"			out[i] = (float) Math.tanh(inp[i]);\n" + //
 						"		}\n", //
@@ -625,7 +1071,7 @@ class MethodTemplatesAccessible {
 				new MethodSourceTemplate( //
 						"tanhDerivativeVec", //
 						"\n", //
-						"	private static void tanhDerivativeVec(float[] grad_inp, float[] out, float[] grad_out, int length) {\n", //
+						"	public static void tanhDerivativeVec(float[] grad_inp, float[] out, float[] grad_out, int length) {\n", //
 						"		for (int i = 0; i < length; i++) {\n" + //
 						"			grad_inp[i] = (1.0f - out[i] * out[i]) * grad_out[i];\n" + //
 						"		}\n", //
@@ -643,7 +1089,7 @@ class MethodTemplatesAccessible {
 				new MethodSourceTemplate( //
 						"sigmoidVec", //
 						"\n", //
-						"	private static void sigmoidVec(float[] inp, float[] out, int length) {\n", //
+						"	public static void sigmoidVec(float[] inp, float[] out, int length) {\n", //
 						"		for (int i = 0; i < length; i++) {\n" + //
 						"			out[i] = 1.0f / (1.0f + (float) Math.exp(-inp[i]));\n" + //
 						"		}\n", //
@@ -660,7 +1106,7 @@ class MethodTemplatesAccessible {
 				new MethodSourceTemplate( //
 						"sigmoidDerivativeVec", //
 						"\n", //
-						"	private static void sigmoidDerivativeVec(float[] grad_inp, float[] out, float[] grad_out, int length) {\n", //
+						"	public static void sigmoidDerivativeVec(float[] grad_inp, float[] out, float[] grad_out, int length) {\n", //
 						"		for (int i = 0; i < length; i++) {\n" + //
 						"			grad_inp[i] = (out[i] * (1.0f - out[i])) * grad_out[i];\n" + //
 						"		}\n", //
@@ -678,7 +1124,7 @@ class MethodTemplatesAccessible {
 				new MethodSourceTemplate( //
 						"softmaxVec", //
 						"\n", //
-						"	private static void softmaxVec(float[] inp, float[] out, int length) {\n", //
+						"	public static void softmaxVec(float[] inp, float[] out, int length) {\n", //
 						"		{\n" + //
 						"			float max = Float.NEGATIVE_INFINITY;\n" + //
 						"			for (int i = 0; i < length; i++) {\n" + //
@@ -708,7 +1154,7 @@ class MethodTemplatesAccessible {
 				new MethodSourceTemplate( //
 						"softmaxDerivativeVec", //
 						"\n", //
-						"	private static void softmaxDerivativeVec(float[] grad_inp, float[] inp, float[] grad_out, int length) {\n", //
+						"	public static void softmaxDerivativeVec(float[] grad_inp, float[] inp, float[] grad_out, int length) {\n", //
 						"		if (Math.random() <= 1.0f) {\n" + //
 						"			throw new UnsupportedOperationException(\n" + //
 						"					\"sole softmax derivative is not supported. Use a combined softmax instead, e.g. SoftmaxWithCrossEntropyLoss.\");\n" + //
@@ -727,7 +1173,7 @@ class MethodTemplatesAccessible {
 				new MethodSourceTemplate( //
 						"softplusVec", //
 						"\n", //
-						"	private static void softplusVec(float[] inp, float[] out, int length) {\n", //
+						"	public static void softplusVec(float[] inp, float[] out, int length) {\n", //
 						"		for (int i = 0; i < length; i++) {\n" + //
 						"			out[i] = (float) Math.log1p(Math.exp(inp[i]));\n" + //
 						"		}\n", //
@@ -744,7 +1190,7 @@ class MethodTemplatesAccessible {
 				new MethodSourceTemplate( //
 						"softplusDerivativeVec", //
 						"\n", //
-						"	private static void softplusDerivativeVec(float[] grad_inp, float[] inp, float[] grad_out, int length) {\n", //
+						"	public static void softplusDerivativeVec(float[] grad_inp, float[] inp, float[] grad_out, int length) {\n", //
 						"		for (int i = 0; i < length; i++) {\n" + //
 						"			grad_inp[i] = grad_out[i] / (1.0f + (float) Math.exp(-inp[i]));\n" + //
 						"		}\n", //
@@ -762,7 +1208,7 @@ class MethodTemplatesAccessible {
 				new MethodSourceTemplate( //
 						"reluVec", //
 						"\n", //
-						"	private static void reluVec(float[] inp, float[] out, int length) {\n", //
+						"	public static void reluVec(float[] inp, float[] out, int length) {\n", //
 						"		for (int i = 0; i < length; i++) {\n" + //
 						"			out[i] = Math.max(0, inp[i]);\n" + //
 						"		}\n", //
@@ -779,7 +1225,7 @@ class MethodTemplatesAccessible {
 				new MethodSourceTemplate( //
 						"reluDerivativeVec", //
 						"\n", //
-						"	private static void reluDerivativeVec(float[] grad_inp, float[] inp, float[] grad_out, int length) {\n", //
+						"	public static void reluDerivativeVec(float[] grad_inp, float[] inp, float[] grad_out, int length) {\n", //
 						"		for (int i = 0; i < length; i++) {\n" + //
 						"			grad_inp[i] = (inp[i] >= 0) ? grad_out[i] : 0.0f;\n" + //
 						"		}\n", //
@@ -797,7 +1243,7 @@ class MethodTemplatesAccessible {
 				new MethodSourceTemplate( //
 						"swishVec", //
 						"\n", //
-						"	private static void swishVec(float[] inp, float[] sig, float[] out, int length) {\n", //
+						"	public static void swishVec(float[] inp, float[] sig, float[] out, int length) {\n", //
 						"		for (int i = 0; i < length; i++) {\n" + //
 						"			sig[i] = 1.0f / (1.0f + (float) Math.exp(-inp[i]));\n" + //
 						"			out[i] = sig[i] * inp[i];\n" + //
@@ -816,7 +1262,7 @@ class MethodTemplatesAccessible {
 				new MethodSourceTemplate( //
 						"swishDerivativeVec", //
 						"\n", //
-						"	private static void swishDerivativeVec(float[] grad_inp, float[] out, float[] sig, float[] grad_out, int length) {\n", //
+						"	public static void swishDerivativeVec(float[] grad_inp, float[] out, float[] sig, float[] grad_out, int length) {\n", //
 						"		for (int i = 0; i < length; i++) {\n" + //
 						"			grad_inp[i] = (out[i] + sig[i] * (1.0f - out[i])) * grad_out[i];\n" + //
 						"		}\n", //
@@ -835,20 +1281,20 @@ class MethodTemplatesAccessible {
 				new MethodSourceTemplate( //
 						"toStringBuilderMat", //
 						"\n", //
-						"	protected static StringBuilder toStringBuilderMat(float[][] mat, StringBuilder buf, int indentSpaces,\n" + //
-						"			DecimalFormat format) {\n", //
+						"	protected static StringBuilder toStringBuilderMat(float[] mat, int offsetMat, int rowCount, int colCount,\n" + //
+						"			StringBuilder buf, int indentSpaces, DecimalFormat format) {\n", //
 						"		buf.append(\"[\");\n" + //
 						"\n" + //
 						"		String indent = SPACES.substring(0, indentSpaces + 1);\n" + //
 						"\n" + //
-						"		for (int i = 0; i < mat.length; i++) {\n" + //
+						"		for (int i = 0; i < rowCount; i++) {\n" + //
 						"			if (i > 0) {\n" + //
 						"				buf.append(indent);\n" + //
 						"			}\n" + //
 						"\n" + //
-						"			toStringBuilderVec(mat[i], buf, format);\n" + //
+						"			toStringBuilderVecAt(mat, offsetMat + i * colCount, colCount, buf, format);\n" + //
 						"\n" + //
-						"			if (i < mat.length - 1) {\n" + //
+						"			if (i < rowCount - 1) {\n" + //
 						"				buf.append(\"\\n\");\n" + //
 						"			}\n" + //
 						"		}\n" + //
@@ -858,7 +1304,10 @@ class MethodTemplatesAccessible {
 						"		return buf;\n", //
 						false, //
 						Arrays.<Param>asList( //
-								new Param("mat", "float[][]"), //
+								new Param("mat", "float[]"), //
+								new Param("offsetMat", "int"), //
+								new Param("rowCount", "int"), //
+								new Param("colCount", "int"), //
 								new Param("buf", "StringBuilder"), //
 								new Param("indentSpaces", "int"), //
 								new Param("format", "DecimalFormat") //
@@ -892,6 +1341,36 @@ class MethodTemplatesAccessible {
 						) //
 				) //
 		);
+		result.put( //
+				"toStringBuilderVecAt", //
+				new MethodSourceTemplate( //
+						"toStringBuilderVecAt", //
+						"\n", //
+						"	protected static StringBuilder toStringBuilderVecAt(float[] vec, int offset, int length, StringBuilder buf,\n" + //
+						"			DecimalFormat format) {\n", //
+						"		buf.append(\"[\");\n" + //
+						"\n" + //
+						"		for (int i = 0; i < length; i++) {\n" + //
+						"			toStringBuilderSca(vec[offset + i], buf, format);\n" + //
+						"\n" + //
+						"			if (i < length - 1) {\n" + //
+						"				buf.append(\" \");\n" + //
+						"			}\n" + //
+						"		}\n" + //
+						"\n" + //
+						"		buf.append(\"]\");\n" + //
+						"\n" + //
+						"		return buf;\n", //
+						false, //
+						Arrays.<Param>asList( //
+								new Param("vec", "float[]"), //
+								new Param("offset", "int"), //
+								new Param("length", "int"), //
+								new Param("buf", "StringBuilder"), //
+								new Param("format", "DecimalFormat") //
+						) //
+				) //
+		);
 		result.put( //
 				"toStringBuilderSca", //
 				new MethodSourceTemplate( //
@@ -15,6 +15,9 @@ import java.util.function.Consumer;
 
 import de.a0h.javatemplater.JavaSource;
 import de.a0h.javatemplater.MethodSourceTemplate;
+import de.a0h.minideeplearn.operation.ExecutionContext;
+import de.a0h.minideeplearn.operation.MdlOperationConfig;
+import de.a0h.minideeplearn.operation.MdlOperationConfig.KernelBackend;
 import de.a0h.minideeplearn.operation.Operation;
 import de.a0h.minideeplearn.operation.OperationUtil;
 import de.a0h.minideeplearn.operation.activation.ActivationFunction;
@@ -33,6 +36,10 @@ import de.a0h.minideeplearn.operation.loss.CrossEntropyLoss;
 import de.a0h.minideeplearn.operation.loss.LossFunction;
 import de.a0h.minideeplearn.operation.loss.SigmoidWithCrossEntropyLoss;
 import de.a0h.minideeplearn.operation.loss.SoftmaxWithCrossEntropyLoss;
+import de.a0h.minideeplearn.operation.optimizer.UpdateRule;
+import de.a0h.minideeplearn.operation.profiling.OperationProfile;
+import de.a0h.minideeplearn.operation.profiling.Profiled;
+import de.a0h.minideeplearn.operation.profiling.ProfiledMethod;
 
 public class OperationToJavaCompiler {
 
@@ -43,6 +50,12 @@ public class OperationToJavaCompiler {
 
 		public boolean inlineLinalgOps;
 
+		public KernelBackend kernelBackend;
+
+		public boolean batchedCode;
+
+		public boolean profilingCounters;
+
 		public StringBuilder outBuf;
 		public Formatter out;
 
@@ -51,6 +64,7 @@ public class OperationToJavaCompiler {
 		public int storageVecCount = 0;
 		public String storageVecFormat;
 		public int storageVecIdx;
+		public ArrayList<Integer> storageVecSizes = new ArrayList<>();
 
 		public int paramMatCount = 0;
 		public String paramMatFormat;
@@ -60,10 +74,18 @@ public class OperationToJavaCompiler {
 		public String paramVecFormat;
 		public int paramVecIdx;
 
+		public int paramCount = 0;
+		public int paramOffset;
+
+		// if not null, template calls are emitted as bytecode instead of source
+		public KernelClassWriter kernelWriter;
+		public boolean accumulateGradient;
+
 		public void resetVariableIndices() {
 			storageVecIdx = 0;
 			paramMatIdx = -1;
 			paramVecIdx = -1;
+			paramOffset = 0;
 		}
 
 		HashMap<String, MethodSourceTemplate> methodTemplates = MethodTemplatesAccessible.getMethods();
@@ -71,6 +93,49 @@ public class OperationToJavaCompiler {
 		HashSet<String> methodDependencies = new HashSet<>();
 	}
 
+	/**
+	 * See {@link #setBatchedCode(boolean)}.
+	 */
+	protected boolean batchedCode = false;
+
+	public boolean isBatchedCode() {
+		return batchedCode;
+	}
+
+	/**
+	 * If batchedCode is true, the generated calcOutputBatch() and
+	 * calcGradientBatch() process the whole batch layer by layer with tiled matrix
+	 * products, and dense layers are fused with a following activation function.
+	 * Otherwise, they evaluate the single-sample code for every row of the batch,
+	 * which needs less memory. Operations without output are always compiled the
+	 * latter way.
+	 */
+	public void setBatchedCode(boolean batchedCode) {
+		this.batchedCode = batchedCode;
+	}
+
+	/**
+	 * See {@link #setProfilingCounters(boolean)}.
+	 */
+	protected boolean profilingCounters = false;
+
+	public boolean isProfilingCounters() {
+		return profilingCounters;
+	}
+
+	/**
+	 * If profilingCounters is true, the generated class implements
+	 * {@link Profiled} and records the calls of its calcOutput, calcLoss,
+	 * calcGradient and learn methods in its profile, including the batched
+	 * variants. A batched variant which evaluates the single-sample code row by row
+	 * records one call per row. The operations are fused in the generated code, so
+	 * there is one profile for the whole class. Nothing is recorded unless
+	 * {@link MdlOperationConfig#PROFILING} is true.
+	 */
+	public void setProfilingCounters(boolean profilingCounters) {
+		this.profilingCounters = profilingCounters;
+	}
+
 	public StringBuilder compile(Operation src) {
 		return compile(src, false);
 	}
@@ -110,6 +175,9 @@ public class OperationToJavaCompiler {
 		}
 
 		compi.inlineLinalgOps = inlineVecOps;
+		compi.kernelBackend = MdlOperationConfig.kernelBackend;
+		compi.batchedCode = batchedCode && src.hasOutput();
+		compi.profilingCounters = profilingCounters;
 
 		compi.dstInfo.importList.add(Arrays.class.getName());
 		compi.dstInfo.importList.add(DecimalFormat.class.getName());
@@ -117,25 +185,29 @@ public class OperationToJavaCompiler {
 		compi.dstInfo.importList.add(Locale.class.getName());
 		compi.dstInfo.importList.add(Random.class.getName());
 		compi.dstInfo.importList.add(null);
+		compi.dstInfo.importList.add(ExecutionContext.class.getName());
 		compi.dstInfo.importList.add(Operation.class.getName());
 		compi.dstInfo.importList.add(Gradient.class.getName());
-		if (!src.hasLoss() || !src.hasOutput()) {
-			compi.dstInfo.importList.add(OperationUtil.class.getName());
+		compi.dstInfo.importList.add(UpdateRule.class.getName());
+		compi.dstInfo.importList.add(OperationUtil.class.getName());
+		if (compi.profilingCounters) {
+			compi.dstInfo.importList.add(MdlOperationConfig.class.getName());
+			compi.dstInfo.importList.add(OperationProfile.class.getName());
+			compi.dstInfo.importList.add(Profiled.class.getName());
+			compi.dstInfo.importList.add(ProfiledMethod.class.getName());
+		}
+
+		String interfaces = Operation.class.getSimpleName();
+		if (compi.profilingCounters) {
+			interfaces += ", " + Profiled.class.getSimpleName();
 		}
 
 		compi.dstInfo.caption = String.format( //
 				"public class %s implements %s {\n", //
-				compi.dstInfo.simpleClassName, Operation.class.getSimpleName());
+				compi.dstInfo.simpleClassName, interfaces);
 
 		initVariableCounts(compi);
-
-		int maxDigits;
-		maxDigits = Integer.toString(compi.storageVecCount).length();
-		compi.storageVecFormat = "a%0" + maxDigits + "d";
-		maxDigits = Integer.toString(compi.paramMatCount - 1).length();
-		compi.paramMatFormat = "w%0" + maxDigits + "d";
-		maxDigits = Integer.toString(compi.paramVecCount - 1).length();
-		compi.paramVecFormat = "b%0" + maxDigits + "d";
+		initVariableFormats(compi);
 
 		compileJavaFile(compi);
 
@@ -144,6 +216,49 @@ public class OperationToJavaCompiler {
 		return dstBuf;
 	}
 
+	/**
+	 * Compiles the forward and the backward pass of src directly to the bytecode of
+	 * a class implementing {@link CompiledKernels}, without a javac round-trip. The
+	 * code generation is the same as for calcOutput() and calcGradient() of the
+	 * java source, just that every template call is emitted as a call of the
+	 * corresponding public static method of {@link MethodTemplates}. Hence, the
+	 * results are exactly the same as the ones of the non-inlined java source.
+	 */
+	public byte[] compileKernels(Operation src, String dstClassName) {
+		Compilation compi = new Compilation();
+
+		compi.src = src;
+		compi.flattenedSrc = flatten(src);
+
+		// the generated comments are not needed
+		compi.outBuf = new StringBuilder();
+		compi.out = new Formatter(compi.outBuf);
+
+		compi.kernelBackend = MdlOperationConfig.kernelBackend;
+		compi.kernelWriter = new KernelClassWriter(dstClassName);
+
+		initVariableCounts(compi);
+		initVariableFormats(compi);
+		initKernelConstants(compi);
+
+		compi.kernelWriter.beginMethod("calcOutput", KernelClassWriter.CALC_OUTPUT_DESCRIPTOR);
+		compileInlineCalcOutput(compi);
+		compi.kernelWriter.endMethod();
+
+		compi.kernelWriter.beginMethod("calcGradient", KernelClassWriter.CALC_GRADIENT_DESCRIPTOR);
+		compileInlineCalcGradient(compi, false);
+		compi.kernelWriter.endMethod();
+
+		compi.accumulateGradient = true;
+		compi.kernelWriter.beginMethod("accumulateGradient", KernelClassWriter.CALC_GRADIENT_DESCRIPTOR);
+		compileInlineCalcGradient(compi, false);
+		compi.kernelWriter.endMethod();
+
+		compi.out.close();
+
+		return compi.kernelWriter.toByteArray();
+	}
+
 	public static void upChar(StringBuilder buf, int idx) {
 		char c = buf.charAt(idx);
 		c = Character.toUpperCase(c);
@@ -181,20 +296,28 @@ public class OperationToJavaCompiler {
 	}
 
 	private void initVariableCounts(Compilation compi) {
+		compi.storageVecSizes.add(compi.src.getInputSize());
+
 		for (Operation op : compi.flattenedSrc) {
 			if (op instanceof Dense) {
 				compi.storageVecCount++;
+				compi.storageVecSizes.add(op.getOutputSize());
 				compi.paramMatCount++;
 				compi.paramVecCount++;
+				compi.paramCount += op.getParamCount();
 
 			} else if (op instanceof Swish) {
 				compi.storageVecCount += 2;
+				compi.storageVecSizes.add(op.getInputSize());
+				compi.storageVecSizes.add(op.getInputSize());
 
 			} else if (op instanceof CombinedLossFunction) {
 				compi.storageVecCount++;
+				compi.storageVecSizes.add(op.getInputSize());
 
 			} else if (op instanceof ActivationFunction) {
 				compi.storageVecCount++;
+				compi.storageVecSizes.add(op.getInputSize());
 
 			} else if (op instanceof LossFunction) {
 				// no additional variables needed
@@ -207,22 +330,81 @@ public class OperationToJavaCompiler {
 		}
 	}
 
+	private void initVariableFormats(Compilation compi) {
+		int maxDigits;
+		maxDigits = Integer.toString(compi.storageVecCount).length();
+		compi.storageVecFormat = "a%0" + maxDigits + "d";
+		maxDigits = Integer.toString(compi.paramMatCount - 1).length();
+		compi.paramMatFormat = "W%0" + maxDigits + "d";
+		maxDigits = Integer.toString(compi.paramVecCount - 1).length();
+		compi.paramVecFormat = "B%0" + maxDigits + "d";
+	}
+
+	/**
+	 * Defines the offsets of the weights matrices and bias vectors in the kernel
+	 * writer, i.e. the values of the constants W* and B* of the java source.
+	 */
+	private void initKernelConstants(Compilation compi) {
+		compi.resetVariableIndices();
+
+		for (Operation op : compi.flattenedSrc) {
+			if (op instanceof Dense) {
+				int inpSize = op.getInputSize();
+				int outSize = op.getOutputSize();
+
+				String mat = String.format(compi.paramMatFormat, ++compi.paramMatIdx);
+				compi.kernelWriter.putConstant(mat, compi.paramOffset);
+				compi.paramOffset += outSize * inpSize;
+
+				String bias = String.format(compi.paramVecFormat, ++compi.paramVecIdx);
+				compi.kernelWriter.putConstant(bias, compi.paramOffset);
+				compi.paramOffset += outSize;
+			}
+		}
+	}
+
 	private void compileJavaFile(Compilation compi) {
 		generateJavaFileLeadingCode(compi);
 
 		compileVariableDeclarations(compi);
 
+		compileConstructor(compi);
+		compileParamSharingConstructor(compi);
+		compileCreateParamSharingCopy(compi);
+		compileCreateContext(compi);
+		if (compi.profilingCounters) {
+			compileGetProfile(compi);
+		}
+		compileGetParamCount(compi, "	");
+		compileGetParams(compi, "	");
+		compileGetParamsOffset(compi, "	");
+		compileBindParams(compi, "	");
 		compileInitParams(compi);
 		compileGetInputSize(compi);
 		compileHasOutput(compi);
 		compileGetOutputSize(compi);
 		compileCalcOutput(compi);
+		compileCalcOutputWithContext(compi);
 		compileGetOutput(compi);
+		if (compi.batchedCode) {
+			compileCalcOutputBatchLayerwise(compi);
+			compileEnsureBatchCapacity(compi, "	", "protected", 1);
+		} else {
+			compileCalcOutputBatch(compi);
+		}
+		compileGetOutputBatch(compi);
 		compileHasLoss(compi);
 		compileCalcLoss(compi);
 		compileGetLoss(compi);
+		compileCalcLossBatch(compi);
+		compileGetLossBatch(compi);
 		compileCreateGradient(compi);
 		compileCalcGradient(compi);
+		if (compi.batchedCode) {
+			compileCalcGradientBatchLayerwise(compi);
+		} else {
+			compileCalcGradientBatch(compi);
+		}
 		compileLearn(compi);
 		compileGetTypeShortname(compi);
 		compileToString(compi);
@@ -326,6 +508,148 @@ public class OperationToJavaCompiler {
 		compi.out.format("	}\n");
 	}
 
+	private void compileCalcOutputBatch(Compilation compi) {
+		Formatter aut = compi.out;
+
+		aut.format("\n");
+		aut.format("	@Override\n");
+		aut.format("	public float[][] calcOutputBatch(float[][] inp, int rows) {\n");
+
+		if (compi.src.hasOutput()) {
+			int outSize = compi.src.getOutputSize();
+
+			aut.format("		if (outBatch.length < rows) {\n");
+			aut.format("			outBatch = new float[rows][%d];\n", outSize);
+			aut.format("		}\n");
+			aut.format("\n");
+			aut.format("		for (int r = 0; r < rows; r++) {\n");
+			aut.format("			System.arraycopy(calcOutput(inp[r]), 0, outBatch[r], 0, %d);\n", outSize);
+			aut.format("		}\n");
+			aut.format("\n");
+			aut.format("		return outBatch;\n");
+		} else {
+			aut.format("		throwOutputNotProvidedException(\"%s\");\n", compi.src.getClass().getName());
+			aut.format("		return null;\n");
+
+			compi.methodDependencies.add("throwOutputNotProvidedException");
+		}
+
+		aut.format("	}\n");
+	}
+
+	/**
+	 * Generates a batched forward pass which evaluates the whole batch layer by
+	 * layer. Dense layers use tiled matrix products and are fused with a following
+	 * tanh, sigmoid or relu activation.
+	 */
+	private void compileCalcOutputBatchLayerwise(Compilation compi) {
+		Formatter aut = compi.out;
+
+		aut.format("\n");
+		aut.format("	@Override\n");
+		aut.format("	public float[][] calcOutputBatch(float[][] inp, int rows) {\n");
+		compileProfilingStart(compi);
+		aut.format("		ensureBatchCapacity(rows);\n");
+
+		compi.resetVariableIndices();
+
+		Chain flattenedSrc = compi.flattenedSrc;
+		for (int i = 0; i < flattenedSrc.size(); i++) {
+			Operation op = flattenedSrc.get(i);
+
+			aut.format("\n");
+			aut.format("		// %s\n", op.toStringWithLayout());
+
+			String inpName = String.format(compi.storageVecFormat, compi.storageVecIdx) + "Batch";
+			if (compi.storageVecIdx == 0) {
+				inpName = "inp";
+			}
+			String inpSize = Integer.toString(op.getInputSize());
+
+			if (op instanceof Dense) {
+				String outName = String.format(compi.storageVecFormat, ++compi.storageVecIdx) + "Batch";
+				String matName = String.format(compi.paramMatFormat, ++compi.paramMatIdx);
+				String biasName = String.format(compi.paramVecFormat, ++compi.paramVecIdx);
+				String outSize = Integer.toString(op.getOutputSize());
+
+				String fusedTemplateName = null;
+				if (i + 1 < flattenedSrc.size()) {
+					fusedTemplateName = getFusedDenseTemplateName(flattenedSrc.get(i + 1));
+				}
+
+				if (fusedTemplateName != null) {
+					Operation activation = flattenedSrc.get(++i);
+					aut.format("		// %s, fused\n", activation.toStringWithLayout());
+
+					String actName = String.format(compi.storageVecFormat, ++compi.storageVecIdx) + "Batch";
+					compileTemplate(compi, "", fusedTemplateName, //
+							"params", paramIdx(matName), inpName, "params", paramIdx(biasName), outName, actName,
+							"rows", outSize, inpSize);
+				} else {
+					compileTemplate(compi, "", "mulMatMatTransposedPlusBias", //
+							"params", paramIdx(matName), inpName, "params", paramIdx(biasName), outName, "rows",
+							outSize, inpSize);
+				}
+
+			} else if (op instanceof ActivationFunction) {
+				compileRowLoopStart(compi, true);
+				compileActivation(compi, "\t", op, inpName + "[r]", "%sBatch[r]");
+				compileRowLoopEnd(compi, true);
+
+			} else if (op instanceof CrossEntropyLoss) {
+				// no output calculated for a pure loss operation
+
+			} else {
+				throwUnsupportedOperationException(op);
+			}
+		}
+
+		aut.format("\n");
+		aut.format("		outBatch = " + compi.storageVecFormat + "Batch;\n", compi.storageVecIdx);
+		compileProfilingEnd(compi, ProfiledMethod.CALC_OUTPUT);
+		aut.format("		return outBatch;\n");
+		aut.format("	}\n");
+	}
+
+	/**
+	 * Generates a method which makes sure that the batch matrices of all storage
+	 * vectors, starting at firstIdx, have at least the specified number of rows.
+	 */
+	private void compileEnsureBatchCapacity(Compilation compi, String indent, String modifier, int firstIdx) {
+		Formatter aut = compi.out;
+
+		aut.format("\n");
+		aut.format(indent + "%s void ensureBatchCapacity(int rows) {\n", modifier);
+		aut.format(indent + "	if (" + compi.storageVecFormat + "Batch.length >= rows) {\n", firstIdx);
+		aut.format(indent + "		return;\n");
+		aut.format(indent + "	}\n");
+		aut.format("\n");
+
+		for (int idx = firstIdx; idx <= compi.storageVecCount; idx++) {
+			aut.format(indent + "	" + compi.storageVecFormat + "Batch = new float[rows][%d];\n", idx,
+					compi.storageVecSizes.get(idx));
+		}
+
+		aut.format(indent + "}\n");
+	}
+
+	private void compileGetOutputBatch(Compilation compi) {
+		compi.out.format("\n");
+		compi.out.format("	@Override\n");
+		compi.out.format("	public float[][] getOutputBatch() {\n");
+
+		if (compi.src.hasOutput()) {
+			compi.out.format("		return outBatch;\n");
+		} else {
+			compi.out.format("		throwOutputNotProvidedException(\"%s\");\n", compi.src.getClass().getName());
+			compi.out.format("		return null;\n");
+
+			compi.methodDependencies.add("throwOutputNotProvidedException");
+		}
+
+		compi.out.format("	}\n");
+	}
+
 	private void compileHasLoss(Compilation compi) {
 		compi.out.format("\n");
 		compi.out.format("	@Override\n");
@@ -348,7 +672,9 @@ public class OperationToJavaCompiler {
 					lastOp instanceof SoftmaxWithCrossEntropyLoss //
 			) {
 				String predictedName = String.format(compi.storageVecFormat, compi.storageVecCount);
-				compileCrossEntropyLoss(compi, predictedName, "target", "loss");
+				compileProfilingStart(compi);
+				compileCrossEntropyLoss(compi, "", predictedName, "target", "loss");
+				compileProfilingEnd(compi, ProfiledMethod.CALC_LOSS);
 				compi.out.format("\n");
 				compi.out.format("		return loss;\n");
 
@@ -384,7 +710,76 @@ public class OperationToJavaCompiler {
 		compi.out.format("	}\n");
 	}
 
-	private void compileCalcGradient(Compilation compi) {
+	private void compileCalcLossBatch(Compilation compi) {
+		Formatter aut = compi.out;
+
+		aut.format("\n");
+		aut.format("	@Override\n");
+		aut.format("	public float[] calcLossBatch(float[][] inp, float[][] target, int rows) {\n");
+
+		if (compi.src.hasLoss()) {
+			Operation lastOp = compi.flattenedSrc.getLast();
+
+			if (false || //
+					lastOp instanceof CrossEntropyLoss || //
+					lastOp instanceof SigmoidWithCrossEntropyLoss || //
+					lastOp instanceof SoftmaxWithCrossEntropyLoss //
+			) {
+				String predictedName = compi.src.hasOutput() ? "outBatch[r]" : "inp[r]";
+
+				compileProfilingStart(compi);
+				aut.format("		if (lossBatch.length < rows) {\n");
+				aut.format("			lossBatch = new float[rows];\n");
+				aut.format("		}\n");
+				aut.format("\n");
+				aut.format("		for (int r = 0; r < rows; r++) {\n");
+				compileCrossEntropyLoss(compi, "\t", predictedName, "target[r]", "loss");
+				aut.format("\n");
+				aut.format("			lossBatch[r] = loss;\n");
+				aut.format("		}\n");
+				compileProfilingEnd(compi, ProfiledMethod.CALC_LOSS);
+				aut.format("\n");
+				aut.format("		return lossBatch;\n");
+
+			} else {
+				throwUnsupportedOperationException(lastOp);
+
+			}
+
+		} else {
+			aut.format("		throwLossNotProvidedException(\"%s\");\n", compi.src.getClass().getName());
+			aut.format("		return null;\n");
+
+			compi.methodDependencies.add("throwLossNotProvidedException");
+		}
+
+		aut.format("	}\n");
+	}
+
+	private void compileGetLossBatch(Compilation compi) {
+		compi.out.format("\n");
+		compi.out.format("	@Override\n");
+		compi.out.format("	public float[] getLossBatch() {\n");
+
+		if (compi.src.hasLoss()) {
+			compi.out.format("		return lossBatch;\n");
+		} else {
+			compi.out.format("		throwLossNotProvidedException(\"%s\");\n", compi.src.getClass().getName());
+			compi.out.format("		return null;\n");
+
+			compi.methodDependencies.add("throwLossNotProvidedException");
+		}
+
+		compi.out.format("	}\n");
+	}
+
+	/**
+	 * Generates a batched gradient calculation which evaluates the compiled
+	 * single-sample code for every row of the batch, because the single-sample
+	 * activations are overwritten by the following sample. The parameter gradients
+	 * of the samples are accumulated directly in the batch gradient.
+	 */
+	private void compileCalcGradientBatch(Compilation compi) {
 		String target_or_upstream_grad_of_out_name;
 		if (compi.src.hasLoss()) {
 			target_or_upstream_grad_of_out_name = "target";
@@ -392,15 +787,73 @@ public class OperationToJavaCompiler {
 			target_or_upstream_grad_of_out_name = "grad_backprop";
 		}
 
+		String inpGradBatchName = String.format(compi.storageVecFormat, 0) + "Batch";
+		String inpGradName = String.format(compi.storageVecFormat, 0);
+		int inpSize = compi.src.getInputSize();
+
 		Formatter aut = compi.out;
 
 		aut.format("\n");
 		aut.format("	@Override\n");
-		aut.format("	public void calcGradient( //\n");
-		aut.format("			float[] inp, //\n");
-		aut.format("			float[] %s, //\n", target_or_upstream_grad_of_out_name);
+		aut.format("	public void calcGradientBatch( //\n");
+		aut.format("			float[][] inp, //\n");
+		aut.format("			float[][] %s, //\n", target_or_upstream_grad_of_out_name);
+		aut.format("			int rows, //\n");
+		aut.format("			Gradient grad_ //\n");
+		aut.format("	) {\n");
+		compileGradientCast(compi);
+		aut.format("\n");
+		aut.format("		if (grad.%s.length < rows) {\n", inpGradBatchName);
+		aut.format("			grad.%s = new float[rows][%d];\n", inpGradBatchName, inpSize);
+		aut.format("		}\n");
+		aut.format("\n");
+		aut.format("		grad.clear();\n");
+		aut.format("\n");
+		aut.format("		for (int r = 0; r < rows; r++) {\n");
+		aut.format("			calcOutput(inp[r]);\n");
+		aut.format("			calcGradient(inp[r], %s[r], grad, true);\n", target_or_upstream_grad_of_out_name);
+		aut.format("			System.arraycopy(grad.%s, 0, grad.%s[r], 0, %d);\n", inpGradName, inpGradBatchName,
+				inpSize);
+		aut.format("		}\n");
+		aut.format("	}\n");
+	}
+
+	/**
+	 * Generates a batched gradient calculation which backpropagates the whole batch
+	 * layer by layer, using the batch storage filled by calcOutputBatch().
+	 */
+	private void compileCalcGradientBatchLayerwise(Compilation compi) {
+		String target_or_upstream_grad_of_out_name;
+		if (compi.src.hasLoss()) {
+			target_or_upstream_grad_of_out_name = "target";
+		} else {
+			target_or_upstream_grad_of_out_name = "grad_backprop";
+		}
+
+		Formatter aut = compi.out;
+
+		aut.format("\n");
+		aut.format("	@Override\n");
+		aut.format("	public void calcGradientBatch( //\n");
+		aut.format("			float[][] inp, //\n");
+		aut.format("			float[][] %s, //\n", target_or_upstream_grad_of_out_name);
+		aut.format("			int rows, //\n");
 		aut.format("			Gradient grad_ //\n");
 		aut.format("	) {\n");
+		compileProfilingStart(compi);
+		compileGradientCast(compi);
+		aut.format("\n");
+		aut.format("		grad.ensureBatchCapacity(rows);\n");
+
+		compileInlineCalcGradient(compi, true);
+
+		compileProfilingEnd(compi, ProfiledMethod.CALC_GRADIENT);
+		aut.format("	}\n");
+	}
+
+	private void compileGradientCast(Compilation compi) {
+		Formatter aut = compi.out;
+
 		aut.format("		CompiledGradient grad;\n");
 		aut.format("		try {\n");
 		aut.format("			grad = (CompiledGradient) grad_;\n");
@@ -411,6 +864,60 @@ public class OperationToJavaCompiler {
 		aut.format("					\"but it is a \" + //\n");
 		aut.format("					grad_.getClass().getName(), e);\n");
 		aut.format("		}\n");
+	}
+
+	private void compileCalcGradient(Compilation compi) {
+		String target_or_upstream_grad_of_out_name;
+		if (compi.src.hasLoss()) {
+			target_or_upstream_grad_of_out_name = "target";
+		} else {
+			target_or_upstream_grad_of_out_name = "grad_backprop";
+		}
+
+		Formatter aut = compi.out;
+
+		aut.format("\n");
+		aut.format("	@Override\n");
+		aut.format("	public void calcGradient( //\n");
+		aut.format("			float[] inp, //\n");
+		aut.format("			float[] %s, //\n", target_or_upstream_grad_of_out_name);
+		aut.format("			Gradient grad_ //\n");
+		aut.format("	) {\n");
+		aut.format("		calcGradient(inp, %s, grad_, false);\n", target_or_upstream_grad_of_out_name);
+		aut.format("	}\n");
+
+		aut.format("\n");
+		aut.format("	@Override\n");
+		aut.format("	public void calcGradient( //\n");
+		aut.format("			float[] inp, //\n");
+		aut.format("			float[] %s, //\n", target_or_upstream_grad_of_out_name);
+		aut.format("			Gradient grad_, //\n");
+		aut.format("			boolean accumulate //\n");
+		aut.format("	) {\n");
+		compileProfilingStart(compi);
+		compileGradientCast(compi);
+
+		compileInlineCalcGradient(compi, false);
+
+		compileProfilingEnd(compi, ProfiledMethod.CALC_GRADIENT);
+		aut.format("	}\n");
+	}
+
+	/**
+	 * Generates the backward pass. In batched mode, the dense layers process the
+	 * whole batch at once, while the other operations are evaluated row by row in
+	 * a loop over r.
+	 */
+	private void compileInlineCalcGradient(Compilation compi, boolean batched) {
+		Formatter aut = compi.out;
+
+		String rowIndent = batched ? "\t" : "";
+		String rowFormat = batched ? "%sBatch[r]" : "%s";
+		String inpRow = batched ? "inp[r]" : "inp";
+		String targetRow = compi.src.hasLoss() ? "target" : "grad_backprop";
+		if (batched) {
+			targetRow += "[r]";
+		}
 
 		compi.storageVecIdx = compi.storageVecCount;
 		compi.paramMatIdx = compi.paramMatCount - 1;
@@ -424,36 +931,50 @@ public class OperationToJavaCompiler {
 
 			aut.format("\n");
 			aut.format("		// %s\n", op.toStringWithLayout());
+			compileRowLoopStart(compi, batched);
 
-			String outName = String.format(compi.storageVecFormat, compi.storageVecIdx--);
-			String inpName = String.format(compi.storageVecFormat, compi.storageVecIdx);
+			String outName = String.format(rowFormat, String.format(compi.storageVecFormat, compi.storageVecIdx--));
+			String inpName = String.format(rowFormat, String.format(compi.storageVecFormat, compi.storageVecIdx));
 			String inpSize = Integer.toString(op.getInputSize());
 
 			if (op instanceof SigmoidWithCrossEntropyLoss) {
 				if (op.getInputSize() == 1) {
-					compileTemplate(compi, "", "sigmoidWithCrossEntropyLossGradient_twofoldClassification", outName,
-							"target", "grad." + inpName);
+					compileTemplate(compi, rowIndent, "sigmoidWithCrossEntropyLossGradient_twofoldClassification",
+							outName, targetRow, "grad." + inpName);
 				} else {
-					compileTemplate(compi, "", "sigmoidWithCrossEntropyLossGradient_manifoldClassification", outName,
-							"target", inpSize, "grad." + inpName);
+					compileTemplate(compi, rowIndent, "sigmoidWithCrossEntropyLossGradient_manifoldClassification",
+							outName, targetRow, inpSize, "grad." + inpName);
 				}
 
 			} else if (op instanceof SoftmaxWithCrossEntropyLoss) {
-				compileTemplate(compi, "", "softmaxWithCrossEntropyLossGradient_manifoldClassification", outName,
-						"target", inpSize, "grad." + inpName);
+				compileTemplate(compi, rowIndent, "softmaxWithCrossEntropyLossGradient_manifoldClassification",
+						outName, targetRow, inpSize, "grad." + inpName);
 
 			} else if (op instanceof CrossEntropyLoss) {
 				if (op.getInputSize() == 1) {
-					compileTemplate(compi, "", "crossEntropyLossGradient_twofoldClassification", outName, "target",
-							"grad." + outName);
+					compileTemplate(compi, rowIndent, "crossEntropyLossGradient_twofoldClassification", outName,
+							targetRow, "grad." + outName);
 				} else {
-					compileTemplate(compi, "", "crossEntropyLossGradient_manifoldClassification", outName, "target",
-							inpSize, "grad." + outName);
+					compileTemplate(compi, rowIndent, "crossEntropyLossGradient_manifoldClassification", outName,
+							targetRow, inpSize, "grad." + outName);
 				}
 
-			} else {
-				throwUnsupportedOperationException(op);
-			}
+			} else {
+				throwUnsupportedOperationException(op);
+			}
+
+			compileRowLoopEnd(compi, batched);
+
+		} else {
+			aut.format("\n");
+			aut.format("		// upstream gradient of the output\n");
+			compileRowLoopStart(compi, batched);
+
+			String outName = String.format(rowFormat, String.format(compi.storageVecFormat, compi.storageVecIdx));
+			String outSize = Integer.toString(compi.src.getOutputSize());
+			compileTemplate(compi, rowIndent, "assignVecVec", targetRow, "grad." + outName, outSize);
+
+			compileRowLoopEnd(compi, batched);
 		}
 
 		for (; i >= 0; i--) {
@@ -464,51 +985,86 @@ public class OperationToJavaCompiler {
 
 			String out = String.format(compi.storageVecFormat, compi.storageVecIdx);
 			String inp = String.format(compi.storageVecFormat, --compi.storageVecIdx);
-			String gradOut = "grad." + out;
-			String gradInp = "grad." + inp;
 			String outLength = Integer.toString(op.getOutputSize());
 			String inpLength = Integer.toString(op.getInputSize());
-			if (compi.storageVecIdx == 0) {
-				inp = "inp";
-			}
 
 			if (op instanceof Dense) {
 				String mat = String.format(compi.paramMatFormat, compi.paramMatIdx--);
-				String gradMat = "grad." + mat;
-				String gradBias = "grad." + String.format(compi.paramVecFormat, compi.paramVecIdx--);
-				compileTemplate(compi, "", "outerProduct", gradOut, inp, gradMat, outLength, inpLength);
-				compileTemplate(compi, "", "mulVecMat", gradOut, mat, gradInp, outLength, inpLength);
-				compileTemplate(compi, "", "assignVecVec", gradOut, gradBias, outLength);
+				String bias = String.format(compi.paramVecFormat, compi.paramVecIdx--);
+
+				if (batched) {
+					String gradOutBatch = "grad." + out + "Batch";
+					String gradInpBatch = "grad." + inp + "Batch";
+					String inpBatch = (compi.storageVecIdx == 0) ? "inp" : inp + "Batch";
+					compileTemplate(compi, "", "mulMatTransposedMat", gradOutBatch, inpBatch, "grad.params",
+							gradParamIdx(mat), "rows", outLength, inpLength);
+					compileTemplate(compi, "", "sumRows", gradOutBatch, "grad.params", gradParamIdx(bias), "rows",
+							outLength);
+					compileTemplate(compi, "", "mulMatMat", gradOutBatch, "params", paramIdx(mat), gradInpBatch,
+							"rows", outLength, inpLength);
 
-			} else if (op instanceof Tanh) {
-				compileTemplate(compi, "", "tanhDerivativeVec", gradInp, out, gradOut, inpLength);
+				} else {
+					String gradOut = "grad." + out;
+					String gradInp = "grad." + inp;
+					if (compi.storageVecIdx == 0) {
+						inp = "inp";
+					}
 
-			} else if (op instanceof Sigmoid) {
-				compileTemplate(compi, "", "sigmoidDerivativeVec", gradInp, out, gradOut, inpLength);
+					if (compi.kernelWriter != null) {
+						// straight-line bytecode, so the mode is decided at compile time
+						compileDenseParamGradient(compi, "", compi.accumulateGradient, //
+								gradOut, inp, mat, bias, outLength, inpLength);
+					} else {
+						aut.format("		if (accumulate) {\n");
+						compileDenseParamGradient(compi, "\t", true, gradOut, inp, mat, bias, outLength, inpLength);
+						aut.format("		} else {\n");
+						compileDenseParamGradient(compi, "\t", false, gradOut, inp, mat, bias, outLength, inpLength);
+						aut.format("		}\n");
+					}
+					compileTemplate(compi, "", "mulVecMat", gradOut, "params", paramIdx(mat), gradInp, outLength,
+							inpLength);
+				}
 
-			} else if (op instanceof Softplus) {
-				compileTemplate(compi, "", "softplusDerivativeVec", gradInp, inp, gradOut, inpLength);
+			} else if (op instanceof ActivationFunction) {
+				compileRowLoopStart(compi, batched);
 
-			} else if (op instanceof Relu) {
-				compileTemplate(compi, "", "reluDerivativeVec", gradInp, inp, gradOut, inpLength);
+				String outRow = String.format(rowFormat, out);
+				String gradOut = "grad." + String.format(rowFormat, out);
+				String gradInp = "grad." + String.format(rowFormat, inp);
+				String inpName = (compi.storageVecIdx == 0) ? inpRow : String.format(rowFormat, inp);
 
-			} else if (op instanceof Identity) {
-				compileTemplate(compi, "", "assignVecVec", gradOut, gradInp, inpLength);
+				if (op instanceof Tanh) {
+					compileTemplate(compi, rowIndent, "tanhDerivativeVec", gradInp, outRow, gradOut, inpLength);
 
-			} else if (op instanceof Swish) {
-				String sig = inp;
-				inp = String.format(compi.storageVecFormat, --compi.storageVecIdx);
-				gradInp = "grad." + inp;
-				compileTemplate(compi, "", "swishDerivativeVec", gradInp, out, sig, gradOut, inpLength);
+				} else if (op instanceof Sigmoid) {
+					compileTemplate(compi, rowIndent, "sigmoidDerivativeVec", gradInp, outRow, gradOut, inpLength);
 
-			} else if (op instanceof Softmax) {
-				compileTemplate(compi, "", "softmaxDerivativeVec", gradInp, inp, gradOut, inpLength);
+				} else if (op instanceof Softplus) {
+					compileTemplate(compi, rowIndent, "softplusDerivativeVec", gradInp, inpName, gradOut, inpLength);
 
-			} else if (op instanceof CombinedLossFunction) {
-				throw new UnsupportedOperationException("not yet implemented: " + op.getClass().getName());
+				} else if (op instanceof Relu) {
+					compileTemplate(compi, rowIndent, "reluDerivativeVec", gradInp, inpName, gradOut, inpLength);
 
-			} else if (op instanceof ActivationFunction) {
-				throw new UnsupportedOperationException("not yet implemented: " + op.getClass().getName());
+				} else if (op instanceof Identity) {
+					compileTemplate(compi, rowIndent, "assignVecVec", gradOut, gradInp, inpLength);
+
+				} else if (op instanceof Swish) {
+					String sig = inpName;
+					inp = String.format(compi.storageVecFormat, --compi.storageVecIdx);
+					gradInp = "grad." + String.format(rowFormat, inp);
+					compileTemplate(compi, rowIndent, "swishDerivativeVec", gradInp, outRow, sig, gradOut, inpLength);
+
+				} else if (op instanceof Softmax) {
+					compileTemplate(compi, rowIndent, "softmaxDerivativeVec", gradInp, inpName, gradOut, inpLength);
+
+				} else if (op instanceof CombinedLossFunction) {
+					throw new UnsupportedOperationException("not yet implemented: " + op.getClass().getName());
+
+				} else {
+					throw new UnsupportedOperationException("not yet implemented: " + op.getClass().getName());
+				}
+
+				compileRowLoopEnd(compi, batched);
 
 			} else if (op instanceof LossFunction) {
 				// nothing to do for pure loss function
@@ -517,8 +1073,37 @@ public class OperationToJavaCompiler {
 				throwUnsupportedOperationException(op);
 			}
 		}
+	}
 
-		aut.format("	}\n");
+	/**
+	 * Generates the calculation of the weights and bias gradients of a dense layer
+	 * for a single sample, either overwriting or accumulating them.
+	 */
+	private void compileDenseParamGradient(Compilation compi, String indentPrefix, boolean accumulate,
+			String gradOut, String inp, String mat, String bias, String outLength, String inpLength) {
+		if (accumulate) {
+			compileTemplate(compi, indentPrefix, "outerProductAdd", gradOut, inp, "grad.params", gradParamIdx(mat),
+					outLength, inpLength);
+			compileTemplate(compi, indentPrefix, "addVecVecAt", gradOut, "grad.params", gradParamIdx(bias),
+					outLength);
+		} else {
+			compileTemplate(compi, indentPrefix, "outerProduct", gradOut, inp, "grad.params", gradParamIdx(mat),
+					outLength, inpLength);
+			compileTemplate(compi, indentPrefix, "assignVecVecAt", gradOut, "grad.params", gradParamIdx(bias),
+					outLength);
+		}
+	}
+
+	private void compileRowLoopStart(Compilation compi, boolean batched) {
+		if (batched) {
+			compi.out.format("		for (int r = 0; r < rows; r++) {\n");
+		}
+	}
+
+	private void compileRowLoopEnd(Compilation compi, boolean batched) {
+		if (batched) {
+			compi.out.format("		}\n");
+		}
 	}
 
 	private void compileInitParams(Compilation compi) {
@@ -543,8 +1128,9 @@ public class OperationToJavaCompiler {
 				String mat = String.format(compi.paramMatFormat, ++compi.paramMatIdx);
 				String bias = String.format(compi.paramVecFormat, ++compi.paramVecIdx);
 				out.format("		%s = 2.0f / (%s + %s);\n", xavierFactor, inpSize, outSize);
-				compileTemplate(compi, "", "assignGaussianMat", mat, xavierFactor, rnd, outSize, inpSize);
-				compileTemplate(compi, "", "assignVecSca", bias, "0.0f", outSize);
+				compileTemplate(compi, "", "assignGaussianMat", "params", paramIdx(mat), xavierFactor, rnd, outSize,
+						inpSize);
+				compileTemplate(compi, "", "assignVecScaAt", "params", paramIdx(bias), "0.0f", outSize);
 
 			} else if (op instanceof CombinedLossFunction) {
 			} else if (op instanceof ActivationFunction) {
@@ -559,6 +1145,118 @@ public class OperationToJavaCompiler {
 		out.format("	}\n");
 	}
 
+	private void compileConstructor(Compilation compi) {
+		compi.out.format("\n");
+		compi.out.format("	public %s() {\n", compi.dstInfo.simpleClassName);
+		compi.out.format("		params = new float[%d];\n", compi.paramCount);
+		if (compi.profilingCounters) {
+			compi.out.format("		profile = new OperationProfile(\"%s\");\n", compi.dstInfo.simpleClassName);
+		}
+		compi.out.format("	}\n");
+	}
+
+	private void compileParamSharingConstructor(Compilation compi) {
+		String paramSrc = "paramSrc";
+
+		compi.out.format("\n");
+		compi.out.format("	// shares the learnable parameters with %s, but has its own storage\n", paramSrc);
+		compi.out.format("	protected %s(%s %s) {\n", compi.dstInfo.simpleClassName, compi.dstInfo.simpleClassName,
+				paramSrc);
+		compi.out.format("		params = %s.params;\n", paramSrc);
+		compi.out.format("		paramsOffset = %s.paramsOffset;\n", paramSrc);
+		if (compi.profilingCounters) {
+			compi.out.format("		profile = %s.profile;\n", paramSrc);
+		}
+		compi.out.format("	}\n");
+	}
+
+	private void compileCreateParamSharingCopy(Compilation compi) {
+		compi.out.format("\n");
+		compi.out.format("	@Override\n");
+		compi.out.format("	public %s createParamSharingCopy() {\n", compi.dstInfo.simpleClassName);
+		compi.out.format("		return new %s(this);\n", compi.dstInfo.simpleClassName);
+		compi.out.format("	}\n");
+	}
+
+	private void compileCreateContext(Compilation compi) {
+		compi.out.format("\n");
+		compi.out.format("	@Override\n");
+		compi.out.format("	public ExecutionContext createContext() {\n");
+		compi.out.format("		return new ExecutionContext(this);\n");
+		compi.out.format("	}\n");
+	}
+
+	private void compileGetProfile(Compilation compi) {
+		compi.out.format("\n");
+		compi.out.format("	@Override\n");
+		compi.out.format("	public OperationProfile getProfile() {\n");
+		compi.out.format("		return profile;\n");
+		compi.out.format("	}\n");
+	}
+
+	/**
+	 * Generates the start of the profiling of a method, if profiling counters are
+	 * enabled, see {@link #compileProfilingEnd(Compilation, ProfiledMethod)}.
+	 */
+	private void compileProfilingStart(Compilation compi) {
+		if (!compi.profilingCounters) {
+			return;
+		}
+
+		compi.out.format("" + //
+				"		long profileStartBytes = " + //
+				"MdlOperationConfig.PROFILING ? OperationProfile.getAllocatedBytes() : 0;\n");
+		compi.out.format("		long profileStartTime = MdlOperationConfig.PROFILING ? System.nanoTime() : 0;\n");
+		compi.out.format("\n");
+	}
+
+	private void compileProfilingEnd(Compilation compi, ProfiledMethod method) {
+		if (!compi.profilingCounters) {
+			return;
+		}
+
+		compi.out.format("\n");
+		compi.out.format("		if (MdlOperationConfig.PROFILING) {\n");
+		compi.out.format("			profile.record(ProfiledMethod.%s, profileStartTime, profileStartBytes);\n", method.name());
+		compi.out.format("		}\n");
+	}
+
+	private void compileGetParamCount(Compilation compi, String indent) {
+		compi.out.format("\n");
+		compi.out.format("%s@Override\n", indent);
+		compi.out.format("%spublic int getParamCount() {\n", indent);
+		compi.out.format("%s	return %d;\n", indent, compi.paramCount);
+		compi.out.format("%s}\n", indent);
+	}
+
+	private void compileGetParams(Compilation compi, String indent) {
+		compi.out.format("\n");
+		compi.out.format("%s@Override\n", indent);
+		compi.out.format("%spublic float[] getParams() {\n", indent);
+		compi.out.format("%s	return params;\n", indent);
+		compi.out.format("%s}\n", indent);
+	}
+
+	private void compileGetParamsOffset(Compilation compi, String indent) {
+		compi.out.format("\n");
+		compi.out.format("%s@Override\n", indent);
+		compi.out.format("%spublic int getParamsOffset() {\n", indent);
+		compi.out.format("%s	return paramsOffset;\n", indent);
+		compi.out.format("%s}\n", indent);
+	}
+
+	private void compileBindParams(Compilation compi, String indent) {
+		compi.out.format("\n");
+		compi.out.format("%s@Override\n", indent);
+		compi.out.format("%spublic void bindParams(float[] params, int offset) {\n", indent);
+		compi.out.format("%s	System.arraycopy(this.params, paramsOffset, params, offset, %d);\n", indent,
+				compi.paramCount);
+		compi.out.format("\n");
+		compi.out.format("%s	this.params = params;\n", indent);
+		compi.out.format("%s	paramsOffset = offset;\n", indent);
+		compi.out.format("%s}\n", indent);
+	}
+
 	private void compileCreateGradient(Compilation compi) {
 		compi.out.format("\n");
 		compi.out.format("	@Override\n");
@@ -584,7 +1282,7 @@ public class OperationToJavaCompiler {
 	}
 
 	private void compileToStringWithLayout(Compilation compi) {
-		String str = compi.src.toStringWithLayout();
+		String str = compi.flattenedSrc.toStringWithLayout();
 		str = str.replace(" ", " \" + //\n				\"");
 
 		compi.out.format("\n");
@@ -652,10 +1350,10 @@ public class OperationToJavaCompiler {
 
 		String storageVecFormat = "		toStringBuilderVec(" + //
 				compi.storageVecFormat + ", buf, format).append(\"\\n\");\n";
-		String paramMatFormat = "		toStringBuilderMat(" + //
-				compi.paramMatFormat + ", buf, indent + 13, format).append(\"\\n\");\n";
-		String paramVecFormat = "		toStringBuilderVec(" + //
-				compi.paramVecFormat + ", buf, format).append(\"\\n\");\n";
+		String paramMatFormat = "		toStringBuilderMat(params, paramsOffset + " + //
+				compi.paramMatFormat + ", %d, %d, buf, indent + 13, format).append(\"\\n\");\n";
+		String paramVecFormat = "		toStringBuilderVecAt(params, paramsOffset + " + //
+				compi.paramVecFormat + ", %d, buf, format).append(\"\\n\");\n";
 
 		compi.resetVariableIndices();
 		for (Operation op : compi.flattenedSrc) {
@@ -665,16 +1363,17 @@ public class OperationToJavaCompiler {
 			if (op instanceof Dense) {
 				aut.format("		buf.append(\"\\n\");\n");
 				aut.format("		buf.append(indentSpaces).append(\"    weights: \");\n");
-				aut.format(paramMatFormat, ++compi.paramMatIdx);
+				aut.format(paramMatFormat, ++compi.paramMatIdx, op.getOutputSize(), op.getInputSize());
 
 				aut.format("		buf.append(indentSpaces).append(\"    bias   : \");\n");
-				aut.format(paramVecFormat, ++compi.paramVecIdx);
+				aut.format(paramVecFormat, ++compi.paramVecIdx, op.getOutputSize());
 
 				aut.format("		buf.append(indentSpaces).append(\"    out    : \");\n");
 				aut.format(storageVecFormat, ++compi.storageVecIdx);
 
 				compi.methodDependencies.add("toStringBuilderMat");
 				compi.methodDependencies.add("toStringBuilderVec");
+				compi.methodDependencies.add("toStringBuilderVecAt");
 				compi.methodDependencies.add("toStringBuilderSca");
 
 			} else if (op instanceof Swish) {
@@ -720,74 +1419,44 @@ public class OperationToJavaCompiler {
 		aut.format("\n");
 		aut.format("	@Override\n");
 		aut.format("	public void learn(Gradient grad_, float negLearningRate) {\n");
-		aut.format("		CompiledGradient grad;\n");
-		aut.format("		try {\n");
-		aut.format("			grad = (CompiledGradient) grad_;\n");
-		aut.format("		} catch (ClassCastException e) {\n");
-		aut.format("			throw new IllegalArgumentException(\"\" + //\n");
-		aut.format("					\"grad_ must be of type \" + //\n");
-		aut.format("					\"%s.CompiledGradient, \" + //\n", compi.dstInfo.getClassName());
-		aut.format("					\"but it is a \" + //\n");
-		aut.format("					grad_.getClass().getName(), e);\n");
-		aut.format("		}\n");
-
-		Consumer<int[]> storageVecCodeGenerator = new Consumer<int[]>() {
-			public void accept(int[] args) {
-			}
-		};
-
-		Consumer<int[]> paramMatCodeGenerator = new Consumer<int[]>() {
-			public void accept(int[] args) {
-				int idx = args[0];
-				String outSize = "" + args[1];
-				String inpSize = "" + args[2];
-				String varName = String.format(compi.paramMatFormat, idx);
-				compileTemplate(compi, "", "mulAddMatSca", "grad." + varName, "negLearningRate", varName, outSize,
-						inpSize);
-			}
-		};
-
-		Consumer<int[]> paramVecCodeGenerator = new Consumer<int[]>() {
-			public void accept(int[] args) {
-				int idx = args[0];
-				String inpSize = "" + args[1];
-				String varName = String.format(compi.paramVecFormat, idx);
-				compileTemplate(compi, "", "mulAddVecSca", "grad." + varName, "negLearningRate", varName, inpSize);
-			}
-		};
+		compileProfilingStart(compi);
+		compileGradientCast(compi);
 
-		Consumer<String> commentCodeGenerator = new Consumer<String>() {
-			public void accept(String comment) {
-				aut.format("\t\t// %s\n", comment);
-			}
-		};
+		aut.format("\n");
+		aut.format("		// all parameters at once\n");
+		aut.format("		OperationUtil.mulAdd(grad.params, grad.paramsOffset, negLearningRate, params, paramsOffset, %d);\n",
+				compi.paramCount);
 
-		compi.resetVariableIndices();
+		compileProfilingEnd(compi, ProfiledMethod.LEARN);
+		aut.format("	}\n");
 
 		aut.format("\n");
+		aut.format("	@Override\n");
+		aut.format("	public void learn(Gradient grad_, float gradScale, UpdateRule rule) {\n");
+		compileProfilingStart(compi);
+		compileGradientCast(compi);
 
-		compileVariableHandling( //
-				compi, //
-				storageVecCodeGenerator, //
-				paramMatCodeGenerator, //
-				paramVecCodeGenerator, //
-				commentCodeGenerator //
-		);
+		aut.format("\n");
+		aut.format("		// all parameters at once\n");
+		aut.format("		rule.update(grad.params, grad.paramsOffset, gradScale, params, paramsOffset, %d);\n",
+				compi.paramCount);
 
+		compileProfilingEnd(compi, ProfiledMethod.LEARN);
 		aut.format("	}\n");
 	}
 
-	private void compileCrossEntropyLoss(Compilation compi, String predictedName, String targetName, String lossName) {
+	private void compileCrossEntropyLoss(Compilation compi, String indentPrefix, String predictedName,
+			String targetName, String lossName) {
 		int outSize = compi.src.getOutputSize();
 
 		if (outSize == 1) {
-			compileTemplate(compi, "", "crossEntropyLoss_twofoldClassification", //
+			compileTemplate(compi, indentPrefix, "crossEntropyLoss_twofoldClassification", //
 					predictedName, targetName, lossName);
 
 		} else {
 			String lengthName = Integer.toString(outSize);
 
-			compileTemplate(compi, "", "crossEntropyLoss_manifoldClassification", //
+			compileTemplate(compi, indentPrefix, "crossEntropyLoss_manifoldClassification", //
 					predictedName, targetName, lengthName, lossName);
 
 		}
@@ -797,10 +1466,21 @@ public class OperationToJavaCompiler {
 		compi.resetVariableIndices();
 
 		String commentFormat = "	// %s\n";
-		String paramMatFormat = "	public final float[][] " + compi.paramMatFormat + " = new float[%d][%d];\n";
-		String paramVecFormat = "	public final float[] " + compi.paramVecFormat + " = new float[%d];\n";
+		String paramMatFormat = "	public static final int " + compi.paramMatFormat + " = %d;\n";
+		String paramVecFormat = "	public static final int " + compi.paramVecFormat + " = %d;\n";
 		String storageVecFormat = "	public final float[] " + compi.storageVecFormat + " = new float[%d];\n";
 
+		compi.out.format("	// all learnable parameters in one vector, starting at paramsOffset. the weights\n");
+		compi.out.format("	// matrices and the bias vectors are stored at the relative offsets %s and %s\n", //
+				compi.paramMatFormat.replaceAll("%.*d", "*"), compi.paramVecFormat.replaceAll("%.*d", "*"));
+		compi.out.format("	public float[] params;\n");
+		compi.out.format("	public int paramsOffset;\n");
+		if (compi.profilingCounters) {
+			compi.out.format("\n");
+			compi.out.format("	// see %s.setProfilingCounters()\n", getClass().getSimpleName());
+			compi.out.format("	public final OperationProfile profile;\n");
+		}
+
 		compileVariableHandling( //
 				compi, //
 				storageVecFormat, //
@@ -812,6 +1492,20 @@ public class OperationToJavaCompiler {
 		if (compi.src.hasLoss()) {
 			compi.out.format("	public float loss;\n");
 		}
+
+		compi.out.format("\n");
+		compi.out.format("	// batch storage\n");
+		if (compi.src.hasOutput()) {
+			compi.out.format("	public float[][] outBatch = new float[0][];\n");
+		}
+		if (compi.src.hasLoss()) {
+			compi.out.format("	public float[] lossBatch = new float[0];\n");
+		}
+		if (compi.batchedCode) {
+			for (int idx = 1; idx <= compi.storageVecCount; idx++) {
+				compi.out.format("	public float[][] " + compi.storageVecFormat + "Batch = new float[0][];\n", idx);
+			}
+		}
 	}
 
 	private void compileVariableHandling( //
@@ -829,8 +1523,10 @@ public class OperationToJavaCompiler {
 
 			if (op instanceof Dense) {
 				int outSize = op.getOutputSize();
-				compi.out.format(paramMatFormat, ++compi.paramMatIdx, outSize, inpSize);
-				compi.out.format(paramVecFormat, ++compi.paramVecIdx, outSize);
+				compi.out.format(paramMatFormat, ++compi.paramMatIdx, compi.paramOffset, outSize, inpSize);
+				compi.paramOffset += outSize * inpSize;
+				compi.out.format(paramVecFormat, ++compi.paramVecIdx, compi.paramOffset, outSize);
+				compi.paramOffset += outSize;
 				compi.out.format(storageVecFormat, ++compi.storageVecIdx, outSize);
 
 			} else if (op instanceof Swish) {
@@ -893,13 +1589,23 @@ public class OperationToJavaCompiler {
 		compi.out.format("\n");
 		compi.out.format("	@Override\n");
 		compi.out.format("	public float[] calcOutput(float[] " + compi.storageVecFormat + ") {\n", 0);
+		compileProfilingStart(compi);
 
 		compileInlineCalcOutput(compi);
 
+		compileProfilingEnd(compi, ProfiledMethod.CALC_OUTPUT);
 		compi.out.format("		return " + compi.storageVecFormat + ";\n", compi.storageVecIdx);
 		compi.out.format("	}\n");
 	}
 
+	private void compileCalcOutputWithContext(Compilation compi) {
+		compi.out.format("\n");
+		compi.out.format("	@Override\n");
+		compi.out.format("	public float[] calcOutput(ExecutionContext ctx, float[] inp) {\n");
+		compi.out.format("		return ctx.getStorage(this).calcOutput(inp);\n");
+		compi.out.format("	}\n");
+	}
+
 	private void compileInlineCalcOutput(Compilation compi) {
 		compi.resetVariableIndices();
 
@@ -914,50 +1620,96 @@ public class OperationToJavaCompiler {
 				String matName = String.format(compi.paramMatFormat, ++compi.paramMatIdx);
 				String biasName = String.format(compi.paramVecFormat, ++compi.paramVecIdx);
 				String outSize = Integer.toString(op.getOutputSize());
-				compileTemplate(compi, "", "mulMatVecPlusBias", //
-						matName, inpName, biasName, outName, outSize, inpSize);
+				String templateName = (compi.kernelBackend == KernelBackend.UNROLLED) ? //
+						"mulMatVecPlusBiasUnrolled" : "mulMatVecPlusBias";
+				compileTemplate(compi, "", templateName, //
+						"params", paramIdx(matName), inpName, "params", paramIdx(biasName), outName, outSize,
+						inpSize);
 
 			} else if (op instanceof ActivationFunction) {
-				String outName = String.format(compi.storageVecFormat, ++compi.storageVecIdx);
+				compileActivation(compi, "", op, inpName, "%s");
 
-				if (op instanceof Tanh) {
-					compileTemplate(compi, "", "tanhVec", inpName, outName, inpSize);
+			} else if (op instanceof CrossEntropyLoss) {
+				// no output calculated for a pure loss operation
+
+			} else {
+				throwUnsupportedOperationException(op);
+			}
+
+			compi.out.format("\n");
+		}
+	}
 
-				} else if (op instanceof SigmoidWithCrossEntropyLoss || op instanceof Sigmoid) {
-					compileTemplate(compi, "", "sigmoidVec", inpName, outName, inpSize);
+	/**
+	 * Generates the forward step of an activation function into the next storage
+	 * vector(s). rowFormat turns the name of a storage vector into the expression
+	 * which is used, e.g. "%sBatch[r]" for the row r of its batch matrix.
+	 */
+	private void compileActivation(Compilation compi, String indentPrefix, Operation op, String inpName,
+			String rowFormat) {
+		String inpSize = Integer.toString(op.getInputSize());
+		String outName = String.format(rowFormat, String.format(compi.storageVecFormat, ++compi.storageVecIdx));
 
-				} else if (op instanceof SoftmaxWithCrossEntropyLoss || op instanceof Softmax) {
-					compileTemplate(compi, "", "softmaxVec", inpName, outName, inpSize);
+		if (op instanceof Tanh) {
+			compileTemplate(compi, indentPrefix, "tanhVec", inpName, outName, inpSize);
 
-				} else if (op instanceof Softplus) {
-					compileTemplate(compi, "", "softplusVec", inpName, outName, inpSize);
+		} else if (op instanceof SigmoidWithCrossEntropyLoss || op instanceof Sigmoid) {
+			compileTemplate(compi, indentPrefix, "sigmoidVec", inpName, outName, inpSize);
 
-				} else if (op instanceof Relu) {
-					compileTemplate(compi, "", "reluVec", inpName, outName, inpSize);
+		} else if (op instanceof SoftmaxWithCrossEntropyLoss || op instanceof Softmax) {
+			compileTemplate(compi, indentPrefix, "softmaxVec", inpName, outName, inpSize);
 
-				} else if (op instanceof Identity) {
-					compileTemplate(compi, "", "assignVecVec", inpName, outName, inpSize);
+		} else if (op instanceof Softplus) {
+			compileTemplate(compi, indentPrefix, "softplusVec", inpName, outName, inpSize);
 
-				} else if (op instanceof Swish) {
-					String sigName = outName;
-					outName = String.format(compi.storageVecFormat, ++compi.storageVecIdx);
-					compileTemplate(compi, "", "swishVec", inpName, sigName, outName, inpSize);
+		} else if (op instanceof Relu) {
+			compileTemplate(compi, indentPrefix, "reluVec", inpName, outName, inpSize);
 
-				} else {
-					throwUnsupportedOperationException(op);
-				}
+		} else if (op instanceof Identity) {
+			compileTemplate(compi, indentPrefix, "assignVecVec", inpName, outName, inpSize);
 
-			} else if (op instanceof CrossEntropyLoss) {
-				// no output calculated for a pure loss operation
+		} else if (op instanceof Swish) {
+			String sigName = outName;
+			outName = String.format(rowFormat, String.format(compi.storageVecFormat, ++compi.storageVecIdx));
+			compileTemplate(compi, indentPrefix, "swishVec", inpName, sigName, outName, inpSize);
 
-			} else {
-				throwUnsupportedOperationException(op);
-			}
+		} else {
+			throwUnsupportedOperationException(op);
+		}
+	}
 
-			compi.out.format("\n");
+	/**
+	 * Returns the name of the template which calculates a dense layer fused with
+	 * the specified activation function, or null if there is none.
+	 */
+	private static String getFusedDenseTemplateName(Operation activation) {
+		if (activation instanceof Tanh) {
+			return "mulMatMatTransposedPlusBiasTanh";
+		} else if (activation instanceof SigmoidWithCrossEntropyLoss || activation instanceof Sigmoid) {
+			return "mulMatMatTransposedPlusBiasSigmoid";
+		} else if (activation instanceof Relu) {
+			return "mulMatMatTransposedPlusBiasRelu";
+		} else {
+			return null;
 		}
 	}
 
+	/**
+	 * Returns the index expression of the parameter at the specified offset
+	 * relative to the parameters of the compiled class, which may be bound to the
+	 * parameter array of a chain, see bindParams().
+	 */
+	private static String paramIdx(String offsetName) {
+		return "paramsOffset + " + offsetName;
+	}
+
+	/**
+	 * Same as {@link #paramIdx(String)}, but for the parameter gradients.
+	 */
+	private static String gradParamIdx(String offsetName) {
+		return "grad.paramsOffset + " + offsetName;
+	}
+
 	private void compileTemplate(Compilation compi, String indentPrefix, String templateName,
 			String... paramExpressionList) {
 		MethodSourceTemplate template = compi.methodTemplates.get(templateName);
@@ -970,7 +1722,10 @@ public class OperationToJavaCompiler {
 			throwIllegalArgumentExceptionParamListsDiffer(template, paramExpressionList);
 		}
 
-		if (compi.inlineLinalgOps || template.mustInline) {
+		if (compi.kernelWriter != null) {
+			compi.kernelWriter.invokeTemplate(templateName, paramExpressionList);
+
+		} else if (compi.inlineLinalgOps || template.mustInline) {
 			String[] zippedReplaceMap = new String[2 * (paramExpressionList.length + 1)];
 			for (int i = 0; i < paramExpressionList.length; i++) {
 				zippedReplaceMap[2 * i + 0] = template.paramList.get(i).name;
@@ -1047,6 +1802,14 @@ public class OperationToJavaCompiler {
 		compileGradientVariableDeclarations(compi);
 
 		compileGradientGetInputGrad(compi);
+		compileGradientGetInputGradBatch(compi);
+		if (compi.batchedCode) {
+			compileEnsureBatchCapacity(compi, "		", "public", 0);
+		}
+		compileGetParamCount(compi, "		");
+		compileGetParams(compi, "		");
+		compileGetParamsOffset(compi, "		");
+		compileBindParams(compi, "		");
 		compileGradientClear(compi);
 		compileGradientAdd(compi);
 		compileGradientMul(compi);
@@ -1068,6 +1831,14 @@ public class OperationToJavaCompiler {
 		compi.out.format("		}\n");
 	}
 
+	private void compileGradientGetInputGradBatch(Compilation compi) {
+		compi.out.format("\n");
+		compi.out.format("		@Override\n");
+		compi.out.format("		public float[][] getInputGradBatch() {\n");
+		compi.out.format("			return " + compi.storageVecFormat + "Batch;\n", 0);
+		compi.out.format("		}\n");
+	}
+
 	private void compileGradientAdd(Compilation compi) {
 		Formatter aut = compi.out;
 
@@ -1095,22 +1866,8 @@ public class OperationToJavaCompiler {
 			}
 		};
 
-		Consumer<int[]> paramMatCodeGenerator = new Consumer<int[]>() {
-			public void accept(int[] args) {
-				int idx = args[0];
-				String outSize = "" + args[1];
-				String inpSize = "" + args[2];
-				String varName = String.format(compi.paramMatFormat, idx);
-				compileTemplate(compi, "\t", "addMat", varName, "og." + varName, outSize, inpSize);
-			}
-		};
-
-		Consumer<int[]> paramVecCodeGenerator = new Consumer<int[]>() {
+		Consumer<int[]> paramCodeGenerator = new Consumer<int[]>() {
 			public void accept(int[] args) {
-				int idx = args[0];
-				String inpSize = "" + args[1];
-				String varName = String.format(compi.paramVecFormat, idx);
-				compileTemplate(compi, "\t", "addVec", varName, "og." + varName, inpSize);
 			}
 		};
 
@@ -1122,14 +1879,19 @@ public class OperationToJavaCompiler {
 
 		compi.resetVariableIndices();
 
+		commentCodeGenerator.accept("all parameters at once");
+		aut.format("			OperationUtil.add(og.params, og.paramsOffset, params, paramsOffset, %d);\n",
+				compi.paramCount);
+
+		aut.format("\n");
 		commentCodeGenerator.accept("input");
 		storageVecCodeGenerator.accept(new int[] { compi.storageVecIdx, compi.src.getInputSize() });
 
 		compileVariableHandling( //
 				compi, //
 				storageVecCodeGenerator, //
-				paramMatCodeGenerator, //
-				paramVecCodeGenerator, //
+				paramCodeGenerator, //
+				paramCodeGenerator, //
 				commentCodeGenerator //
 		);
 
@@ -1137,10 +1899,47 @@ public class OperationToJavaCompiler {
 	}
 
 	private void compileGradientMul(Compilation compi) {
+		Consumer<int[]> storageVecCodeGenerator = new Consumer<int[]>() {
+			public void accept(int[] args) {
+				int idx = args[0];
+				String inpSize = "" + args[1];
+				String varName = String.format(compi.storageVecFormat, idx);
+				compileTemplate(compi, "\t", "mulVecSca", varName, "factor", inpSize);
+			}
+		};
+
+		Consumer<int[]> paramCodeGenerator = new Consumer<int[]>() {
+			public void accept(int[] args) {
+			}
+		};
+
+		Consumer<String> commentCodeGenerator = new Consumer<String>() {
+			public void accept(String comment) {
+				compi.out.format("			// %s\n", comment);
+			}
+		};
+
+		compi.resetVariableIndices();
+
 		compi.out.format("\n");
 		compi.out.format("		@Override\n");
 		compi.out.format("		public void mul(float factor) {\n");
-		compi.out.format("			throw new UnsupportedOperationException(\"not yet implemented\");\n");
+
+		commentCodeGenerator.accept("all parameters at once");
+		compi.out.format("			OperationUtil.mul(params, paramsOffset, %d, factor);\n", compi.paramCount);
+
+		compi.out.format("\n");
+		commentCodeGenerator.accept("input");
+		storageVecCodeGenerator.accept(new int[] { compi.storageVecIdx, compi.src.getInputSize() });
+
+		compileVariableHandling( //
+				compi, //
+				storageVecCodeGenerator, //
+				paramCodeGenerator, //
+				paramCodeGenerator, //
+				commentCodeGenerator //
+		);
+
 		compi.out.format("		}\n");
 	}
 
@@ -1208,10 +2007,10 @@ public class OperationToJavaCompiler {
 
 		String storageVecFormat = "			toStringBuilderVec(" + //
 				compi.storageVecFormat + ", buf, format).append(\"\\n\");\n";
-		String paramMatFormat = "			toStringBuilderMat(" + //
-				compi.paramMatFormat + ", buf, indent + 13, format).append(\"\\n\");\n";
-		String paramVecFormat = "			toStringBuilderVec(" + //
-				compi.paramVecFormat + ", buf, format).append(\"\\n\");\n";
+		String paramMatFormat = "			toStringBuilderMat(params, paramsOffset + " + //
+				compi.paramMatFormat + ", %d, %d, buf, indent + 13, format).append(\"\\n\");\n";
+		String paramVecFormat = "			toStringBuilderVecAt(params, paramsOffset + " + //
+				compi.paramVecFormat + ", %d, buf, format).append(\"\\n\");\n";
 
 		compi.resetVariableIndices();
 		compi.storageVecIdx = -1;
@@ -1228,13 +2027,14 @@ public class OperationToJavaCompiler {
 				aut.format(storageVecFormat, ++compi.storageVecIdx);
 
 				aut.format("			buf.append(indentSpaces).append(\"    weights: \");\n");
-				aut.format(paramMatFormat, ++compi.paramMatIdx);
+				aut.format(paramMatFormat, ++compi.paramMatIdx, op.getOutputSize(), op.getInputSize());
 
 				aut.format("			buf.append(indentSpaces).append(\"    bias   : \");\n");
-				aut.format(paramVecFormat, ++compi.paramVecIdx);
+				aut.format(paramVecFormat, ++compi.paramVecIdx, op.getOutputSize());
 
 				compi.methodDependencies.add("toStringBuilderMat");
 				compi.methodDependencies.add("toStringBuilderVec");
+				compi.methodDependencies.add("toStringBuilderVecAt");
 				compi.methodDependencies.add("toStringBuilderSca");
 
 			} else if (op instanceof Swish) {
@@ -1279,22 +2079,8 @@ public class OperationToJavaCompiler {
 			}
 		};
 
-		Consumer<int[]> paramMatCodeGenerator = new Consumer<int[]>() {
-			public void accept(int[] args) {
-				int idx = args[0];
-				String outSize = "" + args[1];
-				String inpSize = "" + args[2];
-				String varName = String.format(compi.paramMatFormat, idx);
-				compileTemplate(compi, "\t", "assignMatSca", varName, "0.0f", outSize, inpSize);
-			}
-		};
-
-		Consumer<int[]> paramVecCodeGenerator = new Consumer<int[]>() {
+		Consumer<int[]> paramCodeGenerator = new Consumer<int[]>() {
 			public void accept(int[] args) {
-				int idx = args[0];
-				String inpSize = "" + args[1];
-				String varName = String.format(compi.paramVecFormat, idx);
-				compileTemplate(compi, "\t", "assignVecSca", varName, "0.0f", inpSize);
 			}
 		};
 
@@ -1310,14 +2096,18 @@ public class OperationToJavaCompiler {
 		compi.out.format("		@Override\n");
 		compi.out.format("		public void clear() {\n");
 
+		commentCodeGenerator.accept("all parameters at once");
+		compi.out.format("			OperationUtil.assign(params, paramsOffset, %d, 0.0f);\n", compi.paramCount);
+
+		compi.out.format("\n");
 		commentCodeGenerator.accept("input");
 		storageVecCodeGenerator.accept(new int[] { compi.storageVecIdx, compi.src.getInputSize() });
 
 		compileVariableHandling( //
 				compi, //
 				storageVecCodeGenerator, //
-				paramMatCodeGenerator, //
-				paramVecCodeGenerator, //
+				paramCodeGenerator, //
+				paramCodeGenerator, //
 				commentCodeGenerator //
 		);
 
@@ -1328,10 +2118,15 @@ public class OperationToJavaCompiler {
 		compi.resetVariableIndices();
 
 		String storageVecFormat = "		public final float[] " + compi.storageVecFormat + " = new float[%d];\n";
-		String paramMatFormat = "		public final float[][] " + compi.paramMatFormat + " = new float[%d][%d];\n";
-		String paramVecFormat = "		public final float[] " + compi.paramVecFormat + " = new float[%d];\n";
+		String paramMatFormat = "";
+		String paramVecFormat = "";
 		String commentFormat = "		// %s\n";
 
+		compi.out.format("\n");
+		compi.out.format(commentFormat, "parameters, same layout as in the outer class");
+		compi.out.format("		public float[] params = new float[%d];\n", compi.paramCount);
+		compi.out.format("		public int paramsOffset;\n");
+
 		compi.out.format("\n");
 		compi.out.format(commentFormat, "input");
 		compi.out.format(storageVecFormat, compi.storageVecIdx, compi.src.getInputSize());
@@ -1343,6 +2138,17 @@ public class OperationToJavaCompiler {
 				paramVecFormat, //
 				commentFormat//
 		);
+
+		compi.out.format("\n");
+		if (compi.batchedCode) {
+			compi.out.format(commentFormat, "batch storage");
+			for (int idx = 0; idx <= compi.storageVecCount; idx++) {
+				compi.out.format("		public float[][] " + compi.storageVecFormat + "Batch = new float[0][];\n", idx);
+			}
+		} else {
+			compi.out.format(commentFormat, "batch input");
+			compi.out.format("		public float[][] " + compi.storageVecFormat + "Batch = new float[0][];\n", 0);
+		}
 	}
 
 	/**
@@ -6,103 +6,157 @@ import java.text.DecimalFormatSymbols;
 import java.util.Locale;
 import java.util.Random;
 
+import de.a0h.minideeplearn.operation.ExecutionContext;
 import de.a0h.minideeplearn.operation.Operation;
 import de.a0h.minideeplearn.operation.gradient.Gradient;
+import de.a0h.minideeplearn.operation.optimizer.UpdateRule;
+import de.a0h.minideeplearn.operation.OperationUtil;
 
 public class CompiledChain implements Operation {
+	// all learnable parameters in one vector, starting at paramsOffset. the weights
+	// matrices and the bias vectors are stored at the relative offsets W* and B*
+	public float[] params;
+	public int paramsOffset;
 
 	// dense[64x42]*[42]+[64]->[64]
-	public final float[][] w0 = new float[64][42];
-	public final float[] b0 = new float[64];
+	public static final int W0 = 0;
+	public static final int B0 = 2688;
 	public final float[] a01 = new float[64];
 
 	// relu[64]
 	public final float[] a02 = new float[64];
 
 	// dense[48x64]*[64]+[48]->[48]
-	public final float[][] w1 = new float[48][64];
-	public final float[] b1 = new float[48];
+	public static final int W1 = 2752;
+	public static final int B1 = 5824;
 	public final float[] a03 = new float[48];
 
 	// relu[48]
 	public final float[] a04 = new float[48];
 
 	// dense[32x48]*[48]+[32]->[32]
-	public final float[][] w2 = new float[32][48];
-	public final float[] b2 = new float[32];
+	public static final int W2 = 5872;
+	public static final int B2 = 7408;
 	public final float[] a05 = new float[32];
 
 	// relu[32]
 	public final float[] a06 = new float[32];
 
 	// dense[24x32]*[32]+[24]->[24]
-	public final float[][] w3 = new float[24][32];
-	public final float[] b3 = new float[24];
+	public static final int W3 = 7440;
+	public static final int B3 = 8208;
 	public final float[] a07 = new float[24];
 
 	// relu[24]
 	public final float[] a08 = new float[24];
 
 	// dense[16x24]*[24]+[16]->[16]
-	public final float[][] w4 = new float[16][24];
-	public final float[] b4 = new float[16];
+	public static final int W4 = 8232;
+	public static final int B4 = 8616;
 	public final float[] a09 = new float[16];
 
 	// relu[16]
 	public final float[] a10 = new float[16];
 
 	// dense[7x16]*[16]+[7]->[7]
-	public final float[][] w5 = new float[7][16];
-	public final float[] b5 = new float[7];
+	public static final int W5 = 8632;
+	public static final int B5 = 8744;
 	public final float[] a11 = new float[7];
 
 	// softmax-ce[7]
 	public final float[] a12 = new float[7];
 	public float loss;
 
+	// batch storage
+	public float[][] outBatch = new float[0][];
+	public float[] lossBatch = new float[0];
+
+	public CompiledChain() {
+		params = new float[8751];
+	}
+
+	// shares the learnable parameters with paramSrc, but has its own storage
+	protected CompiledChain(CompiledChain paramSrc) {
+		params = paramSrc.params;
+		paramsOffset = paramSrc.paramsOffset;
+	}
+
+	@Override
+	public CompiledChain createParamSharingCopy() {
+		return new CompiledChain(this);
+	}
+
+	@Override
+	public ExecutionContext createContext() {
+		return new ExecutionContext(this);
+	}
+
+	@Override
+	public int getParamCount() {
+		return 8751;
+	}
+
+	@Override
+	public float[] getParams() {
+		return params;
+	}
+
+	@Override
+	public int getParamsOffset() {
+		return paramsOffset;
+	}
+
+	@Override
+	public void bindParams(float[] params, int offset) {
+		System.arraycopy(this.params, paramsOffset, params, offset, 8751);
+
+		this.params = params;
+		paramsOffset = offset;
+	}
+
 	@Override
 	public void initParams(Random rnd) {
 		float xavierFactor;
 
 		// dense[64x42]*[42]+[64]->[64]
 		xavierFactor = 2.0f / (42 + 64);
-		assignGaussianMat(w0, xavierFactor, rnd, 64, 42);
-		assignVecSca(b0, 0.0f, 64);
+		assignGaussianMat(params, paramsOffset + W0, xavierFactor, rnd, 64, 42);
+		assignVecScaAt(params, paramsOffset + B0, 0.0f, 64);
 
 		// relu[64]
 
 		// dense[48x64]*[64]+[48]->[48]
 		xavierFactor = 2.0f / (64 + 48);
-		assignGaussianMat(w1, xavierFactor, rnd, 48, 64);
-		assignVecSca(b1, 0.0f, 48);
+		assignGaussianMat(params, paramsOffset + W1, xavierFactor, rnd, 48, 64);
+		assignVecScaAt(params, paramsOffset + B1, 0.0f, 48);
 
 		// relu[48]
 
 		// dense[32x48]*[48]+[32]->[32]
 		xavierFactor = 2.0f / (48 + 32);
-		assignGaussianMat(w2, xavierFactor, rnd, 32, 48);
-		assignVecSca(b2, 0.0f, 32);
+		assignGaussianMat(params, paramsOffset + W2, xavierFactor, rnd, 32, 48);
+		assignVecScaAt(params, paramsOffset + B2, 0.0f, 32);
 
 		// relu[32]
 
 		// dense[24x32]*[32]+[24]->[24]
 		xavierFactor = 2.0f / (32 + 24);
-		assignGaussianMat(w3, xavierFactor, rnd, 24, 32);
-		assignVecSca(b3, 0.0f, 24);
+		assignGaussianMat(params, paramsOffset + W3, xavierFactor, rnd, 24, 32);
+		assignVecScaAt(params, paramsOffset + B3, 0.0f, 24);
 
 		// relu[24]
 
 		// dense[16x24]*[24]+[16]->[16]
 		xavierFactor = 2.0f / (24 + 16);
-		assignGaussianMat(w4, xavierFactor, rnd, 16, 24);
-		assignVecSca(b4, 0.0f, 16);
+		assignGaussianMat(params, paramsOffset + W4, xavierFactor, rnd, 16, 24);
+		assignVecScaAt(params, paramsOffset + B4, 0.0f, 16);
 
 		// relu[16]
 
 		// dense[7x16]*[16]+[7]->[7]
 		xavierFactor = 2.0f / (16 + 7);
-		assignGaussianMat(w5, xavierFactor, rnd, 7, 16);
-		assignVecSca(b5, 0.0f, 7);
+		assignGaussianMat(params, paramsOffset + W5, xavierFactor, rnd, 7, 16);
+		assignVecScaAt(params, paramsOffset + B5, 0.0f, 7);
 
 		// softmax-ce[7]
 
@@ -126,37 +180,37 @@ public class CompiledChain implements Operation {
 	@Override
 	public float[] calcOutput(float[] a00) {
 		// dense[64x42]*[42]+[64]->[64]
-		mulMatVecPlusBias(w0, a00, b0, a01, 64, 42);
+		mulMatVecPlusBias(params, paramsOffset + W0, a00, params, paramsOffset + B0, a01, 64, 42);
 
 		// relu[64]
 		reluVec(a01, a02, 64);
 
 		// dense[48x64]*[64]+[48]->[48]
-		mulMatVecPlusBias(w1, a02, b1, a03, 48, 64);
+		mulMatVecPlusBias(params, paramsOffset + W1, a02, params, paramsOffset + B1, a03, 48, 64);
 
 		// relu[48]
 		reluVec(a03, a04, 48);
 
 		// dense[32x48]*[48]+[32]->[32]
-		mulMatVecPlusBias(w2, a04, b2, a05, 32, 48);
+		mulMatVecPlusBias(params, paramsOffset + W2, a04, params, paramsOffset + B2, a05, 32, 48);
 
 		// relu[32]
 		reluVec(a05, a06, 32);
 
 		// dense[24x32]*[32]+[24]->[24]
-		mulMatVecPlusBias(w3, a06, b3, a07, 24, 32);
+		mulMatVecPlusBias(params, paramsOffset + W3, a06, params, paramsOffset + B3, a07, 24, 32);
 
 		// relu[24]
 		reluVec(a07, a08, 24);
 
 		// dense[16x24]*[24]+[16]->[16]
-		mulMatVecPlusBias(w4, a08, b4, a09, 16, 24);
+		mulMatVecPlusBias(params, paramsOffset + W4, a08, params, paramsOffset + B4, a09, 16, 24);
 
 		// relu[16]
 		reluVec(a09, a10, 16);
 
 		// dense[7x16]*[16]+[7]->[7]
-		mulMatVecPlusBias(w5, a10, b5, a11, 7, 16);
+		mulMatVecPlusBias(params, paramsOffset + W5, a10, params, paramsOffset + B5, a11, 7, 16);
 
 		// softmax-ce[7]
 		softmaxVec(a11, a12, 7);
@@ -164,11 +218,34 @@ public class CompiledChain implements Operation {
 		return a12;
 	}
 
+	@Override
+	public float[] calcOutput(ExecutionContext ctx, float[] inp) {
+		return ctx.getStorage(this).calcOutput(inp);
+	}
+
 	@Override
 	public float[] getOutput() {
 		return a12;
 	}
 
+	@Override
+	public float[][] calcOutputBatch(float[][] inp, int rows) {
+		if (outBatch.length < rows) {
+			outBatch = new float[rows][7];
+		}
+
+		for (int r = 0; r < rows; r++) {
+			System.arraycopy(calcOutput(inp[r]), 0, outBatch[r], 0, 7);
+		}
+
+		return outBatch;
+	}
+
+	@Override
+	public float[][] getOutputBatch() {
+		return outBatch;
+	}
+
 	@Override
 	public boolean hasLoss() {
 		return true;
@@ -198,6 +275,38 @@ public class CompiledChain implements Operation {
 		return loss;
 	}
 
+	@Override
+	public float[] calcLossBatch(float[][] inp, float[][] target, int rows) {
+		if (lossBatch.length < rows) {
+			lossBatch = new float[rows];
+		}
+
+		for (int r = 0; r < rows; r++) {
+			// cross entropy loss for manifold classification (aka multinomial
+			// classification)
+			loss = 0.0f;
+	
+			for (int i = 0; i < 7; i++) {
+				if (target[r][i] == 0.0f) {
+					continue;
+				}
+	
+				loss -= target[r][i] * (float) Math.log(outBatch[r][i] + Float.MIN_NORMAL);
+			}
+	
+			loss /= 7;
+
+			lossBatch[r] = loss;
+		}
+
+		return lossBatch;
+	}
+
+	@Override
+	public float[] getLossBatch() {
+		return lossBatch;
+	}
+
 	@Override
 	public CompiledGradient createGradient() {
 		return new CompiledGradient();
@@ -208,6 +317,16 @@ public class CompiledChain implements Operation {
 			float[] inp, //
 			float[] target, //
 			Gradient grad_ //
+	) {
+		calcGradient(inp, target, grad_, false);
+	}
+
+	@Override
+	public void calcGradient( //
+			float[] inp, //
+			float[] target, //
+			Gradient grad_, //
+			boolean accumulate //
 	) {
 		CompiledGradient grad;
 		try {
@@ -224,53 +343,88 @@ public class CompiledChain implements Operation {
 		softmaxWithCrossEntropyLossGradient_manifoldClassification(a12, target, 7, grad.a11);
 
 		// dense[7x16]*[16]+[7]->[7]
-		outerProduct(grad.a11, a10, grad.w5, 7, 16);
-		mulVecMat(grad.a11, w5, grad.a10, 7, 16);
-		assignVecVec(grad.a11, grad.b5, 7);
+		if (accumulate) {
+			outerProductAdd(grad.a11, a10, grad.params, grad.paramsOffset + W5, 7, 16);
+			addVecVecAt(grad.a11, grad.params, grad.paramsOffset + B5, 7);
+		} else {
+			outerProduct(grad.a11, a10, grad.params, grad.paramsOffset + W5, 7, 16);
+			assignVecVecAt(grad.a11, grad.params, grad.paramsOffset + B5, 7);
+		}
+		mulVecMat(grad.a11, params, paramsOffset + W5, grad.a10, 7, 16);
 
 		// relu[16]
 		reluDerivativeVec(grad.a09, a09, grad.a10, 16);
 
 		// dense[16x24]*[24]+[16]->[16]
-		outerProduct(grad.a09, a08, grad.w4, 16, 24);
-		mulVecMat(grad.a09, w4, grad.a08, 16, 24);
-		assignVecVec(grad.a09, grad.b4, 16);
+		if (accumulate) {
+			outerProductAdd(grad.a09, a08, grad.params, grad.paramsOffset + W4, 16, 24);
+			addVecVecAt(grad.a09, grad.params, grad.paramsOffset + B4, 16);
+		} else {
+			outerProduct(grad.a09, a08, grad.params, grad.paramsOffset + W4, 16, 24);
+			assignVecVecAt(grad.a09, grad.params, grad.paramsOffset + B4, 16);
+		}
+		mulVecMat(grad.a09, params, paramsOffset + W4, grad.a08, 16, 24);
 
 		// relu[24]
 		reluDerivativeVec(grad.a07, a07, grad.a08, 24);
 
 		// dense[24x32]*[32]+[24]->[24]
-		outerProduct(grad.a07, a06, grad.w3, 24, 32);
-		mulVecMat(grad.a07, w3, grad.a06, 24, 32);
-		assignVecVec(grad.a07, grad.b3, 24);
+		if (accumulate) {
+			outerProductAdd(grad.a07, a06, grad.params, grad.paramsOffset + W3, 24, 32);
+			addVecVecAt(grad.a07, grad.params, grad.paramsOffset + B3, 24);
+		} else {
+			outerProduct(grad.a07, a06, grad.params, grad.paramsOffset + W3, 24, 32);
+			assignVecVecAt(grad.a07, grad.params, grad.paramsOffset + B3, 24);
+		}
+		mulVecMat(grad.a07, params, paramsOffset + W3, grad.a06, 24, 32);
 
 		// relu[32]
 		reluDerivativeVec(grad.a05, a05, grad.a06, 32);
 
 		// dense[32x48]*[48]+[32]->[32]
-		outerProduct(grad.a05, a04, grad.w2, 32, 48);
-		mulVecMat(grad.a05, w2, grad.a04, 32, 48);
-		assignVecVec(grad.a05, grad.b2, 32);
+		if (accumulate) {
+			outerProductAdd(grad.a05, a04, grad.params, grad.paramsOffset + W2, 32, 48);
+			addVecVecAt(grad.a05, grad.params, grad.paramsOffset + B2, 32);
+		} else {
+			outerProduct(grad.a05, a04, grad.params, grad.paramsOffset + W2, 32, 48);
+			assignVecVecAt(grad.a05, grad.params, grad.paramsOffset + B2, 32);
+		}
+		mulVecMat(grad.a05, params, paramsOffset + W2, grad.a04, 32, 48);
 
 		// relu[48]
 		reluDerivativeVec(grad.a03, a03, grad.a04, 48);
 
 		// dense[48x64]*[64]+[48]->[48]
-		outerProduct(grad.a03, a02, grad.w1, 48, 64);
-		mulVecMat(grad.a03, w1, grad.a02, 48, 64);
-		assignVecVec(grad.a03, grad.b1, 48);
+		if (accumulate) {
+			outerProductAdd(grad.a03, a02, grad.params, grad.paramsOffset + W1, 48, 64);
+			addVecVecAt(grad.a03, grad.params, grad.paramsOffset + B1, 48);
+		} else {
+			outerProduct(grad.a03, a02, grad.params, grad.paramsOffset + W1, 48, 64);
+			assignVecVecAt(grad.a03, grad.params, grad.paramsOffset + B1, 48);
+		}
+		mulVecMat(grad.a03, params, paramsOffset + W1, grad.a02, 48, 64);
 
 		// relu[64]
 		reluDerivativeVec(grad.a01, a01, grad.a02, 64);
 
 		// dense[64x42]*[42]+[64]->[64]
-		outerProduct(grad.a01, inp, grad.w0, 64, 42);
-		mulVecMat(grad.a01, w0, grad.a00, 64, 42);
-		assignVecVec(grad.a01, grad.b0, 64);
+		if (accumulate) {
+			outerProductAdd(grad.a01, inp, grad.params, grad.paramsOffset + W0, 64, 42);
+			addVecVecAt(grad.a01, grad.params, grad.paramsOffset + B0, 64);
+		} else {
+			outerProduct(grad.a01, inp, grad.params, grad.paramsOffset + W0, 64, 42);
+			assignVecVecAt(grad.a01, grad.params, grad.paramsOffset + B0, 64);
+		}
+		mulVecMat(grad.a01, params, paramsOffset + W0, grad.a00, 64, 42);
 	}
 
 	@Override
-	public void learn(Gradient grad_, float negLearningRate) {
+	public void calcGradientBatch( //
+			float[][] inp, //
+			float[][] target, //
+			int rows, //
+			Gradient grad_ //
+	) {
 		CompiledGradient grad;
 		try {
 			grad = (CompiledGradient) grad_;
@@ -282,42 +436,51 @@ public class CompiledChain implements Operation {
 					grad_.getClass().getName(), e);
 		}
 
+		if (grad.a00Batch.length < rows) {
+			grad.a00Batch = new float[rows][42];
+		}
 
-		// dense[64x42]*[42]+[64]->[64]
-		mulAddMatSca(grad.w0, negLearningRate, w0, 64, 42);
-		mulAddVecSca(grad.b0, negLearningRate, b0, 64);
-
-		// relu[64]
-
-		// dense[48x64]*[64]+[48]->[48]
-		mulAddMatSca(grad.w1, negLearningRate, w1, 48, 64);
-		mulAddVecSca(grad.b1, negLearningRate, b1, 48);
-
-		// relu[48]
-
-		// dense[32x48]*[48]+[32]->[32]
-		mulAddMatSca(grad.w2, negLearningRate, w2, 32, 48);
-		mulAddVecSca(grad.b2, negLearningRate, b2, 32);
-
-		// relu[32]
-
-		// dense[24x32]*[32]+[24]->[24]
-		mulAddMatSca(grad.w3, negLearningRate, w3, 24, 32);
-		mulAddVecSca(grad.b3, negLearningRate, b3, 24);
+		grad.clear();
 
-		// relu[24]
+		for (int r = 0; r < rows; r++) {
+			calcOutput(inp[r]);
+			calcGradient(inp[r], target[r], grad, true);
+			System.arraycopy(grad.a00, 0, grad.a00Batch[r], 0, 42);
+		}
+	}
 
-		// dense[16x24]*[24]+[16]->[16]
-		mulAddMatSca(grad.w4, negLearningRate, w4, 16, 24);
-		mulAddVecSca(grad.b4, negLearningRate, b4, 16);
+	@Override
+	public void learn(Gradient grad_, float negLearningRate) {
+		CompiledGradient grad;
+		try {
+			grad = (CompiledGradient) grad_;
+		} catch (ClassCastException e) {
+			throw new IllegalArgumentException("" + //
+					"grad_ must be of type " + //
+					"de.a0h.minideeplearn.operation.compiler.output.CompiledChain.CompiledGradient, " + //
+					"but it is a " + //
+					grad_.getClass().getName(), e);
+		}
 
-		// relu[16]
+		// all parameters at once
+		OperationUtil.mulAdd(grad.params, grad.paramsOffset, negLearningRate, params, paramsOffset, 8751);
+	}
 
-		// dense[7x16]*[16]+[7]->[7]
-		mulAddMatSca(grad.w5, negLearningRate, w5, 7, 16);
-		mulAddVecSca(grad.b5, negLearningRate, b5, 7);
+	@Override
+	public void learn(Gradient grad_, float gradScale, UpdateRule rule) {
+		CompiledGradient grad;
+		try {
+			grad = (CompiledGradient) grad_;
+		} catch (ClassCastException e) {
+			throw new IllegalArgumentException("" + //
+					"grad_ must be of type " + //
+					"de.a0h.minideeplearn.operation.compiler.output.CompiledChain.CompiledGradient, " + //
+					"but it is a " + //
+					grad_.getClass().getName(), e);
+		}
 
-		// softmax-ce[7]
+		// all parameters at once
+		rule.update(grad.params, grad.paramsOffset, gradScale, params, paramsOffset, 8751);
 	}
 
 	@Override
@@ -388,9 +551,9 @@ public class CompiledChain implements Operation {
 		buf.append(indentSpaces).append("dense[64x42]*[42]+[64]->[64]");
 		buf.append("\n");
 		buf.append(indentSpaces).append("    weights: ");
-		toStringBuilderMat(w0, buf, indent + 13, format).append("\n");
+		toStringBuilderMat(params, paramsOffset + W0, 64, 42, buf, indent + 13, format).append("\n");
 		buf.append(indentSpaces).append("    bias   : ");
-		toStringBuilderVec(b0, buf, format).append("\n");
+		toStringBuilderVecAt(params, paramsOffset + B0, 64, buf, format).append("\n");
 		buf.append(indentSpaces).append("    out    : ");
 		toStringBuilderVec(a01, buf, format).append("\n");
 
@@ -401,9 +564,9 @@ public class CompiledChain implements Operation {
 		buf.append(indentSpaces).append("dense[48x64]*[64]+[48]->[48]");
 		buf.append("\n");
 		buf.append(indentSpaces).append("    weights: ");
-		toStringBuilderMat(w1, buf, indent + 13, format).append("\n");
+		toStringBuilderMat(params, paramsOffset + W1, 48, 64, buf, indent + 13, format).append("\n");
 		buf.append(indentSpaces).append("    bias   : ");
-		toStringBuilderVec(b1, buf, format).append("\n");
+		toStringBuilderVecAt(params, paramsOffset + B1, 48, buf, format).append("\n");
 		buf.append(indentSpaces).append("    out    : ");
 		toStringBuilderVec(a03, buf, format).append("\n");
 
@@ -414,9 +577,9 @@ public class CompiledChain implements Operation {
 		buf.append(indentSpaces).append("dense[32x48]*[48]+[32]->[32]");
 		buf.append("\n");
 		buf.append(indentSpaces).append("    weights: ");
-		toStringBuilderMat(w2, buf, indent + 13, format).append("\n");
+		toStringBuilderMat(params, paramsOffset + W2, 32, 48, buf, indent + 13, format).append("\n");
 		buf.append(indentSpaces).append("    bias   : ");
-		toStringBuilderVec(b2, buf, format).append("\n");
+		toStringBuilderVecAt(params, paramsOffset + B2, 32, buf, format).append("\n");
 		buf.append(indentSpaces).append("    out    : ");
 		toStringBuilderVec(a05, buf, format).append("\n");
 
@@ -427,9 +590,9 @@ public class CompiledChain implements Operation {
 		buf.append(indentSpaces).append("dense[24x32]*[32]+[24]->[24]");
 		buf.append("\n");
 		buf.append(indentSpaces).append("    weights: ");
-		toStringBuilderMat(w3, buf, indent + 13, format).append("\n");
+		toStringBuilderMat(params, paramsOffset + W3, 24, 32, buf, indent + 13, format).append("\n");
 		buf.append(indentSpaces).append("    bias   : ");
-		toStringBuilderVec(b3, buf, format).append("\n");
+		toStringBuilderVecAt(params, paramsOffset + B3, 24, buf, format).append("\n");
 		buf.append(indentSpaces).append("    out    : ");
 		toStringBuilderVec(a07, buf, format).append("\n");
 
@@ -440,9 +603,9 @@ public class CompiledChain implements Operation {
 		buf.append(indentSpaces).append("dense[16x24]*[24]+[16]->[16]");
 		buf.append("\n");
 		buf.append(indentSpaces).append("    weights: ");
-		toStringBuilderMat(w4, buf, indent + 13, format).append("\n");
+		toStringBuilderMat(params, paramsOffset + W4, 16, 24, buf, indent + 13, format).append("\n");
 		buf.append(indentSpaces).append("    bias   : ");
-		toStringBuilderVec(b4, buf, format).append("\n");
+		toStringBuilderVecAt(params, paramsOffset + B4, 16, buf, format).append("\n");
 		buf.append(indentSpaces).append("    out    : ");
 		toStringBuilderVec(a09, buf, format).append("\n");
 
@@ -453,9 +616,9 @@ public class CompiledChain implements Operation {
 		buf.append(indentSpaces).append("dense[7x16]*[16]+[7]->[7]");
 		buf.append("\n");
 		buf.append(indentSpaces).append("    weights: ");
-		toStringBuilderMat(w5, buf, indent + 13, format).append("\n");
+		toStringBuilderMat(params, paramsOffset + W5, 7, 16, buf, indent + 13, format).append("\n");
 		buf.append(indentSpaces).append("    bias   : ");
-		toStringBuilderVec(b5, buf, format).append("\n");
+		toStringBuilderVecAt(params, paramsOffset + B5, 7, buf, format).append("\n");
 		buf.append(indentSpaces).append("    out    : ");
 		toStringBuilderVec(a11, buf, format).append("\n");
 
@@ -471,110 +634,124 @@ public class CompiledChain implements Operation {
 
 	public static class CompiledGradient implements Gradient {
 
+		// parameters, same layout as in the outer class
+		public float[] params = new float[8751];
+		public int paramsOffset;
+
 		// input
 		public final float[] a00 = new float[42];
 
 		// dense[64x42]*[42]+[64]->[64]
-		public final float[][] w0 = new float[64][42];
-		public final float[] b0 = new float[64];
 		public final float[] a01 = new float[64];
 
 		// relu[64]
 		public final float[] a02 = new float[64];
 
 		// dense[48x64]*[64]+[48]->[48]
-		public final float[][] w1 = new float[48][64];
-		public final float[] b1 = new float[48];
 		public final float[] a03 = new float[48];
 
 		// relu[48]
 		public final float[] a04 = new float[48];
 
 		// dense[32x48]*[48]+[32]->[32]
-		public final float[][] w2 = new float[32][48];
-		public final float[] b2 = new float[32];
 		public final float[] a05 = new float[32];
 
 		// relu[32]
 		public final float[] a06 = new float[32];
 
 		// dense[24x32]*[32]+[24]->[24]
-		public final float[][] w3 = new float[24][32];
-		public final float[] b3 = new float[24];
 		public final float[] a07 = new float[24];
 
 		// relu[24]
 		public final float[] a08 = new float[24];
 
 		// dense[16x24]*[24]+[16]->[16]
-		public final float[][] w4 = new float[16][24];
-		public final float[] b4 = new float[16];
 		public final float[] a09 = new float[16];
 
 		// relu[16]
 		public final float[] a10 = new float[16];
 
 		// dense[7x16]*[16]+[7]->[7]
-		public final float[][] w5 = new float[7][16];
-		public final float[] b5 = new float[7];
 		public final float[] a11 = new float[7];
 
 		// softmax-ce[7]
 		public final float[] a12 = new float[7];
 
+		// batch input
+		public float[][] a00Batch = new float[0][];
+
 		@Override
 		public float[] getInputGrad() {
 			return a00;
 		}
 
+		@Override
+		public float[][] getInputGradBatch() {
+			return a00Batch;
+		}
+
+		@Override
+		public int getParamCount() {
+			return 8751;
+		}
+
+		@Override
+		public float[] getParams() {
+			return params;
+		}
+
+		@Override
+		public int getParamsOffset() {
+			return paramsOffset;
+		}
+
+		@Override
+		public void bindParams(float[] params, int offset) {
+			System.arraycopy(this.params, paramsOffset, params, offset, 8751);
+
+			this.params = params;
+			paramsOffset = offset;
+		}
+
 		@Override
 		public void clear() {
+			// all parameters at once
+			OperationUtil.assign(params, paramsOffset, 8751, 0.0f);
+
 			// input
 			assignVecSca(a00, 0.0f, 42);
 
 			// dense[64x42]*[42]+[64]->[64]
-			assignMatSca(w0, 0.0f, 64, 42);
-			assignVecSca(b0, 0.0f, 64);
 			assignVecSca(a01, 0.0f, 64);
 
 			// relu[64]
 			assignVecSca(a02, 0.0f, 64);
 
 			// dense[48x64]*[64]+[48]->[48]
-			assignMatSca(w1, 0.0f, 48, 64);
-			assignVecSca(b1, 0.0f, 48);
 			assignVecSca(a03, 0.0f, 48);
 
 			// relu[48]
 			assignVecSca(a04, 0.0f, 48);
 
 			// dense[32x48]*[48]+[32]->[32]
-			assignMatSca(w2, 0.0f, 32, 48);
-			assignVecSca(b2, 0.0f, 32);
 			assignVecSca(a05, 0.0f, 32);
 
 			// relu[32]
 			assignVecSca(a06, 0.0f, 32);
 
 			// dense[24x32]*[32]+[24]->[24]
-			assignMatSca(w3, 0.0f, 24, 32);
-			assignVecSca(b3, 0.0f, 24);
 			assignVecSca(a07, 0.0f, 24);
 
 			// relu[24]
 			assignVecSca(a08, 0.0f, 24);
 
 			// dense[16x24]*[24]+[16]->[16]
-			assignMatSca(w4, 0.0f, 16, 24);
-			assignVecSca(b4, 0.0f, 16);
 			assignVecSca(a09, 0.0f, 16);
 
 			// relu[16]
 			assignVecSca(a10, 0.0f, 16);
 
 			// dense[7x16]*[16]+[7]->[7]
-			assignMatSca(w5, 0.0f, 7, 16);
-			assignVecSca(b5, 0.0f, 7);
 			assignVecSca(a11, 0.0f, 7);
 
 			// softmax-ce[7]
@@ -594,52 +771,43 @@ public class CompiledChain implements Operation {
 						other.getClass().getName(), e);
 			}
 
+			// all parameters at once
+			OperationUtil.add(og.params, og.paramsOffset, params, paramsOffset, 8751);
+
 			// input
 			addVec(a00, og.a00, 42);
 
 			// dense[64x42]*[42]+[64]->[64]
-			addMat(w0, og.w0, 64, 42);
-			addVec(b0, og.b0, 64);
 			addVec(a01, og.a01, 64);
 
 			// relu[64]
 			addVec(a02, og.a02, 64);
 
 			// dense[48x64]*[64]+[48]->[48]
-			addMat(w1, og.w1, 48, 64);
-			addVec(b1, og.b1, 48);
 			addVec(a03, og.a03, 48);
 
 			// relu[48]
 			addVec(a04, og.a04, 48);
 
 			// dense[32x48]*[48]+[32]->[32]
-			addMat(w2, og.w2, 32, 48);
-			addVec(b2, og.b2, 32);
 			addVec(a05, og.a05, 32);
 
 			// relu[32]
 			addVec(a06, og.a06, 32);
 
 			// dense[24x32]*[32]+[24]->[24]
-			addMat(w3, og.w3, 24, 32);
-			addVec(b3, og.b3, 24);
 			addVec(a07, og.a07, 24);
 
 			// relu[24]
 			addVec(a08, og.a08, 24);
 
 			// dense[16x24]*[24]+[16]->[16]
-			addMat(w4, og.w4, 16, 24);
-			addVec(b4, og.b4, 16);
 			addVec(a09, og.a09, 16);
 
 			// relu[16]
 			addVec(a10, og.a10, 16);
 
 			// dense[7x16]*[16]+[7]->[7]
-			addMat(w5, og.w5, 7, 16);
-			addVec(b5, og.b5, 7);
 			addVec(a11, og.a11, 7);
 
 			// softmax-ce[7]
@@ -648,7 +816,47 @@ public class CompiledChain implements Operation {
 
 		@Override
 		public void mul(float factor) {
-			throw new UnsupportedOperationException("not yet implemented");
+			// all parameters at once
+			OperationUtil.mul(params, paramsOffset, 8751, factor);
+
+			// input
+			mulVecSca(a00, factor, 42);
+
+			// dense[64x42]*[42]+[64]->[64]
+			mulVecSca(a01, factor, 64);
+
+			// relu[64]
+			mulVecSca(a02, factor, 64);
+
+			// dense[48x64]*[64]+[48]->[48]
+			mulVecSca(a03, factor, 48);
+
+			// relu[48]
+			mulVecSca(a04, factor, 48);
+
+			// dense[32x48]*[48]+[32]->[32]
+			mulVecSca(a05, factor, 32);
+
+			// relu[32]
+			mulVecSca(a06, factor, 32);
+
+			// dense[24x32]*[32]+[24]->[24]
+			mulVecSca(a07, factor, 24);
+
+			// relu[24]
+			mulVecSca(a08, factor, 24);
+
+			// dense[16x24]*[24]+[16]->[16]
+			mulVecSca(a09, factor, 16);
+
+			// relu[16]
+			mulVecSca(a10, factor, 16);
+
+			// dense[7x16]*[16]+[7]->[7]
+			mulVecSca(a11, factor, 7);
+
+			// softmax-ce[7]
+			mulVecSca(a12, factor, 7);
 		}
 
 		@Override
@@ -706,9 +914,9 @@ public class CompiledChain implements Operation {
 			buf.append(indentSpaces).append("    inp    : ");
 			toStringBuilderVec(a00, buf, format).append("\n");
 			buf.append(indentSpaces).append("    weights: ");
-			toStringBuilderMat(w0, buf, indent + 13, format).append("\n");
+			toStringBuilderMat(params, paramsOffset + W0, 64, 42, buf, indent + 13, format).append("\n");
 			buf.append(indentSpaces).append("    bias   : ");
-			toStringBuilderVec(b0, buf, format).append("\n");
+			toStringBuilderVecAt(params, paramsOffset + B0, 64, buf, format).append("\n");
 
 			buf.append(indentSpaces).append("vector_grad[64]");
 			buf.append(": inp: ");
@@ -719,9 +927,9 @@ public class CompiledChain implements Operation {
 			buf.append(indentSpaces).append("    inp    : ");
 			toStringBuilderVec(a02, buf, format).append("\n");
 			buf.append(indentSpaces).append("    weights: ");
-			toStringBuilderMat(w1, buf, indent + 13, format).append("\n");
+			toStringBuilderMat(params, paramsOffset + W1, 48, 64, buf, indent + 13, format).append("\n");
 			buf.append(indentSpaces).append("    bias   : ");
-			toStringBuilderVec(b1, buf, format).append("\n");
+			toStringBuilderVecAt(params, paramsOffset + B1, 48, buf, format).append("\n");
 
 			buf.append(indentSpaces).append("vector_grad[48]");
 			buf.append(": inp: ");
@@ -732,9 +940,9 @@ public class CompiledChain implements Operation {
 			buf.append(indentSpaces).append("    inp    : ");
 			toStringBuilderVec(a04, buf, format).append("\n");
 			buf.append(indentSpaces).append("    weights: ");
-			toStringBuilderMat(w2, buf, indent + 13, format).append("\n");
+			toStringBuilderMat(params, paramsOffset + W2, 32, 48, buf, indent + 13, format).append("\n");
 			buf.append(indentSpaces).append("    bias   : ");
-			toStringBuilderVec(b2, buf, format).append("\n");
+			toStringBuilderVecAt(params, paramsOffset + B2, 32, buf, format).append("\n");
 
 			buf.append(indentSpaces).append("vector_grad[32]");
 			buf.append(": inp: ");
@@ -745,9 +953,9 @@ public class CompiledChain implements Operation {
 			buf.append(indentSpaces).append("    inp    : ");
 			toStringBuilderVec(a06, buf, format).append("\n");
 			buf.append(indentSpaces).append("    weights: ");
-			toStringBuilderMat(w3, buf, indent + 13, format).append("\n");
+			toStringBuilderMat(params, paramsOffset + W3, 24, 32, buf, indent + 13, format).append("\n");
 			buf.append(indentSpaces).append("    bias   : ");
-			toStringBuilderVec(b3, buf, format).append("\n");
+			toStringBuilderVecAt(params, paramsOffset + B3, 24, buf, format).append("\n");
 
 			buf.append(indentSpaces).append("vector_grad[24]");
 			buf.append(": inp: ");
@@ -758,9 +966,9 @@ public class CompiledChain implements Operation {
 			buf.append(indentSpaces).append("    inp    : ");
 			toStringBuilderVec(a08, buf, format).append("\n");
 			buf.append(indentSpaces).append("    weights: ");
-			toStringBuilderMat(w4, buf, indent + 13, format).append("\n");
+			toStringBuilderMat(params, paramsOffset + W4, 16, 24, buf, indent + 13, format).append("\n");
 			buf.append(indentSpaces).append("    bias   : ");
-			toStringBuilderVec(b4, buf, format).append("\n");
+			toStringBuilderVecAt(params, paramsOffset + B4, 16, buf, format).append("\n");
 
 			buf.append(indentSpaces).append("vector_grad[16]");
 			buf.append(": inp: ");
@@ -771,9 +979,9 @@ public class CompiledChain implements Operation {
 			buf.append(indentSpaces).append("    inp    : ");
 			toStringBuilderVec(a10, buf, format).append("\n");
 			buf.append(indentSpaces).append("    weights: ");
-			toStringBuilderMat(w5, buf, indent + 13, format).append("\n");
+			toStringBuilderMat(params, paramsOffset + W5, 7, 16, buf, indent + 13, format).append("\n");
 			buf.append(indentSpaces).append("    bias   : ");
-			toStringBuilderVec(b5, buf, format).append("\n");
+			toStringBuilderVecAt(params, paramsOffset + B5, 7, buf, format).append("\n");
 
 			buf.append(indentSpaces).append("vector_grad[7]");
 			buf.append(": inp: ");
@@ -784,25 +992,21 @@ public class CompiledChain implements Operation {
 	}
 
 	/**
-	 * matA[i][j] += matB[i][j]
+	 * vecA[i] += vecB[i]
 	 */
-	private static void addMat(float[][] matA, float[][] matB, int rowCount, int colCount) {
-		for (int i = 0; i < rowCount; i++) {
-			float[] rowA = matA[i];
-			float[] rowB = matB[i];
-
-			for (int j = 0; j < colCount; j++) {
-				rowA[j] += rowB[j];
-			}
+	public static void addVec(float[] vecA, float[] vecB, int length) {
+		for (int i = 0; i < length; i++) {
+			vecA[i] += vecB[i];
 		}
 	}
 
 	/**
-	 * vecA[i] += vecB[i]
+	 * Adds values of vecA to vecB, starting at offsetB in vecB, i.e.
+	 * vecB[offsetB + i] += vecA[i].
 	 */
-	private static void addVec(float[] vecA, float[] vecB, int length) {
+	public static void addVecVecAt(float[] vecA, float[] vecB, int offsetB, int length) {
 		for (int i = 0; i < length; i++) {
-			vecA[i] += vecB[i];
+			vecB[offsetB + i] += vecA[i];
 		}
 	}
 
@@ -812,70 +1016,39 @@ public class CompiledChain implements Operation {
 	 * 
 	 * @param stddev standard deviation of the distribution to use
 	 */
-	private static void assignGaussianMat(float[][] mat, float stddev, Random rnd, int rowCount, int colCount) {
-		for (int i = 0; i < rowCount; i++) {
-			float[] row = mat[i];
-
-			for (int j = 0; j < colCount; j++) {
-				row[j] = stddev * (float) rnd.nextGaussian();
-			}
-		}
-	}
-
-	/**
-	 * Assign the specified value to every element of matrix mat.
-	 */
-	private static void assignMatSca(float[][] mat, float value, int rowCount, int colCount) {
-		for (int i = 0; i < rowCount; i++) {
-			float[] row = mat[i];
-			for (int j = 0; j < colCount; j++) {
-				row[j] = value;
-			}
+	public static void assignGaussianMat(float[] mat, int offsetMat, float stddev, Random rnd, int rowCount,
+			int colCount) {
+		for (int k = 0; k < rowCount * colCount; k++) {
+			mat[offsetMat + k] = stddev * (float) rnd.nextGaussian();
 		}
 	}
 
 	/**
 	 * Assign the specified value to every element of vector vec.
 	 */
-	private static void assignVecSca(float[] vec, float value, int length) {
+	public static void assignVecSca(float[] vec, float value, int length) {
 		for (int i = 0; i < length; i++) {
 			vec[i] = value;
 		}
 	}
 
 	/**
-	 * Assigns values of vecA to vecB, i.e. vecB[i] = vecA[i].
+	 * Assign the specified value to the elements vec[offset] to vec[offset + length
+	 * - 1].
 	 */
-	private static void assignVecVec(float[] vecA, float[] vecB, int length) {
+	public static void assignVecScaAt(float[] vec, int offset, float value, int length) {
 		for (int i = 0; i < length; i++) {
-			vecB[i] = vecA[i];
-		}
-	}
-
-	/**
-	 * Multiplies matrix matA with scalar sca and then adds it to matrix matB,
-	 * storing the result in matB. The matrix matA is not modified. I.e. matB[i][j]
-	 * += sca * matA[i][j].
-	 */
-	public static void mulAddMatSca(float[][] matA, float sca, float[][] matB, int rowCount, int colCount) {
-		for (int i = 0; i < rowCount; i++) {
-			float[] rowA = matA[i];
-			float[] rowB = matB[i];
-
-			for (int j = 0; j < colCount; j++) {
-				rowB[j] += sca * rowA[j];
-			}
+			vec[offset + i] = value;
 		}
 	}
 
 	/**
-	 * Multiplies vector vecA with scalar sca and then adds it to vector vecB,
-	 * storing the result in vecB. The vector vecA is not modified. I.e. vecB[i] +=
-	 * sca * vecA[i].
+	 * Assigns values of vecA to vecB, starting at offsetB in vecB, i.e.
+	 * vecB[offsetB + i] = vecA[i].
 	 */
-	public static void mulAddVecSca(float[] vecA, float sca, float[] vecB, int length) {
-		for (int j = 0; j < length; j++) {
-			vecB[j] += sca * vecA[j];
+	public static void assignVecVecAt(float[] vecA, float[] vecB, int offsetB, int length) {
+		for (int i = 0; i < length; i++) {
+			vecB[offsetB + i] = vecA[i];
 		}
 	}
 
@@ -883,18 +1056,18 @@ public class CompiledChain implements Operation {
 	 * Multiplies matrix mat with vector inp, adds the bias vector and stores the
 	 * result in out, i.e. calculates out = mat * inp + bias.
 	 */
-	private static void mulMatVecPlusBias(float[][] mat, float[] inp, float[] bias, float[] out, int lengthOut,
-			int lengthInp) {
+	public static void mulMatVecPlusBias(float[] mat, int offsetMat, float[] inp, float[] bias, int offsetBias,
+			float[] out, int lengthOut, int lengthInp) {
 		for (int i = 0; i < lengthOut; i++) {
-			float[] row = mat[i];
+			int rowOffset = offsetMat + i * lengthInp;
 
 			float tmp = 0.0f;
 
 			for (int j = 0; j < lengthInp; j++) {
-				tmp += row[j] * inp[j];
+				tmp += mat[rowOffset + j] * inp[j];
 			}
 
-			out[i] = tmp + bias[i];
+			out[i] = tmp + bias[offsetBias + i];
 		}
 	}
 
@@ -902,51 +1075,78 @@ public class CompiledChain implements Operation {
 	 * Multiplies a row vector by a matrix and stores the result in an output
 	 * vector, i.e. out = inp * mat.
 	 */
-	private static void mulVecMat(float[] inp, float[][] mat, float[] out, int rowCount, int colCount) {
+	public static void mulVecMat(float[] inp, float[] mat, int offsetMat, float[] out, int rowCount,
+			int colCount) {
 		{
 			for (int j = 0; j < colCount; j++) {
 				out[j] = 0.0f;
 			}
 
 			for (int i = 0; i < rowCount; i++) {
-				float[] row = mat[i];
+				int rowOffset = offsetMat + i * colCount;
 				float sca = inp[i];
 
 				for (int j = 0; j < colCount; j++) {
-					out[j] += sca * row[j];
+					out[j] += sca * mat[rowOffset + j];
 				}
 			}
 		}
 	}
 
+	/**
+	 * Multiplies a vector with a scalar and overwrites the vector with the results.
+	 */
+	public static void mulVecSca(float[] vec, float sca, int length) {
+		for (int i = 0; i < length; i++) {
+			vec[i] *= sca;
+		}
+	}
+
 	/**
 	 * Outer product of two vectors vec_u and vec_v, creating a matrix mat, i.e. mat
 	 * = vec_u ⊗ vec_v, mat[i][j] = vec_u[i] * vec_v[j].
 	 */
-	private static void outerProduct(float[] vec_u, float[] vec_v, float[][] mat, int uLength, int vLength) {
+	public static void outerProduct(float[] vec_u, float[] vec_v, float[] mat, int offsetMat, int uLength,
+			int vLength) {
+		for (int i = 0; i < uLength; i++) {
+			int rowOffset = offsetMat + i * vLength;
+			float sca = vec_u[i];
+
+			for (int j = 0; j < vLength; j++) {
+				mat[rowOffset + j] = sca * vec_v[j];
+			}
+		}
+	}
+
+	/**
+	 * Adds the outer product of two vectors vec_u and vec_v to a matrix mat, i.e.
+	 * mat += vec_u ⊗ vec_v, mat[i][j] += vec_u[i] * vec_v[j].
+	 */
+	public static void outerProductAdd(float[] vec_u, float[] vec_v, float[] mat, int offsetMat, int uLength,
+			int vLength) {
 		for (int i = 0; i < uLength; i++) {
+			int rowOffset = offsetMat + i * vLength;
 			float sca = vec_u[i];
-			float[] row = mat[i];
 
 			for (int j = 0; j < vLength; j++) {
-				row[j] = sca * vec_v[j];
+				mat[rowOffset + j] += sca * vec_v[j];
 			}
 		}
 	}
 
-	private static void reluDerivativeVec(float[] grad_inp, float[] inp, float[] grad_out, int length) {
+	public static void reluDerivativeVec(float[] grad_inp, float[] inp, float[] grad_out, int length) {
 		for (int i = 0; i < length; i++) {
 			grad_inp[i] = (inp[i] >= 0) ? grad_out[i] : 0.0f;
 		}
 	}
 
-	private static void reluVec(float[] inp, float[] out, int length) {
+	public static void reluVec(float[] inp, float[] out, int length) {
 		for (int i = 0; i < length; i++) {
 			out[i] = Math.max(0, inp[i]);
 		}
 	}
 
-	private static void softmaxVec(float[] inp, float[] out, int length) {
+	public static void softmaxVec(float[] inp, float[] out, int length) {
 		{
 			float max = Float.NEGATIVE_INFINITY;
 			for (int i = 0; i < length; i++) {
@@ -985,7 +1185,7 @@ public class CompiledChain implements Operation {
 	 * @param grad_inp result which is calculated: the gradient of the loss in
 	 *                 respect to the values before the application of softmax
 	 */
-	private void softmaxWithCrossEntropyLossGradient_manifoldClassification(float[] out, float[] target, int length,
+	public static void softmaxWithCrossEntropyLossGradient_manifoldClassification(float[] out, float[] target, int length,
 			float[] grad_inp) {
 		// grad_out is skipped; grad_inp is calculated directly:
 		// gradient for softmax with cross entropy loss for manifold classification (aka
@@ -997,20 +1197,20 @@ public class CompiledChain implements Operation {
 		}
 	}
 
-	protected static StringBuilder toStringBuilderMat(float[][] mat, StringBuilder buf, int indentSpaces,
-			DecimalFormat format) {
+	protected static StringBuilder toStringBuilderMat(float[] mat, int offsetMat, int rowCount, int colCount,
+			StringBuilder buf, int indentSpaces, DecimalFormat format) {
 		buf.append("[");
 
 		String indent = SPACES.substring(0, indentSpaces + 1);
 
-		for (int i = 0; i < mat.length; i++) {
+		for (int i = 0; i < rowCount; i++) {
 			if (i > 0) {
 				buf.append(indent);
 			}
 
-			toStringBuilderVec(mat[i], buf, format);
+			toStringBuilderVecAt(mat, offsetMat + i * colCount, colCount, buf, format);
 
-			if (i < mat.length - 1) {
+			if (i < rowCount - 1) {
 				buf.append("\n");
 			}
 		}
@@ -1041,4 +1241,21 @@ public class CompiledChain implements Operation {
 
 		return buf;
 	}
+
+	protected static StringBuilder toStringBuilderVecAt(float[] vec, int offset, int length, StringBuilder buf,
+			DecimalFormat format) {
+		buf.append("[");
+
+		for (int i = 0; i < length; i++) {
+			toStringBuilderSca(vec[offset + i], buf, format);
+
+			if (i < length - 1) {
+				buf.append(" ");
+			}
+		}
+
+		buf.append("]");
+
+		return buf;
+	}
 }
@@ -4,9 +4,12 @@ import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.Random;
 
+import de.a0h.minideeplearn.operation.ExecutionContext;
 import de.a0h.minideeplearn.operation.Operation;
+import de.a0h.minideeplearn.operation.OperationUtil;
 import de.a0h.minideeplearn.operation.gradient.ChainGradient;
 import de.a0h.minideeplearn.operation.gradient.Gradient;
+import de.a0h.minideeplearn.operation.optimizer.UpdateRule;
 import de.a0h.mininum.format.StringUtil;
 
 /**
@@ -17,11 +20,28 @@ public class Chain implements Operation, Iterable<Operation> {
 
 	protected ArrayList<Operation> list = new ArrayList<>();
 
+	/**
+	 * The learnable parameters of all sub operations, packed contiguously in
+	 * forward evaluation order.
+	 */
+	protected float[] params = OperationUtil.NO_PARAMS;
+
+	protected int paramsOffset;
+
+	protected int paramCount;
+
 	public Chain() {
 	}
 
+	/**
+	 * Appends the specified operation and moves its learnable parameters into the
+	 * parameter vector of this chain. Operations must be complete when they are
+	 * added, i.e. a sub chain must not be modified afterwards.
+	 */
 	public void add(Operation op) {
 		list.add(op);
+
+		bindParams(new float[paramCount + op.getParamCount()], 0);
 	}
 
 	/**
@@ -61,9 +81,11 @@ public class Chain implements Operation, Iterable<Operation> {
 
 		Chain result = new Chain();
 
+		// the elementary operations stay bound to the parameter vector of this chain
 		for (Operation op : this) {
-			result.add(op);
+			result.list.add(op);
 		}
+		result.shareParams(this);
 
 		return result;
 	}
@@ -86,6 +108,11 @@ public class Chain implements Operation, Iterable<Operation> {
 		return op.getOutputSize();
 	}
 
+	@Override
+	public float[] calcOutput(ExecutionContext ctx, float[] inp) {
+		return ctx.getStorage(this).calcOutput(inp);
+	}
+
 	@Override
 	public float[] getOutput() {
 		Operation op = getLast();
@@ -112,6 +139,37 @@ public class Chain implements Operation, Iterable<Operation> {
 		return op.getLoss();
 	}
 
+	@Override
+	public float[] calcLossBatch(float[][] inp, float[][] target, int rows) {
+		Operation op = getLast();
+		return op.calcLossBatch(inp, target, rows);
+	}
+
+	@Override
+	public float[] getLossBatch() {
+		Operation op = getLast();
+		return op.getLossBatch();
+	}
+
+	@Override
+	public float[][] getOutputBatch() {
+		Operation op = getLast();
+		return op.getOutputBatch();
+	}
+
+	@Override
+	public float[][] calcOutputBatch(float[][] inp, int rows) {
+		for (int i = 0; i < list.size(); i++) {
+			Operation op = list.get(i);
+
+			if (op.hasOutput()) {
+				inp = op.calcOutputBatch(inp, rows);
+			}
+		}
+
+		return inp;
+	}
+
 	@Override
 	public float[] calcOutput(float[] inp) {
 		for (int i = 0; i < list.size(); i++) {
@@ -127,6 +185,12 @@ public class Chain implements Operation, Iterable<Operation> {
 
 	@Override
 	public void calcGradient(float[] inp, float[] target_or_upstream_grad_of_out, Gradient grad) {
+		calcGradient(inp, target_or_upstream_grad_of_out, grad, false);
+	}
+
+	@Override
+	public void calcGradient(float[] inp, float[] target_or_upstream_grad_of_out, Gradient grad,
+			boolean accumulate) {
 		shallowEnsureCompatibleGradient(grad);
 
 		ChainGradient grad_ = (ChainGradient) grad;
@@ -145,12 +209,36 @@ public class Chain implements Operation, Iterable<Operation> {
 
 			Gradient grad_op = grad_.getElement(i);
 
-			op.calcGradient(prev_out, target_or_upstream_grad_of_out, grad_op);
+			op.calcGradient(prev_out, target_or_upstream_grad_of_out, grad_op, accumulate);
 
 			target_or_upstream_grad_of_out = grad_op.getInputGrad();
 		}
 	}
 
+	@Override
+	public void calcGradientBatch(float[][] inp, float[][] target_or_upstream_grad_of_out, int rows, Gradient grad) {
+		shallowEnsureCompatibleGradient(grad);
+
+		ChainGradient grad_ = (ChainGradient) grad;
+
+		for (int i = list.size() - 1; i >= 0; i--) {
+			Operation op = list.get(i);
+			float[][] prev_out;
+			if (i >= 1) {
+				Operation prevOp = list.get(i - 1);
+				prev_out = prevOp.getOutputBatch();
+			} else {
+				prev_out = inp;
+			}
+
+			Gradient grad_op = grad_.getElement(i);
+
+			op.calcGradientBatch(prev_out, target_or_upstream_grad_of_out, rows, grad_op);
+
+			target_or_upstream_grad_of_out = grad_op.getInputGradBatch();
+		}
+	}
+
 	public void shallowEnsureCompatibleGradient(Gradient grad) {
 		if (!grad.getClass().equals(ChainGradient.class)) {
 			throw new IllegalArgumentException("" + //
@@ -183,12 +271,38 @@ public class Chain implements Operation, Iterable<Operation> {
 		return grad;
 	}
 
+	@Override
+	public Chain createParamSharingCopy() {
+		Chain result = new Chain();
+
+		for (int i = 0; i < list.size(); i++) {
+			Operation op = list.get(i);
+
+			result.list.add(op.createParamSharingCopy());
+		}
+		result.shareParams(this);
+
+		return result;
+	}
+
+	@Override
+	public ExecutionContext createContext() {
+		return new ExecutionContext(this);
+	}
+
 	public int size() {
 		return list.size();
 	}
 
 	public void set(int index, Operation op) {
 		list.set(index, op);
+
+		int newParamCount = 0;
+		for (int i = 0; i < list.size(); i++) {
+			newParamCount += list.get(i).getParamCount();
+		}
+
+		bindParams(new float[newParamCount], 0);
 	}
 
 	public Operation get(int index) {
@@ -290,16 +404,71 @@ public class Chain implements Operation, Iterable<Operation> {
 
 	@Override
 	public void learn(Gradient grad, float negLearningRate) {
+		ensureCompatibleParamCount(grad);
+
+		// all parameters of all sub operations at once
+		OperationUtil.mulAdd( //
+				grad.getParams(), grad.getParamsOffset(), //
+				negLearningRate, //
+				params, paramsOffset, //
+				paramCount);
+	}
+
+	@Override
+	public void learn(Gradient grad, float gradScale, UpdateRule rule) {
+		ensureCompatibleParamCount(grad);
+
+		// all parameters of all sub operations at once
+		rule.update( //
+				grad.getParams(), grad.getParamsOffset(), //
+				gradScale, //
+				params, paramsOffset, //
+				paramCount);
+	}
+
+	protected void ensureCompatibleParamCount(Gradient grad) {
 		shallowEnsureCompatibleGradient(grad);
 
-		ChainGradient grad_ = (ChainGradient) grad;
+		if (grad.getParamCount() != paramCount) {
+			throw new IllegalArgumentException("" + //
+					"gradient has " + grad.getParamCount() + " parameters, " + //
+					"which is incompatible to this chain, because " + //
+					"the latter one has " + paramCount + " parameters");
+		}
+	}
 
-		for (int i = 0; i < list.size(); i++) {
-			Operation el = list.get(i);
+	@Override
+	public int getParamCount() {
+		return paramCount;
+	}
+
+	@Override
+	public float[] getParams() {
+		return params;
+	}
 
-			Gradient grad_el = grad_.getElement(i);
+	@Override
+	public int getParamsOffset() {
+		return paramsOffset;
+	}
 
-			el.learn(grad_el, negLearningRate);
+	@Override
+	public void bindParams(float[] params, int offset) {
+		int opOffset = offset;
+		for (int i = 0; i < list.size(); i++) {
+			Operation op = list.get(i);
+			op.bindParams(params, opOffset);
+			opOffset += op.getParamCount();
 		}
+
+		this.params = params;
+		paramsOffset = offset;
+		paramCount = opOffset - offset;
+	}
+
+	protected void shareParams(Chain paramSrc) {
+		params = paramSrc.params;
+		paramsOffset = paramSrc.paramsOffset;
+		paramCount = paramSrc.paramCount;
 	}
 }
\ No newline at end of file
@@ -2,12 +2,23 @@ package de.a0h.minideeplearn.operation.gradient;
 
 import java.util.ArrayList;
 
+import de.a0h.minideeplearn.operation.OperationUtil;
 import de.a0h.mininum.format.StringUtil;
 
 public class ChainGradient implements Gradient {
 
 	ArrayList<Gradient> list = new ArrayList<>();
 
+	/**
+	 * The parameter gradients of all elements, packed contiguously in element
+	 * order.
+	 */
+	protected float[] params = OperationUtil.NO_PARAMS;
+
+	protected int paramsOffset;
+
+	protected int paramCount;
+
 	public ChainGradient() {
 	}
 
@@ -84,6 +95,13 @@ public class ChainGradient implements Gradient {
 		return list.get(0).getInputGrad();
 	}
 
+	@Override
+	public float[][] getInputGradBatch() {
+		ensureNotEmpty();
+
+		return list.get(0).getInputGradBatch();
+	}
+
 	protected void ensureNotEmpty() {
 		if (list.size() == 0) {
 			throw new IllegalStateException("" + //
@@ -93,19 +111,48 @@ public class ChainGradient implements Gradient {
 		}
 	}
 
+	/**
+	 * The parameter gradients of all elements are cleared as one vector, only the
+	 * input gradients are cleared per element. The same applies to
+	 * {@link #mul(float)} and {@link #add(Gradient)}.
+	 */
 	@Override
 	public void clear() {
-		for (int i = 0; i < list.size(); i++) {
-			Gradient grad = list.get(i);
-			grad.clear();
+		OperationUtil.assign(params, paramsOffset, paramCount, 0.0f);
+
+		clearInputGrads(this);
+	}
+
+	protected static void clearInputGrads(ChainGradient grad) {
+		for (int i = 0; i < grad.list.size(); i++) {
+			Gradient el = grad.list.get(i);
+
+			if (el instanceof ChainGradient) {
+				clearInputGrads((ChainGradient) el);
+			} else {
+				float[] inpGrad = el.getInputGrad();
+				OperationUtil.assign(inpGrad, 0, inpGrad.length, 0.0f);
+			}
 		}
 	}
 
 	@Override
 	public void mul(float factor) {
-		for (int i = 0; i < list.size(); i++) {
-			Gradient grad = list.get(i);
-			grad.mul(factor);
+		OperationUtil.mul(params, paramsOffset, paramCount, factor);
+
+		mulInputGrads(this, factor);
+	}
+
+	protected static void mulInputGrads(ChainGradient grad, float factor) {
+		for (int i = 0; i < grad.list.size(); i++) {
+			Gradient el = grad.list.get(i);
+
+			if (el instanceof ChainGradient) {
+				mulInputGrads((ChainGradient) el, factor);
+			} else {
+				float[] inpGrad = el.getInputGrad();
+				OperationUtil.mul(inpGrad, 0, inpGrad.length, factor);
+			}
 		}
 	}
 
@@ -115,16 +162,76 @@ public class ChainGradient implements Gradient {
 
 		ChainGradient other_ = (ChainGradient) other;
 
-		for (int i = 0; i < list.size(); i++) {
-			Gradient el = this.list.get(i);
-			Gradient otherEl = other_.list.get(i);
+		if (other_.paramCount != paramCount) {
+			throw new IllegalArgumentException("" + //
+					"other gradient has " + other_.paramCount + " parameter gradients, " + //
+					"which is incompatible to this gradient, which " + //
+					"has " + paramCount + " parameter gradients");
+		}
+
+		OperationUtil.add(other_.params, other_.paramsOffset, params, paramsOffset, paramCount);
 
-			el.add(otherEl);
+		addInputGrads(other_, this);
+	}
+
+	protected static void addInputGrads(ChainGradient src, ChainGradient dst) {
+		for (int i = 0; i < dst.list.size(); i++) {
+			Gradient el = dst.list.get(i);
+			Gradient otherEl = src.list.get(i);
+
+			if (el instanceof ChainGradient) {
+				((ChainGradient) el).shallowEnsureCompatibleForAdd(otherEl);
+				addInputGrads((ChainGradient) otherEl, (ChainGradient) el);
+
+			} else {
+				float[] inpGrad = el.getInputGrad();
+				float[] otherInpGrad = otherEl.getInputGrad();
+
+				if (!el.getClass().equals(otherEl.getClass()) || otherInpGrad.length != inpGrad.length) {
+					throw new IllegalArgumentException("" + //
+							"other gradient's element " + otherEl.toStringWithLayout() + " " + //
+							"is not compatible to " + //
+							"this gradient's element " + el.toStringWithLayout());
+				}
+
+				OperationUtil.add(otherInpGrad, 0, inpGrad, 0, inpGrad.length);
+			}
 		}
 	}
 
 	public void addElement(Gradient subGrad) {
 		list.add(subGrad);
+
+		bindParams(new float[paramCount + subGrad.getParamCount()], 0);
+	}
+
+	@Override
+	public int getParamCount() {
+		return paramCount;
+	}
+
+	@Override
+	public float[] getParams() {
+		return params;
+	}
+
+	@Override
+	public int getParamsOffset() {
+		return paramsOffset;
+	}
+
+	@Override
+	public void bindParams(float[] params, int offset) {
+		int elOffset = offset;
+		for (int i = 0; i < list.size(); i++) {
+			Gradient el = list.get(i);
+			el.bindParams(params, elOffset);
+			elOffset += el.getParamCount();
+		}
+
+		this.params = params;
+		paramsOffset = offset;
+		paramCount = elOffset - offset;
 	}
 
 	public Gradient getElement(int index) {
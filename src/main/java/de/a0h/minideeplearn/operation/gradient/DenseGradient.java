@@ -1,38 +1,48 @@
 package de.a0h.minideeplearn.operation.gradient;
 
+import java.util.Arrays;
+
 import de.a0h.minideeplearn.operation.OperationUtil;
-import de.a0h.mininum.MnLinalg;
 import de.a0h.mininum.format.DecimalFormatWithPadding;
 import de.a0h.mininum.format.MnFormat;
 import de.a0h.mininum.format.NumberStats;
 import de.a0h.mininum.format.StringUtil;
 
+/**
+ * Gradient of a {@link de.a0h.minideeplearn.operation.layer.Dense} layer. The
+ * weights gradient and the bias gradient are stored in the params array with
+ * the same layout as the parameters of the dense layer.
+ */
 public class DenseGradient extends VectorGradient {
 
-	public float[][] weights;
+	public float[] params;
+
+	public int weightsOffset;
+
+	public int biasOffset;
 
-	public float[] bias;
+	public int outSize;
 
 	public DenseGradient(int inpSize, int outSize) {
 		super(inpSize);
 
-		weights = new float[outSize][inpSize];
-		bias = new float[outSize];
+		this.outSize = outSize;
+
+		params = new float[outSize * inpSize + outSize];
+		weightsOffset = 0;
+		biasOffset = outSize * inpSize;
 	}
 
 	@Override
 	public void clear() {
-		super.clear();
-
-		MnLinalg.assign(weights, 0.0f);
-		MnLinalg.assign(bias, 0.0f);
+		OperationUtil.assign(inp, 0, inp.length, 0.0f);
+		OperationUtil.assign(params, weightsOffset, getParamCount(), 0.0f);
 	}
 
 	@Override
 	public void mul(float factor) {
-		MnLinalg.mul(inp, factor);
-		MnLinalg.mul(weights, factor);
-		MnLinalg.mul(bias, factor);
+		OperationUtil.mul(inp, 0, inp.length, factor);
+		OperationUtil.mul(params, weightsOffset, getParamCount(), factor);
 	}
 
 	@Override
@@ -41,9 +51,32 @@ public class DenseGradient extends VectorGradient {
 
 		DenseGradient otherDense = (DenseGradient) other;
 
-		MnLinalg.add(inp, otherDense.inp);
-		MnLinalg.add(weights, otherDense.weights);
-		MnLinalg.add(bias, otherDense.bias);
+		OperationUtil.add(otherDense.inp, 0, inp, 0, inp.length);
+		OperationUtil.add(otherDense.params, otherDense.weightsOffset, params, weightsOffset, getParamCount());
+	}
+
+	@Override
+	public int getParamCount() {
+		return outSize * inp.length + outSize;
+	}
+
+	@Override
+	public float[] getParams() {
+		return params;
+	}
+
+	@Override
+	public int getParamsOffset() {
+		return weightsOffset;
+	}
+
+	@Override
+	public void bindParams(float[] params, int offset) {
+		System.arraycopy(this.params, weightsOffset, params, offset, getParamCount());
+
+		this.params = params;
+		weightsOffset = offset;
+		biasOffset = offset + outSize * inp.length;
 	}
 
 	@Override
@@ -62,7 +95,7 @@ public class DenseGradient extends VectorGradient {
 	public StringBuilder toStringBuilderWithLayout(StringBuilder buf) {
 		buf //
 				.append(getTypeShortname()).append("[") //
-				.append(weights.length).append("x").append(weights[0].length) //
+				.append(outSize).append("x").append(inp.length) //
 				.append("]") //
 		;
 
@@ -77,6 +110,9 @@ public class DenseGradient extends VectorGradient {
 	}
 
 	public StringBuilder toStringBuilderWithLayoutAndValues(StringBuilder buf, int indent) {
+		float[] weights = Arrays.copyOfRange(params, weightsOffset, weightsOffset + outSize * inp.length);
+		float[] bias = Arrays.copyOfRange(params, biasOffset, biasOffset + outSize);
+
 		NumberStats numberStats = new NumberStats();
 		numberStats.aggregate(inp);
 		numberStats.aggregate(weights);
@@ -91,7 +127,7 @@ public class DenseGradient extends VectorGradient {
 		MnFormat.toStringBuilder(inp, buf, format).append("\n");
 
 		buf.append(indentSpaces).append("    weights: ");
-		MnFormat.toStringBuilder(weights, buf, indent + 13, format).append("\n");
+		OperationUtil.toStringBuilderMat(weights, outSize, inp.length, buf, indent + 13, format).append("\n");
 
 		buf.append(indentSpaces).append("    bias   : ");
 		MnFormat.toStringBuilder(bias, buf, format);
@@ -102,12 +138,12 @@ public class DenseGradient extends VectorGradient {
 	protected void ensureCompatibleForAdd(Gradient other) {
 		super.ensureCompatibleForAdd(other);
 
-		float[][] otherWeights = ((DenseGradient) other).weights;
-		if (otherWeights.length != weights.length) {
+		int otherOutSize = ((DenseGradient) other).outSize;
+		if (otherOutSize != outSize) {
 			throw new IllegalArgumentException("" + //
-					"other gradient's weights matrix height of " + otherWeights.length + " " + //
+					"other gradient's weights matrix height of " + otherOutSize + " " + //
 					"is not the same as " + //
-					"this gradient's weights matrix height of " + weights.length);
+					"this gradient's weights matrix height of " + outSize);
 		}
 
 	}
@@ -10,7 +10,16 @@ public interface Gradient {
 	public float[] getInputGrad();
 
 	/**
-	 * Sets all values of this gradient object to 0.
+	 * Returns the gradients in respect to the input vectors which were calculated in
+	 * the last batched gradient calculation, one row per sample. The returned matrix
+	 * may have more rows than the last batch had samples.
+	 */
+	public float[][] getInputGradBatch();
+
+	/**
+	 * Sets all values of this gradient object to 0. The batch input gradients are
+	 * scratch values and not affected by this method, nor by {@link #add(Gradient)}
+	 * or {@link #mul(float)}.
 	 */
 	public void clear();
 
@@ -37,6 +46,30 @@ public interface Gradient {
 	 */
 	public void mul(float factor);
 
+	/**
+	 * Returns the number of gradients in respect to learnable parameters in this
+	 * gradient. This excludes the gradients in respect to inputs.
+	 */
+	public int getParamCount();
+
+	/**
+	 * Returns the array which holds the gradients in respect to the learnable
+	 * parameters, starting at {@link #getParamsOffset()}. Its layout is the same as
+	 * the one of the parameters of the corresponding operation.
+	 */
+	public float[] getParams();
+
+	/**
+	 * Returns the offset of the first parameter gradient in {@link #getParams()}.
+	 */
+	public int getParamsOffset();
+
+	/**
+	 * Copies the parameter gradients into the specified array, starting at the
+	 * specified offset, and uses this storage from then on.
+	 */
+	public void bindParams(float[] params, int offset);
+
 	public String getTypeShortname();
 
 	public String toStringWithLayout();
@@ -11,6 +11,8 @@ public class VectorGradient implements Gradient {
 
 	public float[] inp;
 
+	public float[][] inpBatch;
+
 	public VectorGradient(int inpSize) {
 		inp = new float[inpSize];
 	}
@@ -20,6 +22,19 @@ public class VectorGradient implements Gradient {
 		return inp;
 	}
 
+	@Override
+	public float[][] getInputGradBatch() {
+		return inpBatch;
+	}
+
+	/**
+	 * Makes sure that the batch input gradient matrix has at least the specified
+	 * number of rows.
+	 */
+	public void ensureBatchCapacity(int rows) {
+		inpBatch = OperationUtil.ensureBatchCapacity(inpBatch, rows, inp.length);
+	}
+
 	@Override
 	public void clear() {
 		MnLinalg.assign(inp, 0.0f);
@@ -55,6 +70,26 @@ public class VectorGradient implements Gradient {
 		MnLinalg.mul(inp, factor);
 	}
 
+	@Override
+	public int getParamCount() {
+		return 0;
+	}
+
+	@Override
+	public float[] getParams() {
+		return OperationUtil.NO_PARAMS;
+	}
+
+	@Override
+	public int getParamsOffset() {
+		return 0;
+	}
+
+	@Override
+	public void bindParams(float[] params, int offset) {
+		// no learnable parameters
+	}
+
 	@Override
 	public String getTypeShortname() {
 		return "vector_grad";
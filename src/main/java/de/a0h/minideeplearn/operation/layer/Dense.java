@@ -1,13 +1,16 @@
 package de.a0h.minideeplearn.operation.layer;
 
+import java.util.Arrays;
 import java.util.Random;
 
+import de.a0h.minideeplearn.operation.ExecutionContext;
+import de.a0h.minideeplearn.operation.MdlOperationConfig;
+import de.a0h.minideeplearn.operation.MdlOperationConfig.KernelBackend;
 import de.a0h.minideeplearn.operation.Operation;
 import de.a0h.minideeplearn.operation.OperationUtil;
 import de.a0h.minideeplearn.operation.gradient.DenseGradient;
 import de.a0h.minideeplearn.operation.gradient.Gradient;
-import de.a0h.mininum.MnFuncs;
-import de.a0h.mininum.MnLinalg;
+import de.a0h.minideeplearn.operation.optimizer.UpdateRule;
 import de.a0h.mininum.format.DecimalFormatWithPadding;
 import de.a0h.mininum.format.MnFormat;
 import de.a0h.mininum.format.NumberStats;
@@ -19,24 +22,64 @@ import de.a0h.mininum.format.StringUtil;
  * y: output vector</br>
  * w: weights matrix (learnable parameters)</br>
  * b: bias (learnable parameters)</br>
+ * 
+ * <p>
+ * The weights matrix and the bias are stored in the params array, the weights
+ * row-major starting at weightsOffset, i.e. w[i][j] is stored in
+ * params[weightsOffset + i * inpSize + j], and the bias starting at biasOffset.
+ * The params array can be shared with other operations, see
+ * {@link #bindParams(float[], int)}.
+ * </p>
  */
 public class Dense implements Operation {
 
+	/**
+	 * Number of batch rows which are processed together in the batched matrix
+	 * products, so that a weights row is reused while it's still in the cache.
+	 */
+	protected static final int BATCH_TILE_ROWS = 16;
+
 	public float[] out;
 
-	public float[][] weights;
+	public float[][] outBatch;
+
+	public float[] params;
+
+	public int weightsOffset;
+
+	public int biasOffset;
+
+	public int inpSize;
 
-	public float[] bias;
+	public int outSize;
 
 	public Dense(int inpSize, int outSize) {
+		this.inpSize = inpSize;
+		this.outSize = outSize;
+
+		out = new float[outSize];
+		params = new float[outSize * inpSize + outSize];
+		weightsOffset = 0;
+		biasOffset = outSize * inpSize;
+	}
+
+	/**
+	 * Creates a dense layer which shares the weights and biases with the specified
+	 * dense layer.
+	 */
+	protected Dense(Dense paramSrc) {
+		inpSize = paramSrc.inpSize;
+		outSize = paramSrc.outSize;
+
 		out = new float[outSize];
-		weights = new float[outSize][inpSize];
-		bias = new float[outSize];
+		params = paramSrc.params;
+		weightsOffset = paramSrc.weightsOffset;
+		biasOffset = paramSrc.biasOffset;
 	}
 
 	@Override
 	public int getInputSize() {
-		return weights[0].length;
+		return inpSize;
 	}
 
 	@Override
@@ -46,22 +89,50 @@ public class Dense implements Operation {
 
 	@Override
 	public int getOutputSize() {
-		return weights.length;
+		return outSize;
 	}
 
 	@Override
 	public float[] calcOutput(float[] inp) {
-		MnLinalg.mulMatVec(weights, inp, out);
-		MnLinalg.add(out, bias);
+		if (MdlOperationConfig.kernelBackend == KernelBackend.UNROLLED) {
+			mulMatVecPlusBiasUnrolled(params, weightsOffset, inp, params, biasOffset, out, outSize, inpSize);
+		} else {
+			mulMatVecPlusBias(params, weightsOffset, inp, params, biasOffset, out, outSize, inpSize);
+		}
 
 		return out;
 	}
 
+	@Override
+	public float[] calcOutput(ExecutionContext ctx, float[] inp) {
+		return ctx.getStorage(this).calcOutput(inp);
+	}
+
 	@Override
 	public float[] getOutput() {
 		return out;
 	}
 
+	@Override
+	public float[][] calcOutputBatch(float[][] inp, int rows) {
+		outBatch = OperationUtil.ensureBatchCapacity(outBatch, rows, getOutputSize());
+
+		if (MdlOperationConfig.kernelBackend == KernelBackend.UNROLLED) {
+			mulMatMatTransposedPlusBiasUnrolled(inp, params, weightsOffset, params, biasOffset, outBatch, rows,
+					outSize, inpSize);
+		} else {
+			mulMatMatTransposedPlusBias(inp, params, weightsOffset, params, biasOffset, outBatch, rows, outSize,
+					inpSize);
+		}
+
+		return outBatch;
+	}
+
+	@Override
+	public float[][] getOutputBatch() {
+		return outBatch;
+	}
+
 	@Override
 	public boolean hasLoss() {
 		return false;
@@ -79,11 +150,33 @@ public class Dense implements Operation {
 		return -1.0f;
 	}
 
+	@Override
+	public float[] calcLossBatch(float[][] inp, float[][] target, int rows) {
+		OperationUtil.throwLossNotProvidedException(getClass());
+		return null;
+	}
+
+	@Override
+	public float[] getLossBatch() {
+		OperationUtil.throwLossNotProvidedException(getClass());
+		return null;
+	}
+
 	@Override
 	public DenseGradient createGradient() {
 		return new DenseGradient(getInputSize(), getOutputSize());
 	}
 
+	@Override
+	public ExecutionContext createContext() {
+		return new ExecutionContext(this);
+	}
+
+	@Override
+	public Dense createParamSharingCopy() {
+		return new Dense(this);
+	}
+
 	/**
 	 * Randomly initializes the weights of this dense layer and assigns 0 to the
 	 * biases.
@@ -92,27 +185,296 @@ public class Dense implements Operation {
 	public void initParams(Random rnd) {
 		float xavierFactor = 2.0f / (getInputSize() + getOutputSize());
 
-		MnFuncs.assignGaussian(weights, rnd);
-		MnLinalg.mul(weights, xavierFactor);
+		for (int i = weightsOffset; i < weightsOffset + outSize * inpSize; i++) {
+			params[i] = xavierFactor * (float) rnd.nextGaussian();
+		}
 
-		MnLinalg.assign(bias, 0);
+		OperationUtil.assign(params, biasOffset, outSize, 0.0f);
 	}
 
 	@Override
 	public void learn(Gradient grad, float negLearningRate) {
-		DenseGradient grad_ = (DenseGradient) grad;
+		OperationUtil.mulAdd( //
+				grad.getParams(), grad.getParamsOffset(), //
+				negLearningRate, //
+				params, weightsOffset, //
+				getParamCount());
+	}
+
+	@Override
+	public void learn(Gradient grad, float gradScale, UpdateRule rule) {
+		rule.update( //
+				grad.getParams(), grad.getParamsOffset(), //
+				gradScale, //
+				params, weightsOffset, //
+				getParamCount());
+	}
+
+	@Override
+	public int getParamCount() {
+		return outSize * inpSize + outSize;
+	}
+
+	@Override
+	public float[] getParams() {
+		return params;
+	}
+
+	@Override
+	public int getParamsOffset() {
+		return weightsOffset;
+	}
+
+	@Override
+	public void bindParams(float[] params, int offset) {
+		System.arraycopy(this.params, weightsOffset, params, offset, getParamCount());
 
-		MnLinalg.mulAdd(grad_.bias, negLearningRate, bias);
-		MnLinalg.mulAdd(grad_.weights, negLearningRate, weights);
+		this.params = params;
+		weightsOffset = offset;
+		biasOffset = offset + outSize * inpSize;
 	}
 
 	@Override
 	public void calcGradient(float[] inp, float[] grad_out, Gradient grad) {
+		calcGradient(inp, grad_out, grad, false);
+	}
+
+	@Override
+	public void calcGradient(float[] inp, float[] grad_out, Gradient grad, boolean accumulate) {
 		DenseGradient grad_ = (DenseGradient) grad;
 
-		MnLinalg.outerProduct(grad_out, inp, grad_.weights);
-		MnLinalg.mulVecMat(grad_out, weights, grad_.inp);
-		MnLinalg.assign(grad_out, grad_.bias);
+		if (accumulate) {
+			outerProductAdd(grad_out, inp, grad_.params, grad_.weightsOffset, outSize, inpSize);
+			OperationUtil.add(grad_out, 0, grad_.params, grad_.biasOffset, outSize);
+		} else {
+			outerProduct(grad_out, inp, grad_.params, grad_.weightsOffset, outSize, inpSize);
+			System.arraycopy(grad_out, 0, grad_.params, grad_.biasOffset, outSize);
+		}
+		mulVecMat(grad_out, params, weightsOffset, grad_.inp, outSize, inpSize);
+	}
+
+	@Override
+	public void calcGradientBatch(float[][] inp, float[][] grad_out, int rows, Gradient grad) {
+		DenseGradient grad_ = (DenseGradient) grad;
+		grad_.ensureBatchCapacity(rows);
+
+		mulMatTransposedMat(grad_out, inp, grad_.params, grad_.weightsOffset, rows, outSize, inpSize);
+		mulMatMat(grad_out, params, weightsOffset, grad_.inpBatch, rows, outSize, inpSize);
+		sumRows(grad_out, grad_.params, grad_.biasOffset, rows, outSize);
+	}
+
+	/**
+	 * Calculates out = mat * inp + bias, where mat is a row-major matrix with
+	 * rowCount rows and colCount columns starting at matOffset, and bias starts at
+	 * biasOffset.
+	 */
+	public static void mulMatVecPlusBias(float[] mat, int matOffset, float[] inp, float[] bias, int biasOffset,
+			float[] out, int rowCount, int colCount) {
+		for (int i = 0; i < rowCount; i++) {
+			int rowOffset = matOffset + i * colCount;
+
+			float tmp = 0.0f;
+			for (int j = 0; j < colCount; j++) {
+				tmp += mat[rowOffset + j] * inp[j];
+			}
+
+			out[i] = tmp + bias[biasOffset + i];
+		}
+	}
+
+	/**
+	 * Same as
+	 * {@link #mulMatVecPlusBias(float[], int, float[], float[], int, float[], int, int)},
+	 * but for {@link KernelBackend#UNROLLED}.
+	 */
+	public static void mulMatVecPlusBiasUnrolled(float[] mat, int matOffset, float[] inp, float[] bias,
+			int biasOffset, float[] out, int rowCount, int colCount) {
+		for (int i = 0; i < rowCount; i++) {
+			out[i] = OperationUtil.dotUnrolled(mat, matOffset + i * colCount, inp, colCount) + bias[biasOffset + i];
+		}
+	}
+
+	/**
+	 * Calculates the outer product mat = u ⊗ v into the row-major matrix mat
+	 * starting at matOffset, i.e. mat[i][j] = u[i] * v[j].
+	 */
+	public static void outerProduct(float[] u, float[] v, float[] mat, int matOffset, int uLength, int vLength) {
+		for (int i = 0; i < uLength; i++) {
+			int rowOffset = matOffset + i * vLength;
+			float sca = u[i];
+
+			for (int j = 0; j < vLength; j++) {
+				mat[rowOffset + j] = sca * v[j];
+			}
+		}
+	}
+
+	/**
+	 * Adds the outer product u ⊗ v to the row-major matrix mat starting at
+	 * matOffset, i.e. mat[i][j] += u[i] * v[j].
+	 */
+	public static void outerProductAdd(float[] u, float[] v, float[] mat, int matOffset, int uLength, int vLength) {
+		for (int i = 0; i < uLength; i++) {
+			int rowOffset = matOffset + i * vLength;
+			float sca = u[i];
+
+			for (int j = 0; j < vLength; j++) {
+				mat[rowOffset + j] += sca * v[j];
+			}
+		}
+	}
+
+	/**
+	 * Calculates out = vec * mat for the row vector vec and the row-major matrix
+	 * mat starting at matOffset, i.e. out[j] = sum_i(vec[i] * mat[i][j]).
+	 */
+	public static void mulVecMat(float[] vec, float[] mat, int matOffset, float[] out, int rowCount,
+			int colCount) {
+		for (int j = 0; j < colCount; j++) {
+			out[j] = 0.0f;
+		}
+
+		for (int i = 0; i < rowCount; i++) {
+			int rowOffset = matOffset + i * colCount;
+			float sca = vec[i];
+
+			for (int j = 0; j < colCount; j++) {
+				out[j] += sca * mat[rowOffset + j];
+			}
+		}
+	}
+
+	/**
+	 * Calculates out = inp * mat^T + bias for the first rows of inp, i.e.
+	 * out[r][i] = bias[i] + sum_j(mat[i][j] * inp[r][j]), where mat is a row-major
+	 * matrix with rowCount rows and colCount columns starting at matOffset, and
+	 * bias starts at biasOffset. The batch rows are processed in tiles, so that
+	 * every row of mat is used for a whole tile of batch rows before it's evicted
+	 * from the cache.
+	 */
+	public static void mulMatMatTransposedPlusBias(float[][] inp, float[] mat, int matOffset, float[] bias,
+			int biasOffset, float[][] out, int rows, int rowCount, int colCount) {
+		for (int r0 = 0; r0 < rows; r0 += BATCH_TILE_ROWS) {
+			int r1 = Math.min(r0 + BATCH_TILE_ROWS, rows);
+
+			for (int i = 0; i < rowCount; i++) {
+				int rowOffset = matOffset + i * colCount;
+				float b = bias[biasOffset + i];
+
+				for (int r = r0; r < r1; r++) {
+					float[] inpRow = inp[r];
+
+					float tmp = 0.0f;
+					for (int j = 0; j < colCount; j++) {
+						tmp += mat[rowOffset + j] * inpRow[j];
+					}
+
+					out[r][i] = tmp + b;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Same as
+	 * {@link #mulMatMatTransposedPlusBias(float[][], float[], int, float[], int, float[][], int, int, int)},
+	 * but for {@link KernelBackend#UNROLLED}.
+	 */
+	public static void mulMatMatTransposedPlusBiasUnrolled(float[][] inp, float[] mat, int matOffset,
+			float[] bias, int biasOffset, float[][] out, int rows, int rowCount, int colCount) {
+		for (int r0 = 0; r0 < rows; r0 += BATCH_TILE_ROWS) {
+			int r1 = Math.min(r0 + BATCH_TILE_ROWS, rows);
+
+			for (int i = 0; i < rowCount; i++) {
+				int rowOffset = matOffset + i * colCount;
+				float b = bias[biasOffset + i];
+
+				for (int r = r0; r < r1; r++) {
+					out[r][i] = OperationUtil.dotUnrolled(mat, rowOffset, inp[r], colCount) + b;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Calculates mat = a^T * b for the first rows of a and b into the row-major
+	 * matrix mat starting at matOffset, i.e. mat[i][j] = sum_r(a[r][i] * b[r][j]).
+	 * This is the sum of the outer products of the rows of a and b. The rows of mat
+	 * are calculated one after another, so that every row stays in the cache while
+	 * the batch rows are added to it tile by tile.
+	 */
+	public static void mulMatTransposedMat(float[][] a, float[][] b, float[] mat, int matOffset, int rows,
+			int rowCount, int colCount) {
+		for (int i = 0; i < rowCount; i++) {
+			int rowOffset = matOffset + i * colCount;
+
+			for (int j = 0; j < colCount; j++) {
+				mat[rowOffset + j] = 0.0f;
+			}
+
+			for (int r0 = 0; r0 < rows; r0 += BATCH_TILE_ROWS) {
+				int r1 = Math.min(r0 + BATCH_TILE_ROWS, rows);
+
+				for (int r = r0; r < r1; r++) {
+					float[] bRow = b[r];
+					float sca = a[r][i];
+
+					for (int j = 0; j < colCount; j++) {
+						mat[rowOffset + j] += sca * bRow[j];
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Calculates out = a * mat for the first rows of a and the row-major matrix
+	 * mat starting at matOffset, i.e. out[r][j] = sum_i(a[r][i] * mat[i][j]). The
+	 * batch rows are processed in tiles, so that every row of mat is used for a
+	 * whole tile of batch rows before it's evicted from the cache.
+	 */
+	public static void mulMatMat(float[][] a, float[] mat, int matOffset, float[][] out, int rows, int rowCount,
+			int colCount) {
+		for (int r0 = 0; r0 < rows; r0 += BATCH_TILE_ROWS) {
+			int r1 = Math.min(r0 + BATCH_TILE_ROWS, rows);
+
+			for (int r = r0; r < r1; r++) {
+				float[] outRow = out[r];
+
+				for (int j = 0; j < colCount; j++) {
+					outRow[j] = 0.0f;
+				}
+			}
+
+			for (int i = 0; i < rowCount; i++) {
+				int rowOffset = matOffset + i * colCount;
+
+				for (int r = r0; r < r1; r++) {
+					float[] outRow = out[r];
+					float sca = a[r][i];
+
+					for (int j = 0; j < colCount; j++) {
+						outRow[j] += sca * mat[rowOffset + j];
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Calculates the column sums of the first rows of mat into sum starting at
+	 * sumOffset, i.e. sum[j] = sum_r(mat[r][j]).
+	 */
+	public static void sumRows(float[][] mat, float[] sum, int sumOffset, int rows, int colCount) {
+		OperationUtil.assign(sum, sumOffset, colCount, 0.0f);
+
+		for (int r = 0; r < rows; r++) {
+			float[] row = mat[r];
+
+			for (int j = 0; j < colCount; j++) {
+				sum[sumOffset + j] += row[j];
+			}
+		}
 	}
 
 	@Override
@@ -135,11 +497,11 @@ public class Dense implements Operation {
 	public StringBuilder toStringBuilderWithLayout(StringBuilder buf) {
 		buf //
 				.append(getTypeShortname()).append("[") //
-				.append(weights.length).append("x").append(weights[0].length) //
+				.append(outSize).append("x").append(inpSize) //
 				.append("]") //
-				.append("*[").append(weights[0].length).append("]") //
-				.append("+[").append(weights.length).append("]") //
-				.append("->[").append(weights.length).append("]") //
+				.append("*[").append(inpSize).append("]") //
+				.append("+[").append(outSize).append("]") //
+				.append("->[").append(outSize).append("]") //
 		;
 
 		return buf;
@@ -153,6 +515,9 @@ public class Dense implements Operation {
 	}
 
 	public StringBuilder toStringBuilderWithLayoutAndValues(StringBuilder buf, int indent) {
+		float[] weights = Arrays.copyOfRange(params, weightsOffset, weightsOffset + outSize * inpSize);
+		float[] bias = Arrays.copyOfRange(params, biasOffset, biasOffset + outSize);
+
 		NumberStats numberStats = new NumberStats();
 		numberStats.aggregate(out);
 		numberStats.aggregate(weights);
@@ -164,7 +529,7 @@ public class Dense implements Operation {
 		toStringBuilderWithLayout(buf).append("\n");
 
 		buf.append(indentSpaces).append("    weights: ");
-		MnFormat.toStringBuilder(weights, buf, indent + 13, format).append("\n");
+		OperationUtil.toStringBuilderMat(weights, outSize, inpSize, buf, indent + 13, format).append("\n");
 
 		buf.append(indentSpaces).append("    bias   : ");
 		MnFormat.toStringBuilder(bias, buf, format).append("\n");
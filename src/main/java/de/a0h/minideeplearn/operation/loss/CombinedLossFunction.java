@@ -15,6 +15,8 @@ public abstract class CombinedLossFunction extends ActivationFunction implements
 
 	public float loss;
 
+	public float[] lossBatch;
+
 	public CombinedLossFunction(int inpOutSize) {
 		super(inpOutSize);
 	}
@@ -29,6 +31,11 @@ public abstract class CombinedLossFunction extends ActivationFunction implements
 		return loss;
 	}
 
+	@Override
+	public float[] getLossBatch() {
+		return lossBatch;
+	}
+
 	/**
 	 * Based on the loss function, this method calculates the gradient in respect to
 	 * the output of the activation function part of this combined loss function.
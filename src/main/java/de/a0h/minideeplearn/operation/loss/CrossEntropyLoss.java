@@ -2,9 +2,11 @@ package de.a0h.minideeplearn.operation.loss;
 
 import java.util.Random;
 
+import de.a0h.minideeplearn.operation.ExecutionContext;
 import de.a0h.minideeplearn.operation.OperationUtil;
 import de.a0h.minideeplearn.operation.gradient.Gradient;
 import de.a0h.minideeplearn.operation.gradient.VectorGradient;
+import de.a0h.minideeplearn.operation.optimizer.UpdateRule;
 import de.a0h.mininum.format.DecimalFormatWithPadding;
 import de.a0h.mininum.format.MnFormat;
 import de.a0h.mininum.format.NumberStats;
@@ -14,12 +16,24 @@ public class CrossEntropyLoss implements LossFunction {
 
 	public float loss;
 
+	public float[] lossBatch;
+
 	public int inpSize;
 
 	public CrossEntropyLoss(int inpSize, int outSizeIgnored) {
 		this.inpSize = inpSize;
 	}
 
+	@Override
+	public CrossEntropyLoss createParamSharingCopy() {
+		return new CrossEntropyLoss(inpSize, -1);
+	}
+
+	@Override
+	public ExecutionContext createContext() {
+		return new ExecutionContext(this);
+	}
+
 	@Override
 	public int getInputSize() {
 		return inpSize;
@@ -42,12 +56,30 @@ public class CrossEntropyLoss implements LossFunction {
 		return null;
 	}
 
+	@Override
+	public float[] calcOutput(ExecutionContext ctx, float[] inp) {
+		OperationUtil.throwOutputNotProvidedException(getClass());
+		return null;
+	}
+
 	@Override
 	public float[] getOutput() {
 		OperationUtil.throwOutputNotProvidedException(getClass());
 		return null;
 	}
 
+	@Override
+	public float[][] calcOutputBatch(float[][] inp, int rows) {
+		OperationUtil.throwOutputNotProvidedException(getClass());
+		return null;
+	}
+
+	@Override
+	public float[][] getOutputBatch() {
+		OperationUtil.throwOutputNotProvidedException(getClass());
+		return null;
+	}
+
 	@Override
 	public boolean hasLoss() {
 		return true;
@@ -65,6 +97,22 @@ public class CrossEntropyLoss implements LossFunction {
 		return loss;
 	}
 
+	@Override
+	public float[] calcLossBatch(float[][] inp, float[][] target, int rows) {
+		lossBatch = OperationUtil.ensureBatchCapacity(lossBatch, rows);
+
+		for (int r = 0; r < rows; r++) {
+			lossBatch[r] = crossEntropy_zeroSafe(inp[r], target[r]);
+		}
+
+		return lossBatch;
+	}
+
+	@Override
+	public float[] getLossBatch() {
+		return lossBatch;
+	}
+
 	@Override
 	public void calcGradient(float[] inp, float[] target, Gradient grad) {
 		VectorGradient grad_ = (VectorGradient) grad;
@@ -72,6 +120,22 @@ public class CrossEntropyLoss implements LossFunction {
 		crossEntropyGradient_zeroSafe(inp, target, grad_.inp);
 	}
 
+	@Override
+	public void calcGradient(float[] inp, float[] target, Gradient grad, boolean accumulate) {
+		// no parameters, so there's nothing to accumulate
+		calcGradient(inp, target, grad);
+	}
+
+	@Override
+	public void calcGradientBatch(float[][] inp, float[][] target, int rows, Gradient grad) {
+		VectorGradient grad_ = (VectorGradient) grad;
+		grad_.ensureBatchCapacity(rows);
+
+		for (int r = 0; r < rows; r++) {
+			crossEntropyGradient_zeroSafe(inp[r], target[r], grad_.inpBatch[r]);
+		}
+	}
+
 	@Override
 	public VectorGradient createGradient() {
 		return new VectorGradient(inpSize);
@@ -91,6 +155,33 @@ public class CrossEntropyLoss implements LossFunction {
 	public void learn(Gradient grad, float negLearningRate) {
 	}
 
+	/**
+	 * Returns immediately.
+	 */
+	@Override
+	public void learn(Gradient grad, float gradScale, UpdateRule rule) {
+	}
+
+	@Override
+	public int getParamCount() {
+		return 0;
+	}
+
+	@Override
+	public float[] getParams() {
+		return OperationUtil.NO_PARAMS;
+	}
+
+	@Override
+	public int getParamsOffset() {
+		return 0;
+	}
+
+	@Override
+	public void bindParams(float[] params, int offset) {
+		// no learnable parameters
+	}
+
 	public static final float crossEntropy_zeroSafe(float[] predicted, float[] target) {
 		float result;
 
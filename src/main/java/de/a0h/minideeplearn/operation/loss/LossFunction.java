@@ -23,4 +23,10 @@ public interface LossFunction extends Operation {
 	@Override
 	public abstract float getLoss();
 
+	/**
+	 * Calculates and returns the losses of a batch, one per sample.
+	 */
+	@Override
+	public abstract float[] calcLossBatch(float[][] inp, float[][] target, int rows);
+
 }
@@ -1,5 +1,6 @@
 package de.a0h.minideeplearn.operation.loss;
 
+import de.a0h.minideeplearn.operation.OperationUtil;
 import de.a0h.minideeplearn.operation.activation.Softmax;
 import de.a0h.minideeplearn.operation.gradient.Gradient;
 import de.a0h.minideeplearn.operation.gradient.VectorGradient;
@@ -16,6 +17,11 @@ public class SoftmaxWithCrossEntropyLoss extends CombinedLossFunction {
 		super(inpOutSize);
 	}
 
+	@Override
+	public SoftmaxWithCrossEntropyLoss createParamSharingCopy() {
+		return new SoftmaxWithCrossEntropyLoss(getInputSize());
+	}
+
 	@Override
 	public float[] calcOutput(float[] inp) {
 		Softmax.calc(inp, out);
@@ -33,9 +39,43 @@ public class SoftmaxWithCrossEntropyLoss extends CombinedLossFunction {
 	public void calcGradient(float[] inp, float[] target, Gradient grad) {
 		VectorGradient grad_ = (VectorGradient) grad;
 
-		float[] grad_inp = grad_.inp;
+		calcInputGradient(out, target, grad_.inp);
+	}
+
+	@Override
+	public float[][] calcOutputBatch(float[][] inp, int rows) {
+		ensureBatchCapacity(rows);
+
+		for (int r = 0; r < rows; r++) {
+			Softmax.calc(inp[r], outBatch[r]);
+		}
+
+		return outBatch;
+	}
+
+	@Override
+	public float[] calcLossBatch(float[][] inp, float[][] target, int rows) {
+		lossBatch = OperationUtil.ensureBatchCapacity(lossBatch, rows);
+
+		for (int r = 0; r < rows; r++) {
+			lossBatch[r] = CrossEntropyLoss.crossEntropy_zeroSafe(outBatch[r], target[r]);
+		}
+
+		return lossBatch;
+	}
+
+	@Override
+	public void calcGradientBatch(float[][] inp, float[][] target, int rows, Gradient grad) {
+		VectorGradient grad_ = (VectorGradient) grad;
+		grad_.ensureBatchCapacity(rows);
+
+		for (int r = 0; r < rows; r++) {
+			calcInputGradient(outBatch[r], target[r], grad_.inpBatch[r]);
+		}
+	}
 
-		float nReciprocal = 1.0f / inp.length;
+	public static void calcInputGradient(float[] out, float[] target, float[] grad_inp) {
+		float nReciprocal = 1.0f / out.length;
 
 		for (int i = 0; i < out.length; i++) {
 			grad_inp[i] = nReciprocal * (out[i] - target[i]);
@@ -0,0 +1,128 @@
+package de.a0h.minideeplearn.operation.optimizer;
+
+import java.util.Arrays;
+
+/**
+ * Adam, which uses bias corrected moving averages of the gradient and of its
+ * square:
+ *
+ * <pre>
+ * mean = beta1 * mean + (1 - beta1) * grad
+ * meanSquare = beta2 * meanSquare + (1 - beta2) * grad * grad
+ * params -= learningRate * (mean / (1 - beta1^t)) / (sqrt(meanSquare / (1 - beta2^t)) + epsilon)
+ * </pre>
+ *
+ * With a weight decay other than 0, this is AdamW, i.e. the weight decay is
+ * decoupled from the gradient:
+ *
+ * <pre>
+ * params -= learningRate * weightDecay * params
+ * </pre>
+ *
+ * Note that the weight decay applies to the biases as well, because they are
+ * part of the same parameter vector.
+ */
+public class AdamUpdateRule extends UpdateRule {
+
+	public static final float DEFAULT_BETA1 = 0.9f;
+
+	public static final float DEFAULT_BETA2 = 0.999f;
+
+	public static final float DEFAULT_EPSILON = 1e-7f;
+
+	protected final float beta1;
+
+	protected final float beta2;
+
+	protected final float epsilon;
+
+	protected final float weightDecay;
+
+	protected float[] mean = new float[0];
+
+	protected float[] meanSquare = new float[0];
+
+	// bias corrections of the current step
+	protected float meanCorrection;
+	protected float meanSquareCorrection;
+
+	/**
+	 * Adam with the default hyperparameters.
+	 */
+	public AdamUpdateRule() {
+		this(DEFAULT_BETA1, DEFAULT_BETA2, DEFAULT_EPSILON, 0.0f);
+	}
+
+	/**
+	 * AdamW with the default hyperparameters and the specified weight decay.
+	 */
+	public static AdamUpdateRule adamW(float weightDecay) {
+		return new AdamUpdateRule(DEFAULT_BETA1, DEFAULT_BETA2, DEFAULT_EPSILON, weightDecay);
+	}
+
+	public AdamUpdateRule(float beta1, float beta2, float epsilon, float weightDecay) {
+		if (beta1 < 0 || beta1 >= 1) {
+			throw new IllegalArgumentException("beta1 must be in [0, 1), but it is " + beta1);
+		}
+		if (beta2 < 0 || beta2 >= 1) {
+			throw new IllegalArgumentException("beta2 must be in [0, 1), but it is " + beta2);
+		}
+
+		this.beta1 = beta1;
+		this.beta2 = beta2;
+		this.epsilon = epsilon;
+		this.weightDecay = weightDecay;
+	}
+
+	@Override
+	public void beginStep(float learningRate) {
+		super.beginStep(learningRate);
+
+		meanCorrection = (float) (1.0 / (1.0 - Math.pow(beta1, stepCount)));
+		meanSquareCorrection = (float) (1.0 / (1.0 - Math.pow(beta2, stepCount)));
+	}
+
+	@Override
+	public void update( //
+			float[] grad, int gradOffset, //
+			float gradScale, //
+			float[] params, int paramsOffset, //
+			int length) {
+		float[] mean = this.mean = ensureLength(this.mean, paramsOffset + length);
+		float[] meanSquare = this.meanSquare = ensureLength(this.meanSquare, paramsOffset + length);
+
+		float beta1 = this.beta1;
+		float oneMinusBeta1 = 1.0f - beta1;
+		float beta2 = this.beta2;
+		float oneMinusBeta2 = 1.0f - beta2;
+		float epsilon = this.epsilon;
+		float stepSize = learningRate * meanCorrection;
+		float meanSquareCorrection = this.meanSquareCorrection;
+		float decayFactor = 1.0f - learningRate * weightDecay;
+
+		for (int i = 0; i < length; i++) {
+			float g = gradScale * grad[gradOffset + i];
+			float m = beta1 * mean[paramsOffset + i] + oneMinusBeta1 * g;
+			float s = beta2 * meanSquare[paramsOffset + i] + oneMinusBeta2 * g * g;
+
+			mean[paramsOffset + i] = m;
+			meanSquare[paramsOffset + i] = s;
+
+			float p = decayFactor * params[paramsOffset + i];
+			params[paramsOffset + i] = p - stepSize * m / ((float) Math.sqrt(s * meanSquareCorrection) + epsilon);
+		}
+	}
+
+	@Override
+	public void reset() {
+		super.reset();
+		Arrays.fill(mean, 0.0f);
+		Arrays.fill(meanSquare, 0.0f);
+	}
+
+	@Override
+	public String toString() {
+		return (weightDecay == 0.0f ? "adam" : "adamw") + "(" + beta1 + ", " + beta2 + //
+				(weightDecay == 0.0f ? "" : ", " + weightDecay) + ")";
+	}
+}
@@ -31,7 +31,6 @@ public class GradientDescentOptimizer implements Optimizer {
 
 		Stats stats = new Stats(model.getOutputSize());
 
-		Gradient sampleGrad = model.createGradient();
 		Gradient batchGrad = model.createGradient();
 
 		int[] shuffledIndices;
@@ -41,28 +40,27 @@ public class GradientDescentOptimizer implements Optimizer {
 			shuffledIndices = MnArrays.generateShuffle(inp.length, shufflingRnd);
 		}
 
+		// the batch matrices only reference the sample rows, they don't copy them
+		float[][] batchInp = new float[Math.min(batchSize, inp.length)][];
+		float[][] batchTarget = new float[batchInp.length][];
+
 		for (int i = 0; i < inp.length;) {
 			int currBatchSize = Math.min(batchSize, inp.length - i);
-			int currBatchEnd = i + currBatchSize;
 
-			batchGrad.clear();
-			for (; i < currBatchEnd; i++) {
+			for (int r = 0; r < currBatchSize; r++, i++) {
 				int idx = (shuffledIndices == null) ? i : shuffledIndices[i];
 
-				float[] x = inp[idx];
-				float[] t = target[idx];
-
-				model.calcOutput(x);
-				float loss = model.calcLoss(x, t);
-
-				model.calcGradient(x, t, sampleGrad);
+				batchInp[r] = inp[idx];
+				batchTarget[r] = target[idx];
+			}
 
-//				MdlOperationConfig.stringConversionPrecision = StringConversionPrecision.EXACT;
-//				System.out.println(sampleGrad);
+			model.calcOutputBatch(batchInp, currBatchSize);
+			float[] loss = model.calcLossBatch(batchInp, batchTarget, currBatchSize);
 
-				batchGrad.add(sampleGrad);
+			model.calcGradientBatch(batchInp, batchTarget, currBatchSize, batchGrad);
 
-				stats.aggregate(0, 0, loss);
+			for (int r = 0; r < currBatchSize; r++) {
+				stats.aggregate(0, 0, loss[r]);
 			}
 
 			model.learn(batchGrad, -learningRate / currBatchSize);
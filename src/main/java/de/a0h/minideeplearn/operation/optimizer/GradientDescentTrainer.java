@@ -0,0 +1,263 @@
+package de.a0h.minideeplearn.operation.optimizer;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import de.a0h.minideeplearn.Stats;
+import de.a0h.minideeplearn.dataset.BatchPrefetcher;
+import de.a0h.minideeplearn.dataset.SampleSource;
+import de.a0h.minideeplearn.operation.Operation;
+import de.a0h.minideeplearn.operation.OperationUtil;
+import de.a0h.minideeplearn.operation.gradient.Gradient;
+
+/**
+ * Reusable version of the {@link GradientDescentOptimizer}, meant to be called
+ * once per epoch. It keeps the gradient, the statistics, the shuffled indices
+ * and the batch matrices across the calls, so that training doesn't allocate
+ * anything after the first epoch, as long as model, sample count and batch size
+ * stay the same.
+ *
+ * <p>
+ * The returned {@link Stats} are reused as well, i.e. they are only valid until
+ * the next call. The shuffling is an in-place Fisher-Yates shuffle of the order
+ * of the previous epoch, so for the same random generator, the order differs
+ * from the one of the {@link GradientDescentOptimizer}. Without shuffling, the
+ * results are the same.
+ * </p>
+ *
+ * <p>
+ * By default, the parameters are updated by plain gradient descent steps. A
+ * stateful {@link UpdateRule}, e.g. Adam, can be set with
+ * {@link #setUpdateRule(UpdateRule)}. Its state is reset when the model
+ * changes.
+ * </p>
+ *
+ * <p>
+ * Data sets which don't fit into memory can be streamed from a
+ * {@link SampleSource} with {@link #run(Operation, SampleSource, int, float)},
+ * or with {@link #run(Operation, BatchPrefetcher, float)}, which assembles the
+ * batches in a background thread.
+ * </p>
+ */
+public class GradientDescentTrainer implements Optimizer {
+
+	/**
+	 * The model for which the gradient and the statistics are allocated.
+	 */
+	protected Operation model;
+
+	protected Gradient batchGrad;
+
+	protected Stats stats;
+
+	/**
+	 * The rule for updating the parameters, or null for plain gradient descent.
+	 */
+	protected UpdateRule updateRule;
+
+	protected int[] shuffledIndices = new int[0];
+
+	// the batch matrices only reference the sample rows, they don't copy them
+	protected float[][] batchInp = new float[0][];
+	protected float[][] batchTarget = new float[0][];
+
+	// the rows into which streamed samples are copied, owned by this trainer
+	protected float[][] streamInp = new float[0][];
+	protected float[][] streamTarget = new float[0][];
+
+	@Override
+	public Stats run( //
+			Operation model, //
+			float[][] inp, //
+			float[][] target, //
+			int batchSize, //
+			float learningRate, //
+			Random shufflingRnd //
+	) {
+		if (inp.length != target.length) {
+			throw new IllegalArgumentException("" + //
+					"inp and target must be of equal length, but they are " + //
+					"inp.length = " + inp.length + " and " + //
+					"target.length = " + target.length);
+		}
+
+		if (batchSize == -1) {
+			batchSize = inp.length;
+		}
+
+		prepare(model, inp.length, Math.min(batchSize, inp.length));
+
+		stats.clear();
+
+		boolean shuffled = (shufflingRnd != null && batchSize != inp.length);
+		if (shuffled) {
+			OperationUtil.shuffle(shuffledIndices, inp.length, shufflingRnd);
+		}
+
+		for (int i = 0; i < inp.length;) {
+			int currBatchSize = Math.min(batchSize, inp.length - i);
+
+			for (int r = 0; r < currBatchSize; r++, i++) {
+				int idx = shuffled ? shuffledIndices[i] : i;
+
+				batchInp[r] = inp[idx];
+				batchTarget[r] = target[idx];
+			}
+
+			trainBatch(batchInp, batchTarget, currBatchSize, learningRate);
+		}
+
+		// don't keep the samples reachable
+		Arrays.fill(batchInp, null);
+		Arrays.fill(batchTarget, null);
+
+		return stats;
+	}
+
+	/**
+	 * Trains on all samples which are left in the source, in batches of the
+	 * specified size, e.g. for one pass over a data set which doesn't fit into
+	 * memory. Only one batch of samples is held in memory at a time. The samples
+	 * are used in the order of the source, so shuffling is up to the source.
+	 */
+	public Stats run( //
+			Operation model, //
+			SampleSource source, //
+			int batchSize, //
+			float learningRate //
+	) {
+		if (batchSize < 1) {
+			throw new IllegalArgumentException("batchSize must be positive, but it is " + batchSize);
+		}
+		if (source.getInputSize() != model.getInputSize() || source.getTargetSize() != model.getOutputSize()) {
+			throw new IllegalArgumentException("" + //
+					"the source provides samples of size " + //
+					source.getInputSize() + " -> " + source.getTargetSize() + ", " + //
+					"but the model is of size " + //
+					model.getInputSize() + " -> " + model.getOutputSize());
+		}
+
+		prepareModel(model);
+		prepareStreaming(batchSize);
+
+		stats.clear();
+
+		int currBatchSize;
+		do {
+			currBatchSize = 0;
+			while (currBatchSize < batchSize && source.next(streamInp[currBatchSize], streamTarget[currBatchSize])) {
+				currBatchSize++;
+			}
+
+			if (currBatchSize == 0) {
+				break;
+			}
+
+			trainBatch(streamInp, streamTarget, currBatchSize, learningRate);
+		} while (currBatchSize == batchSize);
+
+		return stats;
+	}
+
+	/**
+	 * Trains on the batches of the prefetcher, until all of them have been taken.
+	 * The batches are assembled by the prefetcher in the background, while the
+	 * current batch is being trained.
+	 */
+	public Stats run( //
+			Operation model, //
+			BatchPrefetcher prefetcher, //
+			float learningRate //
+	) throws InterruptedException {
+		prepareModel(model);
+
+		stats.clear();
+
+		BatchPrefetcher.Batch batch;
+		while ((batch = prefetcher.take()) != null) {
+			trainBatch(batch.inp, batch.target, batch.rows, learningRate);
+		}
+
+		return stats;
+	}
+
+	/**
+	 * Calculates the gradient of the first rows samples, aggregates their losses
+	 * and updates the parameters of the model.
+	 */
+	protected void trainBatch(float[][] inp, float[][] target, int rows, float learningRate) {
+		model.calcOutputBatch(inp, rows);
+		float[] loss = model.calcLossBatch(inp, target, rows);
+
+		model.calcGradientBatch(inp, target, rows, batchGrad);
+
+		for (int r = 0; r < rows; r++) {
+			stats.aggregate(0, 0, loss[r]);
+		}
+
+		if (updateRule == null) {
+			model.learn(batchGrad, -learningRate / rows);
+		} else {
+			updateRule.beginStep(learningRate);
+			model.learn(batchGrad, 1.0f / rows, updateRule);
+		}
+	}
+
+	public UpdateRule getUpdateRule() {
+		return updateRule;
+	}
+
+	/**
+	 * Sets the rule for updating the parameters, or null for plain gradient
+	 * descent.
+	 */
+	public void setUpdateRule(UpdateRule updateRule) {
+		this.updateRule = updateRule;
+	}
+
+	/**
+	 * Makes sure that all buffers fit the specified model, sample count and batch
+	 * size, allocating them only if necessary.
+	 */
+	protected void prepare(Operation model, int sampleCount, int batchSize) {
+		prepareModel(model);
+
+		if (shuffledIndices.length != sampleCount) {
+			shuffledIndices = new int[sampleCount];
+
+			for (int i = 0; i < sampleCount; i++) {
+				shuffledIndices[i] = i;
+			}
+		}
+
+		if (batchInp.length < batchSize) {
+			batchInp = new float[batchSize][];
+			batchTarget = new float[batchSize][];
+		}
+	}
+
+	protected void prepareModel(Operation model) {
+		if (this.model != model) {
+			batchGrad = model.createGradient();
+			stats = new Stats(model.getOutputSize());
+
+			if (updateRule != null) {
+				updateRule.reset();
+			}
+
+			this.model = model;
+		}
+	}
+
+	protected void prepareStreaming(int batchSize) {
+		int inputSize = model.getInputSize();
+		int targetSize = model.getOutputSize();
+
+		if (streamInp.length < batchSize || //
+				streamInp[0].length != inputSize || //
+				streamTarget[0].length != targetSize) {
+			streamInp = new float[batchSize][inputSize];
+			streamTarget = new float[batchSize][targetSize];
+		}
+	}
+}
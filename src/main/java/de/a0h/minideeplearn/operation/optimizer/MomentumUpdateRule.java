@@ -0,0 +1,81 @@
+package de.a0h.minideeplearn.operation.optimizer;
+
+import java.util.Arrays;
+
+/**
+ * Gradient descent with momentum:
+ *
+ * <pre>
+ * velocity = momentum * velocity + grad
+ * params -= learningRate * velocity
+ * </pre>
+ *
+ * or with Nesterov momentum, which looks ahead by one step:
+ *
+ * <pre>
+ * params -= learningRate * (grad + momentum * velocity)
+ * </pre>
+ */
+public class MomentumUpdateRule extends UpdateRule {
+
+	public static final float DEFAULT_MOMENTUM = 0.9f;
+
+	protected final float momentum;
+
+	protected final boolean nesterov;
+
+	protected float[] velocity = new float[0];
+
+	public MomentumUpdateRule() {
+		this(DEFAULT_MOMENTUM, false);
+	}
+
+	public MomentumUpdateRule(float momentum, boolean nesterov) {
+		if (momentum < 0 || momentum >= 1) {
+			throw new IllegalArgumentException("momentum must be in [0, 1), but it is " + momentum);
+		}
+
+		this.momentum = momentum;
+		this.nesterov = nesterov;
+	}
+
+	@Override
+	public void update( //
+			float[] grad, int gradOffset, //
+			float gradScale, //
+			float[] params, int paramsOffset, //
+			int length) {
+		float[] velocity = this.velocity = ensureLength(this.velocity, paramsOffset + length);
+
+		float momentum = this.momentum;
+		float learningRate = this.learningRate;
+
+		if (nesterov) {
+			for (int i = 0; i < length; i++) {
+				float g = gradScale * grad[gradOffset + i];
+				float v = momentum * velocity[paramsOffset + i] + g;
+
+				velocity[paramsOffset + i] = v;
+				params[paramsOffset + i] -= learningRate * (g + momentum * v);
+			}
+		} else {
+			for (int i = 0; i < length; i++) {
+				float v = momentum * velocity[paramsOffset + i] + gradScale * grad[gradOffset + i];
+
+				velocity[paramsOffset + i] = v;
+				params[paramsOffset + i] -= learningRate * v;
+			}
+		}
+	}
+
+	@Override
+	public void reset() {
+		super.reset();
+		Arrays.fill(velocity, 0.0f);
+	}
+
+	@Override
+	public String toString() {
+		return (nesterov ? "nesterov" : "momentum") + "(" + momentum + ")";
+	}
+}
@@ -0,0 +1,306 @@
+package de.a0h.minideeplearn.operation.optimizer;
+
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import de.a0h.minideeplearn.Stats;
+import de.a0h.minideeplearn.operation.Operation;
+import de.a0h.minideeplearn.operation.composite.Chain;
+import de.a0h.minideeplearn.operation.gradient.Gradient;
+import de.a0h.mininum.MnArrays;
+
+/**
+ * Data-parallel version of the {@link GradientDescentOptimizer}. Every
+ * mini-batch is split into contiguous slices, one per worker. Every worker
+ * calculates the gradient of its slice on its own param sharing copy of the
+ * model, see {@link Operation#createParamSharingCopy()}. Then, the gradients of
+ * the workers are summed up in worker order and the parameters are updated by a
+ * single <code>learn</code> call. Hence, for a fixed shuffling seed and worker
+ * count, the results are deterministic.
+ *
+ * <p>
+ * The first slice is processed by the calling thread, the other slices by the
+ * threads of this optimizer. Call {@link #close()} to stop these threads when
+ * this optimizer isn't needed anymore.
+ * </p>
+ *
+ * <p>
+ * Every worker aggregates the losses of its slices into stats of its own,
+ * which are merged in worker order at the end of the epoch, so the stats are
+ * deterministic as well.
+ * </p>
+ */
+public class ParallelGradientDescentOptimizer implements Optimizer, AutoCloseable {
+
+	protected final int workerCount;
+
+	protected final ExecutorService executor;
+
+	protected final Worker[] workers;
+
+	protected final Future<?>[] futures;
+
+	/**
+	 * The model for which the workers currently hold param sharing copies.
+	 */
+	protected Operation workersModel;
+
+	protected float[] workersParams;
+
+	/**
+	 * The elementary operations of the model, if it's a chain.
+	 */
+	protected final ArrayList<Operation> workersOps = new ArrayList<Operation>();
+
+	public ParallelGradientDescentOptimizer() {
+		this(Runtime.getRuntime().availableProcessors());
+	}
+
+	public ParallelGradientDescentOptimizer(int workerCount) {
+		if (workerCount < 1) {
+			throw new IllegalArgumentException("workerCount must be at least 1, but it is " + workerCount);
+		}
+
+		this.workerCount = workerCount;
+
+		workers = new Worker[workerCount];
+		for (int w = 0; w < workerCount; w++) {
+			workers[w] = new Worker();
+		}
+
+		futures = new Future<?>[workerCount];
+
+		if (workerCount > 1) {
+			executor = Executors.newFixedThreadPool(workerCount - 1, new ThreadFactory() {
+				int threadIdx = 0;
+
+				@Override
+				public synchronized Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "gradient-descent-worker-" + (++threadIdx));
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		} else {
+			executor = null;
+		}
+	}
+
+	public int getWorkerCount() {
+		return workerCount;
+	}
+
+	@Override
+	public Stats run( //
+			Operation model, //
+			float[][] inp, //
+			float[][] target, //
+			int batchSize, //
+			float learningRate, //
+			Random shufflingRnd //
+	) {
+		if (inp.length != target.length) {
+			throw new IllegalArgumentException("" + //
+					"inp and target must be of equal length, but they are " + //
+					"inp.length = " + inp.length + " and " + //
+					"target.length = " + target.length);
+		}
+
+		if (batchSize == -1) {
+			batchSize = inp.length;
+		}
+
+		prepareWorkers(model);
+
+		for (Worker worker : workers) {
+			worker.stats.clear();
+		}
+
+		Gradient batchGrad = workers[0].grad;
+
+		int[] shuffledIndices;
+		if (shufflingRnd == null || batchSize == inp.length) {
+			shuffledIndices = null;
+		} else {
+			shuffledIndices = MnArrays.generateShuffle(inp.length, shufflingRnd);
+		}
+
+		int maxSliceSize = (Math.min(batchSize, inp.length) + workerCount - 1) / workerCount;
+		for (Worker worker : workers) {
+			worker.ensureCapacity(maxSliceSize);
+		}
+
+		for (int i = 0; i < inp.length;) {
+			int currBatchSize = Math.min(batchSize, inp.length - i);
+
+			// the first workers get one additional row if the batch size isn't a multiple
+			// of the worker count, so the first worker never gets an empty slice
+			int minSliceSize = currBatchSize / workerCount;
+			int remainder = currBatchSize % workerCount;
+
+			for (int w = 0; w < workerCount; w++) {
+				Worker worker = workers[w];
+
+				worker.rows = minSliceSize + (w < remainder ? 1 : 0);
+
+				for (int r = 0; r < worker.rows; r++, i++) {
+					int idx = (shuffledIndices == null) ? i : shuffledIndices[i];
+
+					worker.batchInp[r] = inp[idx];
+					worker.batchTarget[r] = target[idx];
+				}
+			}
+
+			for (int w = 1; w < workerCount; w++) {
+				if (workers[w].rows > 0) {
+					futures[w] = executor.submit(workers[w]);
+				}
+			}
+
+			workers[0].run();
+
+			for (int w = 1; w < workerCount; w++) {
+				if (workers[w].rows > 0) {
+					awaitWorker(futures[w]);
+					futures[w] = null;
+
+					batchGrad.add(workers[w].grad);
+				}
+			}
+
+			model.learn(batchGrad, -learningRate / currBatchSize);
+		}
+
+		Stats result = new Stats(model.getOutputSize());
+		for (Worker worker : workers) {
+			result.merge(worker.stats);
+		}
+
+		return result;
+	}
+
+	/**
+	 * Makes sure that the workers hold param sharing copies of the specified
+	 * model. The copies are recreated if the model has been changed since they
+	 * were created, e.g. if a sub operation of a chain has been replaced, which
+	 * rebinds the chain to a new parameter array.
+	 */
+	protected void prepareWorkers(Operation model) {
+		if (workersModel == model && workersParams == model.getParams() && hasSameOps(model)) {
+			return;
+		}
+
+		workersOps.clear();
+		if (model instanceof Chain) {
+			for (Operation op : (Chain) model) {
+				workersOps.add(op);
+			}
+		}
+		workersParams = model.getParams();
+
+		for (Worker worker : workers) {
+			worker.model = model.createParamSharingCopy();
+			worker.grad = worker.model.createGradient();
+			worker.stats = new Stats(model.getOutputSize());
+		}
+
+		workersModel = model;
+	}
+
+	/**
+	 * Returns true if, and only if, the elementary operations of the model are
+	 * the ones the worker copies have been created from.
+	 */
+	protected boolean hasSameOps(Operation model) {
+		if (!(model instanceof Chain)) {
+			return true;
+		}
+
+		int i = 0;
+		for (Operation op : (Chain) model) {
+			if (i >= workersOps.size() || workersOps.get(i) != op) {
+				return false;
+			}
+			i++;
+		}
+
+		return i == workersOps.size();
+	}
+
+	protected static void awaitWorker(Future<?> future) {
+		try {
+			future.get();
+
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("interrupted while waiting for gradient descent worker", e);
+
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			} else if (cause instanceof Error) {
+				throw (Error) cause;
+			} else {
+				throw new IllegalStateException("gradient descent worker failed", cause);
+			}
+		}
+	}
+
+	/**
+	 * Stops the threads of this optimizer. This optimizer must not be used
+	 * afterwards.
+	 */
+	@Override
+	public void close() {
+		if (executor != null) {
+			executor.shutdown();
+		}
+	}
+
+	protected static class Worker implements Runnable {
+
+		public Operation model;
+
+		public Gradient grad;
+
+		public Stats stats;
+
+		// the batch matrices only reference the sample rows, they don't copy them
+		public float[][] batchInp = new float[0][];
+		public float[][] batchTarget = new float[0][];
+
+		public int rows;
+
+		public float[] loss;
+
+		public void ensureCapacity(int rows) {
+			if (batchInp.length < rows) {
+				batchInp = new float[rows][];
+				batchTarget = new float[rows][];
+			}
+		}
+
+		@Override
+		public void run() {
+			if (rows == 0) {
+				return;
+			}
+
+			model.calcOutputBatch(batchInp, rows);
+			loss = model.calcLossBatch(batchInp, batchTarget, rows);
+
+			for (int r = 0; r < rows; r++) {
+				stats.aggregate(0, 0, loss[r]);
+			}
+
+			model.calcGradientBatch(batchInp, batchTarget, rows, grad);
+		}
+	}
+}
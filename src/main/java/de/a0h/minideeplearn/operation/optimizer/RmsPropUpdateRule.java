@@ -0,0 +1,71 @@
+package de.a0h.minideeplearn.operation.optimizer;
+
+import java.util.Arrays;
+
+/**
+ * RMSProp, which divides the gradient by the root of a moving average of its
+ * square:
+ *
+ * <pre>
+ * meanSquare = decay * meanSquare + (1 - decay) * grad * grad
+ * params -= learningRate * grad / (sqrt(meanSquare) + epsilon)
+ * </pre>
+ */
+public class RmsPropUpdateRule extends UpdateRule {
+
+	public static final float DEFAULT_DECAY = 0.9f;
+
+	public static final float DEFAULT_EPSILON = 1e-7f;
+
+	protected final float decay;
+
+	protected final float epsilon;
+
+	protected float[] meanSquare = new float[0];
+
+	public RmsPropUpdateRule() {
+		this(DEFAULT_DECAY, DEFAULT_EPSILON);
+	}
+
+	public RmsPropUpdateRule(float decay, float epsilon) {
+		if (decay < 0 || decay >= 1) {
+			throw new IllegalArgumentException("decay must be in [0, 1), but it is " + decay);
+		}
+
+		this.decay = decay;
+		this.epsilon = epsilon;
+	}
+
+	@Override
+	public void update( //
+			float[] grad, int gradOffset, //
+			float gradScale, //
+			float[] params, int paramsOffset, //
+			int length) {
+		float[] meanSquare = this.meanSquare = ensureLength(this.meanSquare, paramsOffset + length);
+
+		float decay = this.decay;
+		float oneMinusDecay = 1.0f - decay;
+		float epsilon = this.epsilon;
+		float learningRate = this.learningRate;
+
+		for (int i = 0; i < length; i++) {
+			float g = gradScale * grad[gradOffset + i];
+			float s = decay * meanSquare[paramsOffset + i] + oneMinusDecay * g * g;
+
+			meanSquare[paramsOffset + i] = s;
+			params[paramsOffset + i] -= learningRate * g / ((float) Math.sqrt(s) + epsilon);
+		}
+	}
+
+	@Override
+	public void reset() {
+		super.reset();
+		Arrays.fill(meanSquare, 0.0f);
+	}
+
+	@Override
+	public String toString() {
+		return "rmsprop(" + decay + ")";
+	}
+}
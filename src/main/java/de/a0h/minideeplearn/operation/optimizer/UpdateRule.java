@@ -0,0 +1,76 @@
+package de.a0h.minideeplearn.operation.optimizer;
+
+import java.util.Arrays;
+
+import de.a0h.minideeplearn.operation.Operation;
+import de.a0h.minideeplearn.operation.gradient.Gradient;
+
+/**
+ * A stateful rule for updating the parameters from the gradient, e.g. momentum
+ * or Adam, as an alternative to the plain gradient descent step of
+ * {@link Operation#learn(Gradient, float)}. Usage, once per batch:
+ *
+ * <pre>
+ * rule.beginStep(learningRate);
+ * model.learn(batchGrad, 1.0f / batchSize, rule);
+ * </pre>
+ *
+ * The state of the rule, e.g. the moments, is kept in flat arrays which mirror
+ * the parameter array of the model, i.e. the state of params[i] is at index i.
+ * Each parameter is updated in one fused loop, which reads the gradient,
+ * updates the state and the parameter. A rule must only be used for one model,
+ * or {@link #reset()} has to be called when switching models.
+ */
+public abstract class UpdateRule {
+
+	protected float learningRate;
+
+	/**
+	 * Number of steps since the last reset, including the current one.
+	 */
+	protected long stepCount;
+
+	/**
+	 * Starts a new step, i.e. the update for one batch.
+	 */
+	public void beginStep(float learningRate) {
+		this.learningRate = learningRate;
+		stepCount++;
+	}
+
+	/**
+	 * Updates params[paramsOffset] to params[paramsOffset + length - 1] from the
+	 * gradient grad[gradOffset] to grad[gradOffset + length - 1], which is
+	 * multiplied by gradScale first, e.g. 1 / batchSize for a summed up batch
+	 * gradient. The gradient is the one of the loss, i.e. the parameters are moved
+	 * in the opposite direction.
+	 */
+	public abstract void update( //
+			float[] grad, int gradOffset, //
+			float gradScale, //
+			float[] params, int paramsOffset, //
+			int length);
+
+	/**
+	 * Forgets all state, e.g. for training a new model.
+	 */
+	public void reset() {
+		stepCount = 0;
+	}
+
+	public long getStepCount() {
+		return stepCount;
+	}
+
+	/**
+	 * Returns buf if it has at least the specified length, otherwise a copy of buf
+	 * which has been extended by zeros.
+	 */
+	protected static float[] ensureLength(float[] buf, int length) {
+		if (buf.length >= length) {
+			return buf;
+		}
+
+		return Arrays.copyOf(buf, length);
+	}
+}
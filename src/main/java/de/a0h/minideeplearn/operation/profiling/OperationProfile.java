@@ -0,0 +1,223 @@
+package de.a0h.minideeplearn.operation.profiling;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.sun.management.ThreadMXBean;
+
+/**
+ * Cumulative call counts, wall times and allocated bytes of the profiled
+ * methods of one operation. Recording is lock-free, so that param sharing
+ * copies of an operation, which are used by several threads, share one profile.
+ *
+ * <p>
+ * The allocated bytes are the ones of the calling thread, as reported by the
+ * JVM. They are 0 if the JVM doesn't support that.
+ * </p>
+ */
+public class OperationProfile implements OperationProfileMBean {
+
+	protected static final ThreadMXBean THREAD_BEAN = initThreadBean();
+
+	protected static final int METHOD_COUNT = ProfiledMethod.values().length;
+
+	protected final String name;
+
+	protected final AtomicLongArray callCounts = new AtomicLongArray(METHOD_COUNT);
+
+	protected final AtomicLongArray nanos = new AtomicLongArray(METHOD_COUNT);
+
+	protected final AtomicLongArray allocatedBytes = new AtomicLongArray(METHOD_COUNT);
+
+	/**
+	 * An immutable copy of the counters of a profile.
+	 */
+	public static class Snapshot {
+
+		public final String name;
+
+		protected final long[] callCounts = new long[METHOD_COUNT];
+		protected final long[] nanos = new long[METHOD_COUNT];
+		protected final long[] allocatedBytes = new long[METHOD_COUNT];
+
+		protected Snapshot(OperationProfile profile) {
+			name = profile.name;
+
+			for (int i = 0; i < METHOD_COUNT; i++) {
+				callCounts[i] = profile.callCounts.get(i);
+				nanos[i] = profile.nanos.get(i);
+				allocatedBytes[i] = profile.allocatedBytes.get(i);
+			}
+		}
+
+		public long getCallCount(ProfiledMethod method) {
+			return callCounts[method.ordinal()];
+		}
+
+		public long getNanos(ProfiledMethod method) {
+			return nanos[method.ordinal()];
+		}
+
+		public long getAllocatedBytes(ProfiledMethod method) {
+			return allocatedBytes[method.ordinal()];
+		}
+
+		/**
+		 * Returns the sum of the wall times of all methods.
+		 */
+		public long getTotalNanos() {
+			long result = 0;
+			for (int i = 0; i < METHOD_COUNT; i++) {
+				result += nanos[i];
+			}
+			return result;
+		}
+
+		@Override
+		public String toString() {
+			StringBuilder buf = new StringBuilder();
+			buf.append(name).append(":");
+
+			for (ProfiledMethod method : ProfiledMethod.values()) {
+				int i = method.ordinal();
+				buf.append(" ").append(method.name().toLowerCase()).append("=");
+				buf.append(callCounts[i]).append("x/");
+				buf.append(nanos[i] / 1000).append("us/");
+				buf.append(allocatedBytes[i]).append("B");
+			}
+
+			return buf.toString();
+		}
+	}
+
+	public OperationProfile(String name) {
+		this.name = name;
+	}
+
+	protected static ThreadMXBean initThreadBean() {
+		java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+
+		if (bean instanceof ThreadMXBean) {
+			ThreadMXBean result = (ThreadMXBean) bean;
+
+			if (result.isThreadAllocatedMemorySupported() && result.isThreadAllocatedMemoryEnabled()) {
+				return result;
+			}
+		}
+
+		return null;
+	}
+
+	/**
+	 * Returns the number of bytes allocated by the current thread so far, or 0 if
+	 * the JVM doesn't report that.
+	 */
+	public static long getAllocatedBytes() {
+		if (THREAD_BEAN == null) {
+			return 0;
+		}
+
+		return THREAD_BEAN.getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+
+	/**
+	 * Records one call of the method, which started at startTime, see
+	 * System.nanoTime(), when the current thread had allocated startBytes, see
+	 * {@link #getAllocatedBytes()}.
+	 */
+	public void record(ProfiledMethod method, long startTime, long startBytes) {
+		long duration = System.nanoTime() - startTime;
+		long bytes = getAllocatedBytes() - startBytes;
+
+		int i = method.ordinal();
+		callCounts.incrementAndGet(i);
+		nanos.addAndGet(i, duration);
+		allocatedBytes.addAndGet(i, bytes);
+	}
+
+	public Snapshot getSnapshot() {
+		return new Snapshot(this);
+	}
+
+	@Override
+	public String getName() {
+		return name;
+	}
+
+	@Override
+	public long getCalcOutputCount() {
+		return callCounts.get(ProfiledMethod.CALC_OUTPUT.ordinal());
+	}
+
+	@Override
+	public long getCalcOutputNanos() {
+		return nanos.get(ProfiledMethod.CALC_OUTPUT.ordinal());
+	}
+
+	@Override
+	public long getCalcOutputAllocatedBytes() {
+		return allocatedBytes.get(ProfiledMethod.CALC_OUTPUT.ordinal());
+	}
+
+	@Override
+	public long getCalcLossCount() {
+		return callCounts.get(ProfiledMethod.CALC_LOSS.ordinal());
+	}
+
+	@Override
+	public long getCalcLossNanos() {
+		return nanos.get(ProfiledMethod.CALC_LOSS.ordinal());
+	}
+
+	@Override
+	public long getCalcLossAllocatedBytes() {
+		return allocatedBytes.get(ProfiledMethod.CALC_LOSS.ordinal());
+	}
+
+	@Override
+	public long getCalcGradientCount() {
+		return callCounts.get(ProfiledMethod.CALC_GRADIENT.ordinal());
+	}
+
+	@Override
+	public long getCalcGradientNanos() {
+		return nanos.get(ProfiledMethod.CALC_GRADIENT.ordinal());
+	}
+
+	@Override
+	public long getCalcGradientAllocatedBytes() {
+		return allocatedBytes.get(ProfiledMethod.CALC_GRADIENT.ordinal());
+	}
+
+	@Override
+	public long getLearnCount() {
+		return callCounts.get(ProfiledMethod.LEARN.ordinal());
+	}
+
+	@Override
+	public long getLearnNanos() {
+		return nanos.get(ProfiledMethod.LEARN.ordinal());
+	}
+
+	@Override
+	public long getLearnAllocatedBytes() {
+		return allocatedBytes.get(ProfiledMethod.LEARN.ordinal());
+	}
+
+	/**
+	 * Sets all counters to 0. Calls which are recorded concurrently may be lost.
+	 */
+	@Override
+	public void reset() {
+		for (int i = 0; i < METHOD_COUNT; i++) {
+			callCounts.set(i, 0);
+			nanos.set(i, 0);
+			allocatedBytes.set(i, 0);
+		}
+	}
+
+	@Override
+	public String toString() {
+		return getSnapshot().toString();
+	}
+}
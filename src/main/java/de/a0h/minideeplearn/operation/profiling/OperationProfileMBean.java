@@ -0,0 +1,36 @@
+package de.a0h.minideeplearn.operation.profiling;
+
+/**
+ * The JMX view of an {@link OperationProfile}. Times are in nanoseconds,
+ * allocations in bytes, as far as the JVM reports them.
+ */
+public interface OperationProfileMBean {
+
+	public String getName();
+
+	public long getCalcOutputCount();
+
+	public long getCalcOutputNanos();
+
+	public long getCalcOutputAllocatedBytes();
+
+	public long getCalcLossCount();
+
+	public long getCalcLossNanos();
+
+	public long getCalcLossAllocatedBytes();
+
+	public long getCalcGradientCount();
+
+	public long getCalcGradientNanos();
+
+	public long getCalcGradientAllocatedBytes();
+
+	public long getLearnCount();
+
+	public long getLearnNanos();
+
+	public long getLearnAllocatedBytes();
+
+	public void reset();
+}
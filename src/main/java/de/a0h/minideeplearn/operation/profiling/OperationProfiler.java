@@ -0,0 +1,157 @@
+package de.a0h.minideeplearn.operation.profiling;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import de.a0h.minideeplearn.operation.MdlOperationConfig;
+import de.a0h.minideeplearn.operation.Operation;
+import de.a0h.minideeplearn.operation.composite.Chain;
+
+/**
+ * Profiles the elementary operations of a model, e.g.
+ *
+ * <pre>
+ * OperationProfiler profiler = new OperationProfiler("classifier");
+ * Operation profiled = profiler.profile(net);
+ * trainer.run(profiled, inp, target, batchSize, learningRate, rnd);
+ * System.out.println(profiler);
+ * </pre>
+ *
+ * Every elementary operation of the flattened model is wrapped by a
+ * {@link ProfilingOperation} with a profile of its own, see
+ * {@link ProfilingChain}. The profiled model shares the parameters with the
+ * model. The profiles can be read as snapshots,
+ * see {@link #getSnapshot()}, or via JMX, see {@link #registerMBeans()}.
+ *
+ * <p>
+ * Profiling is opt-in via the system property
+ * <code>minideeplearn.profiling=true</code>, see
+ * {@link MdlOperationConfig#PROFILING}. Without it, {@link #profile(Operation)}
+ * returns the model as it is, so there is no overhead at all.
+ * </p>
+ */
+public class OperationProfiler {
+
+	public static final String JMX_DOMAIN = "de.a0h.minideeplearn";
+
+	protected final String name;
+
+	protected final List<OperationProfile> profiles = new ArrayList<OperationProfile>();
+
+	protected final List<ObjectName> registeredNames = new ArrayList<ObjectName>();
+
+	public OperationProfiler(String name) {
+		this.name = name;
+	}
+
+	/**
+	 * Returns the profiled version of the model, or the model itself if profiling
+	 * is disabled. A model which records its own profile, e.g. a compiled class
+	 * with profiling counters, is returned as it is, and its profile is added to
+	 * the profiles of this profiler.
+	 */
+	public synchronized Operation profile(Operation model) {
+		if (!MdlOperationConfig.PROFILING) {
+			return model;
+		}
+
+		if (model instanceof Profiled) {
+			profiles.add(((Profiled) model).getProfile());
+			return model;
+		}
+
+		if (model instanceof Chain) {
+			Chain chain = (Chain) model;
+
+			List<OperationProfile> opProfiles = new ArrayList<OperationProfile>();
+			for (Operation op : chain) {
+				opProfiles.add(createProfile(op.toStringWithLayout()));
+			}
+
+			return new ProfilingChain(chain, opProfiles, createProfile("chain"));
+		}
+
+		return new ProfilingOperation(model, createProfile(model.toStringWithLayout()));
+	}
+
+	protected OperationProfile createProfile(String opName) {
+		OperationProfile profile = new OperationProfile(profiles.size() + ":" + opName);
+		profiles.add(profile);
+
+		return profile;
+	}
+
+	/**
+	 * Returns the profiles in the order of the operations.
+	 */
+	public synchronized List<OperationProfile> getProfiles() {
+		return new ArrayList<OperationProfile>(profiles);
+	}
+
+	/**
+	 * Returns a copy of the current counters of all profiles.
+	 */
+	public synchronized List<OperationProfile.Snapshot> getSnapshot() {
+		List<OperationProfile.Snapshot> result = new ArrayList<OperationProfile.Snapshot>(profiles.size());
+
+		for (OperationProfile profile : profiles) {
+			result.add(profile.getSnapshot());
+		}
+
+		return result;
+	}
+
+	public synchronized void reset() {
+		for (OperationProfile profile : profiles) {
+			profile.reset();
+		}
+	}
+
+	/**
+	 * Registers one MBean per profile at the platform MBean server, named
+	 * de.a0h.minideeplearn:type=OperationProfile,profiler=&lt;name&gt;,op=&lt;name
+	 * of the profile&gt;.
+	 */
+	public synchronized void registerMBeans() throws JMException {
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+
+		for (OperationProfile profile : profiles) {
+			ObjectName objectName = new ObjectName(JMX_DOMAIN + ":" + //
+					"type=OperationProfile," + //
+					"profiler=" + ObjectName.quote(name) + "," + //
+					"op=" + ObjectName.quote(profile.getName()));
+
+			if (!registeredNames.contains(objectName)) {
+				server.registerMBean(profile, objectName);
+				registeredNames.add(objectName);
+			}
+		}
+	}
+
+	public synchronized void unregisterMBeans() throws JMException {
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+
+		while (!registeredNames.isEmpty()) {
+			server.unregisterMBean(registeredNames.remove(registeredNames.size() - 1));
+		}
+	}
+
+	/**
+	 * Returns one line per profile.
+	 */
+	@Override
+	public String toString() {
+		StringBuilder buf = new StringBuilder();
+
+		for (OperationProfile.Snapshot snapshot : getSnapshot()) {
+			buf.append(snapshot).append("\n");
+		}
+
+		return buf.toString();
+	}
+}
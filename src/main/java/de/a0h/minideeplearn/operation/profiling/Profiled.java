@@ -0,0 +1,10 @@
+package de.a0h.minideeplearn.operation.profiling;
+
+/**
+ * An operation which records its own profile, e.g. a class generated by the
+ * OperationToJavaCompiler with profiling counters.
+ */
+public interface Profiled {
+
+	public OperationProfile getProfile();
+}
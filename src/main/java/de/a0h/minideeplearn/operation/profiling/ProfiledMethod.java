@@ -0,0 +1,9 @@
+package de.a0h.minideeplearn.operation.profiling;
+
+/**
+ * The methods of an operation which are profiled. The batched variants count
+ * as one call of the method.
+ */
+public enum ProfiledMethod {
+	CALC_OUTPUT, CALC_LOSS, CALC_GRADIENT, LEARN;
+}
@@ -0,0 +1,75 @@
+package de.a0h.minideeplearn.operation.profiling;
+
+import java.util.List;
+
+import de.a0h.minideeplearn.operation.MdlOperationConfig;
+import de.a0h.minideeplearn.operation.Operation;
+import de.a0h.minideeplearn.operation.composite.Chain;
+import de.a0h.minideeplearn.operation.gradient.Gradient;
+import de.a0h.minideeplearn.operation.optimizer.UpdateRule;
+
+/**
+ * A flat chain of {@link ProfilingOperation} wrappers of the elementary
+ * operations of a chain, which shares the parameter vector with that chain.
+ * Usually, it's created by an {@link OperationProfiler}.
+ *
+ * <p>
+ * A chain updates all parameters at once, without calling learn() of its
+ * operations. Hence, learn() is recorded in the profile of the chain itself,
+ * while the other methods are recorded per operation.
+ * </p>
+ */
+public class ProfilingChain extends Chain implements Profiled {
+
+	protected final OperationProfile profile;
+
+	/**
+	 * @param opProfiles one profile per elementary operation of src
+	 */
+	public ProfilingChain(Chain src, List<OperationProfile> opProfiles, OperationProfile profile) {
+		int i = 0;
+		for (Operation op : src) {
+			list.add(new ProfilingOperation(op, opProfiles.get(i++)));
+		}
+		shareParams(src);
+
+		this.profile = profile;
+	}
+
+	@Override
+	public OperationProfile getProfile() {
+		return profile;
+	}
+
+	@Override
+	public void learn(Gradient grad, float negLearningRate) {
+		if (!MdlOperationConfig.PROFILING) {
+			super.learn(grad, negLearningRate);
+			return;
+		}
+
+		long startBytes = OperationProfile.getAllocatedBytes();
+		long startTime = System.nanoTime();
+		try {
+			super.learn(grad, negLearningRate);
+		} finally {
+			profile.record(ProfiledMethod.LEARN, startTime, startBytes);
+		}
+	}
+
+	@Override
+	public void learn(Gradient grad, float gradScale, UpdateRule rule) {
+		if (!MdlOperationConfig.PROFILING) {
+			super.learn(grad, gradScale, rule);
+			return;
+		}
+
+		long startBytes = OperationProfile.getAllocatedBytes();
+		long startTime = System.nanoTime();
+		try {
+			super.learn(grad, gradScale, rule);
+		} finally {
+			profile.record(ProfiledMethod.LEARN, startTime, startBytes);
+		}
+	}
+}
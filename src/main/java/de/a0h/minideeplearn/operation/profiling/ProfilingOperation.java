@@ -0,0 +1,300 @@
+package de.a0h.minideeplearn.operation.profiling;
+
+import java.util.Random;
+
+import de.a0h.minideeplearn.operation.ExecutionContext;
+import de.a0h.minideeplearn.operation.MdlOperationConfig;
+import de.a0h.minideeplearn.operation.Operation;
+import de.a0h.minideeplearn.operation.gradient.Gradient;
+import de.a0h.minideeplearn.operation.optimizer.UpdateRule;
+
+/**
+ * Wraps an operation and records the calls of its profiled methods, see
+ * {@link ProfiledMethod}, in a profile. All other methods are delegated as
+ * they are, including the layout, so that the wrapper can replace the wrapped
+ * operation everywhere, e.g. in a chain. Usually, the wrappers are created by
+ * an {@link OperationProfiler}.
+ *
+ * <p>
+ * If {@link MdlOperationConfig#PROFILING} is false, nothing is recorded, and
+ * the JIT compiler reduces every method to the plain delegation.
+ * </p>
+ */
+public class ProfilingOperation implements Operation, Profiled {
+
+	protected final Operation delegate;
+
+	protected final OperationProfile profile;
+
+	public ProfilingOperation(Operation delegate, OperationProfile profile) {
+		this.delegate = delegate;
+		this.profile = profile;
+	}
+
+	public Operation getDelegate() {
+		return delegate;
+	}
+
+	@Override
+	public OperationProfile getProfile() {
+		return profile;
+	}
+
+	@Override
+	public int getInputSize() {
+		return delegate.getInputSize();
+	}
+
+	@Override
+	public boolean hasOutput() {
+		return delegate.hasOutput();
+	}
+
+	@Override
+	public int getOutputSize() {
+		return delegate.getOutputSize();
+	}
+
+	@Override
+	public float[] calcOutput(float[] inp) {
+		if (!MdlOperationConfig.PROFILING) {
+			return delegate.calcOutput(inp);
+		}
+
+		long startBytes = OperationProfile.getAllocatedBytes();
+		long startTime = System.nanoTime();
+		try {
+			return delegate.calcOutput(inp);
+		} finally {
+			profile.record(ProfiledMethod.CALC_OUTPUT, startTime, startBytes);
+		}
+	}
+
+	@Override
+	public float[] getOutput() {
+		return delegate.getOutput();
+	}
+
+	@Override
+	public float[] calcOutput(ExecutionContext ctx, float[] inp) {
+		return ctx.getStorage(this).calcOutput(inp);
+	}
+
+	@Override
+	public boolean hasLoss() {
+		return delegate.hasLoss();
+	}
+
+	@Override
+	public float calcLoss(float[] inp, float[] target) {
+		if (!MdlOperationConfig.PROFILING) {
+			return delegate.calcLoss(inp, target);
+		}
+
+		long startBytes = OperationProfile.getAllocatedBytes();
+		long startTime = System.nanoTime();
+		try {
+			return delegate.calcLoss(inp, target);
+		} finally {
+			profile.record(ProfiledMethod.CALC_LOSS, startTime, startBytes);
+		}
+	}
+
+	@Override
+	public float getLoss() {
+		return delegate.getLoss();
+	}
+
+	@Override
+	public float[][] calcOutputBatch(float[][] inp, int rows) {
+		if (!MdlOperationConfig.PROFILING) {
+			return delegate.calcOutputBatch(inp, rows);
+		}
+
+		long startBytes = OperationProfile.getAllocatedBytes();
+		long startTime = System.nanoTime();
+		try {
+			return delegate.calcOutputBatch(inp, rows);
+		} finally {
+			profile.record(ProfiledMethod.CALC_OUTPUT, startTime, startBytes);
+		}
+	}
+
+	@Override
+	public float[][] getOutputBatch() {
+		return delegate.getOutputBatch();
+	}
+
+	@Override
+	public float[] calcLossBatch(float[][] inp, float[][] target, int rows) {
+		if (!MdlOperationConfig.PROFILING) {
+			return delegate.calcLossBatch(inp, target, rows);
+		}
+
+		long startBytes = OperationProfile.getAllocatedBytes();
+		long startTime = System.nanoTime();
+		try {
+			return delegate.calcLossBatch(inp, target, rows);
+		} finally {
+			profile.record(ProfiledMethod.CALC_LOSS, startTime, startBytes);
+		}
+	}
+
+	@Override
+	public float[] getLossBatch() {
+		return delegate.getLossBatch();
+	}
+
+	@Override
+	public void learn(Gradient grad, float negLearningRate) {
+		if (!MdlOperationConfig.PROFILING) {
+			delegate.learn(grad, negLearningRate);
+			return;
+		}
+
+		long startBytes = OperationProfile.getAllocatedBytes();
+		long startTime = System.nanoTime();
+		try {
+			delegate.learn(grad, negLearningRate);
+		} finally {
+			profile.record(ProfiledMethod.LEARN, startTime, startBytes);
+		}
+	}
+
+	@Override
+	public void learn(Gradient grad, float gradScale, UpdateRule rule) {
+		if (!MdlOperationConfig.PROFILING) {
+			delegate.learn(grad, gradScale, rule);
+			return;
+		}
+
+		long startBytes = OperationProfile.getAllocatedBytes();
+		long startTime = System.nanoTime();
+		try {
+			delegate.learn(grad, gradScale, rule);
+		} finally {
+			profile.record(ProfiledMethod.LEARN, startTime, startBytes);
+		}
+	}
+
+	@Override
+	public int getParamCount() {
+		return delegate.getParamCount();
+	}
+
+	@Override
+	public float[] getParams() {
+		return delegate.getParams();
+	}
+
+	@Override
+	public int getParamsOffset() {
+		return delegate.getParamsOffset();
+	}
+
+	@Override
+	public void bindParams(float[] params, int offset) {
+		delegate.bindParams(params, offset);
+	}
+
+	@Override
+	public void calcGradient(float[] inp, float[] target_or_upstream_grad_of_out, Gradient grad) {
+		if (!MdlOperationConfig.PROFILING) {
+			delegate.calcGradient(inp, target_or_upstream_grad_of_out, grad);
+			return;
+		}
+
+		long startBytes = OperationProfile.getAllocatedBytes();
+		long startTime = System.nanoTime();
+		try {
+			delegate.calcGradient(inp, target_or_upstream_grad_of_out, grad);
+		} finally {
+			profile.record(ProfiledMethod.CALC_GRADIENT, startTime, startBytes);
+		}
+	}
+
+	@Override
+	public void calcGradient(float[] inp, float[] target_or_upstream_grad_of_out, Gradient grad, boolean accumulate) {
+		if (!MdlOperationConfig.PROFILING) {
+			delegate.calcGradient(inp, target_or_upstream_grad_of_out, grad, accumulate);
+			return;
+		}
+
+		long startBytes = OperationProfile.getAllocatedBytes();
+		long startTime = System.nanoTime();
+		try {
+			delegate.calcGradient(inp, target_or_upstream_grad_of_out, grad, accumulate);
+		} finally {
+			profile.record(ProfiledMethod.CALC_GRADIENT, startTime, startBytes);
+		}
+	}
+
+	@Override
+	public void calcGradientBatch(float[][] inp, float[][] target_or_upstream_grad_of_out, int rows, Gradient grad) {
+		if (!MdlOperationConfig.PROFILING) {
+			delegate.calcGradientBatch(inp, target_or_upstream_grad_of_out, rows, grad);
+			return;
+		}
+
+		long startBytes = OperationProfile.getAllocatedBytes();
+		long startTime = System.nanoTime();
+		try {
+			delegate.calcGradientBatch(inp, target_or_upstream_grad_of_out, rows, grad);
+		} finally {
+			profile.record(ProfiledMethod.CALC_GRADIENT, startTime, startBytes);
+		}
+	}
+
+	@Override
+	public void initParams(Random rnd) {
+		delegate.initParams(rnd);
+	}
+
+	@Override
+	public Gradient createGradient() {
+		return delegate.createGradient();
+	}
+
+	/**
+	 * The copy records into the same profile.
+	 */
+	@Override
+	public ProfilingOperation createParamSharingCopy() {
+		return new ProfilingOperation(delegate.createParamSharingCopy(), profile);
+	}
+
+	@Override
+	public ExecutionContext createContext() {
+		return new ExecutionContext(this);
+	}
+
+	@Override
+	public String getTypeShortname() {
+		return delegate.getTypeShortname();
+	}
+
+	@Override
+	public String toString() {
+		return delegate.toString();
+	}
+
+	@Override
+	public String toStringWithLayout() {
+		return delegate.toStringWithLayout();
+	}
+
+	@Override
+	public String toStringWithLayoutAndValues() {
+		return delegate.toStringWithLayoutAndValues();
+	}
+
+	@Override
+	public StringBuilder toStringBuilderWithLayout(StringBuilder buf) {
+		return delegate.toStringBuilderWithLayout(buf);
+	}
+
+	@Override
+	public StringBuilder toStringBuilderWithLayoutAndValues(StringBuilder buf, int indent) {
+		return delegate.toStringBuilderWithLayoutAndValues(buf, indent);
+	}
+}
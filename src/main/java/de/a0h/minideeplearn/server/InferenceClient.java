@@ -0,0 +1,107 @@
+package de.a0h.minideeplearn.server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+
+/**
+ * A client of the {@link InferenceServer}, which sends its requests one after
+ * another over one connection. Not thread-safe, use one client per thread.
+ */
+public class InferenceClient implements Closeable {
+
+	protected final Socket socket;
+
+	protected final DataInputStream in;
+
+	protected final DataOutputStream out;
+
+	public InferenceClient(int port) throws IOException {
+		this(InetAddress.getLoopbackAddress(), port);
+	}
+
+	public InferenceClient(InetAddress address, int port) throws IOException {
+		socket = new Socket(address, port);
+		socket.setTcpNoDelay(true);
+
+		in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+		out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+	}
+
+	/**
+	 * Returns the output of the model for the input.
+	 */
+	public float[] calcOutput(float[] inp) throws IOException {
+		sendRequest(inp);
+
+		float[] result = new float[readResponseHeader()];
+		readResponseBody(result);
+
+		return result;
+	}
+
+	/**
+	 * Writes the output of the model for the input into out, which must have the
+	 * output size of the model.
+	 */
+	public void calcOutput(float[] inp, float[] out) throws IOException {
+		sendRequest(inp);
+
+		int outputSize = readResponseHeader();
+		if (outputSize != out.length) {
+			// read the output anyway, so that the connection stays usable
+			for (int i = 0; i < outputSize; i++) {
+				in.readFloat();
+			}
+
+			throw new IllegalArgumentException("" + //
+					"out must be of length " + outputSize + ", " + //
+					"but it is " + out.length);
+		}
+
+		readResponseBody(out);
+	}
+
+	protected void sendRequest(float[] inp) throws IOException {
+		out.writeInt(inp.length);
+		for (int i = 0; i < inp.length; i++) {
+			out.writeFloat(inp[i]);
+		}
+		out.flush();
+	}
+
+	/**
+	 * Returns the output size. Throws an IllegalArgumentException if the server
+	 * rejected the input, and an IllegalStateException if the server failed to
+	 * calculate the output.
+	 */
+	protected int readResponseHeader() throws IOException {
+		int outputSize = in.readInt();
+
+		if (outputSize == InferenceServer.STATUS_REJECTED) {
+			throw new IllegalArgumentException("the server rejected the request: " + in.readUTF());
+		}
+
+		if (outputSize < 0) {
+			throw new IllegalStateException("the server failed to calculate the output: " + in.readUTF());
+		}
+
+		return outputSize;
+	}
+
+	protected void readResponseBody(float[] result) throws IOException {
+		for (int i = 0; i < result.length; i++) {
+			result[i] = in.readFloat();
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		socket.close();
+	}
+}
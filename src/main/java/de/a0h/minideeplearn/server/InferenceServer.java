@@ -0,0 +1,525 @@
+package de.a0h.minideeplearn.server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import de.a0h.minideeplearn.operation.Operation;
+import de.a0h.minideeplearn.operation.OperationPool;
+
+/**
+ * Serves the outputs of a model over TCP, combining concurrent requests into
+ * micro-batches, which are calculated by one batched forward pass, e.g.
+ *
+ * <pre>
+ * try (InferenceServer server = new InferenceServer(model, 0, 32, 200)) {
+ * 	int port = server.getPort();
+ * 	...
+ * }
+ * </pre>
+ *
+ * A batch is calculated as soon as it holds maxBatchSize requests, or as soon
+ * as its first request has waited maxWaitMicros microseconds. Under low load,
+ * this adds at most maxWaitMicros to the latency, under high load it increases
+ * the throughput.
+ *
+ * <p>
+ * The protocol is binary and big-endian, see {@link InferenceClient}. A client
+ * sends requests one after another over one connection:
+ * </p>
+ *
+ * <pre>
+ * request:  int inputSize, float[inputSize] input
+ * response: int outputSize, float[outputSize] output
+ *       or: int status, UTF-8 string error message (as in DataOutputStream.writeUTF)
+ * </pre>
+ *
+ * The status is {@link #STATUS_REJECTED} for an input of the wrong size and
+ * {@link #STATUS_FAILED} if the server couldn't calculate the output, e.g. if
+ * the batch failed or the server has been closed.
+ *
+ * With an {@link OperationPool}, there is one batching thread per pooled
+ * instance, so that several batches are calculated concurrently, e.g. by
+ * instances of a compiled class. The server only listens on the loopback
+ * interface. It calculates the outputs with param sharing copies of the model,
+ * so the parameters of the model must not be changed while the server is
+ * running.
+ */
+public class InferenceServer implements Closeable {
+
+	public static final int STATUS_REJECTED = -1;
+
+	public static final int STATUS_FAILED = -2;
+
+	/**
+	 * Inputs of the wrong size up to this size are skipped, so that the connection
+	 * stays usable. Larger or negative sizes close the connection.
+	 */
+	public static final int MAX_SKIPPED_INPUT_SIZE = 1 << 20;
+
+	/**
+	 * How often threads waiting for the queue or for a batch check whether the
+	 * server has been closed.
+	 */
+	protected static final long CLOSED_CHECK_MILLIS = 100;
+
+	protected final OperationPool pool;
+
+	protected final int maxBatchSize;
+
+	protected final long maxWaitNanos;
+
+	protected final ServerSocket serverSocket;
+
+	protected final BlockingQueue<Request> queue;
+
+	protected final Thread acceptor;
+
+	protected final Thread[] batchers;
+
+	protected final Set<Socket> connections = Collections.synchronizedSet(new HashSet<Socket>());
+
+	protected volatile boolean closed;
+
+	/**
+	 * Time from receiving a request until its output has been sent.
+	 */
+	public final LatencyHistogram requestLatency = new LatencyHistogram();
+
+	/**
+	 * Time a request waits in the queue until its batch is calculated.
+	 */
+	public final LatencyHistogram queueLatency = new LatencyHistogram();
+
+	/**
+	 * Time of the batched forward pass.
+	 */
+	public final LatencyHistogram batchLatency = new LatencyHistogram();
+
+	protected long batchCount;
+	protected long batchedRequestCount;
+
+	/**
+	 * One pending request. Every connection reuses its request object.
+	 */
+	protected static class Request {
+
+		public final float[] inp;
+
+		public final float[] out;
+
+		public long receiveTime;
+
+		/**
+		 * The message of the failure of the batch, or null if out is valid.
+		 */
+		public String error;
+
+		public boolean done;
+
+		public Request(int inputSize, int outputSize) {
+			inp = new float[inputSize];
+			out = new float[outputSize];
+		}
+
+		public synchronized void complete() {
+			done = true;
+			notifyAll();
+		}
+
+		/**
+		 * Returns false if the request hasn't been completed within the timeout.
+		 */
+		public synchronized boolean awaitCompletion(long timeoutMillis) throws InterruptedException {
+			if (!done) {
+				wait(timeoutMillis);
+			}
+
+			if (!done) {
+				return false;
+			}
+
+			done = false;
+			return true;
+		}
+	}
+
+	/**
+	 * @param port          the port, or 0 for any free port, see
+	 *                      {@link #getPort()}
+	 * @param maxBatchSize  max number of requests per batch
+	 * @param maxWaitMicros max time the first request of a batch waits for more
+	 *                      requests
+	 */
+	public InferenceServer(Operation model, int port, int maxBatchSize, long maxWaitMicros) throws IOException {
+		this(new OperationPool(model, 1), port, maxBatchSize, maxWaitMicros);
+	}
+
+	/**
+	 * Same as {@link #InferenceServer(Operation, int, int, long)}, but with one
+	 * batching thread per instance of the pool.
+	 */
+	public InferenceServer(OperationPool pool, int port, int maxBatchSize, long maxWaitMicros) throws IOException {
+		if (maxBatchSize < 1) {
+			throw new IllegalArgumentException("maxBatchSize must be positive, but it is " + maxBatchSize);
+		}
+		if (maxWaitMicros < 0) {
+			throw new IllegalArgumentException("maxWaitMicros must not be negative, but it is " + maxWaitMicros);
+		}
+
+		this.pool = pool;
+		this.maxBatchSize = maxBatchSize;
+		this.maxWaitNanos = maxWaitMicros * 1000;
+
+		queue = new ArrayBlockingQueue<Request>(Math.max(1024, 4 * maxBatchSize));
+
+		serverSocket = new ServerSocket();
+		serverSocket.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+
+		acceptor = new Thread("inference-acceptor") {
+
+			@Override
+			public void run() {
+				acceptLoop();
+			}
+		};
+		acceptor.setDaemon(true);
+
+		batchers = new Thread[pool.size()];
+		for (int i = 0; i < batchers.length; i++) {
+			batchers[i] = new Thread("inference-batcher-" + i) {
+
+				@Override
+				public void run() {
+					batchLoop();
+				}
+			};
+			batchers[i].setDaemon(true);
+			batchers[i].start();
+		}
+
+		acceptor.start();
+	}
+
+	public int getPort() {
+		return serverSocket.getLocalPort();
+	}
+
+	protected void acceptLoop() {
+		while (!closed) {
+			final Socket socket;
+			try {
+				socket = serverSocket.accept();
+			} catch (IOException e) {
+				// closed
+				return;
+			}
+
+			connections.add(socket);
+
+			Thread connectionThread = new Thread("inference-connection-" + socket.getPort()) {
+
+				@Override
+				public void run() {
+					try {
+						serve(socket);
+					} finally {
+						connections.remove(socket);
+						closeQuietly(socket);
+					}
+				}
+			};
+			connectionThread.setDaemon(true);
+			connectionThread.start();
+		}
+	}
+
+	protected void serve(Socket socket) {
+		try {
+			socket.setTcpNoDelay(true);
+
+			DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+
+			Operation prototype = pool.getPrototype();
+			Request request = new Request(prototype.getInputSize(), prototype.getOutputSize());
+
+			while (!closed) {
+				int inputSize;
+				try {
+					inputSize = in.readInt();
+				} catch (EOFException e) {
+					return;
+				}
+
+				long receiveTime = System.nanoTime();
+
+				if (inputSize != request.inp.length) {
+					String error = "expected an input of size " + request.inp.length + ", but it is " + inputSize;
+
+					if (inputSize < 0 || inputSize > MAX_SKIPPED_INPUT_SIZE) {
+						// not worth skipping, the connection is closed
+						writeError(out, STATUS_REJECTED, error);
+						return;
+					}
+
+					// skip the input, the connection stays usable
+					skipFully(in, inputSize * 4L);
+					writeError(out, STATUS_REJECTED, error);
+					continue;
+				}
+
+				for (int i = 0; i < inputSize; i++) {
+					request.inp[i] = in.readFloat();
+				}
+
+				request.receiveTime = receiveTime;
+				if (!enqueue(request) || !awaitCompletion(request)) {
+					request.error = "the server has been closed";
+				}
+
+				if (request.error != null) {
+					writeError(out, STATUS_FAILED, request.error);
+
+					request.error = null;
+					continue;
+				}
+
+				out.writeInt(request.out.length);
+				for (int i = 0; i < request.out.length; i++) {
+					out.writeFloat(request.out[i]);
+				}
+				out.flush();
+
+				requestLatency.record(System.nanoTime() - receiveTime);
+			}
+		} catch (SocketException e) {
+			// closed by the client or by close()
+		} catch (IOException e) {
+			// broken connection, only this client is affected
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Returns false if the server has been closed before the request could be
+	 * queued.
+	 */
+	protected boolean enqueue(Request request) throws InterruptedException {
+		while (!queue.offer(request, CLOSED_CHECK_MILLIS, TimeUnit.MILLISECONDS)) {
+			if (closed) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * Returns false if the server has been closed before the request has been
+	 * completed, e.g. because it was queued after the batching threads had
+	 * stopped.
+	 */
+	protected boolean awaitCompletion(Request request) throws InterruptedException {
+		while (!request.awaitCompletion(CLOSED_CHECK_MILLIS)) {
+			if (closed) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	protected static void writeError(DataOutputStream out, int status, String error) throws IOException {
+		out.writeInt(status);
+		out.writeUTF(error);
+		out.flush();
+	}
+
+	protected static void skipFully(DataInputStream in, long byteCount) throws IOException {
+		while (byteCount > 0) {
+			int skipped = in.skipBytes((int) Math.min(byteCount, Integer.MAX_VALUE));
+
+			if (skipped == 0) {
+				// skipBytes doesn't tell apart the end of the stream
+				if (in.read() < 0) {
+					throw new EOFException();
+				}
+				skipped = 1;
+			}
+
+			byteCount -= skipped;
+		}
+	}
+
+	protected void batchLoop() {
+		Request[] batch = new Request[maxBatchSize];
+		float[][] batchInp = new float[maxBatchSize][];
+
+		try {
+			while (!closed) {
+				Request first = queue.poll(100, TimeUnit.MILLISECONDS);
+				if (first == null) {
+					continue;
+				}
+
+				batch[0] = first;
+				int rows = 1;
+
+				long deadline = first.receiveTime + maxWaitNanos;
+				while (rows < maxBatchSize) {
+					// take what's already there without waiting
+					Request next = queue.poll();
+
+					if (next == null) {
+						long remaining = deadline - System.nanoTime();
+						if (remaining <= 0) {
+							break;
+						}
+
+						next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+						if (next == null) {
+							break;
+						}
+					}
+
+					batch[rows++] = next;
+				}
+
+				Operation model = pool.borrow();
+				try {
+					calcBatch(model, batch, batchInp, rows);
+				} catch (RuntimeException e) {
+					// only the requests of this batch are affected
+					failBatch(batch, batchInp, rows, e);
+				} finally {
+					pool.giveBack(model);
+				}
+			}
+		} catch (InterruptedException e) {
+			// closed
+		} finally {
+			// release the waiting connections, their sockets are closed anyway
+			Request request;
+			while ((request = queue.poll()) != null) {
+				request.error = "the server has been closed";
+				request.complete();
+			}
+		}
+	}
+
+	protected void calcBatch(Operation model, Request[] batch, float[][] batchInp, int rows) {
+		long startTime = System.nanoTime();
+
+		for (int r = 0; r < rows; r++) {
+			batchInp[r] = batch[r].inp;
+			queueLatency.record(startTime - batch[r].receiveTime);
+		}
+
+		float[][] batchOut = model.calcOutputBatch(batchInp, rows);
+
+		for (int r = 0; r < rows; r++) {
+			System.arraycopy(batchOut[r], 0, batch[r].out, 0, batch[r].out.length);
+		}
+
+		batchLatency.record(System.nanoTime() - startTime);
+
+		synchronized (this) {
+			batchCount++;
+			batchedRequestCount += rows;
+		}
+
+		for (int r = 0; r < rows; r++) {
+			Request request = batch[r];
+			batch[r] = null;
+			batchInp[r] = null;
+
+			request.complete();
+		}
+	}
+
+	protected void failBatch(Request[] batch, float[][] batchInp, int rows, RuntimeException e) {
+		String error = "calculating the output failed: " + e;
+
+		for (int r = 0; r < rows; r++) {
+			Request request = batch[r];
+			batch[r] = null;
+			batchInp[r] = null;
+
+			request.error = error;
+			request.complete();
+		}
+	}
+
+	/**
+	 * Returns the average number of requests per batch.
+	 */
+	public synchronized float getAvgBatchSize() {
+		return (batchCount == 0) ? 0.0f : (float) batchedRequestCount / batchCount;
+	}
+
+	public synchronized long getBatchCount() {
+		return batchCount;
+	}
+
+	public String getMetricsString() {
+		return "" + //
+				"batches: " + getBatchCount() + ", avg batch size: " + getAvgBatchSize() + "\n" + //
+				"request latency: " + requestLatency + "\n" + //
+				"queue latency:   " + queueLatency + "\n" + //
+				"batch latency:   " + batchLatency;
+	}
+
+	/**
+	 * Stops accepting connections, closes all connections and stops the threads.
+	 */
+	@Override
+	public void close() {
+		closed = true;
+
+		closeQuietly(serverSocket);
+
+		synchronized (connections) {
+			for (Socket socket : connections) {
+				closeQuietly(socket);
+			}
+		}
+
+		for (Thread batcher : batchers) {
+			batcher.interrupt();
+		}
+
+		try {
+			acceptor.join();
+			for (Thread batcher : batchers) {
+				batcher.join();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	protected static void closeQuietly(Closeable closeable) {
+		try {
+			closeable.close();
+		} catch (IOException e) {
+			// nothing left to do
+		}
+	}
+}
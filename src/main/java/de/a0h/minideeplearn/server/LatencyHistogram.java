@@ -0,0 +1,120 @@
+package de.a0h.minideeplearn.server;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of latencies in nanoseconds, with logarithmic buckets: every
+ * power of two is divided into SUB_BUCKET_COUNT buckets, so the relative error
+ * of the percentiles is at most 1 / SUB_BUCKET_COUNT. Recording is lock-free
+ * and doesn't allocate, so it can be used on the hot path of several threads.
+ */
+public class LatencyHistogram {
+
+	protected static final int SUB_BUCKET_BITS = 3;
+
+	protected static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+
+	protected static final int BUCKET_COUNT = (64 - SUB_BUCKET_BITS + 1) << SUB_BUCKET_BITS;
+
+	protected final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+
+	protected final AtomicLongArray totals = new AtomicLongArray(2);
+
+	protected static final int TOTAL_COUNT = 0;
+	protected static final int TOTAL_NANOS = 1;
+
+	public void record(long nanos) {
+		if (nanos < 0) {
+			nanos = 0;
+		}
+
+		counts.incrementAndGet(getBucketIndex(nanos));
+		totals.incrementAndGet(TOTAL_COUNT);
+		totals.addAndGet(TOTAL_NANOS, nanos);
+	}
+
+	protected static int getBucketIndex(long value) {
+		if (value < SUB_BUCKET_COUNT) {
+			return (int) value;
+		}
+
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		int shift = exponent - SUB_BUCKET_BITS;
+
+		return ((shift + 1) << SUB_BUCKET_BITS) + (int) ((value >>> shift) & (SUB_BUCKET_COUNT - 1));
+	}
+
+	/**
+	 * Returns the smallest value which falls into the bucket.
+	 */
+	protected static long getBucketLowerBound(int index) {
+		if (index < SUB_BUCKET_COUNT) {
+			return index;
+		}
+
+		int shift = (index >>> SUB_BUCKET_BITS) - 1;
+
+		return (long) (SUB_BUCKET_COUNT + (index & (SUB_BUCKET_COUNT - 1))) << shift;
+	}
+
+	public long getCount() {
+		return totals.get(TOTAL_COUNT);
+	}
+
+	public double getMeanNanos() {
+		long count = getCount();
+
+		return (count == 0) ? 0.0 : (double) totals.get(TOTAL_NANOS) / count;
+	}
+
+	/**
+	 * Returns the approximate latency below which the specified fraction of the
+	 * recorded latencies lies, e.g. 0.99 for the 99th percentile, or 0 if nothing
+	 * has been recorded yet.
+	 */
+	public long getPercentileNanos(double fraction) {
+		long[] snapshot = new long[BUCKET_COUNT];
+		long count = 0;
+		for (int i = 0; i < BUCKET_COUNT; i++) {
+			snapshot[i] = counts.get(i);
+			count += snapshot[i];
+		}
+
+		if (count == 0) {
+			return 0;
+		}
+
+		long rank = (long) Math.ceil(fraction * count);
+		long seen = 0;
+		for (int i = 0; i < BUCKET_COUNT; i++) {
+			seen += snapshot[i];
+
+			if (seen >= rank && snapshot[i] > 0) {
+				// the upper bound of the bucket
+				return (i + 1 < BUCKET_COUNT) ? getBucketLowerBound(i + 1) - 1 : Long.MAX_VALUE;
+			}
+		}
+
+		return Long.MAX_VALUE;
+	}
+
+	public void clear() {
+		for (int i = 0; i < BUCKET_COUNT; i++) {
+			counts.set(i, 0);
+		}
+		totals.set(TOTAL_COUNT, 0);
+		totals.set(TOTAL_NANOS, 0);
+	}
+
+	@Override
+	public String toString() {
+		return String.format("" + //
+				"count=%d, mean=%.1fus, p50=%.1fus, p90=%.1fus, p99=%.1fus, p999=%.1fus", //
+				getCount(), //
+				getMeanNanos() / 1000.0, //
+				getPercentileNanos(0.5) / 1000.0, //
+				getPercentileNanos(0.9) / 1000.0, //
+				getPercentileNanos(0.99) / 1000.0, //
+				getPercentileNanos(0.999) / 1000.0);
+	}
+}
@@ -1,16 +1,66 @@
 package de.a0h.minideeplearn;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
 
+import org.junit.Assert;
+import org.junit.Assume;
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
+import com.sun.management.ThreadMXBean;
+
+import de.a0h.minideeplearn.checkpoint.AsyncCheckpointer;
+import de.a0h.minideeplearn.checkpoint.ModelCheckpoint;
+import de.a0h.minideeplearn.dataset.ArraySampleSource;
+import de.a0h.minideeplearn.dataset.BatchPrefetcher;
+import de.a0h.minideeplearn.dataset.MappedDataSet;
+import de.a0h.minideeplearn.dataset.SampleSource;
+import de.a0h.minideeplearn.dataset.SpliteratorSampleSource;
+import de.a0h.minideeplearn.datasetgenerator.DataSetGenerator;
+import de.a0h.minideeplearn.datasetgenerator.vectordistribution.UniformVectorDistribution;
+import de.a0h.minideeplearn.datasetgenerator.vectortransform.InsideCenteredSphere;
+import de.a0h.minideeplearn.gui.desktop.ActivationGridRenderer;
+import de.a0h.minideeplearn.gui.desktop.NetSnapshot;
+import de.a0h.minideeplearn.gui.desktop.ProgressiveRenderScheduler;
+import de.a0h.minideeplearn.gui.desktop.TrainingEngine;
+import de.a0h.minideeplearn.operation.ExecutionContext;
+import de.a0h.minideeplearn.operation.MdlOperationConfig;
+import de.a0h.minideeplearn.operation.Operation;
+import de.a0h.minideeplearn.operation.MdlOperationConfig.KernelBackend;
 import de.a0h.minideeplearn.operation.gradient.Gradient;
+import de.a0h.minideeplearn.operation.layer.Dense;
+import de.a0h.minideeplearn.operation.optimizer.GradientDescentOptimizer;
+import de.a0h.minideeplearn.operation.optimizer.GradientDescentTrainer;
+import de.a0h.minideeplearn.operation.optimizer.ParallelGradientDescentOptimizer;
+import de.a0h.minideeplearn.operation.profiling.OperationProfile;
+import de.a0h.minideeplearn.operation.profiling.ProfilingOperation;
+import de.a0h.minideeplearn.predefined.ActivationFunctionType;
 import de.a0h.minideeplearn.predefined.Classifier;
+import de.a0h.minideeplearn.server.InferenceClient;
+import de.a0h.minideeplearn.server.InferenceServer;
 import de.a0h.mininum.MnFuncs;
 
 public class ClassifierTest {
 
+	@Rule
+	public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
 	Random rnd;
 
 	@Before
@@ -49,6 +99,851 @@ public class ClassifierTest {
 		return net;
 	}
 
+	@Test
+	public void testCalculateBatchEqualsSingleSamples() {
+		Classifier net = new Classifier(3, 5, 4, 2);
+		net.initParams(rnd);
+
+		// more rows than one tile of the batched matrix products
+		int rows = 37;
+		float[][] inp = new float[rows][net.getInputSize()];
+		float[][] target = new float[rows][net.getOutputSize()];
+		MnFuncs.assignGaussian(inp, rnd);
+		for (int r = 0; r < rows; r++) {
+			target[r][r % target[r].length] = 1.0f;
+		}
+
+		Gradient batchGrad = net.createGradient();
+		float[][] outBatch = net.calcOutputBatch(inp, rows);
+		float[] lossBatch = net.calcLossBatch(inp, target, rows);
+		net.calcGradientBatch(inp, target, rows, batchGrad);
+		float[][] inpGradBatch = batchGrad.getInputGradBatch();
+
+		Gradient sampleGrad = net.createGradient();
+		Gradient sumGrad = net.createGradient();
+		for (int r = 0; r < rows; r++) {
+			float[] out = net.calcOutput(inp[r]);
+			float loss = net.calcLoss(inp[r], target[r]);
+			net.calcGradient(inp[r], target[r], sampleGrad);
+			net.calcGradient(inp[r], target[r], sumGrad, true);
+
+			Assert.assertArrayEquals(out, outBatch[r], 1e-6f);
+			Assert.assertEquals(loss, lossBatch[r], 1e-6f);
+			Assert.assertArrayEquals(sampleGrad.getInputGrad(), inpGradBatch[r], 1e-6f);
+		}
+
+		// the parameter gradient of the batch is the sum of the ones of the samples
+		int paramCount = net.getParamCount();
+		float[] expectedParamGrad = Arrays.copyOfRange(sumGrad.getParams(), sumGrad.getParamsOffset(),
+				sumGrad.getParamsOffset() + paramCount);
+		float[] actualParamGrad = Arrays.copyOfRange(batchGrad.getParams(), batchGrad.getParamsOffset(),
+				batchGrad.getParamsOffset() + paramCount);
+		Assert.assertArrayEquals(expectedParamGrad, actualParamGrad, 1e-5f);
+	}
+
+	@Test
+	public void testParallelTrainingIsDeterministic() {
+		int sampleCount = 50;
+		float[][] inp = new float[sampleCount][3];
+		float[][] target = new float[sampleCount][2];
+		MnFuncs.assignGaussian(inp, rnd);
+		for (int i = 0; i < sampleCount; i++) {
+			target[i][inp[i][0] > 0 ? 0 : 1] = 1.0f;
+		}
+
+		Classifier[] nets = new Classifier[3];
+		for (int n = 0; n < nets.length; n++) {
+			nets[n] = new Classifier(3, 6, 2);
+			nets[n].initParams(new Random(1));
+		}
+
+		new GradientDescentOptimizer().run(nets[0], inp, target, 8, 0.1f, new Random(2));
+		Stats[] stats = new Stats[nets.length];
+		for (int n = 1; n < nets.length; n++) {
+			try (ParallelGradientDescentOptimizer opti = new ParallelGradientDescentOptimizer(3)) {
+				stats[n] = opti.run(nets[n], inp, target, 8, 0.1f, new Random(2));
+			}
+		}
+
+		float[] x = inp[0];
+		float[] expected = nets[0].calcOutput(x).clone();
+		float[] actual = nets[1].calcOutput(x).clone();
+
+		Assert.assertArrayEquals(actual, nets[2].calcOutput(x), 0.0f);
+		Assert.assertArrayEquals(expected, actual, 1e-5f);
+
+		Assert.assertEquals(sampleCount, stats[1].batchSize);
+		Assert.assertEquals(stats[1].batchSize, stats[2].batchSize);
+		Assert.assertEquals(stats[1].lossSum, stats[2].lossSum, 0.0f);
+		Assert.assertEquals(stats[1].getStatsString(), stats[2].getStatsString());
+	}
+
+	@Test
+	public void testParallelTrainingFollowsChangedActivationFunction() {
+		int sampleCount = 50;
+		float[][] inp = new float[sampleCount][3];
+		float[][] target = new float[sampleCount][2];
+		MnFuncs.assignGaussian(inp, rnd);
+		for (int i = 0; i < sampleCount; i++) {
+			target[i][inp[i][0] > 0 ? 0 : 1] = 1.0f;
+		}
+
+		Classifier expected = new Classifier(3, 6, 2);
+		expected.initParams(new Random(1));
+		Classifier actual = new Classifier(3, 6, 2);
+		actual.initParams(new Random(1));
+
+		GradientDescentOptimizer sequential = new GradientDescentOptimizer();
+		try (ParallelGradientDescentOptimizer opti = new ParallelGradientDescentOptimizer(3)) {
+			sequential.run(expected, inp, target, 8, 0.1f, new Random(2));
+			opti.run(actual, inp, target, 8, 0.1f, new Random(2));
+
+			// rebinds the classifier to a new parameter array
+			expected.setHiddenActivationFunction(ActivationFunctionType.RELU);
+			actual.setHiddenActivationFunction(ActivationFunctionType.RELU);
+
+			sequential.run(expected, inp, target, 8, 0.1f, new Random(3));
+			opti.run(actual, inp, target, 8, 0.1f, new Random(3));
+		}
+
+		Assert.assertArrayEquals(expected.getParams(), actual.getParams(), 1e-5f);
+	}
+
+	@Test
+	public void testCalculateForwardWithContextsConcurrently() throws InterruptedException {
+		Classifier net = new Classifier(3, 8, 8, 4);
+		net.initParams(rnd);
+
+		int sampleCount = 200;
+		float[][] inp = new float[sampleCount][net.getInputSize()];
+		float[][] expected = new float[sampleCount][];
+		MnFuncs.assignGaussian(inp, rnd);
+		for (int i = 0; i < sampleCount; i++) {
+			expected[i] = net.calcOutput(inp[i]).clone();
+		}
+
+		Thread[] threads = new Thread[4];
+		boolean[] correct = new boolean[threads.length];
+		for (int t = 0; t < threads.length; t++) {
+			int threadIdx = t;
+
+			threads[t] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					ExecutionContext ctx = net.createContext();
+
+					boolean result = true;
+					for (int repetition = 0; repetition < 20; repetition++) {
+						for (int i = 0; i < sampleCount; i++) {
+							float[] out = net.calcOutput(ctx, inp[i]);
+							result &= Arrays.equals(expected[i], out);
+						}
+					}
+					correct[threadIdx] = result;
+				}
+			});
+			threads[t].start();
+		}
+
+		for (int t = 0; t < threads.length; t++) {
+			threads[t].join();
+			Assert.assertTrue("thread " + t + " calculated wrong outputs", correct[t]);
+		}
+	}
+
+	@Test
+	public void testUnrolledKernelsMatchScalarKernels() {
+		Classifier net = new Classifier(13, 9, 5);
+		net.initParams(rnd);
+
+		int rows = 21;
+		float[][] inp = new float[rows][net.getInputSize()];
+		MnFuncs.assignGaussian(inp, rnd);
+
+		KernelBackend backendBefore = MdlOperationConfig.kernelBackend;
+		try {
+			MdlOperationConfig.kernelBackend = KernelBackend.SCALAR;
+			float[] expected = net.calcOutput(inp[0]).clone();
+			float[][] expectedBatch = new float[rows][];
+			float[][] scalarBatch = net.calcOutputBatch(inp, rows);
+			for (int r = 0; r < rows; r++) {
+				expectedBatch[r] = scalarBatch[r].clone();
+			}
+
+			MdlOperationConfig.kernelBackend = KernelBackend.UNROLLED;
+			Assert.assertArrayEquals(expected, net.calcOutput(inp[0]), 1e-6f);
+
+			float[][] outBatch = net.calcOutputBatch(inp, rows);
+			for (int r = 0; r < rows; r++) {
+				Assert.assertArrayEquals(expectedBatch[r], outBatch[r], 1e-6f);
+			}
+		} finally {
+			MdlOperationConfig.kernelBackend = backendBefore;
+		}
+	}
+
+	@Test
+	public void testParseKernelBackend() {
+		Assert.assertEquals(KernelBackend.UNROLLED, MdlOperationConfig.parseKernelBackend("UNROLLED"));
+		Assert.assertEquals(KernelBackend.UNROLLED, MdlOperationConfig.parseKernelBackend(" unrolled "));
+		Assert.assertEquals(KernelBackend.SCALAR, MdlOperationConfig.parseKernelBackend("Scalar"));
+
+		// typos and missing values fall back to the default
+		Assert.assertEquals(KernelBackend.SCALAR, MdlOperationConfig.parseKernelBackend("unroled"));
+		Assert.assertEquals(KernelBackend.SCALAR, MdlOperationConfig.parseKernelBackend(""));
+		Assert.assertEquals(KernelBackend.SCALAR, MdlOperationConfig.parseKernelBackend(null));
+	}
+
+	@Test
+	public void testParamsAreOneContiguousVector() {
+		Classifier net = new Classifier(3, 8, 4);
+		net.initParams(rnd);
+
+		Dense first = (Dense) net.get(0);
+		Dense second = (Dense) net.get(2);
+		Assert.assertSame(net.getParams(), first.params);
+		Assert.assertSame(net.getParams(), second.params);
+		Assert.assertEquals(first.getParamCount(), second.weightsOffset);
+		Assert.assertEquals(8 * 3 + 8 + 4 * 8 + 4, net.getParamCount());
+
+		float[] inp = new float[] { 0.5f, -1.0f, 2.0f };
+		float[] target = new float[] { 0.0f, 1.0f, 0.0f, 0.0f };
+		Gradient grad = net.createGradient();
+		Assert.assertEquals(net.getParamCount(), grad.getParamCount());
+
+		float[] paramsBefore = net.getParams().clone();
+		net.calcOutput(inp);
+		net.calcGradient(inp, target, grad);
+		net.learn(grad, -0.1f);
+
+		for (int i = 0; i < paramsBefore.length; i++) {
+			Assert.assertEquals(paramsBefore[i] - 0.1f * grad.getParams()[i], net.getParams()[i], 0.0f);
+		}
+	}
+
+	@Test
+	public void testAccumulatedGradientIsSumOfSampleGradients() {
+		Classifier net = new Classifier(3, 8, 4);
+		net.initParams(rnd);
+
+		float[][] inp = new float[5][3];
+		float[][] target = new float[5][4];
+		MnFuncs.assignGaussian(inp, rnd);
+		for (int r = 0; r < inp.length; r++) {
+			target[r][r % 4] = 1.0f;
+		}
+
+		Gradient sampleGrad = net.createGradient();
+		Gradient expected = net.createGradient();
+		Gradient actual = net.createGradient();
+		expected.clear();
+		actual.clear();
+
+		for (int r = 0; r < inp.length; r++) {
+			net.calcOutput(inp[r]);
+			net.calcGradient(inp[r], target[r], sampleGrad);
+			expected.add(sampleGrad);
+
+			net.calcGradient(inp[r], target[r], actual, true);
+			Assert.assertArrayEquals(sampleGrad.getInputGrad(), actual.getInputGrad(), 0.0f);
+		}
+
+		Assert.assertArrayEquals(expected.getParams(), actual.getParams(), 1e-6f);
+	}
+
+	@Test
+	public void testStreamingTrainingEqualsInMemoryTraining() {
+		int sampleCount = 45;
+		float[][] inp = new float[sampleCount][3];
+		float[][] target = new float[sampleCount][4];
+		MnFuncs.assignGaussian(inp, rnd);
+		for (int r = 0; r < sampleCount; r++) {
+			target[r][rnd.nextInt(4)] = 1.0f;
+		}
+
+		Classifier inMemory = new Classifier(3, 8, 4);
+		inMemory.initParams(new Random(1));
+		Classifier fromArrays = new Classifier(3, 8, 4);
+		fromArrays.initParams(new Random(1));
+		Classifier fromStream = new Classifier(3, 8, 4);
+		fromStream.initParams(new Random(1));
+
+		new GradientDescentTrainer().run(inMemory, inp, target, 10, 0.1f, null);
+
+		new GradientDescentTrainer().run(fromArrays, new ArraySampleSource(inp, target), 10, 0.1f);
+
+		List<float[][]> samples = new ArrayList<>();
+		for (int r = 0; r < sampleCount; r++) {
+			samples.add(new float[][] { inp[r], target[r] });
+		}
+		SpliteratorSampleSource source = new SpliteratorSampleSource(samples.stream(), 3, 4);
+		new GradientDescentTrainer().run(fromStream, source, 10, 0.1f);
+
+		Assert.assertArrayEquals(inMemory.getParams(), fromArrays.getParams(), 0.0f);
+		Assert.assertArrayEquals(inMemory.getParams(), fromStream.getParams(), 0.0f);
+	}
+
+	@Test
+	public void testPrefetchedTrainingEqualsStreamingTraining() throws InterruptedException {
+		int sampleCount = 45;
+		float[][] inp = new float[sampleCount][3];
+		float[][] target = new float[sampleCount][4];
+		MnFuncs.assignGaussian(inp, rnd);
+		for (int r = 0; r < sampleCount; r++) {
+			target[r][rnd.nextInt(4)] = 1.0f;
+		}
+
+		Classifier streamed = new Classifier(3, 8, 4);
+		streamed.initParams(new Random(1));
+		Classifier prefetched = new Classifier(3, 8, 4);
+		prefetched.initParams(new Random(1));
+
+		new GradientDescentTrainer().run(streamed, new ArraySampleSource(inp, target, new Random(2)), 7, 0.1f);
+
+		ArraySampleSource source = new ArraySampleSource(inp, target, new Random(2));
+		try (BatchPrefetcher prefetcher = new BatchPrefetcher(source, 7, 2)) {
+			new GradientDescentTrainer().run(prefetched, prefetcher, 0.1f);
+
+			Assert.assertNull(prefetcher.take());
+			Assert.assertTrue(prefetcher.getAvgOccupancy() >= 1.0f);
+			Assert.assertTrue(prefetcher.getAvgOccupancy() <= prefetcher.getQueueDepth());
+		}
+
+		Assert.assertArrayEquals(streamed.getParams(), prefetched.getParams(), 0.0f);
+	}
+
+	@Test
+	public void testClosingPrefetcherReleasesWaitingConsumer() throws InterruptedException {
+		final CountDownLatch sourceRelease = new CountDownLatch(1);
+		SampleSource blockingSource = new SampleSource() {
+
+			@Override
+			public int getInputSize() {
+				return 3;
+			}
+
+			@Override
+			public int getTargetSize() {
+				return 2;
+			}
+
+			@Override
+			public boolean next(float[] inp, float[] target) {
+				try {
+					sourceRelease.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				return false;
+			}
+		};
+
+		final BatchPrefetcher prefetcher = new BatchPrefetcher(blockingSource, 4, 2);
+		final BatchPrefetcher.Batch[] taken = { new BatchPrefetcher.Batch(1, 3, 2) };
+		Thread consumer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					taken[0] = prefetcher.take();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		});
+		consumer.start();
+
+		while (prefetcher.getConsumerStallCount() == 0) {
+			Thread.sleep(1);
+		}
+
+		// close() waits for the producer, which is blocked in the source
+		Thread closer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				prefetcher.close();
+			}
+		});
+		closer.start();
+
+		consumer.join(10000);
+		Assert.assertFalse("the consumer still waits after close()", consumer.isAlive());
+		Assert.assertNull(taken[0]);
+
+		sourceRelease.countDown();
+		closer.join(10000);
+		Assert.assertFalse(closer.isAlive());
+	}
+
+	@Test
+	public void testMappedDataSetEqualsGeneratedDataSet() throws IOException {
+		DataSetGenerator generator = new DataSetGenerator( //
+				new UniformVectorDistribution(-2.0f, +2.0f), //
+				new InsideCenteredSphere(1.0f) //
+		);
+
+		File file = temporaryFolder.newFile("train.mdld");
+		generator.generate(3, 1, 100L, new Random(5), file);
+		float[][][] expected = generator.generate(3, 1, 100, new Random(5));
+
+		try (MappedDataSet dataSet = new MappedDataSet(file)) {
+			Assert.assertEquals(100, dataSet.getSampleCount());
+			Assert.assertEquals(3, dataSet.getInputSize());
+			Assert.assertEquals(1, dataSet.getOutputSize());
+
+			float[] inp = new float[3];
+			float[] target = new float[1];
+			for (int r = 0; r < 100; r++) {
+				dataSet.read(r, inp, target);
+				Assert.assertArrayEquals(expected[0][r], inp, 0.0f);
+				Assert.assertArrayEquals(expected[1][r], target, 0.0f);
+			}
+
+			Classifier inMemory = new Classifier(3, 5, 1);
+			inMemory.initParams(new Random(1));
+			Classifier mapped = new Classifier(3, 5, 1);
+			mapped.initParams(new Random(1));
+
+			new GradientDescentTrainer().run(inMemory, expected[0], expected[1], 16, 0.1f, null);
+			new GradientDescentTrainer().run(mapped, dataSet.createSampleSource(), 16, 0.1f);
+
+			Assert.assertArrayEquals(inMemory.getParams(), mapped.getParams(), 0.0f);
+		}
+	}
+
+	@Test
+	public void testAsyncCheckpointerKeepsLastCheckpoints() throws IOException, InterruptedException {
+		float[][][] trainSet = DataSetGenerator.generateUniformToUnitSphere_TrainAndTestSets(2, 1, 60, rnd)[0];
+
+		Classifier net = new Classifier(2, 4, 1);
+		net.initParams(rnd);
+		GradientDescentTrainer trainer = new GradientDescentTrainer();
+
+		File dir = temporaryFolder.newFolder("checkpoints");
+		float[] lastSnapshot = null;
+		try (AsyncCheckpointer checkpointer = new AsyncCheckpointer(dir, "net", 2, 2, 0)) {
+			for (int epoch = 1; epoch <= 7; epoch++) {
+				trainer.run(net, trainSet[0], trainSet[1], 8, 0.1f, rnd);
+
+				if (checkpointer.onEpochEnd(net, epoch)) {
+					lastSnapshot = net.getParams().clone();
+
+					// otherwise, snapshots which are taken faster than they are written are dropped
+					checkpointer.flush();
+				}
+			}
+
+			Assert.assertNull(checkpointer.getLastError());
+			Assert.assertEquals(2, checkpointer.listCheckpoints().length);
+			Assert.assertEquals(checkpointer.getFile(6), checkpointer.getLatestCheckpoint());
+		}
+
+		Classifier restored = new Classifier(2, 4, 1);
+		ModelCheckpoint.load(new File(dir, "net-000000000006.mdlc"), restored);
+		Assert.assertArrayEquals(lastSnapshot, restored.getParams(), 0.0f);
+	}
+
+	@Test
+	public void testInferenceServerEqualsLocalCalculation() throws Exception {
+		Classifier served = new Classifier(3, 8, 4);
+		served.initParams(new Random(1));
+		final Classifier local = new Classifier(3, 8, 4);
+		local.initParams(new Random(1));
+
+		final float[][] inp = new float[100][3];
+		MnFuncs.assignGaussian(inp, rnd);
+
+		final float[][] expected = new float[inp.length][];
+		for (int r = 0; r < inp.length; r++) {
+			expected[r] = local.calcOutput(inp[r]).clone();
+		}
+
+		try (final InferenceServer server = new InferenceServer(served, 0, 8, 2000)) {
+			int threadCount = 4;
+			Thread[] threads = new Thread[threadCount];
+			final Throwable[] errors = new Throwable[threadCount];
+
+			for (int t = 0; t < threadCount; t++) {
+				final int threadIdx = t;
+
+				threads[t] = new Thread() {
+
+					@Override
+					public void run() {
+						try (InferenceClient client = new InferenceClient(server.getPort())) {
+							for (int r = threadIdx; r < inp.length; r += errors.length) {
+								Assert.assertArrayEquals(expected[r], client.calcOutput(inp[r]), 0.0f);
+							}
+						} catch (Throwable e) {
+							errors[threadIdx] = e;
+						}
+					}
+				};
+				threads[t].start();
+			}
+
+			for (int t = 0; t < threadCount; t++) {
+				threads[t].join();
+				if (errors[t] != null) {
+					throw new AssertionError("client " + t + " failed", errors[t]);
+				}
+			}
+
+			try (InferenceClient client = new InferenceClient(server.getPort())) {
+				client.calcOutput(new float[5]);
+				Assert.fail("an input of the wrong size must be rejected");
+			} catch (IllegalArgumentException e) {
+				// expected
+			}
+
+			// an input too large to be skipped is rejected and closes the connection
+			try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), server.getPort())) {
+				DataOutputStream rawOut = new DataOutputStream(socket.getOutputStream());
+				rawOut.writeInt(Integer.MAX_VALUE);
+				rawOut.flush();
+
+				DataInputStream rawIn = new DataInputStream(socket.getInputStream());
+				Assert.assertEquals(InferenceServer.STATUS_REJECTED, rawIn.readInt());
+				Assert.assertTrue(rawIn.readUTF().contains("" + Integer.MAX_VALUE));
+				Assert.assertEquals(-1, rawIn.read());
+			}
+
+			Assert.assertEquals(inp.length, server.queueLatency.getCount());
+			Assert.assertTrue(server.getAvgBatchSize() >= 1.0f);
+			Assert.assertTrue(server.queueLatency.getPercentileNanos(0.99) > 0);
+		}
+	}
+
+	@Test
+	public void testInferenceServerSurvivesFailingBatch() throws Exception {
+		Classifier net = new Classifier(3, 8, 4);
+		net.initParams(new Random(1));
+		float[] x = { 0.5f, -1.0f, 2.0f };
+		float[] expected = net.calcOutput(x).clone();
+
+		try (InferenceServer server = new InferenceServer(new FailingOperation(net), 0, 8, 200); //
+				InferenceClient client = new InferenceClient(server.getPort())) {
+			try {
+				client.calcOutput(new float[] { Float.NaN, 0.0f, 0.0f });
+				Assert.fail("the failure of the batch must be reported");
+			} catch (IllegalStateException e) {
+				Assert.assertTrue(e.getMessage(), e.getMessage().contains("NaN input"));
+			}
+
+			try {
+				client.calcOutput(x, new float[3]);
+				Assert.fail("an out array of the wrong size must be rejected");
+			} catch (IllegalArgumentException e) {
+				// expected
+			}
+
+			// the batching thread and the connection are still usable
+			Assert.assertArrayEquals(expected, client.calcOutput(x), 0.0f);
+		}
+	}
+
+	@Test
+	public void testClosingInferenceServerReleasesSendingClient() throws Exception {
+		Classifier net = new Classifier(3, 8, 4);
+		net.initParams(new Random(1));
+
+		final CountDownLatch enqueueing = new CountDownLatch(1);
+		final CountDownLatch serverClosed = new CountDownLatch(1);
+		final Thread[] connectionThread = new Thread[1];
+
+		final InferenceServer server = new InferenceServer(net, 0, 8, 200) {
+
+			@Override
+			protected boolean enqueue(Request request) throws InterruptedException {
+				// queues the request after the batching threads have stopped
+				connectionThread[0] = Thread.currentThread();
+				enqueueing.countDown();
+				serverClosed.await();
+
+				return super.enqueue(request);
+			}
+		};
+
+		Thread clientThread = new Thread() {
+
+			@Override
+			public void run() {
+				try (InferenceClient client = new InferenceClient(server.getPort())) {
+					client.calcOutput(new float[3]);
+				} catch (IOException e) {
+					// expected, the connection has been closed
+				} catch (IllegalStateException e) {
+					// expected, the server has been closed
+				}
+			}
+		};
+		clientThread.start();
+
+		enqueueing.await();
+		server.close();
+		serverClosed.countDown();
+
+		connectionThread[0].join(5000);
+		Assert.assertFalse("the connection thread must not wait forever", connectionThread[0].isAlive());
+		clientThread.join(5000);
+		Assert.assertFalse("the client must not wait forever", clientThread.isAlive());
+	}
+
+	@Test
+	public void testProgressiveRenderingCoalescesUpdatesAndStopsRefinement() throws InterruptedException {
+		final int maxFramesPerSecond = 10;
+		final long minFrameNanos = 1000000000L / maxFramesPerSecond;
+
+		final List<Integer> levels = Collections.synchronizedList(new ArrayList<Integer>());
+		final List<Long> frameStartTimes = Collections.synchronizedList(new ArrayList<Long>());
+		final CountDownLatch renderedLevels = new CountDownLatch(6);
+		final ProgressiveRenderScheduler[] scheduler = new ProgressiveRenderScheduler[1];
+
+		scheduler[0] = new ProgressiveRenderScheduler(4, new ProgressiveRenderScheduler.Renderer() {
+
+			@Override
+			public void renderLevel(int level) {
+				if (level == 0) {
+					frameStartTimes.add(System.nanoTime());
+				}
+				levels.add(level);
+
+				if (levels.size() == 2) {
+					// the net is updated several times while the first frame is refined
+					for (int k = 0; k < 3; k++) {
+						scheduler[0].requestFrame();
+					}
+				}
+
+				renderedLevels.countDown();
+			}
+		});
+
+		// without the render thread, the caller renders by itself
+		Assert.assertFalse(scheduler[0].requestFrame());
+
+		scheduler[0].setEnabled(true, maxFramesPerSecond);
+		try {
+			Assert.assertTrue(scheduler[0].requestFrame());
+			Assert.assertTrue(renderedLevels.await(5, TimeUnit.SECONDS));
+
+			// no further frame without further updates
+			Thread.sleep(3 * minFrameNanos / 1000000);
+		} finally {
+			scheduler[0].setEnabled(false, maxFramesPerSecond);
+		}
+		Assert.assertFalse(scheduler[0].isEnabled());
+
+		// the first frame stops refining after level 1, the updates are coalesced into
+		// one frame, which starts over with the coarse level and is refined completely
+		Assert.assertEquals(Arrays.asList(0, 1, 0, 1, 2, 3), levels);
+
+		long frameInterval = frameStartTimes.get(1) - frameStartTimes.get(0);
+		Assert.assertTrue("frame interval: " + frameInterval, frameInterval >= minFrameNanos * 9 / 10);
+	}
+
+	@Test
+	public void testActivationGridEqualsPerPixelCalculation() {
+		Classifier net = new Classifier(2, 5, 3, 1);
+		net.initParams(rnd);
+
+		int size = 21;
+		ActivationGridRenderer renderer = new ActivationGridRenderer(net, -6, 6, new ForkJoinPool(3));
+		renderer.render(size);
+
+		// replaced operations must be picked up by the next rendering
+		net.setHiddenActivationFunction(ActivationFunctionType.RELU);
+		renderer.render(size);
+
+		float[] input = new float[2];
+		for (int y = 0; y < size; y++) {
+			for (int x = 0; x < size; x++) {
+				input[0] = renderer.getInputValue(x, size);
+				input[1] = renderer.getInputValue(size - 1 - y, size);
+				net.calcOutput(input);
+
+				Assert.assertEquals(input[0] / 6, renderer.getGrid(0, 0)[y * size + x], 1e-6f);
+				for (int i = 1; i < net.getLayerCount(); i++) {
+					float[] act = net.getActivity(i);
+					for (int j = 0; j < act.length; j++) {
+						Assert.assertEquals(act[j], renderer.getGrid(i, j)[y * size + x], 1e-5f);
+					}
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testTrainingEnginePublishesTrainedSnapshots() throws InterruptedException {
+		float[][][] trainSet = DataSetGenerator.generateUniformToUnitSphere_TrainAndTestSets(2, 1, 60, rnd)[0];
+
+		Classifier net = new Classifier(2, 4, 1);
+		net.initParams(new Random(1));
+		Classifier reference = new Classifier(2, 4, 1);
+		reference.initParams(new Random(1));
+		reference.setHiddenActivationFunction(ActivationFunctionType.RELU);
+
+		final List<NetSnapshot> snapshots = new ArrayList<NetSnapshot>();
+		final CountDownLatch published = new CountDownLatch(4);
+
+		TrainingEngine engine = new TrainingEngine(net, trainSet[0], trainSet[1], //
+				ActivationFunctionType.TANH, ActivationFunctionType.SIGMOID, rnd, new TrainingEngine.Listener() {
+
+					@Override
+					public void snapshotPublished(NetSnapshot snapshot) {
+						synchronized (snapshots) {
+							snapshots.add(snapshot);
+						}
+						published.countDown();
+					}
+
+					@Override
+					public void trainingFailed(RuntimeException e) {
+						throw new AssertionError(e);
+					}
+				});
+		try {
+			engine.setLearningRate(0.1f);
+			engine.setHiddenActivationFunction(ActivationFunctionType.RELU);
+			for (int i = 0; i < 3; i++) {
+				engine.step();
+			}
+			published.await();
+		} finally {
+			engine.close();
+		}
+
+		GradientDescentTrainer trainer = new GradientDescentTrainer();
+		for (int i = 0; i < 3; i++) {
+			trainer.run(reference, trainSet[0], trainSet[1], TrainingEngine.BATCH_SIZE, 0.1f, null);
+		}
+
+		NetSnapshot last = engine.getLatestSnapshot();
+		Assert.assertSame(snapshots.get(3), last);
+		Assert.assertEquals(3, last.epoch);
+		Assert.assertEquals(ActivationFunctionType.RELU, last.hiddenActFunc);
+		for (int i = 1; i < snapshots.size(); i++) {
+			Assert.assertTrue(snapshots.get(i).seq > snapshots.get(i - 1).seq);
+		}
+
+		// the canvas renders a classifier of its own
+		Classifier view = new Classifier(2, 4, 1);
+		last.applyTo(view, null);
+		Assert.assertArrayEquals(reference.getParams(), view.getParams(), 0.0f);
+	}
+
+	@Test
+	public void testTrainerDoesNotAllocateAfterFirstEpoch() {
+		ThreadMXBean threadBean = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+		Assume.assumeTrue(threadBean.isThreadAllocatedMemorySupported());
+		threadBean.setThreadAllocatedMemoryEnabled(true);
+
+		int sampleCount = 103;
+		float[][] inp = new float[sampleCount][3];
+		float[][] target = new float[sampleCount][2];
+		MnFuncs.assignGaussian(inp, rnd);
+		for (int i = 0; i < sampleCount; i++) {
+			target[i][inp[i][0] > 0 ? 0 : 1] = 1.0f;
+		}
+
+		Classifier net = new Classifier(3, 8, 6, 2);
+		net.initParams(rnd);
+
+		GradientDescentTrainer trainer = new GradientDescentTrainer();
+		Random shufflingRnd = new Random(3);
+
+		// the first epochs allocate the buffers and give the JIT compiler a chance
+		for (int epoch = 0; epoch < 50; epoch++) {
+			trainer.run(net, inp, target, 10, 0.1f, shufflingRnd);
+		}
+
+		long threadId = Thread.currentThread().getId();
+		long allocatedBefore = threadBean.getThreadAllocatedBytes(threadId);
+		float lossSum = 0.0f;
+		for (int epoch = 0; epoch < 20; epoch++) {
+			lossSum += trainer.run(net, inp, target, 10, 0.1f, shufflingRnd).getLoss();
+		}
+		long allocated = threadBean.getThreadAllocatedBytes(threadId) - allocatedBefore;
+
+		Assert.assertFalse(Float.isNaN(lossSum));
+		// allow for a few bytes of noise of the measurement itself
+		Assert.assertTrue("allocated " + allocated + " bytes in 20 epochs", allocated < 1024);
+	}
+
+	@Test
+	public void testStatsAccumulatorEqualsSequentialStats() throws InterruptedException {
+		int categoryCount = 5;
+		int sampleCount = 4000;
+		int[] real = new int[sampleCount];
+		int[] predicted = new int[sampleCount];
+		float[] loss = new float[sampleCount];
+		for (int i = 0; i < sampleCount; i++) {
+			real[i] = rnd.nextInt(categoryCount);
+			predicted[i] = rnd.nextBoolean() ? real[i] : rnd.nextInt(categoryCount);
+			loss[i] = (float) Math.exp(4 * rnd.nextGaussian());
+		}
+
+		Stats expected = new Stats(categoryCount);
+		for (int i = 0; i < sampleCount; i++) {
+			expected.aggregate(real[i], predicted[i], loss[i]);
+		}
+
+		StatsAccumulator acc = new StatsAccumulator(categoryCount);
+		Thread[] threads = new Thread[4];
+		for (int t = 0; t < threads.length; t++) {
+			int threadIdx = t;
+
+			threads[t] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					for (int i = threadIdx; i < sampleCount; i += threads.length) {
+						acc.aggregate(real[i], predicted[i], loss[i]);
+					}
+				}
+			});
+			threads[t].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+
+		Stats actual = acc.getMerged();
+		Assert.assertEquals(threads.length, acc.getCellCount());
+		Assert.assertEquals(sampleCount, actual.batchSize);
+		Assert.assertEquals(expected.getLoss(), actual.getLoss(), 1e-3f * expected.getLoss());
+		Assert.assertEquals(expected.getAccuracy(), actual.getAccuracy(), 0.0f);
+		for (int c = 0; c < categoryCount; c++) {
+			Assert.assertArrayEquals(expected.confusionCounts[c], actual.confusionCounts[c]);
+		}
+
+		// the counts derived from the confusion matrix
+		for (int c = 0; c < categoryCount; c++) {
+			int[] counts = new int[Stats.ResultType.values().length];
+			for (int i = 0; i < sampleCount; i++) {
+				if (real[i] == c) {
+					counts[(predicted[i] == c ? Stats.ResultType.TRUE_POSITIVE
+							: Stats.ResultType.FALSE_NEGATIVE).ordinal()]++;
+				} else {
+					counts[(predicted[i] == c ? Stats.ResultType.FALSE_POSITIVE
+							: Stats.ResultType.TRUE_NEGATIVE).ordinal()]++;
+				}
+			}
+			for (Stats.ResultType resultType : Stats.ResultType.values()) {
+				Assert.assertEquals(counts[resultType.ordinal()], actual.getResultCount(c, resultType));
+			}
+		}
+
+		float[] sortedLoss = loss.clone();
+		Arrays.sort(sortedLoss);
+		for (float q : new float[] { 0.1f, 0.5f, 0.9f, 0.99f }) {
+			float exact = sortedLoss[(int) Math.ceil(q * sampleCount) - 1];
+			Assert.assertEquals(expected.getLossQuantile(q), actual.getLossQuantile(q), 0.0f);
+			Assert.assertEquals(exact, actual.getLossQuantile(q), exact / 32);
+		}
+
+		acc.clear();
+		Assert.assertEquals(0, acc.getMerged().batchSize);
+	}
+
 	// @Test
 	// public void testCalculateGradient() {
 	// testCalculateGradientImpl();
@@ -206,4 +1101,30 @@ public class ClassifierTest {
 	//
 	// return net;
 	// }
+
+	/**
+	 * Fails to calculate batches which contain an input starting with NaN.
+	 */
+	protected static class FailingOperation extends ProfilingOperation {
+
+		public FailingOperation(Operation delegate) {
+			super(delegate, new OperationProfile("failing"));
+		}
+
+		@Override
+		public float[][] calcOutputBatch(float[][] inp, int rows) {
+			for (int r = 0; r < rows; r++) {
+				if (Float.isNaN(inp[r][0])) {
+					throw new IllegalStateException("NaN input");
+				}
+			}
+
+			return super.calcOutputBatch(inp, rows);
+		}
+
+		@Override
+		public FailingOperation createParamSharingCopy() {
+			return new FailingOperation(delegate.createParamSharingCopy());
+		}
+	}
 }
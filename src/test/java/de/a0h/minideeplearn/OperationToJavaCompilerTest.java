@@ -3,23 +3,50 @@ package de.a0h.minideeplearn;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Random;
+import java.util.Set;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 
 import org.junit.Assert;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
+import de.a0h.minideeplearn.checkpoint.ModelCheckpoint;
 import de.a0h.minideeplearn.operation.MdlOperationConfig;
 import de.a0h.minideeplearn.operation.MdlOperationConfig.StringConversionPrecision;
 import de.a0h.minideeplearn.operation.Operation;
+import de.a0h.minideeplearn.operation.OperationPool;
+import de.a0h.minideeplearn.operation.compiler.CompiledOperationCache;
 import de.a0h.minideeplearn.operation.compiler.JavaToClassCompiler;
+import de.a0h.minideeplearn.operation.compiler.OperationToBytecodeCompiler;
 import de.a0h.minideeplearn.operation.compiler.OperationToJavaCompiler;
+import de.a0h.minideeplearn.operation.gradient.Gradient;
+import de.a0h.minideeplearn.operation.optimizer.AdamUpdateRule;
 import de.a0h.minideeplearn.operation.optimizer.GradientDescentOptimizer;
+import de.a0h.minideeplearn.operation.optimizer.GradientDescentTrainer;
+import de.a0h.minideeplearn.operation.optimizer.MomentumUpdateRule;
+import de.a0h.minideeplearn.operation.optimizer.RmsPropUpdateRule;
+import de.a0h.minideeplearn.operation.optimizer.UpdateRule;
+import de.a0h.minideeplearn.operation.profiling.OperationProfile;
+import de.a0h.minideeplearn.operation.profiling.OperationProfiler;
+import de.a0h.minideeplearn.operation.profiling.Profiled;
+import de.a0h.minideeplearn.operation.profiling.ProfiledMethod;
 import de.a0h.minideeplearn.predefined.ActivationFunctionType;
 import de.a0h.minideeplearn.predefined.Classifier;
 import de.a0h.mininum.MnFuncs;
 
 public class OperationToJavaCompilerTest {
 
+	@Rule
+	public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
 	@Test
 	public void testCompile() {
 		// Classifier chainOriginal = new Classifier(3, 2, 1);
@@ -106,6 +133,459 @@ public class OperationToJavaCompilerTest {
 		System.out.println(dOriginal / dCompiled);
 	}
 
+	@Test
+	public void testCompileBatched() {
+		ActivationFunctionType[] hiddenTypes = { //
+				ActivationFunctionType.TANH, //
+				ActivationFunctionType.RELU, //
+				ActivationFunctionType.SWISH, //
+		};
+
+		for (ActivationFunctionType hiddenType : hiddenTypes) {
+			for (boolean inlineVecOps : new boolean[] { false, true }) {
+				Classifier chainOriginal = new Classifier(5, 7, 6, 3);
+				chainOriginal.setHiddenActivationFunction(hiddenType);
+
+				OperationToJavaCompiler toJavaCompiler = new OperationToJavaCompiler();
+				toJavaCompiler.setBatchedCode(true);
+				JavaToClassCompiler toClassCompiler = new JavaToClassCompiler();
+
+				String source = toJavaCompiler.compile(chainOriginal, inlineVecOps).toString();
+				Class<? extends Operation> clazz = toClassCompiler.compileOperation(source);
+				Operation chainCompiled = toClassCompiler.newInstance(clazz);
+
+				Random rnd = new Random(17);
+				chainOriginal.initParams(rnd);
+				System.arraycopy(chainOriginal.getParams(), 0, chainCompiled.getParams(), 0,
+						chainOriginal.getParamCount());
+
+				int rows = 37;
+				float[][] inp = new float[rows][chainOriginal.getInputSize()];
+				float[][] target = new float[rows][chainOriginal.getOutputSize()];
+				MnFuncs.assignGaussian(inp, rnd);
+				for (int r = 0; r < rows; r++) {
+					target[r][rnd.nextInt(target[r].length)] = 1.0f;
+				}
+
+				float[][] outOriginal = chainOriginal.calcOutputBatch(inp, rows);
+				float[][] outCompiled = chainCompiled.calcOutputBatch(inp, rows);
+
+				Gradient gradOriginal = chainOriginal.createGradient();
+				Gradient gradCompiled = chainCompiled.createGradient();
+				chainOriginal.calcGradientBatch(inp, target, rows, gradOriginal);
+				chainCompiled.calcGradientBatch(inp, target, rows, gradCompiled);
+
+				String msg = hiddenType + ", inlineVecOps=" + inlineVecOps;
+				for (int r = 0; r < rows; r++) {
+					Assert.assertArrayEquals(msg, outOriginal[r], outCompiled[r], 1e-6f);
+					Assert.assertArrayEquals(msg, gradOriginal.getInputGradBatch()[r],
+							gradCompiled.getInputGradBatch()[r], 1e-6f);
+				}
+				Assert.assertArrayEquals(msg, gradOriginal.getParams(), gradCompiled.getParams(), 1e-5f);
+			}
+		}
+	}
+
+	@Test
+	public void testCompileBytecode() {
+		ActivationFunctionType[] hiddenTypes = { //
+				ActivationFunctionType.TANH, //
+				ActivationFunctionType.RELU, //
+				ActivationFunctionType.SWISH, //
+		};
+
+		for (ActivationFunctionType hiddenType : hiddenTypes) {
+			for (int outputSize : new int[] { 1, 3 }) {
+				Classifier chainOriginal = new Classifier(5, 7, 6, outputSize);
+				chainOriginal.setHiddenActivationFunction(hiddenType);
+
+				OperationToJavaCompiler toJavaCompiler = new OperationToJavaCompiler();
+				JavaToClassCompiler toClassCompiler = new JavaToClassCompiler();
+				String source = toJavaCompiler.compile(chainOriginal).toString();
+				Operation chainFromSource = toClassCompiler.newInstance(toClassCompiler.compileOperation(source));
+
+				Operation chainFromBytecode = new OperationToBytecodeCompiler().compile(chainOriginal);
+
+				Assert.assertEquals(chainFromSource.toStringWithLayout(), chainFromBytecode.toStringWithLayout());
+
+				Random rnd = new Random(17);
+				chainFromSource.initParams(new Random(23));
+				chainFromBytecode.initParams(new Random(23));
+				Assert.assertArrayEquals(chainFromSource.getParams(), chainFromBytecode.getParams(), 0.0f);
+
+				int rows = 37;
+				float[][] inp = new float[rows][chainOriginal.getInputSize()];
+				float[][] target = new float[rows][chainOriginal.getOutputSize()];
+				MnFuncs.assignGaussian(inp, rnd);
+				for (int r = 0; r < rows; r++) {
+					target[r][rnd.nextInt(target[r].length)] = 1.0f;
+				}
+
+				Gradient gradFromSource = chainFromSource.createGradient();
+				Gradient gradFromBytecode = chainFromBytecode.createGradient();
+
+				String msg = hiddenType + ", outputSize=" + outputSize;
+				for (int r = 0; r < rows; r++) {
+					Assert.assertArrayEquals(msg, //
+							chainFromSource.calcOutput(inp[r]), chainFromBytecode.calcOutput(inp[r]), 0.0f);
+					Assert.assertEquals(msg, //
+							chainFromSource.calcLoss(inp[r], target[r]), chainFromBytecode.calcLoss(inp[r], target[r]),
+							0.0f);
+
+					chainFromSource.calcGradient(inp[r], target[r], gradFromSource);
+					chainFromBytecode.calcGradient(inp[r], target[r], gradFromBytecode);
+					Assert.assertArrayEquals(msg, gradFromSource.getParams(), gradFromBytecode.getParams(), 0.0f);
+					Assert.assertArrayEquals(msg, gradFromSource.getInputGrad(), gradFromBytecode.getInputGrad(), 0.0f);
+				}
+
+				train(chainFromSource, inp, target);
+				train(chainFromBytecode, inp, target);
+				Assert.assertArrayEquals(msg, chainFromSource.getParams(), chainFromBytecode.getParams(), 0.0f);
+			}
+		}
+	}
+
+	@Test
+	public void testCompiledOperationsAdoptBoundParams() {
+		Classifier interpreted = new Classifier(5, 7, 3);
+		interpreted.setHiddenActivationFunction(ActivationFunctionType.SWISH);
+		interpreted.initParams(new Random(23));
+		int paramCount = interpreted.getParamCount();
+
+		JavaToClassCompiler toClassCompiler = new JavaToClassCompiler();
+		String source = new OperationToJavaCompiler().compile(interpreted).toString();
+		Operation fromSource = toClassCompiler.newInstance(toClassCompiler.compileOperation(source));
+		Operation fromBytecode = new OperationToBytecodeCompiler().compile(interpreted);
+
+		Random rnd = new Random(17);
+		int rows = 16;
+		float[][] inp = new float[rows][interpreted.getInputSize()];
+		float[][] target = new float[rows][interpreted.getOutputSize()];
+		MnFuncs.assignGaussian(inp, rnd);
+		for (int r = 0; r < rows; r++) {
+			target[r][rnd.nextInt(target[r].length)] = 1.0f;
+		}
+
+		Gradient interpretedGrad = interpreted.createGradient();
+		interpreted.calcOutput(inp[0]);
+		interpreted.calcGradient(inp[0], target[0], interpretedGrad);
+
+		for (Operation compiled : new Operation[] { fromSource, fromBytecode }) {
+			String msg = compiled.getClass().getName();
+			System.arraycopy(interpreted.getParams(), 0, compiled.getParams(), 0, paramCount);
+
+			int offset = 3;
+			float[] shared = new float[offset + paramCount + 2];
+			compiled.bindParams(shared, offset);
+			Assert.assertSame(msg, shared, compiled.getParams());
+			Assert.assertEquals(msg, offset, compiled.getParamsOffset());
+			Assert.assertArrayEquals(msg, interpreted.getParams(), //
+					Arrays.copyOfRange(shared, offset, offset + paramCount), 0.0f);
+
+			Gradient grad = compiled.createGradient();
+			float[] sharedGrad = new float[offset + paramCount];
+			grad.bindParams(sharedGrad, offset);
+
+			Assert.assertArrayEquals(msg, interpreted.calcOutput(inp[0]), compiled.calcOutput(inp[0]), 1e-6f);
+			compiled.calcGradient(inp[0], target[0], grad);
+			Assert.assertArrayEquals(msg, interpretedGrad.getParams(), //
+					Arrays.copyOfRange(sharedGrad, offset, offset + paramCount), 1e-6f);
+			Assert.assertArrayEquals(msg, interpretedGrad.getInputGrad(), grad.getInputGrad(), 1e-6f);
+		}
+
+		train(interpreted, inp, target);
+		for (Operation compiled : new Operation[] { fromSource, fromBytecode }) {
+			String msg = compiled.getClass().getName();
+			int offset = compiled.getParamsOffset();
+			float[] shared = compiled.getParams();
+
+			train(compiled, inp, target);
+			Assert.assertArrayEquals(msg, interpreted.getParams(), //
+					Arrays.copyOfRange(shared, offset, offset + paramCount), 1e-5f);
+			Assert.assertEquals(msg, 0.0f, shared[0], 0.0f);
+			Assert.assertEquals(msg, 0.0f, shared[shared.length - 1], 0.0f);
+		}
+	}
+
+	@Test
+	public void testUpdateRules() {
+		UpdateRule[] interpretedRules = { //
+				new MomentumUpdateRule(0.9f, false), //
+				new MomentumUpdateRule(0.9f, true), //
+				new RmsPropUpdateRule(), //
+				new AdamUpdateRule(), //
+				AdamUpdateRule.adamW(0.01f), //
+		};
+		UpdateRule[] compiledRules = { //
+				new MomentumUpdateRule(0.9f, false), //
+				new MomentumUpdateRule(0.9f, true), //
+				new RmsPropUpdateRule(), //
+				new AdamUpdateRule(), //
+				AdamUpdateRule.adamW(0.01f), //
+		};
+
+		Classifier chainOriginal = new Classifier(4, 6, 3);
+
+		JavaToClassCompiler toClassCompiler = new JavaToClassCompiler();
+		String source = new OperationToJavaCompiler().compile(chainOriginal).toString();
+		Class<? extends Operation> compiledClass = toClassCompiler.compileOperation(source);
+
+		Random rnd = new Random(17);
+		int rows = 32;
+		float[][] inp = new float[rows][chainOriginal.getInputSize()];
+		float[][] target = new float[rows][chainOriginal.getOutputSize()];
+		MnFuncs.assignGaussian(inp, rnd);
+		for (int r = 0; r < rows; r++) {
+			target[r][rnd.nextInt(target[r].length)] = 1.0f;
+		}
+
+		for (int i = 0; i < interpretedRules.length; i++) {
+			Classifier interpreted = new Classifier(4, 6, 3);
+			interpreted.initParams(new Random(23));
+
+			Operation compiled = toClassCompiler.newInstance(compiledClass);
+			System.arraycopy(interpreted.getParams(), 0, compiled.getParams(), 0, interpreted.getParamCount());
+
+			GradientDescentTrainer interpretedTrainer = new GradientDescentTrainer();
+			interpretedTrainer.setUpdateRule(interpretedRules[i]);
+			GradientDescentTrainer compiledTrainer = new GradientDescentTrainer();
+			compiledTrainer.setUpdateRule(compiledRules[i]);
+
+			String msg = interpretedRules[i].toString();
+			float firstLoss = 0;
+			float lastLoss = 0;
+			for (int epoch = 0; epoch < 30; epoch++) {
+				lastLoss = interpretedTrainer.run(interpreted, inp, target, 8, 0.01f, null).getLoss();
+				compiledTrainer.run(compiled, inp, target, 8, 0.01f, null);
+
+				if (epoch == 0) {
+					firstLoss = lastLoss;
+				}
+			}
+
+			Assert.assertArrayEquals(msg, interpreted.getParams(), compiled.getParams(), 1e-4f);
+			Assert.assertTrue(msg + ": " + firstLoss + " -> " + lastLoss, lastLoss < firstLoss);
+		}
+	}
+
+	@Test
+	public void testModelCheckpoint() throws IOException {
+		Classifier original = new Classifier(4, 6, 3);
+		original.setHiddenActivationFunction(ActivationFunctionType.RELU);
+		original.initParams(new Random(23));
+
+		File file = temporaryFolder.newFile("model.mdlc");
+		ModelCheckpoint.write(original, file);
+		Assert.assertEquals(ModelCheckpoint.getLayout(original), ModelCheckpoint.readLayout(file));
+
+		Classifier interpreted = new Classifier(4, 6, 3);
+		interpreted.setHiddenActivationFunction(ActivationFunctionType.RELU);
+		ModelCheckpoint.load(file, interpreted);
+		Assert.assertArrayEquals(original.getParams(), interpreted.getParams(), 0.0f);
+
+		JavaToClassCompiler toClassCompiler = new JavaToClassCompiler();
+		String source = new OperationToJavaCompiler().compile(original).toString();
+		Operation compiled = toClassCompiler.newInstance(toClassCompiler.compileOperation(source));
+		ModelCheckpoint.load(file, compiled);
+		Assert.assertArrayEquals(original.getParams(), compiled.getParams(), 0.0f);
+
+		// and back, from a compiled model into an interpreted one
+		Operation fromBytecode = new OperationToBytecodeCompiler().compile(original);
+		ModelCheckpoint.load(file, fromBytecode);
+		File compiledFile = temporaryFolder.newFile("compiled.mdlc");
+		ModelCheckpoint.write(fromBytecode, compiledFile);
+
+		Classifier restored = new Classifier(4, 6, 3);
+		restored.setHiddenActivationFunction(ActivationFunctionType.RELU);
+		ModelCheckpoint.load(compiledFile, restored);
+		Assert.assertArrayEquals(original.getParams(), restored.getParams(), 0.0f);
+
+		try {
+			ModelCheckpoint.load(file, new Classifier(4, 7, 3));
+			Assert.fail("a checkpoint of a different layout must be rejected");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testOperationPool() throws InterruptedException {
+		Classifier chainOriginal = new Classifier(5, 7, 3);
+
+		JavaToClassCompiler toClassCompiler = new JavaToClassCompiler();
+		String source = new OperationToJavaCompiler().compile(chainOriginal).toString();
+		Operation prototype = toClassCompiler.newInstance(toClassCompiler.compileOperation(source));
+		prototype.initParams(new Random(23));
+
+		final int rows = 200;
+		final float[][] inp = new float[rows][prototype.getInputSize()];
+		MnFuncs.assignGaussian(inp, new Random(17));
+
+		final float[][] expected = new float[rows][];
+		for (int r = 0; r < rows; r++) {
+			expected[r] = prototype.calcOutput(inp[r]).clone();
+		}
+
+		final OperationPool pool = new OperationPool(prototype, 2);
+
+		Operation borrowed = pool.borrow();
+		Assert.assertNotSame(prototype, borrowed);
+		Assert.assertSame(prototype.getParams(), borrowed.getParams());
+		pool.giveBack(borrowed);
+
+		int threadCount = 4;
+		Thread[] threads = new Thread[threadCount];
+		final AssertionError[] errors = new AssertionError[threadCount];
+
+		for (int t = 0; t < threadCount; t++) {
+			final int threadIdx = t;
+
+			threads[t] = new Thread() {
+
+				@Override
+				public void run() {
+					float[] out = new float[expected[0].length];
+
+					try {
+						for (int i = 0; i < 50; i++) {
+							for (int r = threadIdx; r < rows; r += errors.length) {
+								pool.calcOutput(inp[r], out);
+								Assert.assertArrayEquals(expected[r], out, 0.0f);
+							}
+						}
+					} catch (AssertionError e) {
+						errors[threadIdx] = e;
+					}
+				}
+			};
+			threads[t].start();
+		}
+
+		for (int t = 0; t < threadCount; t++) {
+			threads[t].join();
+			if (errors[t] != null) {
+				throw errors[t];
+			}
+		}
+	}
+
+	@Test
+	public void testOperationProfiling() throws JMException {
+		Classifier net = new Classifier(3, 8, 4);
+		net.initParams(new Random(23));
+
+		OperationProfiler profiler = new OperationProfiler("test");
+
+		if (!MdlOperationConfig.PROFILING) {
+			// the default, the profiling-tests execution in the pom turns it on
+			Assert.assertSame(net, profiler.profile(net));
+			Assert.assertTrue(profiler.getProfiles().isEmpty());
+			return;
+		}
+
+		Classifier reference = new Classifier(3, 8, 4);
+		reference.initParams(new Random(23));
+
+		float[][] inp = new float[40][3];
+		float[][] target = new float[40][4];
+		MnFuncs.assignGaussian(inp, new Random(17));
+		for (int r = 0; r < inp.length; r++) {
+			target[r][r % 4] = 1.0f;
+		}
+
+		Operation profiled = profiler.profile(net);
+
+		GradientDescentTrainer trainer = new GradientDescentTrainer();
+		trainer.run(profiled, inp, target, 10, 0.1f, null);
+		new GradientDescentTrainer().run(reference, inp, target, 10, 0.1f, null);
+
+		// the profiled chain trains the parameters of the net
+		Assert.assertEquals(ModelCheckpoint.getLayout(net), ModelCheckpoint.getLayout(profiled));
+		Assert.assertArrayEquals(reference.getParams(), net.getParams(), 0.0f);
+
+		// one profile per elementary operation, then the one of the chain
+		List<OperationProfile.Snapshot> snapshot = profiler.getSnapshot();
+		Assert.assertEquals(5, snapshot.size());
+		for (OperationProfile.Snapshot opSnapshot : snapshot.subList(0, 4)) {
+			Assert.assertEquals(opSnapshot.name, 4, opSnapshot.getCallCount(ProfiledMethod.CALC_OUTPUT));
+			Assert.assertEquals(opSnapshot.name, 4, opSnapshot.getCallCount(ProfiledMethod.CALC_GRADIENT));
+			Assert.assertTrue(opSnapshot.name, opSnapshot.getTotalNanos() > 0);
+		}
+		Assert.assertEquals(4, snapshot.get(3).getCallCount(ProfiledMethod.CALC_LOSS));
+		Assert.assertEquals(4, snapshot.get(4).getCallCount(ProfiledMethod.LEARN));
+
+		profiler.registerMBeans();
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			Set<ObjectName> names = server.queryNames(new ObjectName(OperationProfiler.JMX_DOMAIN + //
+					":type=OperationProfile,profiler=\"test\",*"), null);
+			Assert.assertEquals(5, names.size());
+			ObjectName chainName = new ObjectName(OperationProfiler.JMX_DOMAIN + //
+					":type=OperationProfile,profiler=\"test\",op=\"4:chain\"");
+			Assert.assertEquals(4L, server.getAttribute(chainName, "LearnCount"));
+		} finally {
+			profiler.unregisterMBeans();
+		}
+
+		// the generated counters of a compiled class
+		OperationToJavaCompiler toJavaCompiler = new OperationToJavaCompiler();
+		toJavaCompiler.setProfilingCounters(true);
+		JavaToClassCompiler toClassCompiler = new JavaToClassCompiler();
+		String source = toJavaCompiler.compile(net).toString();
+		Operation compiled = toClassCompiler.newInstance(toClassCompiler.compileOperation(source));
+		System.arraycopy(net.getParams(), 0, compiled.getParams(), 0, net.getParamCount());
+
+		Assert.assertSame(compiled, profiler.profile(compiled));
+		OperationProfile compiledProfile = ((Profiled) compiled).getProfile();
+		Assert.assertSame(compiledProfile, profiler.getProfiles().get(5));
+		Assert.assertSame(compiledProfile, ((Profiled) compiled.createParamSharingCopy()).getProfile());
+
+		for (int r = 0; r < inp.length; r++) {
+			Assert.assertArrayEquals(net.calcOutput(inp[r]), compiled.calcOutput(inp[r]), 1e-6f);
+		}
+		compiled.calcLoss(inp[0], target[0]);
+
+		Assert.assertEquals(inp.length, compiledProfile.getCalcOutputCount());
+		Assert.assertEquals(1, compiledProfile.getCalcLossCount());
+		Assert.assertEquals(0, compiledProfile.getLearnCount());
+	}
+
+	@Test
+	public void testCompiledOperationCache() throws IOException {
+		File diskCacheDir = temporaryFolder.newFolder("compiled");
+		CompiledOperationCache cache = new CompiledOperationCache(1, diskCacheDir);
+
+		Classifier chainA = new Classifier(3, 4, 2);
+		Classifier chainAAgain = new Classifier(3, 4, 2);
+		Classifier chainB = new Classifier(3, 4, 2);
+		chainB.setHiddenActivationFunction(ActivationFunctionType.RELU);
+
+		Class<? extends Operation> clazzA = cache.getCompiledClass(chainA, false);
+		Assert.assertEquals(1, cache.getCompileCount());
+
+		Assert.assertSame(clazzA, cache.getCompiledClass(chainAAgain, false));
+		Assert.assertEquals(1, cache.getMemoryHitCount());
+
+		// evicts chainA from the memory tier
+		Class<? extends Operation> clazzB = cache.getCompiledClass(chainB, false);
+		Assert.assertNotSame(clazzA, clazzB);
+		Assert.assertEquals(2, cache.getCompileCount());
+		Assert.assertEquals(1, cache.size());
+		// one entry directory per class, no temporary directories left
+		Assert.assertEquals(2, diskCacheDir.list().length);
+
+		Class<? extends Operation> clazzAFromDisk = cache.getCompiledClass(chainA, false);
+		Assert.assertEquals(1, cache.getDiskHitCount());
+		Assert.assertEquals(2, cache.getCompileCount());
+		Assert.assertEquals(clazzA.getName(), clazzAFromDisk.getName());
+
+		Operation compiled = new JavaToClassCompiler().newInstance(clazzAFromDisk);
+		chainA.initParams(new Random(17));
+		System.arraycopy(chainA.getParams(), 0, compiled.getParams(), 0, chainA.getParamCount());
+		float[] inp = { 0.5f, -1.0f, 2.0f };
+		Assert.assertArrayEquals(chainA.calcOutput(inp), compiled.calcOutput(inp), 1e-6f);
+	}
+
 	protected static void train(Operation op, float[][] inp, float[][] target) {
 		GradientDescentOptimizer opti = new GradientDescentOptimizer();
 